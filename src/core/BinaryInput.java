@@ -0,0 +1,186 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads primitive values written by {@link BinaryOutput} from a channel
+ * through a buffer. If the channel ends too early, an EOFException telling
+ * the position of the missing value is thrown.
+ */
+class BinaryInput {
+    private ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private long read;
+    private long size; // -1 if not known
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Creates a new input.
+     *
+     * @param channel values are read from this channel
+     */
+    public BinaryInput(ReadableByteChannel channel) {
+        this(channel, -1);
+    }
+
+    /**
+     * Creates a new input for a channel of known length, so that counts read
+     * from it can be checked against the bytes left.
+     *
+     * @param channel values are read from this channel
+     * @param size number of bytes in the channel, -1 if not known
+     */
+    public BinaryInput(ReadableByteChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.buffer.flip(); // start empty
+        this.read = 0;
+    }
+
+    /**
+     * Makes sure the given number of bytes is in the buffer.
+     *
+     * @param n number of bytes, at most the buffer size
+     * @throws IOException if the read fails or the channel ends
+     */
+    private void require(int n) throws IOException {
+        if (this.buffer.remaining() >= n) {
+            return;
+        }
+        this.read += this.buffer.position();
+        this.buffer.compact();
+        while (this.buffer.position() < n) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.buffer.flip();
+                throw new EOFException("Unexpected end of file at byte " + this.getPosition());
+            }
+        }
+        this.buffer.flip();
+    }
+
+    /**
+     * Reads a byte.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public byte getByte() throws IOException {
+        this.require(1);
+        return this.buffer.get();
+    }
+
+    /**
+     * Reads a short.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public short getShort() throws IOException {
+        this.require(2);
+        return this.buffer.getShort();
+    }
+
+    /**
+     * Reads an int.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public int getInt() throws IOException {
+        this.require(4);
+        return this.buffer.getInt();
+    }
+
+    /**
+     * Reads a long.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public long getLong() throws IOException {
+        this.require(8);
+        return this.buffer.getLong();
+    }
+
+    /**
+     * Reads a float.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public float getFloat() throws IOException {
+        this.require(4);
+        return this.buffer.getFloat();
+    }
+
+    /**
+     * Reads a double.
+     *
+     * @return value
+     * @throws IOException if the read fails or the channel ends
+     */
+    public double getDouble() throws IOException {
+        this.require(8);
+        return this.buffer.getDouble();
+    }
+
+    /**
+     * Reads the given number of bytes.
+     *
+     * @param n number of bytes
+     * @return bytes
+     * @throws IOException if the read fails or the channel ends
+     */
+    public byte[] getBytes(int n) throws IOException {
+        byte[] bytes = new byte[n];
+        int offset = 0;
+        while (offset < n) {
+            this.require(1);
+            int k = Math.min(this.buffer.remaining(), n - offset);
+            this.buffer.get(bytes, offset, k);
+            offset += k;
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the number of bytes left in the channel.
+     *
+     * @return number of bytes, Long.MAX_VALUE if the length of the channel is not known
+     */
+    public long getRemaining() {
+        return this.size < 0 ? Long.MAX_VALUE : this.size - this.getPosition();
+    }
+
+    /**
+     * Gets the number of bytes consumed so far.
+     *
+     * @return number of bytes
+     */
+    public long getPosition() {
+        return this.read + this.buffer.position();
+    }
+
+}
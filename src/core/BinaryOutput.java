@@ -0,0 +1,164 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes primitive values to a channel through a buffer. The values are
+ * written in big-endian byte order.
+ */
+class BinaryOutput {
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private long written;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Creates a new output.
+     *
+     * @param channel values are written to this channel
+     */
+    public BinaryOutput(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.written = 0;
+    }
+
+    /**
+     * Makes sure there is room for the given number of bytes in the buffer.
+     *
+     * @param n number of bytes, at most the buffer size
+     * @throws IOException if the write fails
+     */
+    private void reserve(int n) throws IOException {
+        if (this.buffer.remaining() < n) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes a byte.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putByte(byte value) throws IOException {
+        this.reserve(1);
+        this.buffer.put(value);
+    }
+
+    /**
+     * Writes a short.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putShort(short value) throws IOException {
+        this.reserve(2);
+        this.buffer.putShort(value);
+    }
+
+    /**
+     * Writes an int.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putInt(int value) throws IOException {
+        this.reserve(4);
+        this.buffer.putInt(value);
+    }
+
+    /**
+     * Writes a long.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putLong(long value) throws IOException {
+        this.reserve(8);
+        this.buffer.putLong(value);
+    }
+
+    /**
+     * Writes a float.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putFloat(float value) throws IOException {
+        this.reserve(4);
+        this.buffer.putFloat(value);
+    }
+
+    /**
+     * Writes a double.
+     *
+     * @param value value to write
+     * @throws IOException if the write fails
+     */
+    public void putDouble(double value) throws IOException {
+        this.reserve(8);
+        this.buffer.putDouble(value);
+    }
+
+    /**
+     * Writes the given bytes.
+     *
+     * @param bytes bytes to write
+     * @throws IOException if the write fails
+     */
+    public void putBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            int n = Math.min(this.buffer.remaining(), bytes.length - offset);
+            this.buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws IOException if the write fails
+     */
+    public void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.written += this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Gets the number of bytes written so far, including the buffered bytes.
+     *
+     * @return number of bytes
+     */
+    public long getPosition() {
+        return this.written + this.buffer.position();
+    }
+
+}
@@ -0,0 +1,487 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * This class provides saving and loading in a compact binary format. The
+ * file is read and written through NIO channels and a saved simulation is
+ * loaded back exactly, bit by bit.
+ *
+ * The layout of the file is (all numbers big-endian):
+ * <pre>
+ * header:    int magic 'BOID', int format version, int settings version, long step
+ * settings:  int block length, 13 doubles, int area width, int area height, byte wrap area
+ * random:    int block length, serialized java.util.Random
+ * obstacles: int count, count * (double x, double y, int radius)
+ * species:   int count, int follow mask, int avoid mask of the default species,
+ *            (count - 1) * (int name length, UTF-8 name, int follow mask, int avoid mask, settings)
+ * boids:     int count, then the arrays x[count], y[count], vx[count], vy[count],
+ *            fx[count], fy[count], wander angle[count], all doubles, and species[count] bytes
+ * </pre>
+ *
+ * Files of format version 1 have no species block and no species array;
+ * their boids are loaded into the default species.
+ */
+public class BinarySaveFile implements SaveFile {
+
+    final static int MAGIC = 0x424f4944; // "BOID"
+    final static int FORMAT_VERSION = 2;
+    private final static int FORMAT_VERSION_WITHOUT_SPECIES = 1;
+    private final static int SETTINGS_LENGTH = 13 * 8 + 2 * 4 + 1;
+    private final static int MAX_NAME_LENGTH = 1024;
+
+    @Override
+    public Simulation loadSimulation(File file) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        Simulation sim = null;
+        try {
+            sim = this.load(file);
+            return sim;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.LOAD, this, file, sim == null ? 0 : sim.getFlock().getSize(), sim != null);
+        }
+    }
+
+    /**
+     * Loads a simulation.
+     *
+     * @param file file
+     * @return simulation
+     * @throws IOException if the load fails
+     */
+    private Simulation load(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            return BinarySaveFile.read(new BinaryInput(stream.getChannel(), stream.getChannel().size()));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file) throws IOException {
+        this.saveSimulation(sim, file, null);
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file, SaveProgress progress) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        boolean saved = false;
+        try {
+            this.save(sim, file, progress);
+            saved = true;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.SAVE, this, file, sim.getFlock().getSize(), saved);
+        }
+    }
+
+    /**
+     * Saves a simulation.
+     *
+     * @param sim simulation
+     * @param file file
+     * @param progress receives the progress, may be null
+     * @throws IOException if the save fails
+     */
+    private void save(Simulation sim, File file, SaveProgress progress) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            BinaryOutput out = new BinaryOutput(channel);
+            BinarySaveFile.write(sim, out, progress);
+            out.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String getFilenameDescription() {
+        return "Binary save file (*.boids)";
+    }
+
+    @Override
+    public String getFilenameExtension() {
+        return "boids";
+    }
+
+    /**
+     * Writes a simulation.
+     *
+     * @param sim simulation
+     * @param out output
+     * @throws IOException if the write fails
+     */
+    static void write(Simulation sim, BinaryOutput out) throws IOException {
+        BinarySaveFile.write(sim, out, null);
+    }
+
+    /**
+     * Writes a simulation and reports the progress.
+     *
+     * @param sim simulation
+     * @param out output
+     * @param progress receives the progress in written boid values, may be null
+     * @throws IOException if the write fails
+     */
+    static void write(Simulation sim, BinaryOutput out, SaveProgress progress) throws IOException {
+        out.putInt(MAGIC);
+        out.putInt(FORMAT_VERSION);
+        out.putInt(sim.getSettings().getVersion());
+        out.putLong(sim.getStep());
+        BinarySaveFile.writeSettings(sim.getSettings(), out);
+        BinarySaveFile.writeRandom(sim.getRandom(), out);
+        synchronized (sim.getObstacles()) {
+            BinarySaveFile.writeObstacles(sim.getObstacles(), out);
+        }
+        synchronized (sim.getFlock()) {
+            BinarySaveFile.writeSpecies(sim.getFlock(), out);
+            BinarySaveFile.writeBoids(sim.getFlock().getBoids(), out, progress);
+        }
+    }
+
+    /**
+     * Reads a simulation.
+     *
+     * @param in input
+     * @return simulation
+     * @throws IOException if the read fails or the file is not a valid save file
+     */
+    static Simulation read(BinaryInput in) throws IOException {
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a binary boids save file");
+        }
+        int format = in.getInt();
+        if (format != FORMAT_VERSION && format != FORMAT_VERSION_WITHOUT_SPECIES) {
+            throw new IOException("Unsupported binary save file format " + format);
+        }
+        int version = in.getInt();
+        if (version != new Settings().getVersion()) {
+            throw new IOException("Wrong save file version " + version);
+        }
+        long step = in.getLong();
+
+        Settings settings = BinarySaveFile.readSettings(in);
+        Random random = BinarySaveFile.readRandom(in);
+        Simulation sim = new Simulation(settings, random, step);
+        BinarySaveFile.readObstacles(in, sim.getObstacles());
+        boolean species = format != FORMAT_VERSION_WITHOUT_SPECIES;
+        if (species) {
+            BinarySaveFile.readSpecies(in, sim.getFlock());
+        }
+        BinarySaveFile.readBoids(in, sim.getFlock(), random, species);
+        return sim;
+    }
+
+    /**
+     * Writes the settings block.
+     *
+     * @param s settings
+     * @param out output
+     * @throws IOException if the write fails
+     */
+    static void writeSettings(Settings s, BinaryOutput out) throws IOException {
+        out.putInt(SETTINGS_LENGTH);
+        out.putDouble(s.getSeparationFactor());
+        out.putDouble(s.getAlignmentFactor());
+        out.putDouble(s.getCohesionFactor());
+        out.putDouble(s.getWanderFactor());
+        out.putDouble(s.getMaxSpeed());
+        out.putDouble(s.getMaxForce());
+        out.putDouble(s.getMass());
+        out.putDouble(s.getViewAngle());
+        out.putDouble(s.getViewDistance());
+        out.putDouble(s.getAvoidanceDistance());
+        out.putDouble(s.getCollisionThreshold());
+        out.putDouble(s.getBorderAvoidanceFactor());
+        out.putDouble(s.getCollisionAvoidanceFactor());
+        out.putInt(s.getAreaWidth());
+        out.putInt(s.getAreaHeight());
+        out.putByte((byte) (s.isWrapArea() ? 1 : 0));
+    }
+
+    /**
+     * Reads the settings block.
+     *
+     * @param in input
+     * @return settings
+     * @throws IOException if the read fails or the block has a wrong length
+     */
+    static Settings readSettings(BinaryInput in) throws IOException {
+        int length = in.getInt();
+        if (length != SETTINGS_LENGTH) {
+            throw new IOException("Invalid settings block length " + length);
+        }
+        Settings s = new Settings();
+        s.setSeparationFactor(in.getDouble());
+        s.setAlignmentFactor(in.getDouble());
+        s.setCohesionFactor(in.getDouble());
+        s.setWanderFactor(in.getDouble());
+        s.setMaxSpeed(in.getDouble());
+        s.setMaxForce(in.getDouble());
+        s.setMass(in.getDouble());
+        s.setViewAngle(in.getDouble());
+        s.setViewDistance(in.getDouble());
+        s.setAvoidanceDistance(in.getDouble());
+        s.setCollisionThreshold(in.getDouble());
+        s.setBorderAvoidanceFactor(in.getDouble());
+        s.setCollisionAvoidanceFactor(in.getDouble());
+        s.setAreaWidth(in.getInt());
+        s.setAreaHeight(in.getInt());
+        s.setWrapArea(in.getByte() != 0);
+        return s;
+    }
+
+    /**
+     * Writes the state of the random number generator.
+     *
+     * @param random random number generator
+     * @param out output
+     * @throws IOException if the write fails
+     */
+    static void writeRandom(Random random, BinaryOutput out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream stream = new ObjectOutputStream(bytes);
+        stream.writeObject(random);
+        stream.close();
+        out.putInt(bytes.size());
+        out.putBytes(bytes.toByteArray());
+    }
+
+    /**
+     * Reads the state of the random number generator. Only java.util.Random
+     * is accepted, so the file can't make us create arbitrary objects.
+     *
+     * @param in input
+     * @return random number generator
+     * @throws IOException if the read fails or the block is not a Random
+     */
+    static Random readRandom(BinaryInput in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > 1024) {
+            throw new IOException("Invalid random block length " + length);
+        }
+        return RandomState.deserialize(in.getBytes(length));
+    }
+
+    /**
+     * Writes the obstacle block.
+     *
+     * @param obstacles obstacles
+     * @param out output
+     * @throws IOException if the write fails
+     */
+    static void writeObstacles(Vector<Obstacle> obstacles, BinaryOutput out) throws IOException {
+        out.putInt(obstacles.size());
+        for (Obstacle o : obstacles) {
+            out.putDouble(o.getPosition().getX());
+            out.putDouble(o.getPosition().getY());
+            out.putInt(o.getRadius());
+        }
+    }
+
+    /**
+     * Reads the obstacle block.
+     *
+     * @param in input
+     * @param obstacles the obstacles are added here
+     * @throws IOException if the read fails
+     */
+    static void readObstacles(BinaryInput in, Vector<Obstacle> obstacles) throws IOException {
+        int n = BinarySaveFile.readCount(in, "obstacle", 2 * 8 + 4);
+        for (int i = 0; i < n; i++) {
+            double x = in.getDouble();
+            double y = in.getDouble();
+            obstacles.add(new Obstacle(x, y, in.getInt()));
+        }
+    }
+
+    /**
+     * Writes the species block. The default species uses the simulation
+     * settings, so only its interactions are written.
+     *
+     * @param flock flock
+     * @param out output
+     * @throws IOException if the write fails
+     */
+    static void writeSpecies(Flock flock, BinaryOutput out) throws IOException {
+        int n = flock.getSpeciesCount();
+        out.putInt(n);
+        for (int i = 0; i < n; i++) {
+            Species s = flock.getSpecies(i);
+            if (i > 0) {
+                byte[] name = s.getName().getBytes("UTF-8");
+                out.putInt(name.length);
+                out.putBytes(name);
+            }
+            out.putInt(s.getFollowMask());
+            out.putInt(s.getAvoidMask());
+            if (i > 0) {
+                BinarySaveFile.writeSettings(s.getSettings(), out);
+            }
+        }
+    }
+
+    /**
+     * Reads the species block and adds the species to a flock which has
+     * only the default species.
+     *
+     * @param in input
+     * @param flock flock
+     * @throws IOException if the read fails or the block is invalid
+     */
+    static void readSpecies(BinaryInput in, Flock flock) throws IOException {
+        long position = in.getPosition();
+        int n = in.getInt();
+        if (n < 1 || n > Species.MAX_SPECIES) {
+            throw new IOException("Invalid species count " + n + " at byte " + position);
+        }
+        for (int i = 0; i < n; i++) {
+            String name = null;
+            if (i > 0) {
+                int length = in.getInt();
+                if (length < 0 || length > MAX_NAME_LENGTH) {
+                    throw new IOException("Invalid species name length " + length);
+                }
+                name = new String(in.getBytes(length), "UTF-8");
+            }
+            int follow = in.getInt();
+            int avoid = in.getInt();
+            Species s = i > 0 ? flock.addSpecies(name, BinarySaveFile.readSettings(in)) : flock.getSpecies(0);
+            s.setMasks(follow, avoid);
+        }
+    }
+
+    /**
+     * Gets the species number of a boid read from a file and checks it.
+     *
+     * @param flock flock whose species have been read
+     * @param species species number
+     * @return species number
+     * @throws IOException if the flock has no such species
+     */
+    static int checkSpecies(Flock flock, int species) throws IOException {
+        if (species < 0 || species >= flock.getSpeciesCount()) {
+            throw new IOException("Invalid species " + species);
+        }
+        return species;
+    }
+
+    /**
+     * Writes the boid block.
+     *
+     * @param boids boids
+     * @param out output
+     * @param progress receives the progress after every column, may be null
+     * @throws IOException if the write fails
+     */
+    static void writeBoids(ArrayList<Boid> boids, BinaryOutput out, SaveProgress progress) throws IOException {
+        int n = boids.size();
+        long total = 8L * n;
+        out.putInt(n);
+        for (int column = 0; column < 7; column++) {
+            for (int i = 0; i < n; i++) {
+                Boid b = boids.get(i);
+                switch (column) {
+                case 0: out.putDouble(b.getPosition().getX()); break;
+                case 1: out.putDouble(b.getPosition().getY()); break;
+                case 2: out.putDouble(b.getVelocity().getX()); break;
+                case 3: out.putDouble(b.getVelocity().getY()); break;
+                case 4: out.putDouble(b.getForce().getX()); break;
+                case 5: out.putDouble(b.getForce().getY()); break;
+                default: out.putDouble(b.getWanderAngle()); break;
+                }
+            }
+            if (progress != null) {
+                progress.progress((column + 1L) * n, total);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            out.putByte((byte) boids.get(i).getSpecies());
+        }
+        if (progress != null) {
+            progress.progress(total, total);
+        }
+    }
+
+    /**
+     * Reads the boid block and adds the boids to the flock.
+     *
+     * @param in input
+     * @param flock flock, with its species already read
+     * @param random random number generator given to the boids
+     * @param species true if the block has the species array
+     * @throws IOException if the read fails or a boid has an invalid species
+     */
+    static void readBoids(BinaryInput in, Flock flock, Random random, boolean species) throws IOException {
+        int n = BinarySaveFile.readCount(in, "boid", 7 * 8 + (species ? 1 : 0));
+        double[][] columns = new double[7][n];
+        for (double[] column : columns) {
+            for (int i = 0; i < n; i++) {
+                column[i] = in.getDouble();
+            }
+        }
+        byte[] kinds = species ? in.getBytes(n) : new byte[n];
+        for (int i = 0; i < n; i++) {
+            Vector2D position = new Vector2D(columns[0][i], columns[1][i]);
+            Vector2D velocity = new Vector2D(columns[2][i], columns[3][i]);
+            Vector2D force = new Vector2D(columns[4][i], columns[5][i]);
+            int id = BinarySaveFile.checkSpecies(flock, kinds[i]);
+            Boid b = new Boid(position, velocity, force, columns[6][i], flock.getSpecies(id).getSettings(), random);
+            b.setSpecies(id);
+            flock.addBoid(b);
+        }
+    }
+
+    /**
+     * Reads an element count and checks that it is not negative and that
+     * the elements fit in the rest of the input, so that a broken file
+     * doesn't make the reader allocate huge arrays.
+     *
+     * @param in input
+     * @param what name of the elements, used in the error message
+     * @param bytesPerElement number of bytes each element takes
+     * @return count
+     * @throws IOException if the read fails, the count is negative or the input is too short
+     */
+    static int readCount(BinaryInput in, String what, int bytesPerElement) throws IOException {
+        long position = in.getPosition();
+        int n = in.getInt();
+        if (n < 0) {
+            throw new IOException("Invalid " + what + " count " + n + " at byte " + position);
+        }
+        if ((long) n * bytesPerElement > in.getRemaining()) {
+            throw new EOFException("Unexpected end of file: " + n + " " + what + "s at byte " + position
+                    + " need " + (long) n * bytesPerElement + " bytes, " + in.getRemaining() + " left");
+        }
+        return n;
+    }
+
+}
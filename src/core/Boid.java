@@ -31,6 +31,10 @@ public class Boid {
     private Settings set;
     private double wanderAngle;
     private Random random;
+    private int species; // number of the species in the flock, 0 is the default
+    private transient int neighbours; // not saved, counted again on the next step
+    private transient ArrayList<Boid> lastNeighbours; // the neighbours of the last steering, until taken
+    transient int index; // position in the flock, set by the flock for analytics
     
     /**
      * The constructor
@@ -49,6 +53,23 @@ public class Boid {
         this.random = random;
     }
     
+    /**
+     * Creates a boid with the complete state. This is used when a simulation
+     * is loaded from a file.
+     * 
+     * @param position position vector
+     * @param velocity velocity vector
+     * @param force steering force
+     * @param wanderAngle wander angle
+     * @param settings simulation settings
+     * @param random random number generator
+     */
+    Boid(Vector2D position, Vector2D velocity, Vector2D force, double wanderAngle, Settings settings, Random random) {
+        this(position, velocity, settings, random);
+        this.force = force;
+        this.wanderAngle = wanderAngle;
+    }
+    
     /**
      * Get the position of the boid.
      * 
@@ -170,13 +191,63 @@ public class Boid {
      * @param obstacles obstacles
      */
     public void calculateSteering(ArrayList<Boid> others, Vector<Obstacle> obstacles) {  
+        this.calculateSteering(others, obstacles, null);
+    }
+    
+    /**
+     * Calculates the steering force like
+     * {@link #calculateSteering(ArrayList, Vector)} and adds the time of
+     * each rule to a profiler.
+     * 
+     * @param others neighbour boids
+     * @param obstacles obstacles
+     * @param profiler profiler, may be null
+     */
+    public void calculateSteering(ArrayList<Boid> others, Vector<Obstacle> obstacles, StepProfiler profiler) {
+        this.calculateSteering(others, obstacles, profiler, 0);
+    }
+    
+    /**
+     * Calculates the steering force like
+     * {@link #calculateSteering(ArrayList, Vector, StepProfiler)}. The
+     * neighbours of the avoided species are only kept away from: they are
+     * used for separation but not for alignment and cohesion.
+     * 
+     * @param others neighbour boids
+     * @param obstacles obstacles
+     * @param profiler profiler, may be null
+     * @param avoidMask a bit for every avoided species
+     */
+    void calculateSteering(ArrayList<Boid> others, Vector<Obstacle> obstacles, StepProfiler profiler, int avoidMask) {
+        long t = StepProfiler.start(profiler);
         ArrayList<Boid> boids = this.getNeighbourBoids(others);   
+        this.neighbours = boids.size();
+        this.lastNeighbours = boids;
+        ArrayList<Boid> followed = boids;
+        if (avoidMask != 0) {
+            followed = new ArrayList<Boid>();
+            for (Boid b : boids) {
+                if ((avoidMask & 1 << b.species) == 0) {
+                    followed.add(b);
+                }
+            }
+        }
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.NEIGHBOURS, t);
         Vector2D wander = this.wander().mul(this.set.getWanderFactor());
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.WANDER, t);
         Vector2D separation = this.calculateSeparation(boids).mul(this.set.getSeparationFactor());
-        Vector2D alignment = this.calculateAlignment(boids).mul(this.set.getAlignmentFactor());
-        Vector2D cohesion = this.calculateCohesion(boids).mul(this.set.getCohesionFactor());
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.SEPARATION, t);
+        Vector2D alignment = this.calculateAlignment(followed).mul(this.set.getAlignmentFactor());
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.ALIGNMENT, t);
+        Vector2D cohesion = this.calculateCohesion(followed).mul(this.set.getCohesionFactor());
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.COHESION, t);
         Vector2D borders = this.avoidBorders().mul(this.set.getBorderAvoidanceFactor());
+        t = StepProfiler.lap(profiler, StepProfiler.Phase.BORDERS, t);
         Vector2D avoidance = this.calculateObstacleAvoidance(obstacles).mul(this.set.getCollisionAvoidanceFactor());
+        StepProfiler.lap(profiler, StepProfiler.Phase.OBSTACLE_AVOIDANCE, t);
+        if (profiler != null) {
+            profiler.countNeighbours(boids.size());
+        }
         
         this.force = wander;
         this.force = this.force.add(separation);
@@ -353,6 +424,57 @@ public class Boid {
         return this.force;
     }
 
+    /**
+     * Returns the number of neighbours found when the steering force was
+     * last calculated.
+     * 
+     * @return number of neighbours
+     */
+    public int getNeighbourCount() {
+        return this.neighbours;
+    }
+
+    /**
+     * Takes the neighbours found when the steering force was last
+     * calculated. The boid forgets them.
+     * 
+     * @return neighbours, or null if they have been taken already
+     */
+    ArrayList<Boid> takeNeighbours() {
+        ArrayList<Boid> found = this.lastNeighbours;
+        this.lastNeighbours = null;
+        return found;
+    }
+
+    /**
+     * Returns the wander angle.
+     * 
+     * @return wander angle in radians
+     */
+    double getWanderAngle() {
+        return this.wanderAngle;
+    }
+
+    /**
+     * Gets the species of the boid.
+     * 
+     * @return number of the species in the flock, 0 for the default species
+     * @see Flock#getSpecies(int)
+     */
+    public int getSpecies() {
+        return this.species;
+    }
+    
+    /**
+     * Sets the species of the boid. The settings of the species must be set
+     * separately.
+     * 
+     * @param species number of the species in the flock
+     */
+    void setSpecies(int species) {
+        this.species = species;
+    }
+
     /**
      * Set the settings. This must be called when the simulation is
      * loaded from a file.
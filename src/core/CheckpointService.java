@@ -0,0 +1,483 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Writes checkpoints of a simulation every few steps, so that a long run can
+ * be resumed after a crash. Add the service to a simulation with
+ * {@link Simulation#addStepListener(StepListener)} and resume with
+ * {@link #resume(File)}.
+ *
+ * The state is captured in the format of {@link BinarySaveFile}. A base
+ * checkpoint stores the whole state. The checkpoints after it store only the
+ * state XORed with the state of the base, which is zero wherever nothing has
+ * changed and has zero high bytes where the values changed only a little.
+ * The bytes are grouped by their position in the doubles before they are
+ * deflated, so that the zero bytes form long runs. Every file has a CRC32
+ * of the state it restores. A new base is written after a given number of
+ * incremental checkpoints.
+ *
+ * The state is captured in the simulation thread between two steps, and
+ * compressed and written in a background thread. Only the newest
+ * checkpoints are kept, together with the bases they need.
+ *
+ * The layout of a checkpoint file is (all numbers big-endian):
+ * <pre>
+ * int magic 'CKPT', int format version, byte type (1 base, 2 incremental),
+ * long step, long base step, int state length, long state CRC32,
+ * int compressed length, compressed bytes
+ * </pre>
+ * The compressed bytes are the shuffled state, or the shuffled XOR of the
+ * state and the state of the base.
+ */
+public class CheckpointService implements StepListener {
+    private File directory;
+    private long interval;
+    private int retention;
+    private int incrementalsPerBase;
+    private byte[] base;
+    private long baseStep;
+    private int incrementals;
+    private long checkpoints;
+    private long lastStep;
+    private ExecutorService writer;
+    private Future<?> pending;
+    private volatile IOException failure;
+
+    final static int MAGIC = 0x434b5054; // "CKPT"
+    final static int FORMAT_VERSION = 1;
+    final static byte BASE = 1;
+    final static byte INCREMENTAL = 2;
+    private final static String PREFIX = "checkpoint-";
+    private final static String BASE_SUFFIX = ".base";
+    private final static String INCREMENTAL_SUFFIX = ".incr";
+    private final static int MAX_DEFLATE_RATIO = 1032; // deflate can't expand data more than this
+
+    /**
+     * Creates a new checkpoint service.
+     *
+     * @param directory the checkpoints are written to this directory
+     * @param interval a checkpoint is written every this many steps
+     * @param retention number of newest checkpoints kept
+     * @param incrementalsPerBase number of incremental checkpoints after a base
+     */
+    public CheckpointService(File directory, long interval, int retention, int incrementalsPerBase) {
+        if (interval <= 0 || retention <= 0 || incrementalsPerBase < 0) {
+            throw new IllegalArgumentException("Invalid checkpoint interval or retention");
+        }
+        this.directory = directory;
+        this.interval = interval;
+        this.retention = retention;
+        this.incrementalsPerBase = incrementalsPerBase;
+        this.base = null;
+        this.checkpoints = 0;
+        this.lastStep = -1;
+        this.writer = Executors.newSingleThreadExecutor();
+        directory.mkdirs();
+    }
+
+    /**
+     * Writes a checkpoint if the step is a multiple of the interval. If
+     * writing fails, no more checkpoints are written and the exception is
+     * thrown by {@link #close()}.
+     *
+     * @param sim simulation
+     */
+    public void stepCompleted(Simulation sim) {
+        if (this.failure != null || sim.getStep() % this.interval != 0) {
+            return;
+        }
+        try {
+            this.checkpoint(sim);
+        } catch (IOException e) {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Captures the state of the simulation and writes a checkpoint of it in
+     * the background. Waits if the previous checkpoint is still being
+     * written.
+     *
+     * @param sim simulation, must not be in the middle of a step
+     * @throws IOException if the state can't be captured or an earlier checkpoint failed
+     */
+    public synchronized void checkpoint(Simulation sim) throws IOException {
+        this.waitPending();
+        if (this.failure != null) {
+            throw this.failure;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryOutput out = new BinaryOutput(Channels.newChannel(bytes));
+        BinarySaveFile.write(sim, out);
+        out.flush();
+        final byte[] state = bytes.toByteArray();
+        final long step = sim.getStep();
+
+        final boolean isBase = this.base == null || this.incrementals >= this.incrementalsPerBase;
+        if (isBase) {
+            this.base = state;
+            this.baseStep = step;
+            this.incrementals = 0;
+        } else {
+            this.incrementals++;
+        }
+        final byte[] reference = this.base;
+        final long referenceStep = this.baseStep;
+        this.pending = this.writer.submit(new Runnable() {
+            public void run() {
+                try {
+                    if (isBase) {
+                        write(BASE, step, step, state, null);
+                    } else {
+                        write(INCREMENTAL, step, referenceStep, state, reference);
+                    }
+                    removeOld();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        });
+        this.checkpoints++;
+        this.lastStep = step;
+    }
+
+    /**
+     * Writes a checkpoint file. The file is first written under a temporary
+     * name, so a crash never leaves a half-written checkpoint.
+     *
+     * @param type base or incremental
+     * @param step step of the state
+     * @param baseStep step of the base
+     * @param state state
+     * @param reference state of the base for incremental checkpoints
+     * @throws IOException if the write fails
+     */
+    private void write(byte type, long step, long baseStep, byte[] state, byte[] reference) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(state);
+        byte[] data = reference == null ? state : CheckpointService.xor(state, reference);
+        byte[] compressed = Compression.deflate(Compression.shuffle(data, 8));
+
+        File file = new File(this.directory, CheckpointService.name(type, step));
+        File temporary = new File(this.directory, file.getName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeByte(type);
+            out.writeLong(step);
+            out.writeLong(baseStep);
+            out.writeInt(state.length);
+            out.writeLong(crc.getValue());
+            out.writeInt(compressed.length);
+            out.write(compressed);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Removes all but the newest checkpoints. A base is kept as long as a
+     * kept incremental checkpoint needs it.
+     */
+    private void removeOld() {
+        ArrayList<File> files = CheckpointService.list(this.directory);
+        HashSet<Long> neededBases = new HashSet<Long>();
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            if (i < this.retention) {
+                if (f.getName().endsWith(INCREMENTAL_SUFFIX)) {
+                    try {
+                        neededBases.add(CheckpointService.readHeader(f).baseStep);
+                    } catch (IOException e) {
+                        // a broken checkpoint needs no base
+                    }
+                }
+            } else if (!(f.getName().endsWith(BASE_SUFFIX) && neededBases.contains(CheckpointService.step(f)))) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits until the previous checkpoint has been written.
+     *
+     * @throws IOException if the thread was interrupted
+     */
+    private void waitPending() throws IOException {
+        if (this.pending == null) {
+            return;
+        }
+        try {
+            this.pending.get();
+        } catch (Exception e) {
+            throw new IOException("Waiting for a checkpoint failed", e);
+        }
+        this.pending = null;
+    }
+
+    /**
+     * Gets the number of checkpoints taken.
+     *
+     * @return number of checkpoints
+     */
+    public synchronized long getCheckpointCount() {
+        return this.checkpoints;
+    }
+
+    /**
+     * Gets the step of the newest checkpoint.
+     *
+     * @return step, or -1 if no checkpoint has been taken
+     */
+    public synchronized long getLastCheckpointStep() {
+        return this.lastStep;
+    }
+
+    /**
+     * Waits until the last checkpoint is written and stops the background
+     * thread. Remember to remove the service from the simulation.
+     *
+     * @throws IOException if writing a checkpoint failed
+     */
+    public synchronized void close() throws IOException {
+        try {
+            this.waitPending();
+        } finally {
+            this.writer.shutdown();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Loads the newest valid checkpoint of a directory. Checkpoints which
+     * are broken, fail the checksum or whose base is missing are skipped.
+     *
+     * @param directory checkpoint directory
+     * @return simulation, or null if there is no valid checkpoint
+     */
+    public static Simulation resume(File directory) {
+        return CheckpointService.resume(directory, null);
+    }
+
+    /**
+     * Loads the newest valid checkpoint of a directory and tells which
+     * newer checkpoints were skipped and why.
+     *
+     * @param directory checkpoint directory
+     * @param skipped the name of every skipped file and the reason are added here as "name: reason", may be null
+     * @return simulation, or null if there is no valid checkpoint
+     */
+    public static Simulation resume(File directory, ArrayList<String> skipped) {
+        for (File f : CheckpointService.list(directory)) {
+            try {
+                byte[] state = CheckpointService.restore(directory, f);
+                BinaryInput in = new BinaryInput(Channels.newChannel(new ByteArrayInputStream(state)), state.length);
+                return BinarySaveFile.read(in);
+            } catch (IOException e) {
+                if (skipped != null) {
+                    skipped.add(f.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restores the state stored in a checkpoint file and checks it.
+     *
+     * @param directory checkpoint directory
+     * @param file checkpoint file
+     * @return state in the format of BinarySaveFile
+     * @throws IOException if the checkpoint is invalid
+     */
+    private static byte[] restore(File directory, File file) throws IOException {
+        Header h = CheckpointService.readHeader(file);
+        byte[] state = Compression.unshuffle(Compression.inflate(h.data, h.length), 8);
+        if (h.type == INCREMENTAL) {
+            File baseFile = new File(directory, CheckpointService.name(BASE, h.baseStep));
+            Header b = CheckpointService.readHeader(baseFile);
+            byte[] base = Compression.unshuffle(Compression.inflate(b.data, b.length), 8);
+            CheckpointService.check(base, b.crc, baseFile);
+            state = CheckpointService.xor(state, base);
+        }
+        CheckpointService.check(state, h.crc, file);
+        return state;
+    }
+
+    /**
+     * Checks the CRC32 of a state.
+     *
+     * @param state state
+     * @param expected expected CRC32
+     * @param file file, used in the error message
+     * @throws IOException if the CRC32 is wrong
+     */
+    private static void check(byte[] state, long expected, File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(state);
+        if (crc.getValue() != expected) {
+            throw new IOException("Checksum mismatch in " + file.getName());
+        }
+    }
+
+    /**
+     * The header and the compressed data of a checkpoint file.
+     */
+    private static class Header {
+        private byte type;
+        private long baseStep;
+        private int length;
+        private long crc;
+        private byte[] data;
+    }
+
+    /**
+     * Reads a checkpoint file.
+     *
+     * @param file checkpoint file
+     * @return header and data
+     * @throws IOException if the file can't be read or is not a checkpoint
+     */
+    private static Header readHeader(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file");
+            }
+            int format = in.readInt();
+            if (format != FORMAT_VERSION) {
+                throw new IOException("Unsupported checkpoint format " + format);
+            }
+            Header h = new Header();
+            h.type = in.readByte();
+            in.readLong(); // step, known from the name
+            h.baseStep = in.readLong();
+            h.length = in.readInt();
+            h.crc = in.readLong();
+            int compressed = in.readInt();
+            if (h.length < 0 || compressed < 0 || compressed > file.length()) {
+                throw new IOException("Invalid checkpoint lengths");
+            }
+            // the state is allocated before inflating, so a broken length must not allocate more than the data can hold
+            if (h.length > (long) MAX_DEFLATE_RATIO * compressed) {
+                throw new IOException("State length " + h.length + " too large for " + compressed + " compressed bytes");
+            }
+            h.data = new byte[compressed];
+            in.readFully(h.data);
+            return h;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Lists the checkpoint files of a directory, newest first.
+     *
+     * @param directory directory
+     * @return checkpoint files
+     */
+    private static ArrayList<File> list(File directory) {
+        ArrayList<File> files = new ArrayList<File>();
+        File[] all = directory.listFiles();
+        if (all == null) {
+            return files;
+        }
+        Arrays.sort(all);
+        for (int i = all.length - 1; i >= 0; i--) {
+            String name = all[i].getName();
+            if (name.startsWith(PREFIX) && (name.endsWith(BASE_SUFFIX) || name.endsWith(INCREMENTAL_SUFFIX))) {
+                files.add(all[i]);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Gets the name of a checkpoint file. The step is zero-padded, so the
+     * names sort by step.
+     *
+     * @param type base or incremental
+     * @param step step
+     * @return file name
+     */
+    private static String name(byte type, long step) {
+        return String.format("%s%019d%s", PREFIX, step, type == BASE ? BASE_SUFFIX : INCREMENTAL_SUFFIX);
+    }
+
+    /**
+     * Gets the step of a checkpoint file from its name.
+     *
+     * @param file checkpoint file
+     * @return step
+     */
+    private static long step(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+    }
+
+    /**
+     * XORs a state with a reference. The part of the state longer than the
+     * reference is copied as it is.
+     *
+     * @param state state
+     * @param reference reference
+     * @return XORed state
+     */
+    private static byte[] xor(byte[] state, byte[] reference) {
+        byte[] result = state.clone();
+        int n = Math.min(state.length, reference.length);
+        for (int i = 0; i < n; i++) {
+            result[i] ^= reference[i];
+        }
+        return result;
+    }
+
+}
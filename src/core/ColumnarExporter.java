@@ -0,0 +1,379 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports the state of every boid after every step into a columnar file for
+ * analysis tools. Add the exporter to a simulation with
+ * {@link Simulation#addStepListener(StepListener)} and read the file with
+ * {@link ColumnarReader}.
+ *
+ * One row is written for every boid and step. The rows of several steps are
+ * collected into a block, and each column of a block is compressed on its
+ * own, so a tool can read only the columns it needs. The simulation thread
+ * only copies the numbers into a batch; the batches are compressed and
+ * written by background threads. When all batches are waiting to be written
+ * the simulation waits, so the memory used stays bounded.
+ *
+ * All columns are stored as 4-byte values. The step and id columns are
+ * stored as differences to the previous row. The bytes of each column are
+ * grouped by their position in the value before they are deflated.
+ *
+ * The layout of the file is (all numbers big-endian):
+ * <pre>
+ * header:  int magic 'BCOL', int format version, int column count
+ * block:   int rows, long first step, int steps,
+ *          columns * (int compressed length, compressed bytes)
+ * footer:  int blocks, blocks * (long offset, long first step, int steps, int rows)
+ * trailer: long footer offset, int magic 'BCOL'
+ * </pre>
+ */
+public class ColumnarExporter implements StepListener {
+    /** Step number column. */
+    public final static int STEP = 0;
+    /** Boid id column. The id is the index of the boid in the flock. */
+    public final static int ID = 1;
+    /** Position x column. */
+    public final static int X = 2;
+    /** Position y column. */
+    public final static int Y = 3;
+    /** Velocity x column. */
+    public final static int VELOCITY_X = 4;
+    /** Velocity y column. */
+    public final static int VELOCITY_Y = 5;
+    /** Steering force x column. */
+    public final static int FORCE_X = 6;
+    /** Steering force y column. */
+    public final static int FORCE_Y = 7;
+    /** Neighbour count column. */
+    public final static int NEIGHBOURS = 8;
+    /** Number of columns. */
+    public final static int COLUMNS = 9;
+
+    final static int MAGIC = 0x42434f4c; // "BCOL"
+    final static int FORMAT_VERSION = 1;
+    final static int HEADER_SIZE = 3 * 4;
+    final static int TRAILER_SIZE = 8 + 4;
+    private final static int BATCHES = 2;
+
+    private FileOutputStream stream;
+    private BinaryOutput out;
+    private int batchRows;
+    private BlockingQueue<Batch> freeBatches;
+    private Batch batch;
+    private ExecutorService writer;
+    private ExecutorService compressors;
+    private long offset;
+    private ArrayList<long[]> blocks; // offset, first step, steps, rows
+    private long rows;
+    private volatile IOException failure;
+
+    /**
+     * Creates a new exporter. An existing file is overwritten.
+     *
+     * @param file the rows are written to this file
+     * @param batchRows number of rows collected into one block, a block
+     *        always holds whole steps
+     * @param threads number of threads compressing the columns
+     * @throws IOException if the file can't be created
+     */
+    public ColumnarExporter(File file, int batchRows, int threads) throws IOException {
+        if (batchRows <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Invalid batch size or thread count");
+        }
+        this.batchRows = batchRows;
+        this.freeBatches = new ArrayBlockingQueue<Batch>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) {
+            this.freeBatches.add(new Batch(batchRows));
+        }
+        this.writer = Executors.newSingleThreadExecutor();
+        this.compressors = Executors.newFixedThreadPool(threads);
+        this.blocks = new ArrayList<long[]>();
+        this.rows = 0;
+
+        this.stream = new FileOutputStream(file);
+        this.out = new BinaryOutput(this.stream.getChannel());
+        this.out.putInt(MAGIC);
+        this.out.putInt(FORMAT_VERSION);
+        this.out.putInt(COLUMNS);
+        this.offset = HEADER_SIZE;
+    }
+
+    /**
+     * Copies the state after the step into the current batch. If writing
+     * fails, the export stops and the exception is thrown by
+     * {@link #close()}.
+     *
+     * @param sim simulation
+     */
+    public void stepCompleted(Simulation sim) {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            this.export(sim);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.failure = new IOException("Interrupted while waiting for a free batch", e);
+        }
+    }
+
+    /**
+     * Copies the state of all boids into the current batch. The batch is
+     * queued for writing when the next step would not fit in it.
+     *
+     * @param sim simulation
+     * @throws InterruptedException if the thread was interrupted while waiting for a free batch
+     */
+    private synchronized void export(Simulation sim) throws InterruptedException {
+        if (this.out == null) {
+            return; // closed
+        }
+        Flock flock = sim.getFlock();
+        int n = flock.getSize();
+        if (this.batch != null && this.batch.rows > 0 && this.batch.rows + n > this.batchRows) {
+            this.submit();
+        }
+        if (this.batch == null) {
+            this.batch = this.freeBatches.take();
+        }
+        synchronized (flock) {
+            this.batch.append(sim.getStep(), flock.getBoids());
+        }
+        this.rows += flock.getSize();
+    }
+
+    /**
+     * Queues the current batch for compressing and writing.
+     */
+    private void submit() {
+        final Batch full = this.batch;
+        this.batch = null;
+        this.writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure == null) {
+                        writeBlock(full);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    full.clear();
+                    freeBatches.add(full);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compresses the columns of a batch in parallel and writes them as a
+     * block. Called only from the writer thread.
+     *
+     * @param b batch
+     * @throws IOException if the write fails
+     */
+    private void writeBlock(final Batch b) throws IOException {
+        ArrayList<Future<byte[]>> columns = new ArrayList<Future<byte[]>>();
+        for (int c = 0; c < COLUMNS; c++) {
+            final int column = c;
+            columns.add(this.compressors.submit(new Callable<byte[]>() {
+                public byte[] call() {
+                    return ColumnarExporter.compress(b.columns[column], b.rows);
+                }
+            }));
+        }
+
+        long start = this.offset;
+        this.out.putInt(b.rows);
+        this.out.putLong(b.firstStep);
+        this.out.putInt(b.steps);
+        this.offset += 4 + 8 + 4;
+        for (Future<byte[]> f : columns) {
+            byte[] data;
+            try {
+                data = f.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while compressing a block", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not compress a block", e.getCause());
+            }
+            this.out.putInt(data.length);
+            this.out.putBytes(data);
+            this.offset += 4 + data.length;
+        }
+        this.blocks.add(new long[] { start, b.firstStep, b.steps, b.rows });
+    }
+
+    /**
+     * Compresses the values of a column.
+     *
+     * @param values values
+     * @param n number of values
+     * @return compressed bytes
+     */
+    static byte[] compress(int[] values, int n) {
+        ByteBuffer bytes = ByteBuffer.allocate(4 * n);
+        bytes.asIntBuffer().put(values, 0, n);
+        return Compression.deflate(Compression.shuffle(bytes.array(), 4));
+    }
+
+    /**
+     * Gets the number of rows exported so far.
+     *
+     * @return number of rows
+     */
+    public synchronized long getRowCount() {
+        return this.rows;
+    }
+
+    /**
+     * Writes the collected rows and the block index and closes the file.
+     * Remember to remove the exporter from the simulation.
+     *
+     * @throws IOException if closing the file failed or writing a block failed
+     */
+    public synchronized void close() throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        try {
+            if (this.batch != null && this.batch.rows > 0) {
+                this.submit();
+            }
+            this.writer.shutdown();
+            try {
+                this.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing the last blocks", e);
+            }
+            if (this.failure == null) {
+                this.writeFooter();
+            }
+            this.out.flush();
+        } finally {
+            this.out = null;
+            this.compressors.shutdown();
+            this.stream.close();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Writes the block index and the trailer.
+     *
+     * @throws IOException if the write fails
+     */
+    private void writeFooter() throws IOException {
+        this.out.putInt(this.blocks.size());
+        for (long[] block : this.blocks) {
+            this.out.putLong(block[0]);
+            this.out.putLong(block[1]);
+            this.out.putInt((int) block[2]);
+            this.out.putInt((int) block[3]);
+        }
+        this.out.putLong(this.offset);
+        this.out.putInt(MAGIC);
+    }
+
+    /**
+     * The rows of some steps, stored by column. Floats are stored as their
+     * bits.
+     */
+    private static class Batch {
+        private int[][] columns;
+        private int rows;
+        private int steps;
+        private long firstStep;
+        private long lastStep;
+        private int lastId;
+
+        /**
+         * The constructor.
+         *
+         * @param capacity number of rows
+         */
+        public Batch(int capacity) {
+            this.columns = new int[COLUMNS][capacity];
+            this.clear();
+        }
+
+        /**
+         * Removes all rows.
+         */
+        public void clear() {
+            this.rows = 0;
+            this.steps = 0;
+            this.lastId = 0;
+        }
+
+        /**
+         * Adds a row for every boid. The batch grows if the boids don't fit.
+         *
+         * @param step step number
+         * @param boids boids
+         */
+        public void append(long step, ArrayList<Boid> boids) {
+            int n = boids.size();
+            if (this.rows + n > this.columns[0].length) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    this.columns[c] = Arrays.copyOf(this.columns[c], this.rows + n);
+                }
+            }
+            if (this.steps == 0) {
+                this.firstStep = step;
+                this.lastStep = step;
+            }
+            int r = this.rows;
+            for (int i = 0; i < n; i++, r++) {
+                Boid b = boids.get(i);
+                this.columns[STEP][r] = i == 0 ? (int) (step - this.lastStep) : 0;
+                this.columns[ID][r] = i - this.lastId;
+                this.lastId = i;
+                this.columns[X][r] = Float.floatToRawIntBits((float) b.getPosition().getX());
+                this.columns[Y][r] = Float.floatToRawIntBits((float) b.getPosition().getY());
+                this.columns[VELOCITY_X][r] = Float.floatToRawIntBits((float) b.getVelocity().getX());
+                this.columns[VELOCITY_Y][r] = Float.floatToRawIntBits((float) b.getVelocity().getY());
+                this.columns[FORCE_X][r] = Float.floatToRawIntBits((float) b.getForce().getX());
+                this.columns[FORCE_Y][r] = Float.floatToRawIntBits((float) b.getForce().getY());
+                this.columns[NEIGHBOURS][r] = b.getNeighbourCount();
+            }
+            this.rows = r;
+            this.lastStep = step;
+            this.steps++;
+        }
+    }
+
+}
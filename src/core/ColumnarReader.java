@@ -0,0 +1,248 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file written by {@link ColumnarExporter}. The block index is read
+ * when the file is opened, and a column of a block is read and decompressed
+ * only when it is asked for.
+ */
+public class ColumnarReader {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long[] offsets;
+    private long[] firstSteps;
+    private int[] steps;
+    private int[] rows;
+
+    /**
+     * Opens a columnar file.
+     *
+     * @param file file written by a columnar exporter
+     * @throws IOException if the file can't be read or is not a complete columnar file
+     */
+    public ColumnarReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        try {
+            ByteBuffer header = this.read(0, ColumnarExporter.HEADER_SIZE);
+            if (header.getInt() != ColumnarExporter.MAGIC) {
+                throw new IOException("Not a columnar file");
+            }
+            int format = header.getInt();
+            if (format != ColumnarExporter.FORMAT_VERSION) {
+                throw new IOException("Unsupported columnar file format " + format);
+            }
+            if (header.getInt() != ColumnarExporter.COLUMNS) {
+                throw new IOException("Unsupported number of columns");
+            }
+
+            long size = this.channel.size();
+            if (size < ColumnarExporter.HEADER_SIZE + ColumnarExporter.TRAILER_SIZE) {
+                throw new IOException("The columnar file has no block index");
+            }
+            ByteBuffer trailer = this.read(size - ColumnarExporter.TRAILER_SIZE, ColumnarExporter.TRAILER_SIZE);
+            long footer = trailer.getLong();
+            if (trailer.getInt() != ColumnarExporter.MAGIC || footer < ColumnarExporter.HEADER_SIZE || footer > size) {
+                throw new IOException("The columnar file has no block index, it was not closed");
+            }
+            int blocks = this.read(footer, 4).getInt();
+            if (blocks < 0 || footer + 4 + 24L * blocks + ColumnarExporter.TRAILER_SIZE != size) {
+                throw new IOException("Invalid block index");
+            }
+            this.offsets = new long[blocks];
+            this.firstSteps = new long[blocks];
+            this.steps = new int[blocks];
+            this.rows = new int[blocks];
+            ByteBuffer index = this.read(footer + 4, 24 * blocks);
+            for (int i = 0; i < blocks; i++) {
+                this.offsets[i] = index.getLong();
+                this.firstSteps[i] = index.getLong();
+                this.steps[i] = index.getInt();
+                this.rows[i] = index.getInt();
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads bytes from the file.
+     *
+     * @param offset file offset
+     * @param length number of bytes
+     * @return a buffer, ready for reading
+     * @throws IOException if the read fails or the file ends
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at byte " + (offset + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads and decompresses the raw values of a column of a block. The
+     * compressed lengths of the columns before it are read to find it.
+     *
+     * @param block block index
+     * @param column column, one of the column constants of {@link ColumnarExporter}
+     * @return raw values
+     * @throws IOException if the read fails or the block is broken
+     */
+    private synchronized int[] readColumn(int block, int column) throws IOException {
+        if (column < 0 || column >= ColumnarExporter.COLUMNS) {
+            throw new IllegalArgumentException("Invalid column " + column);
+        }
+        int n = this.rows[block];
+        long offset = this.offsets[block] + 4 + 8 + 4;
+        for (int c = 0; c < column; c++) {
+            offset += 4 + this.read(offset, 4).getInt();
+        }
+        int length = this.read(offset, 4).getInt();
+        if (length < 0) {
+            throw new IOException("Invalid column length in block " + block);
+        }
+        byte[] bytes = Compression.unshuffle(Compression.inflate(this.read(offset + 4, length).array(), 4 * n), 4);
+        int[] values = new int[n];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Reads the step numbers of a block.
+     *
+     * @param block block index
+     * @return step number of every row
+     * @throws IOException if the read fails
+     */
+    public long[] readSteps(int block) throws IOException {
+        int[] deltas = this.readColumn(block, ColumnarExporter.STEP);
+        long[] values = new long[deltas.length];
+        long step = this.firstSteps[block];
+        for (int i = 0; i < deltas.length; i++) {
+            step += deltas[i];
+            values[i] = step;
+        }
+        return values;
+    }
+
+    /**
+     * Reads an integer column of a block: the boid ids or the neighbour
+     * counts.
+     *
+     * @param block block index
+     * @param column {@link ColumnarExporter#ID} or {@link ColumnarExporter#NEIGHBOURS}
+     * @return value of every row
+     * @throws IOException if the read fails
+     */
+    public int[] readInts(int block, int column) throws IOException {
+        if (column != ColumnarExporter.ID && column != ColumnarExporter.NEIGHBOURS) {
+            throw new IllegalArgumentException("Not an integer column: " + column);
+        }
+        int[] values = this.readColumn(block, column);
+        if (column == ColumnarExporter.ID) {
+            for (int i = 1; i < values.length; i++) {
+                values[i] += values[i - 1];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads a float column of a block: a position, velocity or force
+     * component.
+     *
+     * @param block block index
+     * @param column one of the column constants from {@link ColumnarExporter#X} to {@link ColumnarExporter#FORCE_Y}
+     * @return value of every row
+     * @throws IOException if the read fails
+     */
+    public float[] readFloats(int block, int column) throws IOException {
+        if (column < ColumnarExporter.X || column > ColumnarExporter.FORCE_Y) {
+            throw new IllegalArgumentException("Not a float column: " + column);
+        }
+        int[] bits = this.readColumn(block, column);
+        float[] values = new float[bits.length];
+        for (int i = 0; i < bits.length; i++) {
+            values[i] = Float.intBitsToFloat(bits[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return this.offsets.length;
+    }
+
+    /**
+     * Gets the number of rows in a block.
+     *
+     * @param block block index
+     * @return number of rows
+     */
+    public int getRowCount(int block) {
+        return this.rows[block];
+    }
+
+    /**
+     * Gets the first step of a block.
+     *
+     * @param block block index
+     * @return step number
+     */
+    public long getFirstStep(int block) {
+        return this.firstSteps[block];
+    }
+
+    /**
+     * Gets the number of steps in a block.
+     *
+     * @param block block index
+     * @return number of steps
+     */
+    public int getStepCount(int block) {
+        return this.steps[block];
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    public synchronized void close() throws IOException {
+        this.file.close();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Helpers for compressing arrays of numbers. The numbers compress much
+ * better when their bytes are first grouped by their position in the
+ * number: the high bytes, which seldom change, then form long runs.
+ */
+class Compression {
+
+    /**
+     * Groups bytes by their position in a word: first every first byte,
+     * then every second byte and so on.
+     *
+     * @param data bytes
+     * @param width word size in bytes
+     * @return shuffled bytes
+     */
+    static byte[] shuffle(byte[] data, int width) {
+        byte[] result = new byte[data.length];
+        int k = 0;
+        for (int plane = 0; plane < width; plane++) {
+            for (int i = plane; i < data.length; i += width) {
+                result[k++] = data[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reverses {@link #shuffle(byte[], int)}.
+     *
+     * @param data shuffled bytes
+     * @param width word size in bytes
+     * @return bytes
+     */
+    static byte[] unshuffle(byte[] data, int width) {
+        byte[] result = new byte[data.length];
+        int k = 0;
+        for (int plane = 0; plane < width; plane++) {
+            for (int i = plane; i < data.length; i += width) {
+                result[i] = data[k++];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compresses bytes with the fastest deflate level.
+     *
+     * @param data bytes
+     * @return compressed bytes
+     */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses bytes.
+     *
+     * @param data compressed bytes
+     * @param length length of the decompressed bytes
+     * @return decompressed bytes
+     * @throws IOException if the data is broken or too short
+     */
+    static byte[] inflate(byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] result = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int k = inflater.inflate(result, n, length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != length) {
+                throw new IOException("Truncated compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken compressed data", e);
+        } finally {
+            inflater.end();
+        }
+        return result;
+    }
+
+}
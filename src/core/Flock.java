@@ -18,17 +18,42 @@
 package core;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Observable;
 import java.util.Random;
 import java.util.Vector;
 
 /**
- * This class represents a flock containing multiple boids.
+ * This class represents a flock containing multiple boids. The boids may be
+ * of different species, each with its own settings; species 0 uses the
+ * settings of the simulation. All species share one neighbour index and a
+ * boid only looks at the species it follows or avoids.
  */
 public class Flock extends Observable {
+    /**
+     * How the boids which may be neighbours of a boid are found.
+     */
+    public enum NeighbourIndex {
+        /** Every boid checks every other boid. This is the reference. */
+        BRUTE_FORCE,
+        /** A boid checks the boids in the grid cells around it. */
+        GRID
+    }
+    
+
     private ArrayList<Boid> boids;
     private Settings set;
     private Random random;
+    private ArrayList<Species> species; // null in files saved before species, created when needed
+    private transient volatile StepProfiler profiler; // null when not profiling
+    private transient volatile long neighbourPairs; // statistics of the last step, read without the lock
+    private transient volatile long neighbourSum;
+    private transient volatile int neighbourMax;
+    private transient volatile int steppedBoids;
+    private transient NeighbourIndex index; // null means the default, not saved
+    private transient NeighbourGrid grid;
+    private transient ArrayList<Boid> candidates;
+    private transient volatile FlockAnalytics analytics; // null when not measured
     
     /**
      * Creates a new flock with no boids.
@@ -49,14 +74,380 @@ public class Flock extends Observable {
      * @param obstacles obstacles
      */
     public synchronized void updateBoids(Vector<Obstacle> obstacles) {
-        for (Boid b : boids) {
-            b.calculateSteering(boids, obstacles);
+        StepProfiler p = this.profiler;
+        long start = StepProfiler.beginStep(p);
+        int n = boids.size();
+        NeighbourGrid grid = this.getGrid();
+        ArrayList<Boid> candidates = this.getCandidates();
+        long pairs = 0;
+        long sum = 0;
+        int max = 0;
+        FlockAnalytics a = this.analytics;
+        if (a != null) {
+            a.beginStep(boids);
+        }
+        Species[] kinds = this.getSpeciesList().toArray(new Species[0]);
+        for (int k = 1; k < kinds.length; k++) {
+            this.copyArea(kinds[k].getSettings());
+        }
+        boolean filtered = Flock.isFiltered(kinds);
+        long t = StepProfiler.start(p);
+        if (grid != null) {
+            grid.build(boids, Flock.getViewDistance(kinds), this.set.getAreaWidth(), this.set.getAreaHeight());
+        }
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            Species s = b.getSpecies() < kinds.length ? kinds[b.getSpecies()] : kinds[0];
+            int mask = filtered ? s.getVisibleMask() : -1;
+            ArrayList<Boid> others = boids;
+            if (grid != null) {
+                others = grid.candidates(i, boids, candidates, mask);
+                StepProfiler.lap(p, StepProfiler.Phase.INDEX, t);
+            } else if (mask != -1) {
+                others = Flock.filter(boids, mask, candidates);
+            }
+            pairs += Math.max(0, others.size() - 1);
+            b.calculateSteering(others, obstacles, p, s.getAvoidMask());
+            ArrayList<Boid> found = b.takeNeighbours();
+            if (a != null) {
+                a.addNeighbours(i, found);
+            }
+            if (grid != null) {
+                grid.update(i, b);
+            }
+            sum += b.getNeighbourCount();
+            max = Math.max(max, b.getNeighbourCount());
+            t = StepProfiler.start(p);
         }
         
         for (Boid b : boids) {
             b.updatePosition(obstacles);
+            t = StepProfiler.lap(p, StepProfiler.Phase.UPDATE_POSITION, t);
+        }
+        if (p != null) {
+            p.endStep(start);
+        }
+        if (a != null) {
+            a.endStep(boids);
+        }
+        this.neighbourPairs = pairs;
+        this.neighbourSum = sum;
+        this.neighbourMax = max;
+        this.steppedBoids = n;
+    }
+    
+    /**
+     * Finds the neighbours every boid has in the current positions, using
+     * the neighbour index of the flock. The boids are not moved.
+     * 
+     * @return for every boid, the indices of its neighbours in flock order
+     */
+    public synchronized int[][] findNeighbours() {
+        int n = boids.size();
+        IdentityHashMap<Boid, Integer> indices = new IdentityHashMap<Boid, Integer>();
+        for (int i = 0; i < n; i++) {
+            indices.put(boids.get(i), i);
+        }
+        Species[] kinds = this.getSpeciesList().toArray(new Species[0]);
+        boolean filtered = Flock.isFiltered(kinds);
+        NeighbourGrid grid = this.getGrid();
+        if (grid != null) {
+            grid.build(boids, Flock.getViewDistance(kinds), this.set.getAreaWidth(), this.set.getAreaHeight());
+        }
+        int[][] neighbours = new int[n][];
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            int mask = filtered ? this.getSpecies(b.getSpecies()).getVisibleMask() : -1;
+            ArrayList<Boid> others = boids;
+            if (grid != null) {
+                others = grid.candidates(i, boids, this.getCandidates(), mask);
+            } else if (mask != -1) {
+                others = Flock.filter(boids, mask, this.getCandidates());
+            }
+            ArrayList<Boid> found = b.getNeighbourBoids(others);
+            neighbours[i] = new int[found.size()];
+            for (int k = 0; k < found.size(); k++) {
+                neighbours[i][k] = indices.get(found.get(k));
+            }
+        }
+        return neighbours;
+    }
+    
+    /**
+     * Collects the boids of some species.
+     * 
+     * @param boids all boids
+     * @param mask a bit for every species to include
+     * @param list cleared and filled with the boids in flock order
+     * @return the list
+     */
+    private static ArrayList<Boid> filter(ArrayList<Boid> boids, int mask, ArrayList<Boid> list) {
+        list.clear();
+        for (Boid b : boids) {
+            if ((mask & 1 << b.getSpecies()) != 0) {
+                list.add(b);
+            }
+        }
+        return list;
+    }
+    
+    /**
+     * Checks whether some species doesn't see every species, so that the
+     * neighbour candidates must be filtered.
+     * 
+     * @param kinds species of the flock
+     * @return true if the candidates must be filtered
+     */
+    private static boolean isFiltered(Species[] kinds) {
+        int all = kinds.length == Species.MAX_SPECIES ? -1 : (1 << kinds.length) - 1;
+        for (Species s : kinds) {
+            if ((s.getVisibleMask() & all) != all) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Gets the longest view distance of the species. The grid cells must be
+     * at least this large.
+     * 
+     * @param kinds species of the flock
+     * @return view distance
+     */
+    private static double getViewDistance(Species[] kinds) {
+        double distance = 0;
+        for (Species s : kinds) {
+            distance = Math.max(distance, s.getSettings().getViewDistance());
+        }
+        return distance;
+    }
+    
+    /**
+     * Gets the species. The default species is created here, because flocks
+     * saved before there were species don't have the list.
+     * 
+     * @return species, the default species first
+     */
+    private ArrayList<Species> getSpeciesList() {
+        if (this.species == null) {
+            this.species = new ArrayList<Species>();
+            this.species.add(new Species(0, "default", this.set));
+        }
+        return this.species;
+    }
+    
+    /**
+     * Adds a species. The settings should be a copy of the simulation
+     * settings with the steering parameters changed. The area size and
+     * wrapping of the settings are overwritten with those of the simulation
+     * settings, here and before every step, so that all species live in the
+     * same area. The new species follows every species and is followed by
+     * every species until the interactions are changed.
+     * 
+     * @param name name of the species
+     * @param settings settings of the boids of the species
+     * @return the new species
+     */
+    public synchronized Species addSpecies(String name, Settings settings) {
+        ArrayList<Species> list = this.getSpeciesList();
+        if (list.size() == Species.MAX_SPECIES) {
+            throw new IllegalStateException("A flock can have at most " + Species.MAX_SPECIES + " species");
+        }
+        Species s = new Species(list.size(), name, settings);
+        list.add(s);
+        this.copyArea(s.getSettings());
+        return s;
+    }
+    
+    /**
+     * Copies the area size and wrapping of the simulation settings to the
+     * settings of a species.
+     * 
+     * @param settings settings of a species
+     */
+    private void copyArea(Settings settings) {
+        if (settings != this.set) {
+            settings.setAreaWidth(this.set.getAreaWidth());
+            settings.setAreaHeight(this.set.getAreaHeight());
+            settings.setWrapArea(this.set.isWrapArea());
+        }
+    }
+    
+    /**
+     * Gets a species.
+     * 
+     * @param id number of the species
+     * @return the species, or the default species if there is no such species
+     */
+    public synchronized Species getSpecies(int id) {
+        ArrayList<Species> list = this.getSpeciesList();
+        return id >= 0 && id < list.size() ? list.get(id) : list.get(0);
+    }
+    
+    /**
+     * Gets the number of species, including the default species.
+     * 
+     * @return number of species
+     */
+    public synchronized int getSpeciesCount() {
+        return this.getSpeciesList().size();
+    }
+    
+    /**
+     * Sets what the boids of a species do with the boids of another species.
+     * The interaction is one-way; call this again with the species swapped
+     * to set the other direction.
+     * 
+     * @param from species whose boids steer
+     * @param to species whose boids are seen
+     * @param interaction interaction
+     */
+    public synchronized void setInteraction(Species from, Species to, Species.Interaction interaction) {
+        from.setInteraction(to.getId(), interaction);
+    }
+    
+    /**
+     * Replaces the species and their interactions of another flock with
+     * copies of the species of this flock. The settings are copied, except
+     * the settings of the default species, which come from the other flock.
+     * 
+     * @param copy flock to copy to
+     */
+    synchronized void copySpecies(Flock copy) {
+        ArrayList<Species> list = this.getSpeciesList();
+        ArrayList<Species> to = copy.getSpeciesList();
+        Species first = new Species(list.get(0), to.get(0).getSettings());
+        to.clear();
+        to.add(first);
+        for (int i = 1; i < list.size(); i++) {
+            to.add(new Species(list.get(i), new Settings(list.get(i).getSettings())));
         }
     }
+    
+    /**
+     * Sets the analytics which measure the shape of the flock after every
+     * step. The analytics are taken into use at the next step.
+     * 
+     * @param analytics analytics, or null to stop measuring
+     */
+    public void setAnalytics(FlockAnalytics analytics) {
+        this.analytics = analytics;
+    }
+    
+    /**
+     * Gets the analytics which measure the shape of the flock.
+     * 
+     * @return analytics, or null if the flock is not measured
+     */
+    public FlockAnalytics getAnalytics() {
+        return this.analytics;
+    }
+    
+    /**
+     * Sets how the neighbours are found. Both ways give the same steps.
+     * 
+     * @param index neighbour index
+     */
+    public synchronized void setNeighbourIndex(NeighbourIndex index) {
+        this.index = index;
+    }
+    
+    /**
+     * Gets how the neighbours are found. The grid is used unless something
+     * else has been set.
+     * 
+     * @return neighbour index
+     */
+    public synchronized NeighbourIndex getNeighbourIndex() {
+        return this.index == null ? NeighbourIndex.GRID : this.index;
+    }
+    
+    /**
+     * Gets the grid. The grid is not saved, so it is created here.
+     * 
+     * @return grid, or null if every boid checks every other boid
+     */
+    private NeighbourGrid getGrid() {
+        if (this.getNeighbourIndex() != NeighbourIndex.GRID) {
+            return null;
+        }
+        if (this.grid == null) {
+            this.grid = new NeighbourGrid();
+        }
+        return this.grid;
+    }
+    
+    /**
+     * Gets the list the candidates of a boid are collected into.
+     * 
+     * @return reused list
+     */
+    private ArrayList<Boid> getCandidates() {
+        if (this.candidates == null) {
+            this.candidates = new ArrayList<Boid>();
+        }
+        return this.candidates;
+    }
+    
+    /**
+     * Gets the number of boid pairs whose distance was checked while
+     * finding the neighbours in the last step. Without an index this is
+     * n * (n - 1). The statistics of the last
+     * step can be read without locking the flock; if a step is just ending,
+     * they may come from different steps.
+     * 
+     * @return number of pairs
+     */
+    public long getNeighbourPairs() {
+        return this.neighbourPairs;
+    }
+    
+    /**
+     * Gets the number of neighbours found by all boids in the last step.
+     * 
+     * @return sum of the neighbour counts
+     */
+    public long getNeighbourSum() {
+        return this.neighbourSum;
+    }
+    
+    /**
+     * Gets the largest number of neighbours a boid found in the last step.
+     * 
+     * @return largest neighbour count
+     */
+    public int getNeighbourMax() {
+        return this.neighbourMax;
+    }
+    
+    /**
+     * Gets the number of boids moved in the last step.
+     * 
+     * @return number of boids
+     */
+    public int getSteppedBoids() {
+        return this.steppedBoids;
+    }
+    
+    /**
+     * Sets the profiler which measures the steps. The profiler can be
+     * changed at any time; it is taken into use at the next step.
+     * 
+     * @param profiler profiler, or null to stop profiling
+     */
+    public void setProfiler(StepProfiler profiler) {
+        this.profiler = profiler;
+    }
+    
+    /**
+     * Gets the profiler which measures the steps.
+     * 
+     * @return profiler, or null if the steps are not profiled
+     */
+    public StepProfiler getProfiler() {
+        return this.profiler;
+    }
 
     /**
      * Add a boid to the flock.
@@ -95,6 +486,37 @@ public class Flock extends Observable {
      * @param velocity velocity of boids. If null, random velocity is generated
      */
     public synchronized void addRandomBoidsDirection(int x0, int y0, int w, int h, int n, Vector2D velocity) {
+        this.addRandomBoids(x0, y0, w, h, n, velocity, this.getSpecies(0));
+    }
+    
+    /**
+     * Add boids of a species with random positions and velocities to the
+     * flock. The positions are bounded inside a bounding box.
+     * 
+     * @param x0 bounding box left coordinate
+     * @param y0 bounding box upper coordinate
+     * @param w bounding box width
+     * @param h bounding box height
+     * @param n number of boids to add
+     * @param species species of the boids
+     */
+    public synchronized void addRandomBoids(int x0, int y0, int w, int h, int n, Species species) {
+        this.addRandomBoids(x0, y0, w, h, n, null, species);
+    }
+    
+    /**
+     * Add boids of a species with random positions to the flock.
+     * 
+     * @param x0 bounding box left coordinate
+     * @param y0 bounding box upper coordinate
+     * @param w bounding box width
+     * @param h bounding box height
+     * @param n number of boids to add
+     * @param velocity velocity of boids. If null, random velocity is generated
+     * @param species species of the boids
+     */
+    private void addRandomBoids(int x0, int y0, int w, int h, int n, Vector2D velocity, Species species) {
+        Settings settings = species.getSettings();
         Vector2D v = velocity;
         
         for (int i = 0; i < n; i++) {
@@ -107,7 +529,9 @@ public class Flock extends Observable {
                 v = new Vector2D(-5 + this.random.nextInt(10) + 0.1, -5 + this.random.nextInt(10) + 0.1);
             }
             
-            this.addBoid(new Boid(p, v.limit(this.set.getMaxSpeed()), this.set, this.random));
+            Boid b = new Boid(p, v.limit(settings.getMaxSpeed()), settings, this.random);
+            b.setSpecies(species.getId());
+            this.addBoid(b);
         }
         
         this.setChanged();
@@ -160,14 +584,17 @@ public class Flock extends Observable {
     /**
      * Sets the settings. This must be called after a simulation is loaded from
      * a file. This will also update the settings for each individual boid.
+     * The settings are used by the default species; the boids of the other
+     * species get the settings of their species.
      * 
      * @param settings settings
      */
     public void setSettings(Settings settings) {
         this.set = settings;
+        this.getSpeciesList().get(0).setSettings(settings);
         
         for (Boid b : boids) {
-            b.setSettings(settings);
+            b.setSettings(this.getSpecies(b.getSpecies()).getSettings());
         }   
     }
     
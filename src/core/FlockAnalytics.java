@@ -0,0 +1,179 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the shape of a flock after every step: the polarization, the
+ * centre of mass, the radius of gyration and the number of clusters. Set
+ * the analytics to a flock with {@link Flock#setAnalytics(FlockAnalytics)}.
+ *
+ * The clusters are the groups of boids connected by one boid seeing the
+ * other. They are counted with a union-find over the neighbours the boids
+ * find while steering, so no extra neighbour search is needed. The other
+ * measures take one pass over the boids after they have moved. The values
+ * of the last step can be read from any thread.
+ */
+public class FlockAnalytics {
+    private UnionFind sets;
+    private long steps;
+    private int boids;
+    private double polarization;
+    private double centreX;
+    private double centreY;
+    private double gyrationRadius;
+    private int clusters;
+
+    /**
+     * Creates analytics with no measured steps.
+     */
+    public FlockAnalytics() {
+        this.sets = new UnionFind(0);
+    }
+
+    /**
+     * Starts a step. Called by the flock before the boids steer.
+     *
+     * @param boids boids of the flock
+     */
+    void beginStep(ArrayList<Boid> boids) {
+        int n = boids.size();
+        for (int i = 0; i < n; i++) {
+            boids.get(i).index = i;
+        }
+        this.sets.reset(n);
+    }
+
+    /**
+     * Joins a boid and its neighbours into one cluster. Called by the flock
+     * after each boid has steered.
+     *
+     * @param i index of the boid
+     * @param neighbours neighbours the boid found, may be null
+     */
+    void addNeighbours(int i, ArrayList<Boid> neighbours) {
+        if (neighbours == null) {
+            return;
+        }
+        for (int k = 0; k < neighbours.size(); k++) {
+            this.sets.union(i, neighbours.get(k).index);
+        }
+    }
+
+    /**
+     * Ends a step. Called by the flock after the boids have moved.
+     *
+     * @param boids boids of the flock
+     */
+    void endStep(ArrayList<Boid> boids) {
+        int n = boids.size();
+        double vx = 0;
+        double vy = 0;
+        int moving = 0;
+        double x0 = n > 0 ? boids.get(0).getPosition().getX() : 0; // shifted sums lose less precision
+        double y0 = n > 0 ? boids.get(0).getPosition().getY() : 0;
+        double sx = 0;
+        double sy = 0;
+        double ss = 0;
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            double x = b.getPosition().getX() - x0;
+            double y = b.getPosition().getY() - y0;
+            sx += x;
+            sy += y;
+            ss += x * x + y * y;
+            double u = b.getVelocity().getX();
+            double v = b.getVelocity().getY();
+            double length = Math.sqrt(u * u + v * v);
+            if (length > 0) {
+                vx += u / length;
+                vy += v / length;
+                moving++;
+            }
+        }
+        synchronized (this) {
+            this.steps++;
+            this.boids = n;
+            this.polarization = moving == 0 ? 0 : Math.sqrt(vx * vx + vy * vy) / moving;
+            this.centreX = n == 0 ? 0 : x0 + sx / n;
+            this.centreY = n == 0 ? 0 : y0 + sy / n;
+            this.gyrationRadius = n == 0 ? 0 : Math.sqrt(Math.max(0, ss / n - (sx / n) * (sx / n) - (sy / n) * (sy / n)));
+            this.clusters = this.sets.getSetCount();
+        }
+    }
+
+    /**
+     * Gets the number of measured steps.
+     *
+     * @return number of steps
+     */
+    public synchronized long getSteps() {
+        return this.steps;
+    }
+
+    /**
+     * Gets the number of boids in the last step.
+     *
+     * @return number of boids
+     */
+    public synchronized int getBoidCount() {
+        return this.boids;
+    }
+
+    /**
+     * Gets the polarization: the length of the mean of the directions of
+     * the boids. It is 1 when all boids fly the same way and near 0 when
+     * they fly every which way.
+     *
+     * @return polarization between 0 and 1
+     */
+    public synchronized double getPolarization() {
+        return this.polarization;
+    }
+
+    /**
+     * Gets the centre of mass of the boids.
+     *
+     * @return centre of mass
+     */
+    public synchronized Vector2D getCentreOfMass() {
+        return new Vector2D(this.centreX, this.centreY);
+    }
+
+    /**
+     * Gets the radius of gyration: the root mean square distance of the
+     * boids from the centre of mass.
+     *
+     * @return radius of gyration
+     */
+    public synchronized double getGyrationRadius() {
+        return this.gyrationRadius;
+    }
+
+    /**
+     * Gets the number of clusters in the last step. A boid which sees no
+     * other boid and is seen by none is a cluster of its own.
+     *
+     * @return number of clusters
+     */
+    public synchronized int getClusterCount() {
+        return this.clusters;
+    }
+
+}
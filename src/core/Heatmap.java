@@ -0,0 +1,189 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.util.ArrayList;
+
+/**
+ * Accumulates the boid density and the mean boid velocity into a coarse grid
+ * of cells. Old samples decay exponentially: a sample made t steps ago has
+ * weight decay^t.
+ *
+ * The decay is not applied to every cell on every step. Instead new samples
+ * are weighted with a growing scale and the cells are divided by the scale
+ * when they are read. This keeps the cost of a step proportional to the
+ * number of boids and the cost of reading proportional to the number of cells.
+ */
+public class Heatmap implements StepListener {
+    private int cellSize;
+    private int columns;
+    private int rows;
+    private double decay;
+    private double scale;
+    private float[] density;
+    private float[] velocityX;
+    private float[] velocityY;
+
+    private final static double MAX_SCALE = 1e20; // renormalize before the floats lose precision
+
+    /**
+     * Creates a new empty heatmap covering the given area.
+     *
+     * @param width area width
+     * @param height area height
+     * @param cellSize width and height of a cell
+     * @param decay weight of a sample after one step, between 0 and 1
+     */
+    public Heatmap(int width, int height, int cellSize, double decay) {
+        if (cellSize <= 0 || decay <= 0 || decay > 1) {
+            throw new IllegalArgumentException("Invalid heatmap parameters");
+        }
+        this.cellSize = cellSize;
+        this.columns = (width + cellSize - 1) / cellSize;
+        this.rows = (height + cellSize - 1) / cellSize;
+        this.decay = decay;
+        this.scale = 1;
+        this.density = new float[this.columns * this.rows];
+        this.velocityX = new float[this.columns * this.rows];
+        this.velocityY = new float[this.columns * this.rows];
+    }
+
+    /**
+     * Adds the current boid positions and velocities to the heatmap. Boids
+     * outside the area are ignored.
+     *
+     * @param sim simulation
+     */
+    public synchronized void stepCompleted(Simulation sim) {
+        this.scale /= this.decay;
+        if (this.scale > MAX_SCALE) {
+            this.renormalize();
+        }
+
+        float w = (float) this.scale;
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        for (int i = 0; i < boids.size(); i++) {
+            Boid b = boids.get(i);
+            int col = (int) Math.floor(b.getPosition().getX() / this.cellSize);
+            int row = (int) Math.floor(b.getPosition().getY() / this.cellSize);
+            if (col < 0 || row < 0 || col >= this.columns || row >= this.rows) {
+                continue;
+            }
+            int cell = row * this.columns + col;
+            this.density[cell] += w;
+            this.velocityX[cell] += (float) (w * b.getVelocity().getX());
+            this.velocityY[cell] += (float) (w * b.getVelocity().getY());
+        }
+    }
+
+    /**
+     * Divides every cell by the current scale and resets the scale.
+     */
+    private void renormalize() {
+        float f = (float) (1 / this.scale);
+        for (int i = 0; i < this.density.length; i++) {
+            this.density[i] *= f;
+            this.velocityX[i] *= f;
+            this.velocityY[i] *= f;
+        }
+        this.scale = 1;
+    }
+
+    /**
+     * Copies the decayed cell values to the given arrays. The arrays are
+     * indexed by row * columns + column and must have at least
+     * {@link #getCellCount()} elements.
+     *
+     * @param density decayed boid count of each cell
+     * @param velocityX mean velocity x coordinate of each cell
+     * @param velocityY mean velocity y coordinate of each cell
+     */
+    public synchronized void read(float[] density, float[] velocityX, float[] velocityY) {
+        float f = (float) (1 / this.scale);
+        for (int i = 0; i < this.density.length; i++) {
+            float d = this.density[i];
+            density[i] = d * f;
+            if (d > 0) {
+                velocityX[i] = this.velocityX[i] / d;
+                velocityY[i] = this.velocityY[i] / d;
+            } else {
+                velocityX[i] = 0;
+                velocityY[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Removes all samples.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < this.density.length; i++) {
+            this.density[i] = 0;
+            this.velocityX[i] = 0;
+            this.velocityY[i] = 0;
+        }
+        this.scale = 1;
+    }
+
+    /**
+     * Gets the total weight of a sample which is repeated on every step, i.e.
+     * the largest value a cell can reach per boid.
+     *
+     * @return 1 / (1 - decay), or infinity if there is no decay
+     */
+    public double getSaturation() {
+        return 1 / (1 - this.decay);
+    }
+
+    /**
+     * Gets the width and height of a cell.
+     *
+     * @return cell size
+     */
+    public int getCellSize() {
+        return this.cellSize;
+    }
+
+    /**
+     * Gets the number of cell columns.
+     *
+     * @return columns
+     */
+    public int getColumns() {
+        return this.columns;
+    }
+
+    /**
+     * Gets the number of cell rows.
+     *
+     * @return rows
+     */
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Gets the number of cells.
+     *
+     * @return columns * rows
+     */
+    public int getCellCount() {
+        return this.density.length;
+    }
+
+}
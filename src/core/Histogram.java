@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative values, such as durations in nanoseconds,
+ * with a relative error of at most 1/8. Values below 16 have their own
+ * buckets; above that every power of two is divided into 8 buckets.
+ * Recording a value doesn't allocate anything. This class is not thread
+ * safe.
+ */
+public class Histogram {
+    private long[] buckets;
+    private long count;
+    private long sum;
+    private long max;
+
+    private final static int SUB_BUCKETS = 8;
+    private final static int LINEAR = 2 * SUB_BUCKETS;
+    private final static int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public Histogram() {
+        this.buckets = new long[BUCKETS];
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.buckets[Histogram.bucket(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * Gets the bucket of a value.
+     *
+     * @param value non-negative value
+     * @return bucket index
+     */
+    private static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // at least 4
+        int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value of a bucket.
+     *
+     * @param bucket bucket index
+     * @return largest value which goes into the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long low = (long) (SUB_BUCKETS + sub) << (exponent - 3);
+        return low + (1L << (exponent - 3)) - 1;
+    }
+
+    /**
+     * Gets a percentile. The result is the upper bound of the bucket the
+     * percentile falls in, but never more than the largest recorded value.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return value, 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (this.count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * this.count);
+        rank = Math.max(1, Math.min(this.count, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.upperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the sum of the recorded values.
+     *
+     * @return sum
+     */
+    public long getSum() {
+        return this.sum;
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return mean, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return largest value
+     */
+    public long getMax() {
+        return this.max;
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other histogram
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] += other.buckets[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void reset() {
+        Arrays.fill(this.buckets, 0);
+        this.count = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Vector;
+
+/**
+ * This class provides saving in a binary format with an index, so parts of a
+ * saved simulation can be read without reading the whole file. Use
+ * {@link IndexedSaveReader} to read only the header, the settings, the
+ * obstacles or the boids in an area.
+ *
+ * The boids are divided into tiles by their position. The boids of a tile
+ * are stored together and the tile directory tells where each tile starts
+ * and the bounding box of its boids. Each boid also stores its index in the
+ * flock, so the flock is loaded back in its original order.
+ *
+ * The layout of the file is (all numbers big-endian):
+ * <pre>
+ * header:    int magic 'BIDX', int format version, int settings version, long step,
+ *            int boid count, int obstacle count, int tiles x, int tiles y,
+ *            5 * (long offset, int length) of settings, random, obstacles, tile directory
+ *            and species
+ * settings:  as in the binary save file
+ * random:    as in the binary save file
+ * obstacles: as in the binary save file
+ * species:   as in the binary save file
+ * tiles:     tiles x * tiles y * (long offset, int count,
+ *            double min x, double min y, double max x, double max y)
+ * boids:     for every tile, count * (int index, double x, y, vx, vy, fx, fy, wander angle,
+ *            byte species)
+ * </pre>
+ *
+ * Files of format version 1 have only the first four sections and no
+ * species byte in the boids; their boids are loaded into the default
+ * species.
+ */
+public class IndexedSaveFile implements SaveFile {
+
+    final static int MAGIC = 0x42494458; // "BIDX"
+    final static int FORMAT_VERSION = 2;
+    final static int FORMAT_VERSION_WITHOUT_SPECIES = 1;
+    final static int SECTIONS = 5;
+    final static int SECTIONS_WITHOUT_SPECIES = 4;
+    final static int HEADER_SIZE_WITHOUT_SPECIES = 3 * 4 + 8 + 4 * 4 + SECTIONS_WITHOUT_SPECIES * (8 + 4);
+    final static int HEADER_SIZE = HEADER_SIZE_WITHOUT_SPECIES + 8 + 4;
+    final static int TILE_ENTRY_SIZE = 8 + 4 + 4 * 8;
+    final static int BOID_SIZE_WITHOUT_SPECIES = 4 + 7 * 8;
+    final static int BOID_SIZE = BOID_SIZE_WITHOUT_SPECIES + 1;
+    private final static int BOIDS_PER_TILE = 512;
+    private final static int MAX_TILES = 64; // in each direction
+
+    @Override
+    public Simulation loadSimulation(File file) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        Simulation sim = null;
+        try {
+            sim = this.load(file);
+            return sim;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.LOAD, this, file, sim == null ? 0 : sim.getFlock().getSize(), sim != null);
+        }
+    }
+
+    /**
+     * Loads a simulation.
+     *
+     * @param file file
+     * @return simulation
+     * @throws IOException if the load fails
+     */
+    private Simulation load(File file) throws IOException {
+        IndexedSaveReader reader = new IndexedSaveReader(file);
+        try {
+            return reader.readSimulation();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file) throws IOException {
+        this.saveSimulation(sim, file, null);
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file, SaveProgress progress) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        boolean saved = false;
+        try {
+            this.save(sim, file, progress);
+            saved = true;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.SAVE, this, file, sim.getFlock().getSize(), saved);
+        }
+    }
+
+    /**
+     * Saves a simulation.
+     *
+     * @param sim simulation
+     * @param file file
+     * @param progress receives the progress, may be null
+     * @throws IOException if the save fails
+     */
+    private void save(Simulation sim, File file, SaveProgress progress) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            BinaryOutput out = new BinaryOutput(stream.getChannel());
+            synchronized (sim.getFlock()) {
+                synchronized (sim.getObstacles()) {
+                    IndexedSaveFile.write(sim, out, progress);
+                }
+            }
+            out.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String getFilenameDescription() {
+        return "Indexed save file (*.iboids)";
+    }
+
+    @Override
+    public String getFilenameExtension() {
+        return "iboids";
+    }
+
+    /**
+     * Writes a simulation. The caller holds the locks of the flock and the
+     * obstacles.
+     *
+     * @param sim simulation
+     * @param out output
+     * @param progress receives the progress in written boids after every tile, may be null
+     * @throws IOException if the write fails
+     */
+    private static void write(Simulation sim, BinaryOutput out, SaveProgress progress) throws IOException {
+        Settings settings = sim.getSettings();
+        Vector<Obstacle> obstacles = sim.getObstacles();
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        int n = boids.size();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryOutput section = new BinaryOutput(Channels.newChannel(bytes));
+        BinarySaveFile.writeSettings(settings, section);
+        section.flush();
+        byte[] settingsBlock = bytes.toByteArray();
+        bytes.reset();
+        BinarySaveFile.writeRandom(sim.getRandom(), section);
+        section.flush();
+        byte[] randomBlock = bytes.toByteArray();
+        bytes.reset();
+        BinarySaveFile.writeObstacles(obstacles, section);
+        section.flush();
+        byte[] obstacleBlock = bytes.toByteArray();
+        bytes.reset();
+        BinarySaveFile.writeSpecies(sim.getFlock(), section);
+        section.flush();
+        byte[] speciesBlock = bytes.toByteArray();
+
+        // sort the boids into tiles
+        int side = (int) Math.ceil(Math.sqrt((double) n / BOIDS_PER_TILE));
+        side = Math.max(1, Math.min(MAX_TILES, side));
+        int tiles = side * side;
+        double tileWidth = (double) Math.max(1, settings.getAreaWidth()) / side;
+        double tileHeight = (double) Math.max(1, settings.getAreaHeight()) / side;
+        int[] tileOf = new int[n];
+        int[] counts = new int[tiles];
+        for (int i = 0; i < n; i++) {
+            Vector2D p = boids.get(i).getPosition();
+            int tx = IndexedSaveFile.clamp((int) Math.floor(p.getX() / tileWidth), side);
+            int ty = IndexedSaveFile.clamp((int) Math.floor(p.getY() / tileHeight), side);
+            tileOf[i] = ty * side + tx;
+            counts[tileOf[i]]++;
+        }
+        int[] starts = new int[tiles + 1];
+        for (int t = 0; t < tiles; t++) {
+            starts[t + 1] = starts[t] + counts[t];
+        }
+        int[] order = new int[n]; // boid indices tile by tile
+        int[] next = starts.clone();
+        for (int i = 0; i < n; i++) {
+            order[next[tileOf[i]]++] = i;
+        }
+
+        long offset = HEADER_SIZE;
+        long settingsOffset = offset;
+        offset += settingsBlock.length;
+        long randomOffset = offset;
+        offset += randomBlock.length;
+        long obstacleOffset = offset;
+        offset += obstacleBlock.length;
+        long speciesOffset = offset;
+        offset += speciesBlock.length;
+        long tileOffset = offset;
+        offset += (long) TILE_ENTRY_SIZE * tiles;
+
+        out.putInt(MAGIC);
+        out.putInt(FORMAT_VERSION);
+        out.putInt(settings.getVersion());
+        out.putLong(sim.getStep());
+        out.putInt(n);
+        out.putInt(obstacles.size());
+        out.putInt(side);
+        out.putInt(side);
+        IndexedSaveFile.putSection(out, settingsOffset, settingsBlock.length);
+        IndexedSaveFile.putSection(out, randomOffset, randomBlock.length);
+        IndexedSaveFile.putSection(out, obstacleOffset, obstacleBlock.length);
+        IndexedSaveFile.putSection(out, tileOffset, TILE_ENTRY_SIZE * tiles);
+        IndexedSaveFile.putSection(out, speciesOffset, speciesBlock.length);
+        out.putBytes(settingsBlock);
+        out.putBytes(randomBlock);
+        out.putBytes(obstacleBlock);
+        out.putBytes(speciesBlock);
+
+        for (int t = 0; t < tiles; t++) {
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int k = starts[t]; k < starts[t + 1]; k++) {
+                Vector2D p = boids.get(order[k]).getPosition();
+                minX = Math.min(minX, p.getX());
+                minY = Math.min(minY, p.getY());
+                maxX = Math.max(maxX, p.getX());
+                maxY = Math.max(maxY, p.getY());
+            }
+            out.putLong(offset);
+            out.putInt(counts[t]);
+            out.putDouble(minX);
+            out.putDouble(minY);
+            out.putDouble(maxX);
+            out.putDouble(maxY);
+            offset += (long) BOID_SIZE * counts[t];
+        }
+
+        for (int t = 0; t < tiles; t++) {
+            for (int k = starts[t]; k < starts[t + 1]; k++) {
+                Boid b = boids.get(order[k]);
+                out.putInt(order[k]);
+                out.putDouble(b.getPosition().getX());
+                out.putDouble(b.getPosition().getY());
+                out.putDouble(b.getVelocity().getX());
+                out.putDouble(b.getVelocity().getY());
+                out.putDouble(b.getForce().getX());
+                out.putDouble(b.getForce().getY());
+                out.putDouble(b.getWanderAngle());
+                out.putByte((byte) b.getSpecies());
+            }
+            if (progress != null) {
+                progress.progress(starts[t + 1], n);
+            }
+        }
+    }
+
+    /**
+     * Writes the offset and the length of a section.
+     *
+     * @param out output
+     * @param offset file offset
+     * @param length length in bytes
+     * @throws IOException if the write fails
+     */
+    private static void putSection(BinaryOutput out, long offset, int length) throws IOException {
+        out.putLong(offset);
+        out.putInt(length);
+    }
+
+    /**
+     * Clamps a tile coordinate, so boids outside the area go to the border
+     * tiles.
+     *
+     * @param tile tile coordinate
+     * @param side number of tiles
+     * @return coordinate between 0 and side - 1
+     */
+    private static int clamp(int tile, int side) {
+        return tile < 0 ? 0 : tile >= side ? side - 1 : tile;
+    }
+
+}
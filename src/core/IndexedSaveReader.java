@@ -0,0 +1,392 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Reads parts of a file written by {@link IndexedSaveFile}. Only the header
+ * is read when the file is opened. The settings, the obstacles and the boids
+ * are read when they are asked for, and reading the boids of an area reads
+ * only the tiles which may have boids in it.
+ */
+public class IndexedSaveReader {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long size;
+    private int settingsVersion;
+    private long step;
+    private int boidCount;
+    private int obstacleCount;
+    private int tilesX;
+    private int tilesY;
+    private long[] sectionOffsets;
+    private int[] sectionLengths;
+    private boolean hasSpecies;
+    private Settings settings;
+    private Random random;
+    private Flock species; // holds the species of the file, read when first needed
+    private ByteBuffer tiles; // tile directory, read when first needed
+    private long bytesRead;
+
+    private final static int SETTINGS = 0;
+    private final static int RANDOM = 1;
+    private final static int OBSTACLES = 2;
+    private final static int TILES = 3;
+    private final static int SPECIES = 4;
+
+    /**
+     * Opens a file and reads its header.
+     *
+     * @param file file written by an indexed save file
+     * @throws IOException if the file can't be read or is not an indexed save file
+     */
+    public IndexedSaveReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.bytesRead = 0;
+        try {
+            ByteBuffer header = this.read(0, IndexedSaveFile.HEADER_SIZE_WITHOUT_SPECIES);
+            if (header.getInt() != IndexedSaveFile.MAGIC) {
+                throw new IOException("Not an indexed boids save file");
+            }
+            int format = header.getInt();
+            if (format != IndexedSaveFile.FORMAT_VERSION && format != IndexedSaveFile.FORMAT_VERSION_WITHOUT_SPECIES) {
+                throw new IOException("Unsupported indexed save file format " + format);
+            }
+            this.hasSpecies = format != IndexedSaveFile.FORMAT_VERSION_WITHOUT_SPECIES;
+            int sections = this.hasSpecies ? IndexedSaveFile.SECTIONS : IndexedSaveFile.SECTIONS_WITHOUT_SPECIES;
+            int headerSize = this.hasSpecies ? IndexedSaveFile.HEADER_SIZE : IndexedSaveFile.HEADER_SIZE_WITHOUT_SPECIES;
+            this.settingsVersion = header.getInt();
+            this.step = header.getLong();
+            this.boidCount = header.getInt();
+            this.obstacleCount = header.getInt();
+            this.tilesX = header.getInt();
+            this.tilesY = header.getInt();
+            if (this.boidCount < 0 || this.obstacleCount < 0 || this.tilesX <= 0 || this.tilesY <= 0) {
+                throw new IOException("Invalid indexed save file header");
+            }
+            this.sectionOffsets = new long[sections];
+            this.sectionLengths = new int[sections];
+            long size = this.channel.size();
+            this.size = size;
+            for (int i = 0; i < sections; i++) {
+                if (i == IndexedSaveFile.SECTIONS_WITHOUT_SPECIES) {
+                    header = this.read(IndexedSaveFile.HEADER_SIZE_WITHOUT_SPECIES, 8 + 4);
+                }
+                this.sectionOffsets[i] = header.getLong();
+                this.sectionLengths[i] = header.getInt();
+                if (this.sectionOffsets[i] < headerSize || this.sectionLengths[i] < 0
+                        || this.sectionOffsets[i] + this.sectionLengths[i] > size) {
+                    throw new IOException("Invalid section " + i + " in the indexed save file");
+                }
+            }
+            if (this.sectionLengths[TILES] != (long) IndexedSaveFile.TILE_ENTRY_SIZE * this.tilesX * this.tilesY) {
+                throw new IOException("Invalid tile directory length");
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads bytes from the file.
+     *
+     * @param offset file offset
+     * @param length number of bytes
+     * @return a buffer, ready for reading
+     * @throws IOException if the read fails or the file ends
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at byte " + (offset + buffer.position()));
+            }
+        }
+        this.bytesRead += length;
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a section into an input.
+     *
+     * @param section section number
+     * @return input over the bytes of the section
+     * @throws IOException if the read fails
+     */
+    private BinaryInput readSection(int section) throws IOException {
+        byte[] bytes = this.read(this.sectionOffsets[section], this.sectionLengths[section]).array();
+        return new BinaryInput(Channels.newChannel(new ByteArrayInputStream(bytes)), bytes.length);
+    }
+
+    /**
+     * Reads the settings.
+     *
+     * @return settings
+     * @throws IOException if the read fails or the settings are from another version
+     */
+    public synchronized Settings readSettings() throws IOException {
+        if (this.settings == null) {
+            if (this.settingsVersion != new Settings().getVersion()) {
+                throw new IOException("Wrong save file version " + this.settingsVersion);
+            }
+            this.settings = BinarySaveFile.readSettings(this.readSection(SETTINGS));
+        }
+        return this.settings;
+    }
+
+    /**
+     * Reads the state of the random number generator. The boids read by
+     * this reader share it.
+     *
+     * @return random number generator
+     * @throws IOException if the read fails
+     */
+    private Random readRandom() throws IOException {
+        if (this.random == null) {
+            this.random = BinarySaveFile.readRandom(this.readSection(RANDOM));
+        }
+        return this.random;
+    }
+
+    /**
+     * Reads the species into a flock which has only the default species.
+     * Files without species leave the flock as it is.
+     *
+     * @param flock flock
+     * @throws IOException if the read fails or the species are invalid
+     */
+    private void readSpecies(Flock flock) throws IOException {
+        if (this.hasSpecies) {
+            BinarySaveFile.readSpecies(this.readSection(SPECIES), flock);
+        }
+    }
+
+    /**
+     * Gets a flock which holds the species of the file, for the boids read
+     * without a simulation.
+     *
+     * @return flock without boids
+     * @throws IOException if the read fails or the species are invalid
+     */
+    private Flock getSpecies() throws IOException {
+        if (this.species == null) {
+            Flock flock = new Flock(this.readRandom(), this.readSettings());
+            this.readSpecies(flock);
+            this.species = flock;
+        }
+        return this.species;
+    }
+
+    /**
+     * Reads the obstacles.
+     *
+     * @return obstacles
+     * @throws IOException if the read fails
+     */
+    public synchronized Vector<Obstacle> readObstacles() throws IOException {
+        Vector<Obstacle> obstacles = new Vector<Obstacle>();
+        BinarySaveFile.readObstacles(this.readSection(OBSTACLES), obstacles);
+        return obstacles;
+    }
+
+    /**
+     * Reads the boids whose position is inside a rectangle, borders
+     * included. The boids are in their order in the flock.
+     *
+     * @param x left border
+     * @param y top border
+     * @param width width
+     * @param height height
+     * @return boids
+     * @throws IOException if the read fails
+     */
+    public synchronized ArrayList<Boid> readBoids(double x, double y, double width, double height) throws IOException {
+        ArrayList<Boid> boids = new ArrayList<Boid>();
+        this.readTiles(x, y, x + width, y + height, this.getSpecies(), boids, null);
+        return boids;
+    }
+
+    /**
+     * Reads the whole simulation.
+     *
+     * @return simulation
+     * @throws IOException if the read fails or the file is broken
+     */
+    public synchronized Simulation readSimulation() throws IOException {
+        Simulation sim = new Simulation(this.readSettings(), this.readRandom(), this.step);
+        sim.getObstacles().addAll(this.readObstacles());
+        this.readSpecies(sim.getFlock());
+        Boid[] all = new Boid[this.boidCount];
+        this.readTiles(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, sim.getFlock(), null, all);
+        for (int i = 0; i < all.length; i++) {
+            if (all[i] == null) {
+                throw new IOException("Boid " + i + " is missing from the save file");
+            }
+            sim.getFlock().addBoid(all[i]);
+        }
+        return sim;
+    }
+
+    /**
+     * Reads the boids of the tiles whose bounding box overlaps a rectangle.
+     * Boids which are not in the rectangle are skipped.
+     *
+     * @param x0 left border
+     * @param y0 top border
+     * @param x1 right border
+     * @param y1 bottom border
+     * @param kinds flock with the species of the file, the boids get the settings of their species
+     * @param list the boids are added here in flock order, may be null
+     * @param byIndex the boids are stored here by their index, may be null
+     * @throws IOException if the read fails or the file is broken
+     */
+    private void readTiles(double x0, double y0, double x1, double y1, Flock kinds, ArrayList<Boid> list, Boid[] byIndex)
+            throws IOException {
+        Random r = this.readRandom();
+        int boidSize = this.hasSpecies ? IndexedSaveFile.BOID_SIZE : IndexedSaveFile.BOID_SIZE_WITHOUT_SPECIES;
+        if (this.tiles == null) {
+            this.tiles = this.read(this.sectionOffsets[TILES], this.sectionLengths[TILES]);
+        }
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        ArrayList<Boid> found = new ArrayList<Boid>();
+        int n = this.tilesX * this.tilesY;
+        for (int t = 0; t < n; t++) {
+            int entry = t * IndexedSaveFile.TILE_ENTRY_SIZE;
+            long offset = this.tiles.getLong(entry);
+            int count = this.tiles.getInt(entry + 8);
+            double minX = this.tiles.getDouble(entry + 12);
+            double minY = this.tiles.getDouble(entry + 20);
+            double maxX = this.tiles.getDouble(entry + 28);
+            double maxY = this.tiles.getDouble(entry + 36);
+            if (count == 0 || maxX < x0 || minX > x1 || maxY < y0 || minY > y1) {
+                continue;
+            }
+            if (count < 0 || count > this.boidCount) {
+                throw new IOException("Invalid boid count in tile " + t);
+            }
+            long length = (long) boidSize * count;
+            if (offset < 0 || length > Integer.MAX_VALUE || offset + length > this.size) {
+                throw new IOException("Invalid boid offset in tile " + t);
+            }
+            ByteBuffer b = this.read(offset, (int) length);
+            for (int k = 0; k < count; k++) {
+                int index = b.getInt();
+                Vector2D position = new Vector2D(b.getDouble(), b.getDouble());
+                Vector2D velocity = new Vector2D(b.getDouble(), b.getDouble());
+                Vector2D force = new Vector2D(b.getDouble(), b.getDouble());
+                double wanderAngle = b.getDouble();
+                int species = this.hasSpecies ? BinarySaveFile.checkSpecies(kinds, b.get()) : 0;
+                if (index < 0 || index >= this.boidCount) {
+                    throw new IOException("Invalid boid index " + index + " in tile " + t);
+                }
+                if (position.getX() < x0 || position.getX() > x1 || position.getY() < y0 || position.getY() > y1) {
+                    continue;
+                }
+                Boid boid = new Boid(position, velocity, force, wanderAngle, kinds.getSpecies(species).getSettings(), r);
+                boid.setSpecies(species);
+                if (byIndex != null) {
+                    byIndex[index] = boid;
+                }
+                indices.add(index);
+                found.add(boid);
+            }
+        }
+        if (list != null) {
+            // put the boids back into flock order, sorting by the index in the high bits
+            long[] order = new long[found.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = ((long) indices.get(i) << 32) | i;
+            }
+            Arrays.sort(order);
+            for (long key : order) {
+                list.add(found.get((int) key));
+            }
+        }
+    }
+
+    /**
+     * Gets the step of the saved simulation.
+     *
+     * @return step number
+     */
+    public long getStep() {
+        return this.step;
+    }
+
+    /**
+     * Gets the number of boids.
+     *
+     * @return number of boids
+     */
+    public int getBoidCount() {
+        return this.boidCount;
+    }
+
+    /**
+     * Gets the number of obstacles.
+     *
+     * @return number of obstacles
+     */
+    public int getObstacleCount() {
+        return this.obstacleCount;
+    }
+
+    /**
+     * Gets the settings version the file was saved with.
+     *
+     * @return settings version
+     */
+    public int getSettingsVersion() {
+        return this.settingsVersion;
+    }
+
+    /**
+     * Gets the number of bytes read from the file so far.
+     *
+     * @return number of bytes
+     */
+    public synchronized long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    public synchronized void close() throws IOException {
+        this.file.close();
+    }
+
+}
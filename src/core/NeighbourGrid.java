@@ -0,0 +1,232 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the boids which gives, for a boid, the boids that may
+ * be inside its view distance. The cells are at least as large as the view
+ * distance, so the neighbours of a boid are always in its own cell or the
+ * eight cells around it. Boids outside the area are put into the border
+ * cells.
+ *
+ * The candidates are returned in the order of the flock, so the steering
+ * sums are added in the same order as when every boid is checked, and the
+ * result is the same to the last bit. A boid which moves after the grid is
+ * built (in a wrapping area the border rule moves boids during the steering
+ * pass) must be reported with {@link #update(int, Boid)}; it is then a
+ * candidate for every boid until the grid is built again.
+ *
+ * The boids of every species are in the same grid. The candidates can be
+ * limited to some species with a bitmask; the species of every boid is
+ * stored when the grid is built, so the other boids are left out without
+ * reading them.
+ */
+class NeighbourGrid {
+    private int columns;
+    private int rows;
+    private double cellSize;
+    private int[] cellStart; // the boids of cell c are order[cellStart[c]] ... order[cellStart[c + 1] - 1]
+    private int[] order;
+    private int[] cells; // cell of every boid
+    private int[] species; // bit of the species of every boid
+    private double[] xs;
+    private double[] ys;
+    private int[] moved;
+    private int movedCount;
+    private int[] fill;
+    private int[] found;
+
+    private final static int MAX_CELLS_PER_BOID = 4;
+    private final static int MIN_CELLS = 64;
+
+    /**
+     * Creates an empty grid.
+     */
+    NeighbourGrid() {
+        this.cellStart = new int[1];
+        this.order = new int[0];
+        this.cells = new int[0];
+        this.species = new int[0];
+        this.xs = new double[0];
+        this.ys = new double[0];
+        this.moved = new int[0];
+        this.fill = new int[0];
+        this.found = new int[0];
+    }
+
+    /**
+     * Puts the boids into cells. The cells are squares with the view
+     * distance as the side, made larger if there would be more cells than a
+     * few per boid.
+     *
+     * @param boids boids
+     * @param viewDistance view distance
+     * @param width area width
+     * @param height area height
+     */
+    void build(ArrayList<Boid> boids, double viewDistance, int width, int height) {
+        int n = boids.size();
+        double cell = Math.max(1, viewDistance);
+        long maxCells = Math.max(MIN_CELLS, (long) MAX_CELLS_PER_BOID * n);
+        while ((long) Math.ceil(Math.max(1, width) / cell) * (long) Math.ceil(Math.max(1, height) / cell) > maxCells) {
+            cell *= 2;
+        }
+        this.cellSize = cell;
+        this.columns = (int) Math.ceil(Math.max(1, width) / cell);
+        this.rows = (int) Math.ceil(Math.max(1, height) / cell);
+        int count = this.columns * this.rows;
+
+        if (this.cellStart.length < count + 1) {
+            this.cellStart = new int[count + 1];
+        } else {
+            Arrays.fill(this.cellStart, 0, count + 1, 0);
+        }
+        if (this.order.length < n) {
+            this.order = new int[n];
+            this.cells = new int[n];
+            this.species = new int[n];
+            this.xs = new double[n];
+            this.ys = new double[n];
+            this.moved = new int[n];
+            this.found = new int[2 * n]; // the moved boids may also be in the cells
+        }
+        this.movedCount = 0;
+
+        // counting sort by cell keeps the boids of a cell in flock order
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            Vector2D p = b.getPosition();
+            this.species[i] = 1 << b.getSpecies();
+            this.xs[i] = p.getX();
+            this.ys[i] = p.getY();
+            this.cells[i] = this.row(this.ys[i]) * this.columns + this.column(this.xs[i]);
+            this.cellStart[this.cells[i] + 1]++;
+        }
+        for (int c = 0; c < count; c++) {
+            this.cellStart[c + 1] += this.cellStart[c];
+        }
+        if (this.fill.length < count) {
+            this.fill = new int[count];
+        }
+        System.arraycopy(this.cellStart, 0, this.fill, 0, count);
+        for (int i = 0; i < n; i++) {
+            this.order[this.fill[this.cells[i]]++] = i;
+        }
+    }
+
+    /**
+     * Gets the column of an x coordinate, clamped to the grid.
+     *
+     * @param x x coordinate
+     * @return column
+     */
+    private int column(double x) {
+        int c = (int) Math.floor(x / this.cellSize);
+        return c < 0 ? 0 : c >= this.columns ? this.columns - 1 : c;
+    }
+
+    /**
+     * Gets the row of a y coordinate, clamped to the grid.
+     *
+     * @param y y coordinate
+     * @return row
+     */
+    private int row(double y) {
+        int r = (int) Math.floor(y / this.cellSize);
+        return r < 0 ? 0 : r >= this.rows ? this.rows - 1 : r;
+    }
+
+    /**
+     * Checks whether a boid has moved since the grid was built and makes it
+     * a candidate for every boid if it has.
+     *
+     * @param i index of the boid
+     * @param b the boid
+     */
+    void update(int i, Boid b) {
+        Vector2D p = b.getPosition();
+        if (p.getX() != this.xs[i] || p.getY() != this.ys[i]) {
+            this.xs[i] = p.getX();
+            this.ys[i] = p.getY();
+            this.moved[this.movedCount++] = i;
+        }
+    }
+
+    /**
+     * Collects the boids which may be neighbours of a boid: the boids in the
+     * surrounding cells and the boids which have moved. The boid itself is
+     * included.
+     *
+     * @param i index of the boid
+     * @param boids the boids the grid was built from
+     * @param candidates cleared and filled with the candidates in flock order
+     * @return the candidates
+     */
+    ArrayList<Boid> candidates(int i, ArrayList<Boid> boids, ArrayList<Boid> candidates) {
+        return this.candidates(i, boids, candidates, -1);
+    }
+
+    /**
+     * Collects the boids of some species which may be neighbours of a boid.
+     *
+     * @param i index of the boid
+     * @param boids the boids the grid was built from
+     * @param candidates cleared and filled with the candidates in flock order
+     * @param mask a bit for every species to include, -1 for all
+     * @return the candidates
+     */
+    ArrayList<Boid> candidates(int i, ArrayList<Boid> boids, ArrayList<Boid> candidates, int mask) {
+        int column = this.cells[i] % this.columns;
+        int row = this.cells[i] / this.columns;
+        int count = 0;
+        for (int r = Math.max(0, row - 1); r <= Math.min(this.rows - 1, row + 1); r++) {
+            int from = this.cellStart[r * this.columns + Math.max(0, column - 1)];
+            int to = this.cellStart[r * this.columns + Math.min(this.columns - 1, column + 1) + 1];
+            if (mask == -1) {
+                for (int k = from; k < to; k++) {
+                    this.found[count++] = this.order[k];
+                }
+            } else {
+                for (int k = from; k < to; k++) {
+                    if ((this.species[this.order[k]] & mask) != 0) {
+                        this.found[count++] = this.order[k];
+                    }
+                }
+            }
+        }
+        for (int m = 0; m < this.movedCount; m++) {
+            if ((this.species[this.moved[m]] & mask) != 0) {
+                this.found[count++] = this.moved[m];
+            }
+        }
+        Arrays.sort(this.found, 0, count);
+        candidates.clear();
+        int last = -1;
+        for (int k = 0; k < count; k++) {
+            if (this.found[k] != last) {
+                last = this.found[k];
+                candidates.add(boids.get(last));
+            }
+        }
+        return candidates;
+    }
+
+}
@@ -36,6 +36,19 @@ public class Obstacle {
         this.radius = r;
     }
     
+    /**
+     * Creates a new obstacle with the given position and radius. This is used
+     * when a simulation is loaded from a file.
+     * 
+     * @param x x position
+     * @param y y position
+     * @param r radius
+     */
+    Obstacle(double x, double y, int r) {
+        this.position = new Vector2D(x, y);
+        this.radius = r;
+    }
+    
     /**
      * Returns the position vector
      * 
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The internal state of a java.util.Random: the seed and the cached gaussian.
+ * The state is not accessible through the Random API, so it is read from and
+ * written to the serialized form of the Random. The serialized fields of
+ * Random end the stream in the order haveNextNextGaussian, nextNextGaussian,
+ * seed, followed by the end of block marker.
+ */
+class RandomState {
+    private long seed;
+    private double nextNextGaussian;
+    private boolean haveNextNextGaussian;
+
+    private final static int TAIL_LENGTH = 1 + 8 + 8 + 1;
+    private final static byte END_BLOCK = 0x78;
+
+    /**
+     * Creates a state with the given values.
+     *
+     * @param seed internal seed, as stored by Random
+     * @param nextNextGaussian cached gaussian
+     * @param haveNextNextGaussian is the cached gaussian valid
+     */
+    public RandomState(long seed, double nextNextGaussian, boolean haveNextNextGaussian) {
+        this.seed = seed;
+        this.nextNextGaussian = nextNextGaussian;
+        this.haveNextNextGaussian = haveNextNextGaussian;
+    }
+
+    /**
+     * Gets the state of a random number generator.
+     *
+     * @param random random number generator
+     * @return state
+     * @throws IOException if the serialized form is not as expected
+     */
+    public static RandomState of(Random random) throws IOException {
+        ByteBuffer tail = ByteBuffer.wrap(RandomState.serialize(random));
+        tail.position(tail.limit() - TAIL_LENGTH);
+        boolean have = tail.get() != 0;
+        double gaussian = tail.getDouble();
+        long seed = tail.getLong();
+        return new RandomState(seed, gaussian, have);
+    }
+
+    /**
+     * Creates a random number generator with this state.
+     *
+     * @return random number generator
+     * @throws IOException if the serialized form is not as expected
+     */
+    public Random toRandom() throws IOException {
+        byte[] bytes = RandomState.serialize(new Random(0));
+        ByteBuffer tail = ByteBuffer.wrap(bytes);
+        tail.position(tail.limit() - TAIL_LENGTH);
+        tail.put((byte) (this.haveNextNextGaussian ? 1 : 0));
+        tail.putDouble(this.nextNextGaussian);
+        tail.putLong(this.seed);
+        return RandomState.deserialize(bytes);
+    }
+
+    /**
+     * Serializes a random number generator and checks the end of the stream.
+     *
+     * @param random random number generator
+     * @return serialized form
+     * @throws IOException if the serialized form is not as expected
+     */
+    private static byte[] serialize(Random random) throws IOException {
+        if (random.getClass() != Random.class) {
+            throw new IOException("Unsupported random number generator " + random.getClass().getName());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream stream = new ObjectOutputStream(bytes);
+        stream.writeObject(random);
+        stream.close();
+        byte[] b = bytes.toByteArray();
+        if (b.length < TAIL_LENGTH || b[b.length - 1] != END_BLOCK) {
+            throw new IOException("Unexpected serialized form of java.util.Random");
+        }
+        return b;
+    }
+
+    /**
+     * Deserializes a random number generator. Only java.util.Random is
+     * accepted, so the bytes can't make us create arbitrary objects.
+     *
+     * @param bytes serialized form
+     * @return random number generator
+     * @throws IOException if the bytes are not a serialized Random
+     */
+    static Random deserialize(byte[] bytes) throws IOException {
+        ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                if (!desc.getName().equals(Random.class.getName())) {
+                    throw new InvalidClassException(desc.getName(), "Expected java.util.Random");
+                }
+                return super.resolveClass(desc);
+            }
+        };
+        try {
+            return (Random) stream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid serialized random number generator", e);
+        }
+    }
+
+    /**
+     * Gets the internal seed.
+     *
+     * @return seed
+     */
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Gets the cached gaussian.
+     *
+     * @return cached gaussian
+     */
+    public double getNextNextGaussian() {
+        return this.nextNextGaussian;
+    }
+
+    /**
+     * Is the cached gaussian valid.
+     *
+     * @return true if the cached gaussian is valid
+     */
+    public boolean haveNextNextGaussian() {
+        return this.haveNextNextGaussian;
+    }
+
+}
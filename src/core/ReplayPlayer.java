@@ -0,0 +1,426 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Plays back a file written by {@link ReplayWriter}. The frame offsets are
+ * collected when the file is opened. Moving to the next frame decodes one
+ * frame and seeking to any frame decodes at most one keyframe and the deltas
+ * after it.
+ *
+ * The decoded state is copied to a simulation with
+ * {@link #apply(Simulation)}, so a simulation can be drawn as usual while
+ * it is played back. The species of the replay are copied too; the default
+ * species keeps the settings of the simulation.
+ */
+public class ReplayPlayer {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int keyframeInterval;
+    private int areaWidth;
+    private int areaHeight;
+    private long[] offsets;
+    private long[] steps;
+    private int[] keyframes; // the keyframe each frame starts from
+    private int frames;
+    private int frame;
+    private boolean hasSpecies;
+    private float[] state;
+    private byte[] species;
+    private Flock kinds; // species of the current keyframe, null without species
+    private int count;
+    private ByteBuffer buffer;
+
+    private final static int MAX_BOIDS = Integer.MAX_VALUE / 20; // every part of a frame can be read into one buffer
+
+    /**
+     * Opens a replay file.
+     *
+     * @param file file written by a replay writer
+     * @throws IOException if the file can't be read or is not a replay file
+     */
+    public ReplayPlayer(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.buffer = ByteBuffer.allocate(64 * 1024);
+        this.state = new float[0];
+        this.species = new byte[0];
+        this.frame = -1;
+        this.count = 0;
+        boolean opened = false;
+        try {
+            ByteBuffer header = this.read(0, ReplayWriter.HEADER_SIZE);
+            if (header.getInt() != ReplayWriter.MAGIC) {
+                throw new IOException("Not a replay file");
+            }
+            int format = header.getInt();
+            if (format != ReplayWriter.FORMAT_VERSION && format != ReplayWriter.FORMAT_VERSION_WITHOUT_SPECIES) {
+                throw new IOException("Unsupported replay file format " + format);
+            }
+            this.hasSpecies = format != ReplayWriter.FORMAT_VERSION_WITHOUT_SPECIES;
+            this.keyframeInterval = header.getInt();
+            if (header.getFloat() != ReplayWriter.POSITION_QUANTUM || header.getFloat() != ReplayWriter.VELOCITY_QUANTUM) {
+                throw new IOException("Unsupported quantization in the replay file");
+            }
+            this.areaWidth = header.getInt();
+            this.areaHeight = header.getInt();
+            this.index();
+            opened = true;
+        } finally {
+            if (!opened) {
+                this.file.close();
+            }
+        }
+    }
+
+    /**
+     * Collects the offsets of the frames. Only the frame headers and the
+     * patch counts are read. A frame cut off at the end of the file is
+     * ignored, so a replay can be played while it is still being written.
+     *
+     * @throws IOException if the read fails or a frame is invalid
+     */
+    private void index() throws IOException {
+        this.offsets = new long[1024];
+        this.steps = new long[1024];
+        this.keyframes = new int[1024];
+        this.frames = 0;
+        long size = this.channel.size();
+        long offset = ReplayWriter.HEADER_SIZE;
+        int keyframe = -1;
+        while (offset + ReplayWriter.FRAME_HEADER_SIZE <= size) {
+            ByteBuffer h = this.read(offset, ReplayWriter.FRAME_HEADER_SIZE);
+            byte type = h.get();
+            long step = h.getLong();
+            int n = h.getInt();
+            long length;
+            if (n < 0 || n > MAX_BOIDS) {
+                throw new IOException("Invalid boid count " + n + " at byte " + offset);
+            }
+            if (type == ReplayWriter.KEYFRAME) {
+                keyframe = this.frames;
+                length = ReplayWriter.FRAME_HEADER_SIZE + 16L * n;
+                if (this.hasSpecies) {
+                    long blockLength = offset + length + n;
+                    if (blockLength + 4 > size) {
+                        break;
+                    }
+                    int block = this.read(blockLength, 4).getInt();
+                    if (block < 0) {
+                        throw new IOException("Invalid species block at byte " + blockLength);
+                    }
+                    length += n + 4L + block;
+                }
+            } else if (type == ReplayWriter.DELTA && keyframe >= 0) {
+                long patchCount = offset + ReplayWriter.FRAME_HEADER_SIZE + 8L * n;
+                if (patchCount + 4 > size) {
+                    break;
+                }
+                int patches = this.read(patchCount, 4).getInt();
+                if (patches < 0 || patches > n) {
+                    throw new IOException("Invalid patch count " + patches + " at byte " + patchCount);
+                }
+                length = ReplayWriter.FRAME_HEADER_SIZE + 8L * n + 4 + 20L * patches;
+            } else {
+                throw new IOException("Invalid frame at byte " + offset);
+            }
+            if (offset + length > size) {
+                break;
+            }
+
+            if (this.frames == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, 2 * this.frames);
+                this.steps = Arrays.copyOf(this.steps, 2 * this.frames);
+                this.keyframes = Arrays.copyOf(this.keyframes, 2 * this.frames);
+            }
+            this.offsets[this.frames] = offset;
+            this.steps[this.frames] = step;
+            this.keyframes[this.frames] = keyframe;
+            this.frames++;
+            offset += length;
+        }
+    }
+
+    /**
+     * Reads bytes from the file into the buffer.
+     *
+     * @param offset file offset
+     * @param length number of bytes
+     * @return the buffer, ready for reading
+     * @throws IOException if the read fails or the file ends
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (this.buffer.capacity() < length) {
+            this.buffer = ByteBuffer.allocate(length);
+        }
+        this.buffer.clear();
+        this.buffer.limit(length);
+        while (this.buffer.hasRemaining()) {
+            if (this.channel.read(this.buffer, offset + this.buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at byte " + (offset + this.buffer.position()));
+            }
+        }
+        this.buffer.flip();
+        return this.buffer;
+    }
+
+    /**
+     * Decodes a frame on top of the current state.
+     *
+     * @param f frame index
+     * @throws IOException if the read fails
+     */
+    private void decode(int f) throws IOException {
+        long offset = this.offsets[f];
+        ByteBuffer h = this.read(offset, ReplayWriter.FRAME_HEADER_SIZE);
+        byte type = h.get();
+        h.getLong();
+        int n = h.getInt();
+        offset += ReplayWriter.FRAME_HEADER_SIZE;
+
+        if (type == ReplayWriter.KEYFRAME) {
+            if (this.state.length < 4 * n) {
+                this.state = new float[4 * n];
+            }
+            ByteBuffer b = this.read(offset, (int) (16L * n));
+            for (int i = 0; i < 4 * n; i++) {
+                this.state[i] = b.getFloat();
+            }
+            if (this.hasSpecies) {
+                this.decodeSpecies(offset + 16L * n, n);
+            }
+            this.count = n;
+        } else {
+            if (n != this.count) {
+                throw new IOException("Wrong boid count in frame " + f);
+            }
+            ByteBuffer b = this.read(offset, (int) (8L * n + 4));
+            for (int i = 0; i < n; i++) {
+                ReplayWriter.apply(this.state, i, b.getShort(), b.getShort(), b.getShort(), b.getShort());
+            }
+            int patches = b.getInt();
+            if (patches < 0 || patches > n) {
+                throw new IOException("Invalid patch count " + patches + " in frame " + f);
+            }
+            b = this.read(offset + 8L * n + 4, (int) (20L * patches));
+            for (int p = 0; p < patches; p++) {
+                int i = b.getInt();
+                if (i < 0 || i >= n) {
+                    throw new IOException("Invalid patch index " + i + " in frame " + f);
+                }
+                for (int k = 0; k < 4; k++) {
+                    this.state[4 * i + k] = b.getFloat();
+                }
+            }
+        }
+        this.frame = f;
+    }
+
+    /**
+     * Decodes the species of a keyframe.
+     *
+     * @param offset offset of the species of the boids
+     * @param n number of boids
+     * @throws IOException if the read fails or the species are invalid
+     */
+    private void decodeSpecies(long offset, int n) throws IOException {
+        if (this.species.length < n) {
+            this.species = new byte[n];
+        }
+        ByteBuffer b = this.read(offset, n + 4);
+        b.get(this.species, 0, n);
+        byte[] block = new byte[b.getInt()];
+        this.read(offset + n + 4, block.length).get(block);
+        Flock flock = new Flock(null, new Settings());
+        BinaryInput in = new BinaryInput(Channels.newChannel(new ByteArrayInputStream(block)), block.length);
+        BinarySaveFile.readSpecies(in, flock);
+        for (int i = 0; i < n; i++) {
+            BinarySaveFile.checkSpecies(flock, this.species[i]);
+        }
+        this.kinds = flock;
+    }
+
+    /**
+     * Moves to a frame. Decodes the keyframe before it and the deltas in
+     * between, or only the deltas if the current frame is on the way.
+     *
+     * @param f frame index
+     * @throws IOException if the read fails
+     */
+    public synchronized void seek(int f) throws IOException {
+        if (f < 0 || f >= this.frames) {
+            throw new IndexOutOfBoundsException("Frame " + f + " of " + this.frames);
+        }
+        int start = this.keyframes[f];
+        if (this.frame >= start && this.frame <= f) {
+            start = this.frame + 1;
+        }
+        for (int i = start; i <= f; i++) {
+            this.decode(i);
+        }
+    }
+
+    /**
+     * Moves to the next frame.
+     *
+     * @return false if there are no more frames
+     * @throws IOException if the read fails
+     */
+    public synchronized boolean next() throws IOException {
+        if (this.frame + 1 >= this.frames) {
+            return false;
+        }
+        this.decode(this.frame + 1);
+        return true;
+    }
+
+    /**
+     * Moves to the previous frame.
+     *
+     * @return false if this is the first frame
+     * @throws IOException if the read fails
+     */
+    public synchronized boolean previous() throws IOException {
+        if (this.frame <= 0) {
+            return false;
+        }
+        this.seek(this.frame - 1);
+        return true;
+    }
+
+    /**
+     * Copies the state of the current frame to the boids of a simulation.
+     * Boids are added or removed so that the flock has as many boids as the
+     * frame, and the species of the flock are replaced with those of the
+     * frame.
+     *
+     * @param sim simulation
+     */
+    public synchronized void apply(Simulation sim) {
+        Flock flock = sim.getFlock();
+        synchronized (flock) {
+            int size = flock.getSize();
+            if (size > this.count) {
+                flock.removeBoids(size - this.count);
+            }
+            for (int i = size; i < this.count; i++) {
+                flock.addBoid(new Boid(new Vector2D(), new Vector2D(), sim.getSettings(), sim.getRandom()));
+            }
+            if (this.kinds != null) {
+                this.kinds.copySpecies(flock);
+            }
+            ArrayList<Boid> boids = flock.getBoids();
+            for (int i = 0; i < this.count; i++) {
+                Boid b = boids.get(i);
+                if (this.kinds != null) {
+                    b.setSpecies(this.species[i]);
+                    b.setSettings(flock.getSpecies(this.species[i]).getSettings());
+                }
+                b.getPosition().setX(this.state[4 * i]);
+                b.getPosition().setY(this.state[4 * i + 1]);
+                b.getVelocity().setX(this.state[4 * i + 2]);
+                b.getVelocity().setY(this.state[4 * i + 3]);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of frames.
+     *
+     * @return number of frames
+     */
+    public int getFrameCount() {
+        return this.frames;
+    }
+
+    /**
+     * Gets the index of the current frame.
+     *
+     * @return frame index, -1 before the first frame
+     */
+    public synchronized int getFrame() {
+        return this.frame;
+    }
+
+    /**
+     * Gets the simulation step of a frame.
+     *
+     * @param f frame index
+     * @return step number
+     */
+    public long getStep(int f) {
+        return this.steps[f];
+    }
+
+    /**
+     * Gets the number of boids in the current frame.
+     *
+     * @return number of boids
+     */
+    public synchronized int getBoidCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the keyframe interval used by the writer.
+     *
+     * @return keyframe interval
+     */
+    public int getKeyframeInterval() {
+        return this.keyframeInterval;
+    }
+
+    /**
+     * Gets the width of the recorded area.
+     *
+     * @return width
+     */
+    public int getAreaWidth() {
+        return this.areaWidth;
+    }
+
+    /**
+     * Gets the height of the recorded area.
+     *
+     * @return height
+     */
+    public int getAreaHeight() {
+        return this.areaHeight;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    public synchronized void close() throws IOException {
+        this.file.close();
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+
+/**
+ * Records a simulation into a replay file which {@link ReplayPlayer} can
+ * play back without simulating. Add the writer to a simulation with
+ * {@link Simulation#addStepListener(StepListener)}.
+ *
+ * Every K steps the positions and velocities of all boids are written as a
+ * keyframe. The steps in between are written as differences to the previous
+ * step, quantized to shorts. The differences are taken to the state the
+ * player will reconstruct, not to the exact state, so the rounding errors
+ * don't add up between keyframes. A boid whose difference doesn't fit in a
+ * short (for example when it wraps to the other side of the area) is written
+ * as a patch with its exact values. A keyframe is also written when the
+ * number of boids, the species of a boid or the number of species changes.
+ * Every keyframe has the species of the boids and the species block of the
+ * binary save file, so species added during the recording are played back.
+ *
+ * The layout of the file is (all numbers big-endian):
+ * <pre>
+ * header:   int magic 'RPLY', int format version, int keyframe interval,
+ *           float position quantum, float velocity quantum,
+ *           int area width, int area height
+ * keyframe: byte 1, long step, int count, count * (float x, y, velocity x, velocity y),
+ *           count * byte species, int species block length, species block
+ * delta:    byte 2, long step, int count, count * (short dx, dy, dvx, dvy),
+ *           int patches, patches * (int index, float x, y, velocity x, velocity y)
+ * </pre>
+ *
+ * Keyframes of format version 1 end after the velocities; all boids of such
+ * a replay are of the default species.
+ */
+public class ReplayWriter implements StepListener {
+    private FileOutputStream stream;
+    private BinaryOutput out;
+    private int keyframeInterval;
+    private int sinceKeyframe;
+    private float[] state; // reconstructed x, y, vx, vy of every boid
+    private int count;
+    private byte[] species; // species of the boids in the last keyframe
+    private int speciesCount;
+    private ByteArrayOutputStream speciesBytes; // the species block of a keyframe is written here first
+    private BinaryOutput speciesOut;
+    private int[] deltas;
+    private int[] patches;
+    private long frames;
+    private volatile IOException failure;
+
+    final static int MAGIC = 0x52504c59; // "RPLY"
+    final static int FORMAT_VERSION = 2;
+    final static int FORMAT_VERSION_WITHOUT_SPECIES = 1;
+    final static int HEADER_SIZE = 7 * 4;
+    final static byte KEYFRAME = 1;
+    final static byte DELTA = 2;
+    final static int FRAME_HEADER_SIZE = 1 + 8 + 4;
+    final static float POSITION_QUANTUM = 1.0f / 256; // 128 pixels per step at most
+    final static float VELOCITY_QUANTUM = 1.0f / 2048;
+    private final static int MAX_DELTA = Short.MAX_VALUE;
+
+    /**
+     * Creates a new writer. An existing file is overwritten.
+     *
+     * @param file the replay is written to this file
+     * @param settings the area size is taken from these settings
+     * @param keyframeInterval a keyframe is written at least every this many steps
+     * @throws IOException if the file can't be created
+     */
+    public ReplayWriter(File file, Settings settings, int keyframeInterval) throws IOException {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("The keyframe interval must be positive");
+        }
+        this.keyframeInterval = keyframeInterval;
+        this.sinceKeyframe = 0;
+        this.count = -1; // the first frame is a keyframe
+        this.state = new float[0];
+        this.species = new byte[0];
+        this.deltas = new int[0];
+        this.patches = new int[0];
+        this.frames = 0;
+        this.speciesBytes = new ByteArrayOutputStream();
+        this.speciesOut = new BinaryOutput(Channels.newChannel(this.speciesBytes));
+
+        this.stream = new FileOutputStream(file);
+        this.out = new BinaryOutput(this.stream.getChannel());
+        this.out.putInt(MAGIC);
+        this.out.putInt(FORMAT_VERSION);
+        this.out.putInt(keyframeInterval);
+        this.out.putFloat(POSITION_QUANTUM);
+        this.out.putFloat(VELOCITY_QUANTUM);
+        this.out.putInt(settings.getAreaWidth());
+        this.out.putInt(settings.getAreaHeight());
+    }
+
+    /**
+     * Writes the state after the step. If writing fails, the recording stops
+     * and the exception is thrown by {@link #close()}.
+     *
+     * @param sim simulation
+     */
+    public void stepCompleted(Simulation sim) {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            this.write(sim);
+        } catch (IOException e) {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Writes one frame.
+     *
+     * @param sim simulation
+     * @throws IOException if the write fails
+     */
+    private synchronized void write(Simulation sim) throws IOException {
+        if (this.out == null) {
+            return; // closed
+        }
+        Flock flock = sim.getFlock();
+        synchronized (flock) {
+            ArrayList<Boid> boids = flock.getBoids();
+            int n = boids.size();
+            if (n != this.count || this.sinceKeyframe + 1 >= this.keyframeInterval || this.isSpeciesChanged(flock)) {
+                this.writeKeyframe(sim.getStep(), flock);
+            } else {
+                this.writeDelta(sim.getStep(), boids);
+            }
+        }
+        this.frames++;
+    }
+
+    /**
+     * Checks whether the species have changed since the last keyframe.
+     *
+     * @param flock flock with as many boids as in the last keyframe
+     * @return true if a boid has another species or a species was added
+     */
+    private boolean isSpeciesChanged(Flock flock) {
+        if (flock.getSpeciesCount() != this.speciesCount) {
+            return true;
+        }
+        ArrayList<Boid> boids = flock.getBoids();
+        for (int i = 0; i < this.count; i++) {
+            if (boids.get(i).getSpecies() != this.species[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes a keyframe.
+     *
+     * @param step step number
+     * @param flock flock
+     * @throws IOException if the write fails
+     */
+    private void writeKeyframe(long step, Flock flock) throws IOException {
+        ArrayList<Boid> boids = flock.getBoids();
+        int n = boids.size();
+        if (this.state.length < 4 * n) {
+            this.state = new float[4 * n];
+            this.species = new byte[n];
+            this.deltas = new int[4 * n];
+            this.patches = new int[n];
+        }
+        this.out.putByte(KEYFRAME);
+        this.out.putLong(step);
+        this.out.putInt(n);
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            this.state[4 * i] = (float) b.getPosition().getX();
+            this.state[4 * i + 1] = (float) b.getPosition().getY();
+            this.state[4 * i + 2] = (float) b.getVelocity().getX();
+            this.state[4 * i + 3] = (float) b.getVelocity().getY();
+            for (int k = 0; k < 4; k++) {
+                this.out.putFloat(this.state[4 * i + k]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            this.species[i] = (byte) boids.get(i).getSpecies();
+            this.out.putByte(this.species[i]);
+        }
+        this.speciesBytes.reset();
+        BinarySaveFile.writeSpecies(flock, this.speciesOut);
+        this.speciesOut.flush();
+        this.out.putInt(this.speciesBytes.size());
+        this.out.putBytes(this.speciesBytes.toByteArray());
+        this.speciesCount = flock.getSpeciesCount();
+        this.count = n;
+        this.sinceKeyframe = 0;
+    }
+
+    /**
+     * Writes a delta frame. The reconstructed state is updated exactly like
+     * the player updates it.
+     *
+     * @param step step number
+     * @param boids boids, as many as in the previous frame
+     * @throws IOException if the write fails
+     */
+    private void writeDelta(long step, ArrayList<Boid> boids) throws IOException {
+        int n = this.count;
+        int patched = 0;
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            int dx = ReplayWriter.quantize(b.getPosition().getX() - this.state[4 * i], POSITION_QUANTUM);
+            int dy = ReplayWriter.quantize(b.getPosition().getY() - this.state[4 * i + 1], POSITION_QUANTUM);
+            int dvx = ReplayWriter.quantize(b.getVelocity().getX() - this.state[4 * i + 2], VELOCITY_QUANTUM);
+            int dvy = ReplayWriter.quantize(b.getVelocity().getY() - this.state[4 * i + 3], VELOCITY_QUANTUM);
+            if (Math.abs(dx) > MAX_DELTA || Math.abs(dy) > MAX_DELTA
+                    || Math.abs(dvx) > MAX_DELTA || Math.abs(dvy) > MAX_DELTA) {
+                this.patches[patched++] = i;
+                dx = dy = dvx = dvy = 0;
+                this.state[4 * i] = (float) b.getPosition().getX();
+                this.state[4 * i + 1] = (float) b.getPosition().getY();
+                this.state[4 * i + 2] = (float) b.getVelocity().getX();
+                this.state[4 * i + 3] = (float) b.getVelocity().getY();
+            } else {
+                ReplayWriter.apply(this.state, i, dx, dy, dvx, dvy);
+            }
+            this.deltas[4 * i] = dx;
+            this.deltas[4 * i + 1] = dy;
+            this.deltas[4 * i + 2] = dvx;
+            this.deltas[4 * i + 3] = dvy;
+        }
+
+        this.out.putByte(DELTA);
+        this.out.putLong(step);
+        this.out.putInt(n);
+        for (int i = 0; i < 4 * n; i++) {
+            this.out.putShort((short) this.deltas[i]);
+        }
+        this.out.putInt(patched);
+        for (int p = 0; p < patched; p++) {
+            int i = this.patches[p];
+            this.out.putInt(i);
+            for (int k = 0; k < 4; k++) {
+                this.out.putFloat(this.state[4 * i + k]);
+            }
+        }
+        this.sinceKeyframe++;
+    }
+
+    /**
+     * Quantizes a difference.
+     *
+     * @param difference difference
+     * @param quantum size of one step of the quantized value
+     * @return quantized difference, may be out of the range of a short
+     */
+    private static int quantize(double difference, float quantum) {
+        double q = Math.rint(difference / quantum);
+        return q > Integer.MAX_VALUE ? Integer.MAX_VALUE : q < -Integer.MAX_VALUE ? -Integer.MAX_VALUE : (int) q;
+    }
+
+    /**
+     * Applies quantized differences to a boid of a state. The writer and the
+     * player must use this same method, so that they get the same floats.
+     *
+     * @param state x, y, vx and vy of every boid
+     * @param i boid index
+     * @param dx quantized x difference
+     * @param dy quantized y difference
+     * @param dvx quantized velocity x difference
+     * @param dvy quantized velocity y difference
+     */
+    static void apply(float[] state, int i, int dx, int dy, int dvx, int dvy) {
+        state[4 * i] += dx * POSITION_QUANTUM;
+        state[4 * i + 1] += dy * POSITION_QUANTUM;
+        state[4 * i + 2] += dvx * VELOCITY_QUANTUM;
+        state[4 * i + 3] += dvy * VELOCITY_QUANTUM;
+    }
+
+    /**
+     * Gets the number of frames written so far.
+     *
+     * @return number of frames
+     */
+    public synchronized long getFrameCount() {
+        return this.frames;
+    }
+
+    /**
+     * Writes the buffered frames and closes the file. Remember to remove the
+     * writer from the simulation.
+     *
+     * @throws IOException if closing the file failed or writing a frame failed
+     */
+    public synchronized void close() throws IOException {
+        if (this.out == null) {
+            return;
+        }
+        try {
+            this.out.flush();
+        } finally {
+            this.out = null;
+            this.stream.close();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+}
@@ -32,6 +32,15 @@ public interface SaveFile {
      * @throws IOException throws an exception is thrown if the save is unsuccessful
      */
     public void saveSimulation(Simulation sim, File file) throws IOException;
+    
+    /**
+     * Saves the simulation to a file and reports the progress while saving.
+     * @param sim simulation to save
+     * @param file simulation is saved to this file
+     * @param progress receives the progress, may be null
+     * @throws IOException throws an exception is thrown if the save is unsuccessful
+     */
+    public void saveSimulation(Simulation sim, File file, SaveProgress progress) throws IOException;
 
     /**
      * Loads a simulation from the given file reader.
@@ -0,0 +1,42 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+
+/**
+ * An interface for objects which want to know when a simulation has been
+ * saved or loaded. Register listeners with
+ * {@link SaveMonitor#addListener(SaveListener)}.
+ */
+public interface SaveListener {
+
+    /**
+     * Called after a save or load operation, whether it succeeded or not.
+     * This is called from the thread which saved or loaded, so the listener
+     * should return quickly.
+     *
+     * @param operation {@link SaveMonitor#SAVE} or {@link SaveMonitor#LOAD}
+     * @param format save file which did the operation
+     * @param file file saved or loaded
+     * @param nanos duration in nanoseconds
+     * @param succeeded false if the operation threw an exception
+     */
+    public void saveCompleted(String operation, SaveFile format, File file, long nanos, boolean succeeded);
+
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reports the save and load operations of the save files as Flight
+ * Recorder events and to the registered save listeners. Every
+ * {@link SaveFile} implementation calls {@link #begin()} when an operation
+ * starts and {@link #end(SaveEvent, String, SaveFile, File, int, boolean)}
+ * when it ends, whether it succeeded or not.
+ */
+public class SaveMonitor {
+    /** Operation name of a save. */
+    public final static String SAVE = "save";
+    /** Operation name of a load. */
+    public final static String LOAD = "load";
+
+    private final static CopyOnWriteArrayList<SaveListener> listeners = new CopyOnWriteArrayList<SaveListener>();
+
+    /**
+     * This class has only static methods.
+     */
+    private SaveMonitor() {
+    }
+
+    /**
+     * Starts timing an operation.
+     *
+     * @return event which is ended with {@link #end(SaveEvent, String, SaveFile, File, int, boolean)}
+     */
+    static SaveEvent begin() {
+        SaveEvent event = new SaveEvent();
+        event.begin();
+        event.startNanos = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * Ends an operation, commits the event if Flight Recorder records it
+     * and notifies the save listeners.
+     *
+     * @param event event returned by {@link #begin()}
+     * @param operation {@link #SAVE} or {@link #LOAD}
+     * @param format save file which did the operation
+     * @param file file saved or loaded
+     * @param boids number of boids saved or loaded
+     * @param succeeded false if the operation threw an exception
+     */
+    static void end(SaveEvent event, String operation, SaveFile format, File file, int boids, boolean succeeded) {
+        long nanos = System.nanoTime() - event.startNanos;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.format = format.getClass().getSimpleName();
+            event.path = file.getPath();
+            event.bytes = file.length();
+            event.boids = boids;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+        for (SaveListener l : listeners) {
+            l.saveCompleted(operation, format, file, nanos, succeeded);
+        }
+    }
+
+    /**
+     * Adds a listener which is notified after every save and load.
+     *
+     * @param listener save listener
+     */
+    public static void addListener(SaveListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a save listener.
+     *
+     * @param listener save listener
+     */
+    public static void removeListener(SaveListener listener) {
+        listeners.remove(listener);
+    }
+
+}
@@ -64,6 +64,30 @@ public class Settings {
         this.reset();
     }
     
+    /**
+     * Creates a copy of the given settings.
+     * 
+     * @param other settings to copy
+     */
+    public Settings(Settings other) {
+        this.separationFactor = other.separationFactor;
+        this.alignmentFactor = other.alignmentFactor;
+        this.cohesionFactor = other.cohesionFactor;
+        this.wanderFactor = other.wanderFactor;
+        this.maxSpeed = other.maxSpeed;
+        this.maxForce = other.maxForce;
+        this.mass = other.mass;
+        this.viewAngle = other.viewAngle;
+        this.viewDistance = other.viewDistance;
+        this.avoidanceDistance = other.avoidanceDistance;
+        this.collisionThreshold = other.collisionThreshold;
+        this.borderAvoidanceFactor = other.borderAvoidanceFactor;
+        this.collisionAvoidanceThreshold = other.collisionAvoidanceThreshold;
+        this.areaWidth = other.areaWidth;
+        this.areaHeight = other.areaHeight;
+        this.wrapArea = other.wrapArea;
+    }
+    
     /**
      * Get the save file version. This is used to detect incompatible save
      * files.
@@ -122,6 +146,14 @@ public class Settings {
         return cohesionFactor;
     }
 
+    /**
+     * Sets the wander factor.
+     * @param wanderFactor factor
+     */
+    public void setWanderFactor(double wanderFactor) {
+        this.wanderFactor = wanderFactor;
+    }
+
     /**
      * Gets the wander factor.
      * @return wander factor
@@ -290,6 +322,14 @@ public class Settings {
         return borderAvoidanceFactor;
     }
     
+    /**
+     * Sets the collision avoidance factor.
+     * @param factor factor
+     */
+    public void setCollisionAvoidanceFactor(double factor) {
+        this.collisionAvoidanceThreshold = factor;
+    }
+    
     /**
      * Gets the collision avoidance factor.
      * @return factor
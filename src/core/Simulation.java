@@ -17,6 +17,7 @@
  */
 package core;
 
+import java.io.IOException;
 import java.util.Random;
 import java.util.Vector;
 
@@ -28,6 +29,12 @@ public class Simulation {
     private Random random;
     private Vector<Obstacle> obstacles;
     private Flock flock;
+    private long step;
+    private transient Vector<StepListener> stepListeners; // not saved
+    private transient volatile long lastStepNanos;
+    private transient volatile int checksumInterval; // 0 when no checksums are computed
+    private transient long checksum;
+    private transient long checksumStep;
     
     /**
      * Creates new simulation. Initializes the random number generator.
@@ -38,6 +45,36 @@ public class Simulation {
         this.random = new Random();
         this.flock = new Flock(this.random, this.settings);
         this.obstacles = new Vector<Obstacle>();
+        this.step = 0;
+        this.stepListeners = new Vector<StepListener>();
+    }
+    
+    /**
+     * Creates new simulation whose random number generator starts from the
+     * given seed. Two simulations created with the same seed and given the
+     * same boids and obstacles make the same steps.
+     * 
+     * @param seed seed of the random number generator
+     */
+    public Simulation(long seed) {
+        this(new Settings(), new Random(seed), 0);
+    }
+    
+    /**
+     * Creates an empty simulation with the given settings and random number
+     * generator. This is used when a simulation is loaded from a file.
+     * 
+     * @param settings settings
+     * @param random random number generator
+     * @param step step count
+     */
+    Simulation(Settings settings, Random random, long step) {
+        this.settings = settings;
+        this.random = random;
+        this.flock = new Flock(this.random, this.settings);
+        this.obstacles = new Vector<Obstacle>();
+        this.step = step;
+        this.stepListeners = new Vector<StepListener>();
     }
     
     /**
@@ -58,6 +95,38 @@ public class Simulation {
         return this.obstacles;
     }
     
+    /**
+     * Creates a copy of the simulation which shares no mutable objects with
+     * it. The copy is taken while holding the flock, so it is never taken in
+     * the middle of a step. The step listeners are not copied.
+     * 
+     * @return copy of the simulation
+     * @throws IOException if the random number generator can't be copied
+     */
+    public Simulation snapshot() throws IOException {
+        Flock flock = this.getFlock();
+        synchronized (flock) {
+            Settings s = new Settings(this.settings);
+            Random r = RandomState.of(this.random).toRandom();
+            Simulation copy = new Simulation(s, r, this.step);
+            synchronized (this.obstacles) {
+                for (Obstacle o : this.obstacles) {
+                    copy.obstacles.add(new Obstacle(o.getPosition().getX(), o.getPosition().getY(), o.getRadius()));
+                }
+            }
+            flock.copySpecies(copy.flock);
+            for (Boid b : flock.getBoids()) {
+                Vector2D position = new Vector2D(b.getPosition().getX(), b.getPosition().getY());
+                Vector2D velocity = new Vector2D(b.getVelocity().getX(), b.getVelocity().getY());
+                Vector2D force = new Vector2D(b.getForce().getX(), b.getForce().getY());
+                Boid c = new Boid(position, velocity, force, b.getWanderAngle(), copy.flock.getSpecies(b.getSpecies()).getSettings(), r);
+                c.setSpecies(b.getSpecies());
+                copy.flock.addBoid(c);
+            }
+            return copy;
+        }
+    }
+    
     /**
      * Gets the settings.
      * 
@@ -76,12 +145,154 @@ public class Simulation {
         return this.random;
     }
     
+    /**
+     * Gets the number of steps made since the simulation was created or reset.
+     * The count is changed while holding the flock, together with the boids.
+     * 
+     * @return step count
+     */
+    public long getStep() {
+        synchronized (this.flock) {
+            return this.step;
+        }
+    }
+    
+    /**
+     * Sets the step count. This is used when a simulation is loaded from a
+     * file.
+     * 
+     * @param step step count
+     */
+    void setStep(long step) {
+        synchronized (this.flock) {
+            this.step = step;
+        }
+    }
+    
     /**
      * Performs a single step in simulation, i.e. moves all boids according to
-     * rules.
+     * rules. If checksums are on, the checksum of the state is computed after
+     * the boids have moved, before the flock is released. The step listeners are notified after that. The
+     * step is reported to Flight Recorder as a {@link StepEvent}.
      */
     public void makeStep() {
-        this.flock.updateBoids(this.obstacles);
+        StepEvent event = new StepEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long step;
+        long sum = 0;
+        boolean summed = false;
+        synchronized (this.flock) {
+            this.flock.updateBoids(this.obstacles);
+            step = ++this.step;
+            this.lastStepNanos = System.nanoTime() - start;
+            int interval = this.checksumInterval;
+            if (interval > 0 && step % interval == 0) {
+                sum = StateChecksum.compute(this.flock);
+                summed = true;
+            }
+        }
+        if (summed) {
+            synchronized (this) {
+                this.checksum = sum;
+                this.checksumStep = step;
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.step = step;
+            event.boids = this.flock.getSize();
+            event.neighbourPairs = this.flock.getNeighbourPairs();
+            event.commit();
+        }
+        
+        Vector<StepListener> listeners = this.getStepListeners();
+        synchronized (listeners) {
+            for (StepListener l : listeners) {
+                l.stepCompleted(this);
+            }
+        }
+    }
+    
+    /**
+     * Gets how long the last step took, without the step listeners.
+     * 
+     * @return duration in nanoseconds
+     */
+    public long getLastStepNanos() {
+        return this.lastStepNanos;
+    }
+    
+    /**
+     * Computes a {@link StateChecksum} of the boids after every given number
+     * of steps. Comparing the checksums of two runs finds the step where
+     * they went apart.
+     * 
+     * @param steps steps between checksums, 0 to stop computing them
+     */
+    public void setChecksumInterval(int steps) {
+        if (steps < 0) {
+            throw new IllegalArgumentException("The checksum interval can't be negative");
+        }
+        this.checksumInterval = steps;
+    }
+    
+    /**
+     * Gets the number of steps between checksums.
+     * 
+     * @return steps, 0 if no checksums are computed
+     */
+    public int getChecksumInterval() {
+        return this.checksumInterval;
+    }
+    
+    /**
+     * Gets the last computed checksum.
+     * 
+     * @return checksum, 0 if none has been computed
+     */
+    public synchronized long getChecksum() {
+        return this.checksum;
+    }
+    
+    /**
+     * Gets the step of the last computed checksum.
+     * 
+     * @return step, 0 if no checksum has been computed
+     */
+    public synchronized long getChecksumStep() {
+        return this.checksumStep;
+    }
+    
+    /**
+     * Adds a listener which is notified after every step.
+     * 
+     * @param listener step listener
+     */
+    public void addStepListener(StepListener listener) {
+        this.getStepListeners().add(listener);
+    }
+    
+    /**
+     * Removes a step listener.
+     * 
+     * @param listener step listener
+     */
+    public void removeStepListener(StepListener listener) {
+        this.getStepListeners().remove(listener);
+    }
+    
+    /**
+     * Gets the step listeners. The listeners are not saved, so the list is
+     * created here if the simulation was loaded from a file.
+     * 
+     * @return step listeners
+     */
+    private synchronized Vector<StepListener> getStepListeners() {
+        if (this.stepListeners == null) {
+            this.stepListeners = new Vector<StepListener>();
+        }
+        return this.stepListeners;
     }
 
     /**
@@ -92,6 +303,7 @@ public class Simulation {
         this.settings.reset();
         this.flock.removeBoids(this.flock.getSize());
         this.obstacles.clear();
+        this.step = 0;
     }
 
     /**
@@ -0,0 +1,316 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects telemetry of a running simulation and formats it in the
+ * Prometheus text exposition format. Add the metrics to a simulation with
+ * {@link Simulation#addStepListener(StepListener)} and to the save monitor
+ * with {@link SaveMonitor#addListener(SaveListener)}.
+ *
+ * The values are kept in atomic variables, so the step loop updates them
+ * without locks and {@link #expose()} can be called from any thread, for
+ * example from an HTTP server. The values of one step may be read half
+ * updated, which doesn't matter for monitoring.
+ */
+public class SimulationMetrics implements StepListener, SaveListener {
+    private AtomicLong steps;
+    private AtomicLong neighbourPairs;
+    private AtomicLong flockSize;
+    private volatile Simulation sim; // the obstacles are counted when the metrics are read
+    private AtomicLong neighboursMean; // bits of a double
+    private AtomicLong neighboursMax;
+    private AtomicLong stepRate; // bits of a double
+    private AtomicLong rateWindowStart;
+    private AtomicLong rateWindowSteps;
+    private LatencyBuckets stepDurations;
+    private LatencyBuckets saveDurations;
+    private LatencyBuckets loadDurations;
+    private AtomicLong saveFailures;
+    private AtomicLong loadFailures;
+    private AtomicLong savedBytes;
+    private AtomicLong loadedBytes;
+
+    private final static long RATE_WINDOW = 1000000000L; // nanoseconds
+    private final static double[] STEP_BUCKETS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1 };
+    private final static double[] SAVE_BUCKETS = {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30 };
+
+    /**
+     * Creates metrics with all values zero.
+     */
+    public SimulationMetrics() {
+        this.steps = new AtomicLong();
+        this.neighbourPairs = new AtomicLong();
+        this.flockSize = new AtomicLong();
+        this.neighboursMean = new AtomicLong(Double.doubleToLongBits(0));
+        this.neighboursMax = new AtomicLong();
+        this.stepRate = new AtomicLong(Double.doubleToLongBits(0));
+        this.rateWindowStart = new AtomicLong(System.nanoTime());
+        this.rateWindowSteps = new AtomicLong();
+        this.stepDurations = new LatencyBuckets(STEP_BUCKETS);
+        this.saveDurations = new LatencyBuckets(SAVE_BUCKETS);
+        this.loadDurations = new LatencyBuckets(SAVE_BUCKETS);
+        this.saveFailures = new AtomicLong();
+        this.loadFailures = new AtomicLong();
+        this.savedBytes = new AtomicLong();
+        this.loadedBytes = new AtomicLong();
+    }
+
+    /**
+     * Records the step. The statistics are read from the flock without
+     * locking it.
+     *
+     * @param sim simulation
+     */
+    public void stepCompleted(Simulation sim) {
+        this.steps.incrementAndGet();
+        this.stepDurations.record(sim.getLastStepNanos());
+
+        Flock flock = sim.getFlock();
+        int n = flock.getSteppedBoids();
+        this.flockSize.set(n);
+        this.neighboursMean.set(Double.doubleToLongBits(n == 0 ? 0 : (double) flock.getNeighbourSum() / n));
+        this.neighboursMax.set(flock.getNeighbourMax());
+        this.neighbourPairs.addAndGet(flock.getNeighbourPairs());
+        this.sim = sim;
+
+        long now = System.nanoTime();
+        long windowSteps = this.rateWindowSteps.incrementAndGet();
+        long elapsed = now - this.rateWindowStart.get();
+        if (elapsed >= RATE_WINDOW) {
+            this.stepRate.set(Double.doubleToLongBits(windowSteps / (elapsed / 1e9)));
+            this.rateWindowStart.set(now);
+            this.rateWindowSteps.set(0);
+        }
+    }
+
+    /**
+     * Records a save or load.
+     *
+     * @param operation {@link SaveMonitor#SAVE} or {@link SaveMonitor#LOAD}
+     * @param format save file which did the operation
+     * @param file file saved or loaded
+     * @param nanos duration in nanoseconds
+     * @param succeeded false if the operation threw an exception
+     */
+    public void saveCompleted(String operation, SaveFile format, File file, long nanos, boolean succeeded) {
+        boolean save = SaveMonitor.SAVE.equals(operation);
+        if (!succeeded) {
+            (save ? this.saveFailures : this.loadFailures).incrementAndGet();
+            return;
+        }
+        (save ? this.saveDurations : this.loadDurations).record(nanos);
+        (save ? this.savedBytes : this.loadedBytes).addAndGet(file.length());
+    }
+
+    /**
+     * Gets the number of steps recorded.
+     *
+     * @return number of steps
+     */
+    public long getSteps() {
+        return this.steps.get();
+    }
+
+    /**
+     * Formats the metrics and the memory and garbage collection state of
+     * the virtual machine in the Prometheus text exposition format.
+     *
+     * @return metrics text
+     */
+    public String expose() {
+        StringBuilder s = new StringBuilder();
+        SimulationMetrics.counter(s, "boids_steps_total", "Simulation steps made.", this.steps.get());
+        SimulationMetrics.gauge(s, "boids_step_rate", "Steps per second over the last second.",
+                Double.longBitsToDouble(this.stepRate.get()));
+        this.stepDurations.expose(s, "boids_step_duration_seconds", "Time of moving the flock by one step.", null);
+        SimulationMetrics.gauge(s, "boids_flock_size", "Number of boids.", this.flockSize.get());
+        Simulation last = this.sim;
+        SimulationMetrics.gauge(s, "boids_obstacles", "Number of obstacles.", last == null ? 0 : last.getObstacles().size());
+        SimulationMetrics.gauge(s, "boids_neighbours_mean", "Mean number of neighbours per boid in the last step.",
+                Double.longBitsToDouble(this.neighboursMean.get()));
+        SimulationMetrics.gauge(s, "boids_neighbours_max", "Largest number of neighbours of a boid in the last step.",
+                this.neighboursMax.get());
+        SimulationMetrics.counter(s, "boids_neighbour_pairs_total", "Boid pairs checked while finding neighbours.",
+                this.neighbourPairs.get());
+
+        String help = "Time of saving or loading a simulation.";
+        this.saveDurations.expose(s, "boids_save_duration_seconds", help, "operation=\"save\"");
+        this.loadDurations.expose(s, "boids_save_duration_seconds", null, "operation=\"load\"");
+        s.append("# HELP boids_save_bytes_total Bytes saved or loaded.\n# TYPE boids_save_bytes_total counter\n");
+        s.append("boids_save_bytes_total{operation=\"save\"} ").append(this.savedBytes.get()).append('\n');
+        s.append("boids_save_bytes_total{operation=\"load\"} ").append(this.loadedBytes.get()).append('\n');
+        s.append("# HELP boids_save_failures_total Failed saves or loads.\n# TYPE boids_save_failures_total counter\n");
+        s.append("boids_save_failures_total{operation=\"save\"} ").append(this.saveFailures.get()).append('\n');
+        s.append("boids_save_failures_total{operation=\"load\"} ").append(this.loadFailures.get()).append('\n');
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        s.append("# HELP jvm_memory_bytes_used Used memory.\n# TYPE jvm_memory_bytes_used gauge\n");
+        s.append("jvm_memory_bytes_used{area=\"heap\"} ").append(heap.getUsed()).append('\n');
+        s.append("jvm_memory_bytes_used{area=\"nonheap\"} ").append(nonHeap.getUsed()).append('\n');
+        s.append("# HELP jvm_memory_bytes_committed Committed memory.\n# TYPE jvm_memory_bytes_committed gauge\n");
+        s.append("jvm_memory_bytes_committed{area=\"heap\"} ").append(heap.getCommitted()).append('\n');
+        s.append("jvm_memory_bytes_committed{area=\"nonheap\"} ").append(nonHeap.getCommitted()).append('\n');
+        SimulationMetrics.gauge(s, "jvm_memory_heap_max_bytes", "Largest possible heap, -1 if undefined.", heap.getMax());
+        long gcTime = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean c : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, c.getCollectionTime());
+            gcCount += Math.max(0, c.getCollectionCount());
+        }
+        SimulationMetrics.counter(s, "jvm_gc_collection_seconds_total", "Time spent in garbage collection.", gcTime / 1e3);
+        SimulationMetrics.counter(s, "jvm_gc_collections_total", "Garbage collections.", gcCount);
+        return s.toString();
+    }
+
+    /**
+     * Appends a counter.
+     *
+     * @param s text
+     * @param name metric name
+     * @param help description
+     * @param value value
+     */
+    private static void counter(StringBuilder s, String name, String help, double value) {
+        SimulationMetrics.metric(s, name, "counter", help, value);
+    }
+
+    /**
+     * Appends a gauge.
+     *
+     * @param s text
+     * @param name metric name
+     * @param help description
+     * @param value value
+     */
+    private static void gauge(StringBuilder s, String name, String help, double value) {
+        SimulationMetrics.metric(s, name, "gauge", help, value);
+    }
+
+    /**
+     * Appends a metric without labels.
+     *
+     * @param s text
+     * @param name metric name
+     * @param type metric type
+     * @param help description
+     * @param value value
+     */
+    private static void metric(StringBuilder s, String name, String type, String help, double value) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        s.append(name).append(' ').append(SimulationMetrics.format(value)).append('\n');
+    }
+
+    /**
+     * Formats a number in plain decimal notation, without trailing zeros.
+     *
+     * @param value value
+     * @return text
+     */
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * A histogram of durations with fixed bucket bounds in seconds, updated
+     * with atomic operations.
+     */
+    private static class LatencyBuckets {
+        private double[] bounds;
+        private long[] boundNanos;
+        private AtomicLongArray counts; // one more than bounds, the last is +Inf
+        private AtomicLong sum;
+
+        /**
+         * The constructor.
+         *
+         * @param bounds upper bounds of the buckets in seconds, ascending
+         */
+        public LatencyBuckets(double[] bounds) {
+            this.bounds = bounds;
+            this.boundNanos = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                this.boundNanos[i] = Math.round(bounds[i] * 1e9);
+            }
+            this.counts = new AtomicLongArray(bounds.length + 1);
+            this.sum = new AtomicLong();
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param nanos duration in nanoseconds
+         */
+        public void record(long nanos) {
+            int i = 0;
+            while (i < this.boundNanos.length && nanos > this.boundNanos[i]) {
+                i++;
+            }
+            this.counts.incrementAndGet(i);
+            this.sum.addAndGet(nanos);
+        }
+
+        /**
+         * Appends the histogram. The buckets are cumulative as the format
+         * requires.
+         *
+         * @param s text
+         * @param name metric name
+         * @param help description, or null if the header was already written
+         * @param labels labels without braces, may be null
+         */
+        public void expose(StringBuilder s, String name, String help, String labels) {
+            if (help != null) {
+                s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                s.append("# TYPE ").append(name).append(" histogram\n");
+            }
+            String prefix = labels == null ? "" : labels + ",";
+            String suffix = labels == null ? "" : "{" + labels + "}";
+            long cumulative = 0;
+            for (int i = 0; i <= this.bounds.length; i++) {
+                cumulative += this.counts.get(i);
+                String le = i < this.bounds.length ? SimulationMetrics.format(this.bounds[i]) : "+Inf";
+                s.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            s.append(name).append("_sum").append(suffix).append(' ')
+                    .append(SimulationMetrics.format(this.sum.get() / 1e9)).append('\n');
+            s.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+}
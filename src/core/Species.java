@@ -0,0 +1,182 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+/**
+ * A kind of boid with its own steering settings. Every species of a flock
+ * shares the same neighbour index; what a boid does with the boids of
+ * another species is given by an {@link Interaction}. A boid follows the
+ * boids it sees with all the rules, keeps its distance from the boids it
+ * avoids with the separation rule only and doesn't see the boids it
+ * ignores at all.
+ *
+ * The interactions are kept as bitmasks over the species numbers, so the
+ * boids of ignored species are left out of the neighbour search with one
+ * bit test. A flock can have at most {@link #MAX_SPECIES} species.
+ */
+public class Species {
+    /**
+     * What the boids of a species do with the boids of another species.
+     */
+    public enum Interaction {
+        /** The other boids are not seen. */
+        IGNORE,
+        /** The other boids are kept away from, with the separation rule only. */
+        AVOID,
+        /** The other boids are flocked with, like the own species. */
+        FOLLOW
+    }
+
+    private int id;
+    private String name;
+    private Settings settings;
+    private int followMask;
+    private int avoidMask;
+
+    public final static int MAX_SPECIES = 32;
+
+    /**
+     * Creates a species which follows every species.
+     *
+     * @param id number of the species in its flock
+     * @param name name
+     * @param settings steering settings of the boids
+     */
+    Species(int id, String name, Settings settings) {
+        this.id = id;
+        this.name = name;
+        this.settings = settings;
+        this.followMask = -1;
+        this.avoidMask = 0;
+    }
+
+    /**
+     * Creates a copy of a species with other settings.
+     *
+     * @param other species to copy
+     * @param settings settings of the copy
+     */
+    Species(Species other, Settings settings) {
+        this(other.id, other.name, settings);
+        this.followMask = other.followMask;
+        this.avoidMask = other.avoidMask;
+    }
+
+    /**
+     * Gets the number of the species in its flock.
+     *
+     * @return number between 0 and MAX_SPECIES - 1
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the steering settings of the boids of this species.
+     *
+     * @return settings
+     */
+    public Settings getSettings() {
+        return this.settings;
+    }
+
+    /**
+     * Sets the steering settings. This is used for the default species when
+     * a simulation is loaded from a file.
+     *
+     * @param settings settings
+     */
+    void setSettings(Settings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Sets what the boids of this species do with the boids of another
+     * species.
+     *
+     * @param other number of the other species, may be this one
+     * @param interaction interaction
+     */
+    void setInteraction(int other, Interaction interaction) {
+        int bit = 1 << other;
+        this.followMask = interaction == Interaction.FOLLOW ? this.followMask | bit : this.followMask & ~bit;
+        this.avoidMask = interaction == Interaction.AVOID ? this.avoidMask | bit : this.avoidMask & ~bit;
+    }
+
+    /**
+     * Gets what the boids of this species do with the boids of another
+     * species.
+     *
+     * @param other number of the other species
+     * @return interaction
+     */
+    public Interaction getInteraction(int other) {
+        int bit = 1 << other;
+        return (this.followMask & bit) != 0 ? Interaction.FOLLOW
+                : (this.avoidMask & bit) != 0 ? Interaction.AVOID : Interaction.IGNORE;
+    }
+
+    /**
+     * Sets the interactions with every species at once. This is used when a
+     * flock is loaded from a file.
+     *
+     * @param followMask a bit for every followed species
+     * @param avoidMask a bit for every avoided species
+     */
+    void setMasks(int followMask, int avoidMask) {
+        this.followMask = followMask;
+        this.avoidMask = avoidMask & ~followMask;
+    }
+
+    /**
+     * Gets the species the boids of this species follow.
+     *
+     * @return a bit for every followed species
+     */
+    int getFollowMask() {
+        return this.followMask;
+    }
+
+    /**
+     * Gets the species the boids of this species see.
+     *
+     * @return a bit for every followed or avoided species
+     */
+    int getVisibleMask() {
+        return this.followMask | this.avoidMask;
+    }
+
+    /**
+     * Gets the species the boids of this species avoid.
+     *
+     * @return a bit for every avoided species
+     */
+    int getAvoidMask() {
+        return this.avoidMask;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.util.ArrayList;
+
+/**
+ * Computes a hash of the state of the boids which does not depend on the
+ * order of the boids in the flock. The position, velocity and wander angle
+ * of every boid are quantized and mixed with the species of the boid into a
+ * 64-bit hash, and the hashes of the boids are added together.
+ *
+ * Two runs which give the same checksum for a step have the same boids up
+ * to the quantum, so comparing the checksums of two runs step by step
+ * finds the first step where they went apart. Values which are very close
+ * to a rounding boundary may round differently even if they differ only in
+ * the last bits; such a run differs from the other only a step or two
+ * earlier than the checksums show.
+ */
+public class StateChecksum {
+    private final static double QUANTUM = 1.0 / 1024;
+    private final static long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    /**
+     * Computes the checksum of the boids of a flock.
+     *
+     * @param flock flock
+     * @return checksum
+     */
+    public static long compute(Flock flock) {
+        synchronized (flock) {
+            ArrayList<Boid> boids = flock.getBoids();
+            long sum = 0;
+            for (int i = 0; i < boids.size(); i++) {
+                Boid b = boids.get(i);
+                long h = StateChecksum.mix(StateChecksum.quantize(b.getPosition().getX()));
+                h = StateChecksum.mix(h + StateChecksum.quantize(b.getPosition().getY()));
+                h = StateChecksum.mix(h + StateChecksum.quantize(b.getVelocity().getX()));
+                h = StateChecksum.mix(h + StateChecksum.quantize(b.getVelocity().getY()));
+                h = StateChecksum.mix(h + StateChecksum.quantize(b.getWanderAngle()));
+                h = StateChecksum.mix(h + b.getSpecies());
+                sum += h;
+            }
+            return StateChecksum.mix(sum + boids.size());
+        }
+    }
+
+    /**
+     * Formats a checksum as 16 hexadecimal digits.
+     *
+     * @param checksum checksum
+     * @return text
+     */
+    public static String format(long checksum) {
+        return String.format("%016x", checksum);
+    }
+
+    /**
+     * Quantizes a value.
+     *
+     * @param value value
+     * @return value in quanta
+     */
+    private static long quantize(double value) {
+        return Double.isNaN(value) ? NOT_A_NUMBER : Math.round(value / QUANTUM);
+    }
+
+    /**
+     * Mixes the bits of a number (the finalizer of SplitMix64).
+     *
+     * @param z number
+     * @return mixed number
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for one simulation step. The duration of the
+ * event is the time the flock took to move, without the step listeners.
+ */
+@Name("boids.Step")
+@Label("Simulation Step")
+@Category("Boids")
+@Description("Moving all boids of a flock by one step")
+@StackTrace(false)
+class StepEvent extends Event {
+    @Label("Step")
+    long step;
+
+    @Label("Boids")
+    int boids;
+
+    @Label("Neighbour Pairs Evaluated")
+    @Description("Number of boid pairs whose distance was checked while finding neighbours")
+    long neighbourPairs;
+}
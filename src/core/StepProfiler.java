@@ -0,0 +1,460 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures how long the phases of a simulation step take. Set a profiler
+ * to a flock with {@link Flock#setProfiler(StepProfiler)}; when the flock
+ * has no profiler, the steps are not measured at all.
+ *
+ * During a step the times of each phase are summed over all boids. At the
+ * end of the step the sums are recorded into a histogram for every phase,
+ * so the percentiles tell how much time a phase takes per step. Only one
+ * flock may use a profiler at a time. The results can be read from any
+ * thread.
+ *
+ * A profiler can also count the bytes the simulation thread allocates in
+ * each phase, using the per-thread allocation counter of the virtual
+ * machine, and the garbage collections during each step. A step which
+ * allocates more than the allocation budget is flagged.
+ */
+public class StepProfiler {
+
+    /**
+     * The measured phases of a step.
+     */
+    public enum Phase {
+        /** Building the neighbour index and collecting the candidates of a boid. */
+        INDEX,
+        /** Finding the neighbours of a boid. */
+        NEIGHBOURS,
+        /** The separation rule. */
+        SEPARATION,
+        /** The alignment rule. */
+        ALIGNMENT,
+        /** The cohesion rule. */
+        COHESION,
+        /** Avoiding the area borders. */
+        BORDERS,
+        /** Avoiding the obstacles. */
+        OBSTACLE_AVOIDANCE,
+        /** Wandering. */
+        WANDER,
+        /** Moving the boid and checking obstacle collisions. */
+        UPDATE_POSITION,
+        /** The whole step. */
+        STEP
+    }
+
+    private final static Phase[] PHASES = Phase.values();
+
+    private long[] stepNanos; // written only by the simulation thread
+    private long[] stepCalls;
+    private long stepNeighbours;
+    private long[] totalNanos;
+    private long[] totalCalls;
+    private long neighbours;
+    private Histogram[] histograms;
+    private long steps;
+    private com.sun.management.ThreadMXBean allocations; // null if allocations are not counted
+    private List<GarbageCollectorMXBean> collectors;
+    private long lastBytes;
+    private long stepStartBytes;
+    private long stepStartGcCount;
+    private long stepStartGcTime;
+    private long[] stepBytes;
+    private long[] totalBytes;
+    private Histogram[] byteHistograms;
+    private long budget;
+    private long overBudget;
+    private boolean lastOverBudget;
+    private long lastStepBytes;
+    private long gcSteps;
+    private long gcTime;
+
+    /**
+     * Creates a profiler which measures only time.
+     */
+    public StepProfiler() {
+        this(false);
+    }
+
+    /**
+     * Creates a profiler. Allocations are counted only if the virtual
+     * machine supports per-thread allocation counters.
+     *
+     * @param countAllocations true counts the allocated bytes of each phase
+     */
+    public StepProfiler(boolean countAllocations) {
+        this.stepNanos = new long[PHASES.length];
+        this.stepCalls = new long[PHASES.length];
+        this.totalNanos = new long[PHASES.length];
+        this.totalCalls = new long[PHASES.length];
+        this.histograms = new Histogram[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            this.histograms[i] = new Histogram();
+        }
+        this.stepBytes = new long[PHASES.length];
+        this.totalBytes = new long[PHASES.length];
+        this.byteHistograms = new Histogram[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            this.byteHistograms[i] = new Histogram();
+        }
+        this.budget = Long.MAX_VALUE;
+        if (countAllocations && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                this.allocations = threads;
+                this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated.
+     *
+     * @return bytes
+     */
+    private long allocatedBytes() {
+        return this.allocations.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * Starts a step if there is a profiler.
+     *
+     * @param profiler profiler, may be null
+     * @return the current time, or 0 if there is no profiler
+     */
+    static long beginStep(StepProfiler profiler) {
+        if (profiler != null && profiler.allocations != null) {
+            long count = 0;
+            long time = 0;
+            for (GarbageCollectorMXBean c : profiler.collectors) {
+                count += Math.max(0, c.getCollectionCount());
+                time += Math.max(0, c.getCollectionTime());
+            }
+            profiler.stepStartGcCount = count;
+            profiler.stepStartGcTime = time;
+            profiler.stepStartBytes = profiler.allocatedBytes();
+        }
+        return StepProfiler.start(profiler);
+    }
+
+    /**
+     * Starts timing if there is a profiler.
+     *
+     * @param profiler profiler, may be null
+     * @return the current time, or 0 if there is no profiler
+     */
+    static long start(StepProfiler profiler) {
+        if (profiler == null) {
+            return 0;
+        }
+        if (profiler.allocations != null) {
+            profiler.lastBytes = profiler.allocatedBytes();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since the last lap to a phase if there is a profiler.
+     *
+     * @param profiler profiler, may be null
+     * @param phase phase which has ended
+     * @param start the time returned by the last lap or start
+     * @return the current time, or 0 if there is no profiler
+     */
+    static long lap(StepProfiler profiler, Phase phase, long start) {
+        if (profiler == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        profiler.stepNanos[phase.ordinal()] += now - start;
+        profiler.stepCalls[phase.ordinal()]++;
+        if (profiler.allocations != null) {
+            long bytes = profiler.allocatedBytes();
+            profiler.stepBytes[phase.ordinal()] += bytes - profiler.lastBytes;
+            profiler.lastBytes = bytes;
+        }
+        return now;
+    }
+
+    /**
+     * Counts neighbours found by a boid.
+     *
+     * @param n number of neighbours
+     */
+    void countNeighbours(int n) {
+        this.stepNeighbours += n;
+    }
+
+    /**
+     * Ends a step. The phase times of the step are added to the totals and
+     * the histograms. If allocations are counted, the bytes of the whole
+     * step are compared to the budget.
+     *
+     * @param start the time returned by {@link #beginStep(StepProfiler)}
+     */
+    synchronized void endStep(long start) {
+        StepProfiler.lap(this, Phase.STEP, start);
+        if (this.allocations != null) {
+            int step = Phase.STEP.ordinal();
+            this.stepBytes[step] = this.allocatedBytes() - this.stepStartBytes;
+            this.lastStepBytes = this.stepBytes[step];
+            this.lastOverBudget = this.lastStepBytes > this.budget;
+            if (this.lastOverBudget) {
+                this.overBudget++;
+            }
+            long count = 0;
+            long time = 0;
+            for (GarbageCollectorMXBean c : this.collectors) {
+                count += Math.max(0, c.getCollectionCount());
+                time += Math.max(0, c.getCollectionTime());
+            }
+            if (count > this.stepStartGcCount) {
+                this.gcSteps++;
+                this.gcTime += time - this.stepStartGcTime;
+            }
+        }
+        for (int i = 0; i < PHASES.length; i++) {
+            this.totalNanos[i] += this.stepNanos[i];
+            this.totalCalls[i] += this.stepCalls[i];
+            this.histograms[i].record(this.stepNanos[i]);
+            this.stepNanos[i] = 0;
+            this.stepCalls[i] = 0;
+            if (this.allocations != null) {
+                this.totalBytes[i] += this.stepBytes[i];
+                this.byteHistograms[i].record(this.stepBytes[i]);
+                this.stepBytes[i] = 0;
+            }
+        }
+        this.neighbours += this.stepNeighbours;
+        this.stepNeighbours = 0;
+        this.steps++;
+    }
+
+    /**
+     * Tells whether allocations are counted.
+     *
+     * @return true if allocations are counted
+     */
+    public boolean isCountingAllocations() {
+        return this.allocations != null;
+    }
+
+    /**
+     * Sets the largest number of bytes a step may allocate before it is
+     * flagged.
+     *
+     * @param bytes budget in bytes, Long.MAX_VALUE for no budget
+     */
+    public synchronized void setAllocationBudget(long bytes) {
+        this.budget = bytes;
+    }
+
+    /**
+     * Gets the allocation budget.
+     *
+     * @return budget in bytes, Long.MAX_VALUE if there is no budget
+     */
+    public synchronized long getAllocationBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Gets the total number of bytes allocated in a phase.
+     *
+     * @param phase phase
+     * @return bytes, 0 if allocations are not counted
+     */
+    public synchronized long getTotalBytes(Phase phase) {
+        return this.totalBytes[phase.ordinal()];
+    }
+
+    /**
+     * Gets a percentile of the bytes a phase allocates per step.
+     *
+     * @param phase phase
+     * @param percentile percentile between 0 and 100
+     * @return bytes, 0 if allocations are not counted
+     */
+    public synchronized long getBytesPercentile(Phase phase, double percentile) {
+        return this.byteHistograms[phase.ordinal()].getPercentile(percentile);
+    }
+
+    /**
+     * Gets the bytes allocated by the last step.
+     *
+     * @return bytes, 0 if allocations are not counted
+     */
+    public synchronized long getLastStepBytes() {
+        return this.lastStepBytes;
+    }
+
+    /**
+     * Tells whether the last step allocated more than the budget.
+     *
+     * @return true if the last step was over the budget
+     */
+    public synchronized boolean isLastStepOverBudget() {
+        return this.lastOverBudget;
+    }
+
+    /**
+     * Gets the number of steps which allocated more than the budget.
+     *
+     * @return number of steps
+     */
+    public synchronized long getOverBudgetSteps() {
+        return this.overBudget;
+    }
+
+    /**
+     * Gets the number of steps during which garbage was collected.
+     *
+     * @return number of steps, 0 if allocations are not counted
+     */
+    public synchronized long getGcSteps() {
+        return this.gcSteps;
+    }
+
+    /**
+     * Gets the garbage collection time during the measured steps.
+     *
+     * @return milliseconds, 0 if allocations are not counted
+     */
+    public synchronized long getGcMillis() {
+        return this.gcTime;
+    }
+
+    /**
+     * Gets the number of measured steps.
+     *
+     * @return number of steps
+     */
+    public synchronized long getSteps() {
+        return this.steps;
+    }
+
+    /**
+     * Gets the total time of a phase.
+     *
+     * @param phase phase
+     * @return time in nanoseconds
+     */
+    public synchronized long getTotalNanos(Phase phase) {
+        return this.totalNanos[phase.ordinal()];
+    }
+
+    /**
+     * Gets how many times a phase has been measured. The rules are measured
+     * once per boid and the whole step once per step.
+     *
+     * @param phase phase
+     * @return number of calls
+     */
+    public synchronized long getCalls(Phase phase) {
+        return this.totalCalls[phase.ordinal()];
+    }
+
+    /**
+     * Gets a percentile of the time a phase takes per step.
+     *
+     * @param phase phase
+     * @param percentile percentile between 0 and 100
+     * @return time in nanoseconds
+     */
+    public synchronized long getPercentile(Phase phase, double percentile) {
+        return this.histograms[phase.ordinal()].getPercentile(percentile);
+    }
+
+    /**
+     * Gets the total number of neighbours found by all boids.
+     *
+     * @return number of neighbours
+     */
+    public synchronized long getNeighbours() {
+        return this.neighbours;
+    }
+
+    /**
+     * Removes all measurements.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            this.totalNanos[i] = 0;
+            this.totalCalls[i] = 0;
+            this.histograms[i].reset();
+            this.totalBytes[i] = 0;
+            this.byteHistograms[i].reset();
+        }
+        this.neighbours = 0;
+        this.steps = 0;
+        this.overBudget = 0;
+        this.lastOverBudget = false;
+        this.gcSteps = 0;
+        this.gcTime = 0;
+    }
+
+    /**
+     * Formats the measurements as a table with the share of the step time
+     * and the mean, median, 90th and 99th percentile and maximum per step of
+     * every phase. The times are in microseconds. If allocations are
+     * counted, the mean and 99th percentile of the kilobytes allocated per
+     * step are added, followed by the budget and garbage collection totals.
+     *
+     * @return report
+     */
+    public synchronized String report() {
+        StringBuilder s = new StringBuilder();
+        boolean bytes = this.allocations != null;
+        long total = Math.max(1, this.totalNanos[Phase.STEP.ordinal()]);
+        s.append(String.format("%d steps, %.1f neighbours per boid%n", this.steps,
+                this.totalCalls[Phase.NEIGHBOURS.ordinal()] == 0 ? 0.0
+                        : (double) this.neighbours / this.totalCalls[Phase.NEIGHBOURS.ordinal()]));
+        s.append(String.format("%-20s %12s %7s %10s %10s %10s %10s %10s",
+                "phase", "calls", "share", "mean", "p50", "p90", "p99", "max"));
+        s.append(bytes ? String.format(" %10s %10s%n", "KB mean", "KB p99") : String.format("%n"));
+        for (int i = 0; i < PHASES.length; i++) {
+            Histogram h = this.histograms[i];
+            s.append(String.format("%-20s %12d %6.1f%% %10.1f %10.1f %10.1f %10.1f %10.1f",
+                    PHASES[i].name().toLowerCase(), this.totalCalls[i], 100.0 * this.totalNanos[i] / total,
+                    h.getMean() / 1e3, h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3,
+                    h.getPercentile(99) / 1e3, h.getMax() / 1e3));
+            if (bytes) {
+                Histogram b = this.byteHistograms[i];
+                s.append(String.format(" %10.1f %10.1f%n", b.getMean() / 1024, b.getPercentile(99) / 1024.0));
+            } else {
+                s.append(String.format("%n"));
+            }
+        }
+        if (bytes) {
+            if (this.budget != Long.MAX_VALUE) {
+                s.append(String.format("%d of %d steps over the budget of %d bytes%n", this.overBudget, this.steps, this.budget));
+            }
+            s.append(String.format("garbage collected during %d steps, %d ms%n", this.gcSteps, this.gcTime));
+        }
+        return s.toString();
+    }
+
+}
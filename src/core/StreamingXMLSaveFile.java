@@ -0,0 +1,1071 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Vector;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * This class provides saving and loading in the XML format of
+ * {@link XMLSaveFile} without building the whole document in memory. The
+ * file is read and written one element at a time with StAX, so the boids
+ * are created while the file is read and the memory use does not depend on
+ * the size of the flock.
+ *
+ * The files are compatible with the files XStream writes: the element names
+ * are the field names and shared objects are written once and referred to
+ * with relative XPath references. Unknown elements are skipped.
+ *
+ * The species of the flock are written before the boids, so that the boids
+ * can refer to the settings of their species. Files written before there
+ * were species have no species and their boids are loaded into the default
+ * species.
+ */
+public class StreamingXMLSaveFile implements SaveFile {
+
+    private final static String ROOT = "core.Simulation";
+    private final static String BOID = "core.Boid";
+    private final static String OBSTACLE = "core.Obstacle";
+    private final static String SPECIES = "core.Species";
+    private final static String INDENT = "  ";
+
+    @Override
+    public Simulation loadSimulation(File file) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        Simulation sim = null;
+        try {
+            sim = this.load(file);
+            return sim;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.LOAD, this, file, sim == null ? 0 : sim.getFlock().getSize(), sim != null);
+        }
+    }
+
+    /**
+     * Loads a simulation. If a boid refers to a vector of an earlier boid,
+     * which XStream writes when boids share a vector, the file is read a
+     * second time keeping the vectors that are referred to.
+     *
+     * @param file file
+     * @return simulation
+     * @throws IOException if the load fails
+     */
+    private Simulation load(File file) throws IOException {
+        try {
+            return this.load(file, null);
+        } catch (UnresolvedReferenceException e) {
+            return this.load(file, this.findReferences(file));
+        }
+    }
+
+    /**
+     * Loads a simulation in one pass.
+     *
+     * @param file file
+     * @param referenced paths of the vectors to keep for references, null keeps only the vectors of the current boid or obstacle
+     * @return simulation
+     * @throws UnresolvedReferenceException if referenced is null and a vector of an earlier element is referred to
+     * @throws IOException if the load fails
+     */
+    private Simulation load(File file, HashSet<String> referenced) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader xml = StreamingXMLSaveFile.createReader(stream);
+            try {
+                return new SimulationReader(xml, referenced).read();
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not load " + file + ": " + e.getMessage(), e);
+        } catch (NumberFormatException e) {
+            throw new IOException("Could not load " + file + ": invalid number " + e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Finds the paths of all elements that are referred to in a file.
+     *
+     * @param file file
+     * @return absolute paths
+     * @throws IOException if the file can't be read
+     */
+    private HashSet<String> findReferences(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader xml = StreamingXMLSaveFile.createReader(stream);
+            try {
+                return new SimulationReader(xml, null).findReferences();
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not load " + file + ": " + e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Creates a reader which doesn't read DTDs or external entities.
+     *
+     * @param stream the document is read from here
+     * @return reader
+     * @throws XMLStreamException if the reader can't be created
+     */
+    private static XMLStreamReader createReader(InputStream stream) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory.createXMLStreamReader(stream);
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file) throws IOException {
+        this.saveSimulation(sim, file, null);
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file, SaveProgress progress) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        boolean saved = false;
+        try {
+            this.save(sim, file, progress);
+            saved = true;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.SAVE, this, file, sim.getFlock().getSize(), saved);
+        }
+    }
+
+    /**
+     * Saves a simulation.
+     *
+     * @param sim simulation
+     * @param file file
+     * @param progress receives the progress, may be null
+     * @throws IOException if the save fails
+     */
+    private void save(Simulation sim, File file, SaveProgress progress) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(stream, "UTF-8");
+            new SimulationWriter(xml, progress).write(sim);
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not save " + file + ": " + e.getMessage(), e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String getFilenameDescription() {
+        return "XML save file (*.xml)";
+    }
+
+    @Override
+    public String getFilenameExtension() {
+        return "xml";
+    }
+
+    /**
+     * Writes a simulation with the element layout of XStream.
+     */
+    private static class SimulationWriter {
+        private XMLStreamWriter xml;
+        private SaveProgress progress;
+        private int depth;
+
+        private final static int PROGRESS_INTERVAL = 1024; // boids
+
+        /**
+         * The constructor.
+         *
+         * @param xml the document is written here
+         * @param progress receives the number of written boids, may be null
+         */
+        public SimulationWriter(XMLStreamWriter xml, SaveProgress progress) {
+            this.xml = xml;
+            this.progress = progress;
+            this.depth = 0;
+        }
+
+        /**
+         * Writes the simulation.
+         *
+         * @param sim simulation
+         * @throws XMLStreamException if the write fails
+         * @throws IOException if the random number generator can't be saved
+         */
+        public void write(Simulation sim) throws XMLStreamException, IOException {
+            this.start(ROOT);
+            this.writeSettings(sim.getSettings());
+            this.writeRandom(sim.getRandom());
+            synchronized (sim.getObstacles()) {
+                this.start("obstacles");
+                for (Obstacle o : sim.getObstacles()) {
+                    this.start(OBSTACLE);
+                    this.writeVector("position", o.getPosition());
+                    this.leaf("radius", String.valueOf(o.getRadius()));
+                    this.end();
+                }
+                this.end();
+            }
+            synchronized (sim.getFlock()) {
+                this.start("flock");
+                String[] settingsPaths = this.writeSpecies(sim.getFlock(), sim.getSettings());
+                this.start("boids");
+                int n = sim.getFlock().getSize();
+                int written = 0;
+                for (Boid b : sim.getFlock().getBoids()) {
+                    int species = b.getSpecies() < settingsPaths.length ? b.getSpecies() : 0;
+                    this.start(BOID);
+                    this.writeVector("velocity", b.getVelocity());
+                    this.writeVector("position", b.getPosition());
+                    this.writeVector("force", b.getForce());
+                    this.reference("set", settingsPaths[species]);
+                    this.leaf("wanderAngle", String.valueOf(b.getWanderAngle()));
+                    this.reference("random", "../../../../random");
+                    this.leaf("species", String.valueOf(species));
+                    this.end();
+                    if (this.progress != null && (++written % PROGRESS_INTERVAL == 0 || written == n)) {
+                        this.progress.progress(written, n);
+                    }
+                }
+                this.end();
+                this.reference("set", "../../settings");
+                this.reference("random", "../../random");
+                this.end();
+            }
+            this.leaf("step", String.valueOf(sim.getStep()));
+            this.end();
+            this.xml.writeCharacters("\n");
+            this.xml.writeEndDocument();
+        }
+
+        /**
+         * Writes the species of a flock. Settings shared with the simulation
+         * are written as references.
+         *
+         * @param flock flock
+         * @param settings settings of the simulation
+         * @return for every species, the path from a boid to the settings of the species
+         * @throws XMLStreamException if the write fails
+         */
+        private String[] writeSpecies(Flock flock, Settings settings) throws XMLStreamException {
+            int n = flock.getSpeciesCount();
+            String[] paths = new String[n];
+            this.start("species");
+            for (int i = 0; i < n; i++) {
+                Species s = flock.getSpecies(i);
+                this.start(SPECIES);
+                this.leaf("id", String.valueOf(i));
+                this.leaf("name", s.getName());
+                if (s.getSettings() == settings) {
+                    this.reference("settings", "../../../../settings");
+                    paths[i] = "../../../../settings";
+                } else {
+                    this.writeSettings(s.getSettings());
+                    paths[i] = "../../../species/" + SPECIES + (i > 0 ? "[" + (i + 1) + "]" : "") + "/settings";
+                }
+                this.leaf("followMask", String.valueOf(s.getFollowMask()));
+                this.leaf("avoidMask", String.valueOf(s.getAvoidMask()));
+                this.end();
+            }
+            this.end();
+            return paths;
+        }
+
+        /**
+         * Writes the settings.
+         *
+         * @param s settings
+         * @throws XMLStreamException if the write fails
+         */
+        private void writeSettings(Settings s) throws XMLStreamException {
+            this.start("settings");
+            this.leaf("separationFactor", String.valueOf(s.getSeparationFactor()));
+            this.leaf("alignmentFactor", String.valueOf(s.getAlignmentFactor()));
+            this.leaf("cohesionFactor", String.valueOf(s.getCohesionFactor()));
+            this.leaf("wanderFactor", String.valueOf(s.getWanderFactor()));
+            this.leaf("maxSpeed", String.valueOf(s.getMaxSpeed()));
+            this.leaf("maxForce", String.valueOf(s.getMaxForce()));
+            this.leaf("mass", String.valueOf(s.getMass()));
+            this.leaf("viewAngle", String.valueOf(s.getViewAngle()));
+            this.leaf("viewDistance", String.valueOf(s.getViewDistance()));
+            this.leaf("avoidanceDistance", String.valueOf(s.getAvoidanceDistance()));
+            this.leaf("collisionThreshold", String.valueOf(s.getCollisionThreshold()));
+            this.leaf("borderAvoidanceFactor", String.valueOf(s.getBorderAvoidanceFactor()));
+            this.leaf("collisionAvoidanceThreshold", String.valueOf(s.getCollisionAvoidanceFactor()));
+            this.leaf("areaWidth", String.valueOf(s.getAreaWidth()));
+            this.leaf("areaHeight", String.valueOf(s.getAreaHeight()));
+            this.leaf("wrapArea", String.valueOf(s.isWrapArea()));
+            this.leaf("version", String.valueOf(s.getVersion()));
+            this.end();
+        }
+
+        /**
+         * Writes the random number generator the way XStream writes a
+         * serializable object with custom serialization.
+         *
+         * @param random random number generator
+         * @throws XMLStreamException if the write fails
+         * @throws IOException if the state of the generator can't be read
+         */
+        private void writeRandom(Random random) throws XMLStreamException, IOException {
+            RandomState state = RandomState.of(random);
+            this.start("random");
+            this.xml.writeAttribute("serialization", "custom");
+            this.start("java.util.Random");
+            this.start("default");
+            this.leaf("haveNextNextGaussian", String.valueOf(state.haveNextNextGaussian()));
+            this.leaf("nextNextGaussian", String.valueOf(state.getNextNextGaussian()));
+            this.leaf("seed", String.valueOf(state.getSeed()));
+            this.end();
+            this.end();
+            this.end();
+        }
+
+        /**
+         * Writes a vector.
+         *
+         * @param name element name
+         * @param v vector
+         * @throws XMLStreamException if the write fails
+         */
+        private void writeVector(String name, Vector2D v) throws XMLStreamException {
+            this.start(name);
+            this.leaf("x", String.valueOf(v.getX()));
+            this.leaf("y", String.valueOf(v.getY()));
+            this.end();
+        }
+
+        /**
+         * Writes an empty element referring to an earlier element.
+         *
+         * @param name element name
+         * @param path relative path of the referred element
+         * @throws XMLStreamException if the write fails
+         */
+        private void reference(String name, String path) throws XMLStreamException {
+            this.indent();
+            this.xml.writeEmptyElement(name);
+            this.xml.writeAttribute("reference", path);
+        }
+
+        /**
+         * Writes an element containing only text.
+         *
+         * @param name element name
+         * @param text text
+         * @throws XMLStreamException if the write fails
+         */
+        private void leaf(String name, String text) throws XMLStreamException {
+            this.indent();
+            this.xml.writeStartElement(name);
+            this.xml.writeCharacters(text);
+            this.xml.writeEndElement();
+        }
+
+        /**
+         * Starts an element on a new line.
+         *
+         * @param name element name
+         * @throws XMLStreamException if the write fails
+         */
+        private void start(String name) throws XMLStreamException {
+            this.indent();
+            this.xml.writeStartElement(name);
+            this.depth++;
+        }
+
+        /**
+         * Ends the current element on a new line.
+         *
+         * @throws XMLStreamException if the write fails
+         */
+        private void end() throws XMLStreamException {
+            this.depth--;
+            this.indent();
+            this.xml.writeEndElement();
+        }
+
+        /**
+         * Starts a new line with the indentation of the current depth.
+         *
+         * @throws XMLStreamException if the write fails
+         */
+        private void indent() throws XMLStreamException {
+            if (this.depth == 0) {
+                return;
+            }
+            StringBuilder s = new StringBuilder("\n");
+            for (int i = 0; i < this.depth; i++) {
+                s.append(INDENT);
+            }
+            this.xml.writeCharacters(s.toString());
+        }
+    }
+
+    /**
+     * Thrown when a vector of an earlier boid or obstacle is referred to
+     * and the reader didn't keep it.
+     */
+    private static class UnresolvedReferenceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The constructor.
+         *
+         * @param message message
+         */
+        public UnresolvedReferenceException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads a simulation one element at a time. The reader keeps the XPath
+     * of the current element, so the references XStream writes for shared
+     * objects can be resolved. The settings, the random number generator
+     * and the vectors of the current boid or obstacle can always be referred
+     * to. Vectors of earlier elements are kept only if their paths are
+     * given, so the memory use stays constant unless the file shares them.
+     */
+    private static class SimulationReader {
+        private XMLStreamReader xml;
+        private ArrayList<String> paths;
+        private ArrayList<HashMap<String, Integer>> childCounts;
+        private HashMap<String, Object> shared;
+        private HashMap<String, Object> local;
+        private HashSet<String> referenced;
+        private HashMap<String, Object> kept;
+
+        /**
+         * The constructor.
+         *
+         * @param xml the document is read from here
+         * @param referenced paths of the vectors to keep for later references, may be null
+         */
+        public SimulationReader(XMLStreamReader xml, HashSet<String> referenced) {
+            this.xml = xml;
+            this.paths = new ArrayList<String>();
+            this.childCounts = new ArrayList<HashMap<String, Integer>>();
+            this.shared = new HashMap<String, Object>();
+            this.local = new HashMap<String, Object>();
+            this.referenced = referenced;
+            this.kept = new HashMap<String, Object>();
+        }
+
+        /**
+         * Reads the whole document and collects the absolute paths of the
+         * references in it.
+         *
+         * @return paths
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if a reference is invalid
+         */
+        public HashSet<String> findReferences() throws XMLStreamException, IOException {
+            HashSet<String> found = new HashSet<String>();
+            this.xml.nextTag();
+            this.push(this.xml.getLocalName());
+            while (!this.paths.isEmpty()) {
+                int event = this.xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    this.push(this.xml.getLocalName());
+                    String reference = this.xml.getAttributeValue(null, "reference");
+                    if (reference != null) {
+                        found.add(this.absolutePath(reference));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    this.pop();
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Reads the simulation.
+         *
+         * @return simulation
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the document is not a valid save file
+         */
+        public Simulation read() throws XMLStreamException, IOException {
+            this.xml.nextTag();
+            if (!this.xml.getLocalName().equals(ROOT)) {
+                throw new IOException("Not a simulation save file");
+            }
+            this.push(ROOT);
+
+            Settings settings = null;
+            Random random = null;
+            Simulation sim = null;
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                if (name.equals("settings")) {
+                    settings = this.readSettings();
+                } else if (name.equals("random")) {
+                    random = this.readRandom();
+                } else if (name.equals("obstacles") || name.equals("flock")) {
+                    if (sim == null) {
+                        if (settings == null || random == null) {
+                            throw new IOException("The settings must be before the " + name);
+                        }
+                        sim = new Simulation(settings, random, 0);
+                    }
+                    if (name.equals("obstacles")) {
+                        this.readObstacles(sim.getObstacles());
+                    } else {
+                        this.readFlock(sim.getFlock(), settings, random);
+                    }
+                } else if (name.equals("step")) {
+                    if (sim == null) {
+                        throw new IOException("The flock must be before the step count");
+                    }
+                    sim.setStep(Long.parseLong(this.readText()));
+                } else {
+                    this.skip();
+                }
+            }
+            if (sim == null) {
+                throw new IOException("No flock in the save file");
+            }
+            return sim;
+        }
+
+        /**
+         * Reads the settings and checks the version.
+         *
+         * @return settings
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the version is wrong
+         */
+        private Settings readSettings() throws XMLStreamException, IOException {
+            Settings s = new Settings();
+            int version = 0;
+            this.shared.put(this.currentPath(), s);
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                if (name.equals("version")) {
+                    version = Integer.parseInt(this.readText());
+                } else if (name.equals("areaWidth")) {
+                    s.setAreaWidth(Integer.parseInt(this.readText()));
+                } else if (name.equals("areaHeight")) {
+                    s.setAreaHeight(Integer.parseInt(this.readText()));
+                } else if (name.equals("wrapArea")) {
+                    s.setWrapArea(Boolean.parseBoolean(this.readText()));
+                } else if (name.equals("separationFactor")) {
+                    s.setSeparationFactor(this.readDouble());
+                } else if (name.equals("alignmentFactor")) {
+                    s.setAlignmentFactor(this.readDouble());
+                } else if (name.equals("cohesionFactor")) {
+                    s.setCohesionFactor(this.readDouble());
+                } else if (name.equals("wanderFactor")) {
+                    s.setWanderFactor(this.readDouble());
+                } else if (name.equals("maxSpeed")) {
+                    s.setMaxSpeed(this.readDouble());
+                } else if (name.equals("maxForce")) {
+                    s.setMaxForce(this.readDouble());
+                } else if (name.equals("mass")) {
+                    s.setMass(this.readDouble());
+                } else if (name.equals("viewAngle")) {
+                    s.setViewAngle(this.readDouble());
+                } else if (name.equals("viewDistance")) {
+                    s.setViewDistance(this.readDouble());
+                } else if (name.equals("avoidanceDistance")) {
+                    s.setAvoidanceDistance(this.readDouble());
+                } else if (name.equals("collisionThreshold")) {
+                    s.setCollisionThreshold(this.readDouble());
+                } else if (name.equals("borderAvoidanceFactor")) {
+                    s.setBorderAvoidanceFactor(this.readDouble());
+                } else if (name.equals("collisionAvoidanceThreshold")) {
+                    s.setCollisionAvoidanceFactor(this.readDouble());
+                } else {
+                    this.skip();
+                }
+            }
+            if (version != s.getVersion()) {
+                throw new IOException("Wrong save file version " + version);
+            }
+            return s;
+        }
+
+        /**
+         * Reads the random number generator. The state is taken from the
+         * fields written by the custom serialization of Random.
+         *
+         * @return random number generator
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the state is missing
+         */
+        private Random readRandom() throws XMLStreamException, IOException {
+            String path = this.currentPath();
+            HashMap<String, String> fields = new HashMap<String, String>();
+            this.readLeaves(fields);
+            if (!fields.containsKey("seed")) {
+                throw new IOException("No seed in the random number generator");
+            }
+            RandomState state = new RandomState(Long.parseLong(fields.get("seed")),
+                    fields.containsKey("nextNextGaussian") ? Double.parseDouble(fields.get("nextNextGaussian")) : 0,
+                    Boolean.parseBoolean(fields.get("haveNextNextGaussian")));
+            Random random = state.toRandom();
+            this.shared.put(path, random);
+            return random;
+        }
+
+        /**
+         * Collects the text of all elements below the current one which
+         * don't have child elements.
+         *
+         * @param leaves the texts by element name
+         * @throws XMLStreamException if the document is not well-formed
+         */
+        private void readLeaves(HashMap<String, String> leaves) throws XMLStreamException {
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                StringBuilder text = new StringBuilder();
+                boolean leaf = true;
+                while (true) {
+                    int event = this.xml.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        leaf = false;
+                        this.push(this.xml.getLocalName());
+                        this.readLeaves(leaves);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        this.pop();
+                        break;
+                    } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                        text.append(this.xml.getText());
+                    }
+                }
+                if (leaf) {
+                    leaves.put(name, text.toString().trim());
+                }
+            }
+        }
+
+        /**
+         * Reads the obstacles.
+         *
+         * @param obstacles the obstacles are added here
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if an obstacle is invalid
+         */
+        private void readObstacles(Vector<Obstacle> obstacles) throws XMLStreamException, IOException {
+            while (this.nextChild()) {
+                if (!this.xml.getLocalName().equals(OBSTACLE)) {
+                    this.skip();
+                    continue;
+                }
+                this.local.clear();
+                Vector2D position = null;
+                int radius = 0;
+                while (this.nextChild()) {
+                    String name = this.xml.getLocalName();
+                    if (name.equals("position")) {
+                        position = this.readVector();
+                    } else if (name.equals("radius")) {
+                        radius = Integer.parseInt(this.readText());
+                    } else {
+                        this.skip();
+                    }
+                }
+                if (position == null) {
+                    throw new IOException("Obstacle without a position at " + this.location());
+                }
+                obstacles.add(new Obstacle(position.getX(), position.getY(), radius));
+            }
+        }
+
+        /**
+         * Reads the flock. The boids are added to the flock as soon as they
+         * are read and get the settings of their species when the flock
+         * ends, because XStream writes the species after the boids.
+         *
+         * @param flock flock
+         * @param settings settings given to the boids
+         * @param random random number generator given to the boids
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if a boid or a species is invalid
+         */
+        private void readFlock(Flock flock, Settings settings, Random random) throws XMLStreamException, IOException {
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                if (name.equals("species")) {
+                    this.readSpecies(flock);
+                    continue;
+                }
+                if (!name.equals("boids")) {
+                    this.skip(); // observers, settings and random are the ones of the simulation
+                    continue;
+                }
+                while (this.nextChild()) {
+                    if (this.xml.getLocalName().equals(BOID)) {
+                        flock.addBoid(this.readBoid(settings, random));
+                    } else {
+                        this.skip();
+                    }
+                }
+            }
+            for (Boid b : flock.getBoids()) {
+                if (b.getSpecies() >= flock.getSpeciesCount()) {
+                    throw new IOException("Boid of unknown species " + b.getSpecies());
+                }
+            }
+            flock.setSettings(settings);
+        }
+
+        /**
+         * Reads the species and adds them to a flock which has only the
+         * default species.
+         *
+         * @param flock flock
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if a species is invalid
+         */
+        private void readSpecies(Flock flock) throws XMLStreamException, IOException {
+            while (this.nextChild()) {
+                if (!this.xml.getLocalName().equals(SPECIES)) {
+                    this.skip();
+                    continue;
+                }
+                int id = -1;
+                String name = "";
+                Settings settings = null;
+                int follow = -1;
+                int avoid = 0;
+                while (this.nextChild()) {
+                    String element = this.xml.getLocalName();
+                    if (element.equals("id")) {
+                        id = Integer.parseInt(this.readText());
+                    } else if (element.equals("name")) {
+                        name = this.readText();
+                    } else if (element.equals("settings")) {
+                        settings = this.readSettingsOrReference();
+                    } else if (element.equals("followMask")) {
+                        follow = Integer.parseInt(this.readText());
+                    } else if (element.equals("avoidMask")) {
+                        avoid = Integer.parseInt(this.readText());
+                    } else {
+                        this.skip();
+                    }
+                }
+                if (id == 0) {
+                    flock.getSpecies(0).setMasks(follow, avoid);
+                    continue;
+                }
+                if (id != flock.getSpeciesCount() || id >= Species.MAX_SPECIES || settings == null) {
+                    throw new IOException("Invalid species " + id + " at " + this.location());
+                }
+                flock.addSpecies(name, settings).setMasks(follow, avoid);
+            }
+        }
+
+        /**
+         * Reads settings or resolves a reference to earlier settings.
+         *
+         * @return settings
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the reference can't be resolved or the version is wrong
+         */
+        private Settings readSettingsOrReference() throws XMLStreamException, IOException {
+            String reference = this.xml.getAttributeValue(null, "reference");
+            if (reference == null) {
+                return this.readSettings();
+            }
+            Object o = this.resolve(reference);
+            this.skip();
+            if (!(o instanceof Settings)) {
+                throw new IOException("Reference " + reference + " is not settings");
+            }
+            return (Settings) o;
+        }
+
+        /**
+         * Reads a boid.
+         *
+         * @param settings settings given to the boid
+         * @param random random number generator given to the boid
+         * @return boid
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the boid is invalid
+         */
+        private Boid readBoid(Settings settings, Random random) throws XMLStreamException, IOException {
+            this.local.clear();
+            Vector2D position = null;
+            Vector2D velocity = null;
+            Vector2D force = null;
+            double wanderAngle = 0;
+            int species = 0;
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                if (name.equals("set") && this.xml.getAttributeValue(null, "reference") == null) {
+                    this.readSettings(); // XStream writes the settings of a species at its first boid
+                } else if (name.equals("species")) {
+                    species = Integer.parseInt(this.readText());
+                } else if (name.equals("position")) {
+                    position = this.readVector();
+                } else if (name.equals("velocity")) {
+                    velocity = this.readVector();
+                } else if (name.equals("force")) {
+                    force = this.readVector();
+                } else if (name.equals("wanderAngle")) {
+                    wanderAngle = this.readDouble();
+                } else {
+                    this.skip();
+                }
+            }
+            if (position == null || velocity == null) {
+                throw new IOException("Boid without a position or a velocity at " + this.location());
+            }
+            if (force == null) {
+                force = new Vector2D();
+            }
+            if (species < 0) {
+                throw new IOException("Invalid species " + species + " at " + this.location());
+            }
+            Boid b = new Boid(position, velocity, force, wanderAngle, settings, random);
+            b.setSpecies(species);
+            return b;
+        }
+
+        /**
+         * Reads a vector or resolves a reference to an earlier vector.
+         *
+         * @return vector
+         * @throws XMLStreamException if the document is not well-formed
+         * @throws IOException if the reference can't be resolved
+         */
+        private Vector2D readVector() throws XMLStreamException, IOException {
+            String reference = this.xml.getAttributeValue(null, "reference");
+            if (reference != null) {
+                Object o = this.resolve(reference);
+                this.skip();
+                if (!(o instanceof Vector2D)) {
+                    throw new IOException("Reference " + reference + " is not a vector");
+                }
+                return (Vector2D) o;
+            }
+            String path = this.currentPath();
+            double x = 0;
+            double y = 0;
+            while (this.nextChild()) {
+                String name = this.xml.getLocalName();
+                if (name.equals("x")) {
+                    x = this.readDouble();
+                } else if (name.equals("y")) {
+                    y = this.readDouble();
+                } else {
+                    this.skip();
+                }
+            }
+            Vector2D v = new Vector2D(x, y);
+            this.local.put(path, v);
+            if (this.referenced != null && this.referenced.contains(path)) {
+                this.kept.put(path, v);
+            }
+            return v;
+        }
+
+        /**
+         * Resolves an XPath reference written by XStream.
+         *
+         * @param reference absolute path or path relative to the current element
+         * @return referred object
+         * @throws UnresolvedReferenceException if the object may be an earlier vector that wasn't kept
+         * @throws IOException if the object is not known
+         */
+        private Object resolve(String reference) throws IOException {
+            String path = this.absolutePath(reference);
+            Object o = this.local.get(path);
+            if (o == null) {
+                o = this.shared.get(path);
+            }
+            if (o == null) {
+                o = this.kept.get(path);
+            }
+            if (o == null && this.referenced == null) {
+                throw new UnresolvedReferenceException("Unresolved reference " + reference + " at " + this.location());
+            }
+            if (o == null) {
+                throw new IOException("Unsupported reference " + reference + " at " + this.location());
+            }
+            return o;
+        }
+
+        /**
+         * Turns an XPath reference into an absolute path without the [1]
+         * indices, like the paths of the elements.
+         *
+         * @param reference absolute path or path relative to the current element
+         * @return absolute path
+         * @throws IOException if the reference goes above the root
+         */
+        private String absolutePath(String reference) throws IOException {
+            ArrayList<String> segments = new ArrayList<String>();
+            if (!reference.startsWith("/")) {
+                for (String s : this.currentPath().split("/")) {
+                    if (s.length() > 0) {
+                        segments.add(s);
+                    }
+                }
+            }
+            for (String s : reference.split("/")) {
+                if (s.equals("..")) {
+                    if (segments.isEmpty()) {
+                        throw new IOException("Invalid reference " + reference + " at " + this.location());
+                    }
+                    segments.remove(segments.size() - 1);
+                } else if (s.length() > 0 && !s.equals(".")) {
+                    segments.add(s.endsWith("[1]") ? s.substring(0, s.length() - 3) : s);
+                }
+            }
+            StringBuilder path = new StringBuilder();
+            for (String s : segments) {
+                path.append('/').append(s);
+            }
+            return path.toString();
+        }
+
+        /**
+         * Moves to the next child element of the current element.
+         *
+         * @return true if a child was found, false if the current element ended
+         * @throws XMLStreamException if the document is not well-formed
+         */
+        private boolean nextChild() throws XMLStreamException {
+            while (true) {
+                int event = this.xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    this.push(this.xml.getLocalName());
+                    return true;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    this.pop();
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Reads the text of the current element and moves to its end.
+         *
+         * @return text
+         * @throws XMLStreamException if the element has child elements
+         */
+        private String readText() throws XMLStreamException {
+            String text = this.xml.getElementText().trim();
+            this.pop();
+            return text;
+        }
+
+        /**
+         * Reads the current element as a double.
+         *
+         * @return value
+         * @throws XMLStreamException if the element has child elements
+         */
+        private double readDouble() throws XMLStreamException {
+            return Double.parseDouble(this.readText());
+        }
+
+        /**
+         * Skips the current element and everything in it.
+         *
+         * @throws XMLStreamException if the document is not well-formed
+         */
+        private void skip() throws XMLStreamException {
+            int depth = 1;
+            while (depth > 0) {
+                int event = this.xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            this.pop();
+        }
+
+        /**
+         * Enters a child element. The path gets an index if the element is not
+         * the first child with the same name, like XStream does.
+         *
+         * @param name element name
+         */
+        private void push(String name) {
+            String path = "/" + name;
+            if (!this.paths.isEmpty()) {
+                HashMap<String, Integer> counts = this.childCounts.get(this.childCounts.size() - 1);
+                Integer count = counts.get(name);
+                count = count == null ? 1 : count + 1;
+                counts.put(name, count);
+                path = this.currentPath() + path + (count > 1 ? "[" + count + "]" : "");
+            }
+            this.paths.add(path);
+            this.childCounts.add(new HashMap<String, Integer>());
+        }
+
+        /**
+         * Leaves the current element.
+         */
+        private void pop() {
+            this.paths.remove(this.paths.size() - 1);
+            this.childCounts.remove(this.childCounts.size() - 1);
+        }
+
+        /**
+         * Gets the path of the current element.
+         *
+         * @return path
+         */
+        private String currentPath() {
+            return this.paths.get(this.paths.size() - 1);
+        }
+
+        /**
+         * Gets the position in the document for error messages.
+         *
+         * @return line and column
+         */
+        private String location() {
+            return "line " + this.xml.getLocation().getLineNumber()
+                    + ", column " + this.xml.getLocation().getColumnNumber();
+        }
+    }
+
+}
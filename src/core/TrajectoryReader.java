@@ -0,0 +1,232 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file written by {@link TrajectoryRecorder}. The records have a
+ * fixed width, so any record is found directly by its index. The file is
+ * mapped in chunks when they are first needed.
+ */
+public class TrajectoryReader {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int maxBoids;
+    private int recordSize;
+    private long records;
+    private int recordsPerChunk;
+    private MappedByteBuffer[] chunks;
+
+    private final static int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Opens a trajectory file.
+     *
+     * @param file file written by a recorder
+     * @throws IOException if the file can't be read or is not a trajectory file
+     */
+    public TrajectoryReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.channel = this.file.getChannel();
+            if (this.channel.size() < TrajectoryRecorder.HEADER_SIZE) {
+                throw new IOException("Not a trajectory file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_SIZE);
+            while (header.hasRemaining()) {
+                this.channel.read(header, header.position());
+            }
+            header.flip();
+            if (header.getInt() != TrajectoryRecorder.MAGIC) {
+                throw new IOException("Not a trajectory file");
+            }
+            int format = header.getInt();
+            if (format != TrajectoryRecorder.FORMAT_VERSION) {
+                throw new IOException("Unsupported trajectory file format " + format);
+            }
+            this.maxBoids = header.getInt();
+            this.recordSize = header.getInt();
+            this.records = header.getLong();
+            if (this.maxBoids <= 0 || this.records < 0 || this.recordSize != TrajectoryRecorder.RECORD_HEADER_SIZE
+                    + (long) this.maxBoids * TrajectoryRecorder.BOID_SIZE) {
+                throw new IOException("Invalid trajectory file header");
+            }
+            long available = (this.channel.size() - TrajectoryRecorder.HEADER_SIZE) / this.recordSize;
+            this.records = Math.min(this.records, available); // the file may have been cut off
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+
+        this.recordsPerChunk = Math.max(1, CHUNK_SIZE / this.recordSize);
+        this.chunks = new MappedByteBuffer[(int) ((this.records + this.recordsPerChunk - 1) / this.recordsPerChunk)];
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return number of records
+     */
+    public long getRecordCount() {
+        return this.records;
+    }
+
+    /**
+     * Gets the maximum number of boids in a record.
+     *
+     * @return number of boids
+     */
+    public int getMaxBoids() {
+        return this.maxBoids;
+    }
+
+    /**
+     * Gets the step number of a record.
+     *
+     * @param record record index
+     * @return step number
+     * @throws IOException if the record can't be mapped
+     */
+    public long getStep(long record) throws IOException {
+        return this.chunk(record).getLong(this.offset(record));
+    }
+
+    /**
+     * Gets the number of boids in a record.
+     *
+     * @param record record index
+     * @return number of boids
+     * @throws IOException if the record can't be mapped
+     */
+    public int getBoidCount(long record) throws IOException {
+        return this.chunk(record).getInt(this.offset(record) + 8);
+    }
+
+    /**
+     * Reads the boids of a record. The values are stored four per boid: x,
+     * y, velocity x and velocity y.
+     *
+     * @param record record index
+     * @param values the values are stored here, the array must have room
+     *        for four values per boid
+     * @return number of boids read
+     * @throws IOException if the record can't be mapped
+     */
+    public int read(long record, float[] values) throws IOException {
+        MappedByteBuffer b = this.chunk(record);
+        int offset = this.offset(record);
+        int n = Math.min(b.getInt(offset + 8), values.length / 4);
+        int p = offset + TrajectoryRecorder.RECORD_HEADER_SIZE;
+        for (int i = 0; i < 4 * n; i++) {
+            values[i] = b.getFloat(p);
+            p += 4;
+        }
+        return n;
+    }
+
+    /**
+     * Gets the position of a boid.
+     *
+     * @param record record index
+     * @param boid boid index
+     * @return position
+     * @throws IOException if the record can't be mapped
+     */
+    public Vector2D getPosition(long record, int boid) throws IOException {
+        int p = this.boidOffset(record, boid);
+        MappedByteBuffer b = this.chunk(record);
+        return new Vector2D(b.getFloat(p), b.getFloat(p + 4));
+    }
+
+    /**
+     * Gets the velocity of a boid.
+     *
+     * @param record record index
+     * @param boid boid index
+     * @return velocity
+     * @throws IOException if the record can't be mapped
+     */
+    public Vector2D getVelocity(long record, int boid) throws IOException {
+        int p = this.boidOffset(record, boid);
+        MappedByteBuffer b = this.chunk(record);
+        return new Vector2D(b.getFloat(p + 8), b.getFloat(p + 12));
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        this.chunks = null;
+        this.file.close();
+    }
+
+    /**
+     * Gets the offset of a boid in its chunk and checks the boid index.
+     *
+     * @param record record index
+     * @param boid boid index
+     * @return offset
+     * @throws IOException if the record can't be mapped
+     */
+    private int boidOffset(long record, int boid) throws IOException {
+        if (boid < 0 || boid >= this.getBoidCount(record)) {
+            throw new IndexOutOfBoundsException("Boid " + boid + " is not in record " + record);
+        }
+        return this.offset(record) + TrajectoryRecorder.RECORD_HEADER_SIZE + boid * TrajectoryRecorder.BOID_SIZE;
+    }
+
+    /**
+     * Gets the offset of a record in its chunk.
+     *
+     * @param record record index
+     * @return offset
+     */
+    private int offset(long record) {
+        return (int) (record % this.recordsPerChunk) * this.recordSize;
+    }
+
+    /**
+     * Gets the chunk containing a record and maps it if needed.
+     *
+     * @param record record index
+     * @return chunk
+     * @throws IOException if the chunk can't be mapped
+     */
+    private MappedByteBuffer chunk(long record) throws IOException {
+        if (record < 0 || record >= this.records) {
+            throw new IndexOutOfBoundsException("Record " + record + " of " + this.records);
+        }
+        int i = (int) (record / this.recordsPerChunk);
+        if (this.chunks[i] == null) {
+            long first = (long) i * this.recordsPerChunk;
+            long n = Math.min(this.recordsPerChunk, this.records - first);
+            this.chunks[i] = this.channel.map(FileChannel.MapMode.READ_ONLY,
+                    TrajectoryRecorder.HEADER_SIZE + first * this.recordSize, n * this.recordSize);
+        }
+        return this.chunks[i];
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Records the positions and velocities of the boids after every step into a
+ * memory-mapped file. Add the recorder to a simulation with
+ * {@link Simulation#addStepListener(StepListener)}.
+ *
+ * Every step is one fixed-width record, so a record can be found by its
+ * index without reading the file; see {@link TrajectoryReader}. The file is
+ * mapped in chunks of several records and a new chunk is mapped when the
+ * previous one is full. The values are put directly into the mapped memory,
+ * so recording a step allocates nothing.
+ *
+ * The layout of the file is (all numbers big-endian):
+ * <pre>
+ * header: int magic 'TRAJ', int format version, int max boids, int record size,
+ *         long record count, 8 bytes reserved
+ * record: long step, int boid count, int reserved,
+ *         max boids * (float x, float y, float velocity x, float velocity y)
+ * </pre>
+ * If the flock has more boids than the recorder was created for, only the
+ * first ones are recorded.
+ */
+public class TrajectoryRecorder implements StepListener {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer chunk;
+    private int maxBoids;
+    private int recordSize;
+    private int recordsPerChunk;
+    private long records;
+    private int chunkRecords;
+    private volatile IOException failure;
+
+    final static int MAGIC = 0x5452414a; // "TRAJ"
+    final static int FORMAT_VERSION = 1;
+    final static int HEADER_SIZE = 32;
+    final static int RECORD_HEADER_SIZE = 16;
+    final static int BOID_SIZE = 4 * 4;
+    final static int COUNT_OFFSET = 16;
+    private final static int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Creates a recorder which maps the file in chunks of about 64 MB.
+     *
+     * @param file the trajectories are written to this file
+     * @param maxBoids the maximum number of boids recorded per step
+     * @throws IOException if the file can't be created
+     */
+    public TrajectoryRecorder(File file, int maxBoids) throws IOException {
+        this(file, maxBoids, Math.max(1, CHUNK_SIZE / (RECORD_HEADER_SIZE + maxBoids * BOID_SIZE)));
+    }
+
+    /**
+     * Creates a recorder. An existing file is overwritten.
+     *
+     * @param file the trajectories are written to this file
+     * @param maxBoids the maximum number of boids recorded per step
+     * @param recordsPerChunk number of records mapped at a time
+     * @throws IOException if the file can't be created
+     */
+    public TrajectoryRecorder(File file, int maxBoids, int recordsPerChunk) throws IOException {
+        if (maxBoids <= 0 || recordsPerChunk <= 0) {
+            throw new IllegalArgumentException("The boid count and the chunk size must be positive");
+        }
+        if ((long) recordsPerChunk * (RECORD_HEADER_SIZE + (long) maxBoids * BOID_SIZE) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A chunk must be smaller than 2 GB");
+        }
+        this.maxBoids = maxBoids;
+        this.recordSize = RECORD_HEADER_SIZE + maxBoids * BOID_SIZE;
+        this.recordsPerChunk = recordsPerChunk;
+        this.records = 0;
+        this.chunkRecords = recordsPerChunk; // map the first chunk on the first step
+
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        this.header.putInt(MAGIC);
+        this.header.putInt(FORMAT_VERSION);
+        this.header.putInt(this.maxBoids);
+        this.header.putInt(this.recordSize);
+        this.header.putLong(0);
+    }
+
+    /**
+     * Appends the state after the step to the file. If writing fails, the
+     * recording stops and the exception is thrown by {@link #close()}.
+     *
+     * @param sim simulation
+     */
+    public void stepCompleted(Simulation sim) {
+        if (this.failure != null) {
+            return;
+        }
+        try {
+            this.record(sim);
+        } catch (IOException e) {
+            this.failure = e;
+        }
+    }
+
+    /**
+     * Writes one record.
+     *
+     * @param sim simulation
+     * @throws IOException if a new chunk can't be mapped
+     */
+    private synchronized void record(Simulation sim) throws IOException {
+        if (this.channel == null) {
+            return; // closed
+        }
+        if (this.chunkRecords == this.recordsPerChunk) {
+            long position = HEADER_SIZE + this.records * this.recordSize;
+            this.chunk = this.channel.map(FileChannel.MapMode.READ_WRITE, position,
+                    (long) this.recordsPerChunk * this.recordSize);
+            this.chunkRecords = 0;
+        }
+
+        MappedByteBuffer b = this.chunk;
+        int offset = this.chunkRecords * this.recordSize;
+        Flock flock = sim.getFlock();
+        synchronized (flock) {
+            ArrayList<Boid> boids = flock.getBoids();
+            int n = Math.min(boids.size(), this.maxBoids);
+            b.putLong(offset, sim.getStep());
+            b.putInt(offset + 8, n);
+            int p = offset + RECORD_HEADER_SIZE;
+            for (int i = 0; i < n; i++) {
+                Boid boid = boids.get(i);
+                b.putFloat(p, (float) boid.getPosition().getX());
+                b.putFloat(p + 4, (float) boid.getPosition().getY());
+                b.putFloat(p + 8, (float) boid.getVelocity().getX());
+                b.putFloat(p + 12, (float) boid.getVelocity().getY());
+                p += BOID_SIZE;
+            }
+        }
+
+        this.chunkRecords++;
+        this.records++;
+        this.header.putLong(COUNT_OFFSET, this.records);
+    }
+
+    /**
+     * Gets the number of records written so far.
+     *
+     * @return number of records
+     */
+    public synchronized long getRecordCount() {
+        return this.records;
+    }
+
+    /**
+     * Gets the maximum number of boids recorded per step.
+     *
+     * @return number of boids
+     */
+    public int getMaxBoids() {
+        return this.maxBoids;
+    }
+
+    /**
+     * Writes the mapped memory to the disk, cuts off the unused part of the
+     * last chunk and closes the file. Remember to remove the recorder from
+     * the simulation.
+     *
+     * @throws IOException if closing the file failed or recording a step failed
+     */
+    public synchronized void close() throws IOException {
+        if (this.channel == null) {
+            return;
+        }
+        try {
+            if (this.chunk != null) {
+                this.chunk.force();
+            }
+            this.header.force();
+            this.chunk = null;
+            this.header = null;
+            this.channel.truncate(HEADER_SIZE + this.records * this.recordSize);
+        } finally {
+            this.channel = null;
+            this.file.close();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+}
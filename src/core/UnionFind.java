@@ -0,0 +1,116 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package core;
+
+/**
+ * Disjoint sets of the numbers 0 ... n - 1, for counting the connected
+ * groups of a graph. Sets are joined by size and paths are halved while
+ * finding, so both operations take nearly constant time.
+ */
+public class UnionFind {
+    private int[] parent;
+    private int[] size;
+    private int sets;
+
+    /**
+     * Creates n sets with one number in each.
+     *
+     * @param n number of elements
+     */
+    public UnionFind(int n) {
+        this.parent = new int[n];
+        this.size = new int[n];
+        this.reset(n);
+    }
+
+    /**
+     * Puts every number back into its own set. The arrays are reused if
+     * they are large enough.
+     *
+     * @param n number of elements
+     */
+    public final void reset(int n) {
+        if (this.parent.length < n) {
+            this.parent = new int[n];
+            this.size = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            this.parent[i] = i;
+            this.size[i] = 1;
+        }
+        this.sets = n;
+    }
+
+    /**
+     * Finds the representative of the set of a number.
+     *
+     * @param i number
+     * @return representative
+     */
+    public int find(int i) {
+        while (this.parent[i] != i) {
+            this.parent[i] = this.parent[this.parent[i]];
+            i = this.parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Joins the sets of two numbers.
+     *
+     * @param a number
+     * @param b number
+     * @return true if they were in different sets
+     */
+    public boolean union(int a, int b) {
+        int x = this.find(a);
+        int y = this.find(b);
+        if (x == y) {
+            return false;
+        }
+        if (this.size[x] < this.size[y]) {
+            int t = x;
+            x = y;
+            y = t;
+        }
+        this.parent[y] = x;
+        this.size[x] += this.size[y];
+        this.sets--;
+        return true;
+    }
+
+    /**
+     * Gets the number of elements in the set of a number.
+     *
+     * @param i number
+     * @return size of the set
+     */
+    public int getSize(int i) {
+        return this.size[this.find(i)];
+    }
+
+    /**
+     * Gets the number of sets.
+     *
+     * @return number of sets
+     */
+    public int getSetCount() {
+        return this.sets;
+    }
+
+}
@@ -32,6 +32,24 @@ public class XMLSaveFile implements SaveFile {
 
     @Override
     public Simulation loadSimulation(File file) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        Simulation sim = null;
+        try {
+            sim = this.load(file);
+            return sim;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.LOAD, this, file, sim == null ? 0 : sim.getFlock().getSize(), sim != null);
+        }
+    }
+
+    /**
+     * Loads a simulation.
+     *
+     * @param file file
+     * @return simulation
+     * @throws IOException if the load fails
+     */
+    private Simulation load(File file) throws IOException {
         Simulation sim = null;
         try {
             FileReader fr = new FileReader(file);
@@ -39,17 +57,44 @@ public class XMLSaveFile implements SaveFile {
             sim = (Simulation) xs.fromXML(fr);
             fr.close();
         } catch (Exception e) {
-            throw new IOException();
+            throw new IOException("Could not load " + file + ": " + e.getMessage(), e);
         }
         return sim;
     }
 
     @Override
     public void saveSimulation(Simulation sim, File file) throws IOException {
+        this.saveSimulation(sim, file, null);
+    }
+
+    @Override
+    public void saveSimulation(Simulation sim, File file, SaveProgress progress) throws IOException {
+        SaveEvent event = SaveMonitor.begin();
+        boolean saved = false;
+        try {
+            this.save(sim, file, progress);
+            saved = true;
+        } finally {
+            SaveMonitor.end(event, SaveMonitor.SAVE, this, file, sim.getFlock().getSize(), saved);
+        }
+    }
+
+    /**
+     * Saves a simulation.
+     *
+     * @param sim simulation
+     * @param file file
+     * @param progress receives the progress, may be null
+     * @throws IOException if the save fails
+     */
+    private void save(Simulation sim, File file, SaveProgress progress) throws IOException {
         FileWriter fw = new FileWriter(file);
         XStream xs = new XStream();
         xs.toXML(sim, fw);
         fw.close();
+        if (progress != null) {
+            progress.progress(1, 1); // XStream writes everything at once
+        }
     }
 
     @Override
@@ -24,9 +24,15 @@ import java.awt.Polygon;
 import java.awt.RenderingHints;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
 import javax.swing.JPanel;
 import core.Boid;
+import core.Heatmap;
 import core.Obstacle;
+import core.ReplayPlayer;
 import core.Simulation;
 import core.Vector2D;
 
@@ -56,6 +62,37 @@ public class DrawingArea extends JPanel implements Runnable {
     private Graphics2D gbuffer;
     private BufferedImage buffer;
     private MouseDragger mouseDragger;
+    private boolean autoDetail;
+    private DetailLevel detailLevel;
+    private long frameBudget;
+    private long[] detailCost;
+    private int[] densityCounts;
+    private Color[] densityPalette;
+    private int[] triangleX;
+    private int[] triangleY;
+    private Heatmap heatmap;
+    private BufferedImage heatmapImage;
+    private float[] heatmapDensity;
+    private float[] heatmapVelocityX;
+    private float[] heatmapVelocityY;
+    private Trails trails;
+    private int trailLength;
+    private long trailMemoryBudget;
+    private Color trailColor;
+    private Color textColor;
+    private FramePacer pacer;
+    private boolean adaptiveFrameRate;
+    private Properties messages;
+    private volatile ReplayPlayer replay;
+    private volatile PerformanceHud hud;
+    
+    private final static int SIMPLE_DETAIL_BOIDS = 2000; // never draw overlays for more boids than this
+    private final static int DENSITY_DETAIL_BOIDS = 20000; // never draw individual boids for more boids than this
+    private final static int DENSITY_CELL_SIZE = 8;
+    private final static int DENSITY_SHADES = 32;
+    private final static int HEATMAP_CELL_SIZE = 16;
+    private final static double HEATMAP_DECAY = 0.95; // a sample loses half of its weight in about 14 steps
+    private final static double HEATMAP_FULL_DENSITY = 4; // boids per cell drawn with full opacity
     
     /**
      * Creates a new drawing area with the given size.
@@ -86,6 +123,22 @@ public class DrawingArea extends JPanel implements Runnable {
         this.showBoidVelocity = true;
         this.antiAliasing = true;
         
+        this.autoDetail = true;
+        this.detailLevel = DetailLevel.FULL;
+        this.frameBudget = 20 * 1000000L;
+        this.detailCost = new long[DetailLevel.values().length];
+        this.densityPalette = this.createDensityPalette(this.boidColor);
+        this.triangleX = new int[3];
+        this.triangleY = new int[3];
+        
+        this.trailLength = 30;
+        this.trailMemoryBudget = 16 * 1024 * 1024;
+        this.trailColor = new Color(100, 100, 255);
+        
+        this.textColor = Color.BLACK;
+        this.pacer = new FramePacer(100, 60);
+        this.adaptiveFrameRate = false;
+        
         // create a buffer to allow double buffering
         this.buffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
         this.gbuffer = (Graphics2D) this.buffer.getGraphics();
@@ -98,19 +151,54 @@ public class DrawingArea extends JPanel implements Runnable {
     /**
      * Runs the thread. Updates the simulation state and draws everything.
      * If the simulation is stopped, the simulation state won't be updated.
+     * If the adaptive frame rate is enabled, frames are skipped to keep the
+     * target step rate and the loop sleeps only the time left in the step
+     * period. Otherwise a frame is drawn after every step and the loop sleeps
+     * the sleep time.
      */
     public void run() {
         while (true) {
-            if (!this.stopped) {
+            long loopStart = System.nanoTime();
+            boolean stopped = this.stopped;
+            if (!stopped) {
+                PerformanceHud h = this.hud;
+                if (h != null) {
+                    h.stepping();
+                }
+                boolean replaying;
                 synchronized (this.sim.getFlock()) {
-                    this.sim.makeStep();
+                    replaying = this.replay != null;
+                    if (replaying) {
+                        this.replayStep();
+                    } else {
+                        this.sim.makeStep();
+                    }
+                }
+                long stepTime = System.nanoTime() - loopStart;
+                this.pacer.stepped(stepTime);
+                if (h != null) {
+                    h.stepped(replaying ? stepTime : this.sim.getLastStepNanos());
                 }
             }
             
-            this.draw();
+            if (!this.adaptiveFrameRate || this.pacer.shouldDraw(System.nanoTime(), stopped)) {
+                long drawStart = System.nanoTime();
+                this.draw();
+                long now = System.nanoTime();
+                this.pacer.drawn(now - drawStart, now);
+                PerformanceHud h = this.hud;
+                if (h != null) {
+                    h.drawn(now - drawStart);
+                }
+            }
             
             try {
-                Thread.sleep(this.sleepTime);
+                if (this.adaptiveFrameRate) {
+                    long sleep = this.pacer.getSleepTime(loopStart, System.nanoTime(), stopped);
+                    Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+                } else {
+                    Thread.sleep(this.sleepTime);
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -119,42 +207,127 @@ public class DrawingArea extends JPanel implements Runnable {
     }
     
     /**
-     * Draws the simulation state. Draws all obstacles and boids.
-     * Draws the dragging hints if the mouse is dragged.
+     * Moves the replay to the next frame instead of simulating. The replay
+     * stays at the last frame when it ends.
+     */
+    private void replayStep() {
+        try {
+            if (this.replay.next()) {
+                this.replay.apply(this.sim);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.replay = null;
+        }
+    }
+    
+    /**
+     * Draws the simulation state to the back buffer and then on screen.
      */
     private void draw() {
         int w = this.getSize().width;
         int h = this.getSize().height;
-
+        
+        this.render(gbuffer, w, h);
+        
+        if (this.adaptiveFrameRate) {
+            this.drawSkippedFrames(gbuffer);
+        }
+        
+        PerformanceHud overlay = this.hud;
+        if (overlay != null) {
+            overlay.update(System.nanoTime(), this.sim.getFlock());
+            overlay.draw(gbuffer, 5, this.adaptiveFrameRate ? 20 : 5);
+        }
+        
+        // draw the back buffer on screen
+        this.getGraphics().drawImage(buffer, 0, 0, w, h, 0, 0, w, h, null);
+    }
+    
+    /**
+     * Draws the simulation state. Draws all obstacles and boids.
+     * Draws the dragging hints if the mouse is dragged. This does not need a
+     * visible component, so it can be used to draw into offscreen images.
+     * The frame is reported to Flight Recorder as a {@link RenderEvent}.
+     * 
+     * @param g graphics
+     * @param w width of the drawn area
+     * @param h height of the drawn area
+     */
+    void render(Graphics2D g, int w, int h) {
+        RenderEvent event = new RenderEvent();
+        event.begin();
+        int visible = 0;
+        
         // set anti-aliasing
         if (this.antiAliasing) {
-            gbuffer.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         } else {
-            gbuffer.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
         }
         
         // clear the buffer
-        gbuffer.setBackground(Color.WHITE);
-        gbuffer.clearRect(0, 0, w, h);
+        g.setBackground(Color.WHITE);
+        g.clearRect(0, 0, w, h);
+        
+        if (this.heatmap != null) {
+            this.drawHeatmap(g);
+        }
         
         synchronized (this.sim.getFlock()) {
-            this.drawBoids(gbuffer);
+            if (this.trails != null) {
+                // switch to fading trails if the flock has outgrown the memory budget
+                if (this.trails instanceof RingBufferTrails
+                        && this.sim.getFlock().getSize() > ((RingBufferTrails) this.trails).getMaxCapacity()) {
+                    this.setTrails(this.createTrails());
+                }
+                this.trails.draw(g);
+            }
+            
+            visible = this.countVisibleBoids(w, h);
+            this.detailLevel = this.chooseDetailLevel(visible);
+            
+            long start = System.nanoTime();
+            if (this.detailLevel == DetailLevel.DENSITY) {
+                this.drawDensity(g, w, h);
+            } else {
+                this.drawBoids(g, this.detailLevel);
+            }
+            this.detailCost[this.detailLevel.ordinal()] = (System.nanoTime() - start) / Math.max(visible, 1);
         }
         
         synchronized (this.sim.getObstacles()) {
-            this.drawObstacles(gbuffer);
+            this.drawObstacles(g);
         }
         
         if (this.mouseDragger.isDragging()) {
             if (this.mouseDragger.getButton() == MouseEvent.BUTTON1) {
-                this.drawDragArrow(gbuffer);
+                this.drawDragArrow(g);
             } else if (this.mouseDragger.getButton() == MouseEvent.BUTTON3) {
-                this.drawDragCircle(gbuffer);
+                this.drawDragCircle(g);
             }
         }
         
-        // draw the back buffer on screen
-        this.getGraphics().drawImage(buffer, 0, 0, w, h, 0, 0, w, h, null);
+        event.end();
+        if (event.shouldCommit()) {
+            event.boids = visible;
+            event.detailLevel = this.detailLevel.name();
+            event.width = w;
+            event.height = h;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Draws the number of skipped frames to the upper left corner.
+     * 
+     * @param g graphics
+     */
+    private void drawSkippedFrames(Graphics2D g) {
+        g.setColor(this.textColor);
+        String label = this.messages != null ? this.messages.getProperty("STR_SKIPPED_FRAMES") : "";
+        g.drawString(label + " " + this.pacer.getSkippedFrames()
+                + " (" + this.pacer.getStepsPerFrame() + ")", 5, 15);
     }
     
     /**
@@ -187,13 +360,74 @@ public class DrawingArea extends JPanel implements Runnable {
         g.drawLine(this.mouseDragger.getX0(), this.mouseDragger.getY0(), this.mouseDragger.getX1(), this.mouseDragger.getY1());
     }
 
+    /**
+     * Counts the boids which are inside the visible part of the area.
+     * 
+     * @param w visible width
+     * @param h visible height
+     * @return number of visible boids
+     */
+    private int countVisibleBoids(int w, int h) {
+        int n = 0;
+        for (Boid b : this.sim.getFlock().getBoids()) {
+            double x = b.getPosition().getX();
+            double y = b.getPosition().getY();
+            if (x >= 0 && y >= 0 && x < w && y < h) {
+                n++;
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Chooses the level of detail for the next frame. The finest level whose
+     * estimated drawing time fits in the frame budget is chosen. The estimate
+     * is the last measured drawing time per boid on that level multiplied by
+     * the number of visible boids. Levels which are too fine for the number of
+     * visible boids are never chosen.
+     * 
+     * @param visible number of visible boids
+     * @return level of detail
+     */
+    private DetailLevel chooseDetailLevel(int visible) {
+        if (!this.autoDetail) {
+            return DetailLevel.FULL;
+        }
+        
+        DetailLevel coarsest = DetailLevel.FULL;
+        if (visible > DENSITY_DETAIL_BOIDS) {
+            coarsest = DetailLevel.DENSITY;
+        } else if (visible > SIMPLE_DETAIL_BOIDS) {
+            coarsest = DetailLevel.SIMPLE;
+        }
+        
+        for (DetailLevel level : DetailLevel.values()) {
+            if (level.ordinal() < coarsest.ordinal()) {
+                continue;
+            }
+            if (level == DetailLevel.DENSITY || this.detailCost[level.ordinal()] * visible <= this.frameBudget) {
+                return level;
+            }
+        }
+        return DetailLevel.DENSITY;
+    }
+
     /**
      * Draws the boids. Draws also their sights and steering vectors if they are
-     * enabled.
+     * enabled and the level of detail is full.
      * 
      * @param g graphics
+     * @param level level of detail, either full or simple
      */
-    private void drawBoids(Graphics2D g) {
+    private void drawBoids(Graphics2D g, DetailLevel level) {
+        if (level == DetailLevel.SIMPLE) {
+            g.setColor(this.boidColor);
+            for (Boid b : this.sim.getFlock().getBoids()) {
+                this.drawBoidSimple(b, g);
+            }
+            return;
+        }
+        
         for (Boid b : this.sim.getFlock().getBoids()) {
             if (this.showBoidSight) {
                 this.drawBoidSight(b, g);
@@ -289,6 +523,130 @@ public class DrawingArea extends JPanel implements Runnable {
         g.drawPolygon(poly);
     }
     
+    /**
+     * Draws a boid as a filled triangle without edges. Unlike
+     * {@link #drawBoid(Boid, Graphics2D)} this does not create any objects and
+     * does not change the color.
+     * 
+     * @param b boid to draw
+     * @param g graphics
+     */
+    private void drawBoidSimple(Boid b, Graphics2D g) {
+        double px = b.getPosition().getX();
+        double py = b.getPosition().getY();
+        double vx = b.getVelocity().getX();
+        double vy = b.getVelocity().getY();
+        double norm = Math.sqrt(vx * vx + vy * vy);
+        
+        // if the boid is stopped, draw the boid facing right
+        double tx = this.boidSize;
+        double ty = 0;
+        if (norm > 0.000001) {
+            tx = vx / norm * this.boidSize;
+            ty = vy / norm * this.boidSize;
+        }
+        double rx = -ty / 2.5;
+        double ry = tx / 2.5;
+        
+        this.triangleX[0] = (int)(px + rx);
+        this.triangleY[0] = (int)(py + ry);
+        this.triangleX[1] = (int)(px - rx);
+        this.triangleY[1] = (int)(py - ry);
+        this.triangleX[2] = (int)(px + tx);
+        this.triangleY[2] = (int)(py + ty);
+        g.fillPolygon(this.triangleX, this.triangleY, 3);
+    }
+    
+    /**
+     * Draws the boid density. The area is divided into square cells and each
+     * cell is filled with a shade of the boid color. The more boids there are
+     * in a cell, the darker the shade is.
+     * 
+     * @param g graphics
+     * @param w visible width
+     * @param h visible height
+     */
+    private void drawDensity(Graphics2D g, int w, int h) {
+        int cols = w / DENSITY_CELL_SIZE + 1;
+        int rows = h / DENSITY_CELL_SIZE + 1;
+        if (this.densityCounts == null || this.densityCounts.length < cols * rows) {
+            this.densityCounts = new int[cols * rows];
+        }
+        int[] counts = this.densityCounts;
+        Arrays.fill(counts, 0, cols * rows, 0);
+        
+        int max = 0;
+        for (Boid b : this.sim.getFlock().getBoids()) {
+            double x = b.getPosition().getX();
+            double y = b.getPosition().getY();
+            if (x < 0 || y < 0 || x >= w || y >= h) {
+                continue;
+            }
+            int i = ((int) y / DENSITY_CELL_SIZE) * cols + (int) x / DENSITY_CELL_SIZE;
+            counts[i]++;
+            if (counts[i] > max) {
+                max = counts[i];
+            }
+        }
+        
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int n = counts[row * cols + col];
+                if (n == 0) {
+                    continue;
+                }
+                g.setColor(this.densityPalette[(n * (DENSITY_SHADES - 1) + max - 1) / max]);
+                g.fillRect(col * DENSITY_CELL_SIZE, row * DENSITY_CELL_SIZE, DENSITY_CELL_SIZE, DENSITY_CELL_SIZE);
+            }
+        }
+    }
+    
+    /**
+     * Draws the heatmap as an image with one pixel per cell, scaled to the
+     * area size. The opacity of a cell shows the boid density and the hue
+     * shows the direction of the mean velocity.
+     * 
+     * @param g graphics
+     */
+    private void drawHeatmap(Graphics2D g) {
+        Heatmap map = this.heatmap;
+        map.read(this.heatmapDensity, this.heatmapVelocityX, this.heatmapVelocityY);
+        
+        int[] pixels = ((DataBufferInt) this.heatmapImage.getRaster().getDataBuffer()).getData();
+        double full = HEATMAP_FULL_DENSITY * map.getSaturation();
+        for (int i = 0; i < pixels.length; i++) {
+            double d = this.heatmapDensity[i];
+            if (d <= 0) {
+                pixels[i] = 0;
+                continue;
+            }
+            int alpha = (int)(Math.min(1, d / full) * 200);
+            float hue = (float)(Math.atan2(this.heatmapVelocityY[i], this.heatmapVelocityX[i]) / (2 * Math.PI));
+            pixels[i] = (alpha << 24) | (Color.HSBtoRGB(hue, 0.8f, 1) & 0xffffff);
+        }
+        
+        int cell = map.getCellSize();
+        g.drawImage(this.heatmapImage, 0, 0, map.getColumns() * cell, map.getRows() * cell, null);
+    }
+    
+    /**
+     * Creates the shades used by the density map. The shades go from white to
+     * the given color.
+     * 
+     * @param color darkest shade
+     * @return shades
+     */
+    private Color[] createDensityPalette(Color color) {
+        Color[] palette = new Color[DENSITY_SHADES];
+        for (int i = 0; i < DENSITY_SHADES; i++) {
+            double t = (double) i / (DENSITY_SHADES - 1);
+            palette[i] = new Color((int)(255 + t * (color.getRed() - 255)),
+                    (int)(255 + t * (color.getGreen() - 255)),
+                    (int)(255 + t * (color.getBlue() - 255)));
+        }
+        return palette;
+    }
+    
     /**
      * Draws the boid sight.
      * 
@@ -429,6 +787,195 @@ public class DrawingArea extends JPanel implements Runnable {
         return showBoidSight;
     }
 
+    /**
+     * Should we draw the density heatmap. The heatmap collects samples only
+     * while it is shown.
+     * 
+     * @param show true draws the heatmap, false doesn't
+     */
+    public void setShowHeatmap(boolean show) {
+        if (show && this.heatmap == null) {
+            Heatmap map = new Heatmap(this.sim.getSettings().getAreaWidth(), this.sim.getSettings().getAreaHeight(),
+                    HEATMAP_CELL_SIZE, HEATMAP_DECAY);
+            this.heatmapImage = new BufferedImage(map.getColumns(), map.getRows(), BufferedImage.TYPE_INT_ARGB);
+            this.heatmapDensity = new float[map.getCellCount()];
+            this.heatmapVelocityX = new float[map.getCellCount()];
+            this.heatmapVelocityY = new float[map.getCellCount()];
+            this.heatmap = map;
+            this.sim.addStepListener(map);
+        } else if (!show && this.heatmap != null) {
+            this.sim.removeStepListener(this.heatmap);
+            this.heatmap = null;
+        }
+    }
+    
+    /**
+     * Are we drawing the density heatmap.
+     * 
+     * @return true if the heatmap is drawn, false otherwise
+     */
+    public boolean isShowHeatmap() {
+        return this.heatmap != null;
+    }
+
+    /**
+     * Should we draw the performance overlay. The overlay collects samples
+     * only while it is shown. It uses the step time measured by the
+     * simulation, so the flock's step profiler is left alone.
+     * 
+     * @param show true draws the overlay, false doesn't
+     */
+    public void setShowHud(boolean show) {
+        if (show && this.hud == null) {
+            this.hud = new PerformanceHud();
+        } else if (!show && this.hud != null) {
+            this.hud = null;
+        }
+    }
+    
+    /**
+     * Are we drawing the performance overlay.
+     * 
+     * @return true if the overlay is drawn, false otherwise
+     */
+    public boolean isShowHud() {
+        return this.hud != null;
+    }
+
+    /**
+     * Set the adaptive frame rate on/off. When it is on, frames are skipped
+     * to keep the target step rate and the sleep time is not used.
+     * 
+     * @param value adaptive frame rate
+     */
+    public void setAdaptiveFrameRate(boolean value) {
+        this.adaptiveFrameRate = value;
+    }
+    
+    /**
+     * Is the adaptive frame rate enabled.
+     * 
+     * @return true if the adaptive frame rate is enabled, false otherwise
+     */
+    public boolean isAdaptiveFrameRate() {
+        return this.adaptiveFrameRate;
+    }
+    
+    /**
+     * Gets the frame pacer which holds the target step and frame rates used
+     * by the adaptive frame rate.
+     * 
+     * @return frame pacer
+     */
+    public FramePacer getPacer() {
+        return this.pacer;
+    }
+    
+    /**
+     * Sets the gui strings used for the texts drawn on the area.
+     * 
+     * @param messages messages
+     */
+    public void setMessages(Properties messages) {
+        this.messages = messages;
+    }
+    
+    /**
+     * Should we draw the boid trails. The trails are recorded only while they
+     * are shown.
+     * 
+     * @param show true draws the trails, false doesn't
+     */
+    public void setShowTrails(boolean show) {
+        if (show && this.trails == null) {
+            this.setTrails(this.createTrails());
+        } else if (!show && this.trails != null) {
+            this.setTrails(null);
+        }
+    }
+    
+    /**
+     * Are we drawing the boid trails.
+     * 
+     * @return true if the trails are drawn, false otherwise
+     */
+    public boolean isShowTrails() {
+        return this.trails != null;
+    }
+    
+    /**
+     * Sets the trail length. Takes effect the next time the trails are shown.
+     * 
+     * @param length number of steps in a trail, at least 2
+     */
+    public void setTrailLength(int length) {
+        if (length < 2) {
+            throw new IllegalArgumentException("A trail must be at least 2 steps long");
+        }
+        this.trailLength = length;
+    }
+    
+    /**
+     * Gets the trail length.
+     * 
+     * @return number of steps in a trail
+     */
+    public int getTrailLength() {
+        return this.trailLength;
+    }
+    
+    /**
+     * Sets the memory the trails may use. If the positions of every boid fit
+     * in the budget, the trails are drawn from the remembered positions.
+     * Otherwise the trails are faded out in an image, which needs no memory
+     * per boid. Takes effect the next time the trails are shown.
+     * 
+     * @param bytes memory budget in bytes
+     */
+    public void setTrailMemoryBudget(long bytes) {
+        this.trailMemoryBudget = bytes;
+    }
+    
+    /**
+     * Gets the memory the trails may use.
+     * 
+     * @return memory budget in bytes
+     */
+    public long getTrailMemoryBudget() {
+        return this.trailMemoryBudget;
+    }
+    
+    /**
+     * Creates the trails which fit in the memory budget.
+     * 
+     * @return trails
+     */
+    private Trails createTrails() {
+        int n = this.sim.getFlock().getSize();
+        long maxBoids = this.trailMemoryBudget / RingBufferTrails.bytesNeeded(1, this.trailLength);
+        if (n <= maxBoids) {
+            int maxCapacity = (int) Math.min(maxBoids, Integer.MAX_VALUE / (2 * this.trailLength));
+            double maxJump = Math.min(this.sim.getSettings().getAreaWidth(), this.sim.getSettings().getAreaHeight()) / 2.0;
+            return new RingBufferTrails(n * 2, maxCapacity, this.trailLength, this.trailColor, maxJump);
+        }
+        return new FadingTrails(this.width, this.height, this.trailLength, this.trailColor);
+    }
+    
+    /**
+     * Replaces the trails and moves the step listener to the new trails.
+     * 
+     * @param trails new trails, or null to remove the trails
+     */
+    private void setTrails(Trails trails) {
+        if (this.trails != null) {
+            this.sim.removeStepListener(this.trails);
+        }
+        this.trails = trails;
+        if (trails != null) {
+            this.sim.addStepListener(trails);
+        }
+    }
+
     /**
      * Sets the simulation. Must be called after the simulation is loaded from a
      * file.
@@ -436,10 +983,56 @@ public class DrawingArea extends JPanel implements Runnable {
      * @param sim simulation
      */
     public void setSim(Simulation sim) {
+        if (this.heatmap != null) {
+            this.sim.removeStepListener(this.heatmap);
+            this.heatmap.clear();
+            sim.addStepListener(this.heatmap);
+        }
+        if (this.trails != null) {
+            this.sim.removeStepListener(this.trails);
+            this.trails.clear();
+            sim.addStepListener(this.trails);
+        }
         this.sim = sim;
         this.mouseDragger.setSimulation(sim);
     }
     
+    /**
+     * Sets a replay to play instead of simulating. The boids of the
+     * simulation are moved to the frames of the replay.
+     * 
+     * @param replay replay, or null to simulate again
+     */
+    public void setReplay(ReplayPlayer replay) {
+        synchronized (this.sim.getFlock()) {
+            this.replay = replay;
+        }
+    }
+    
+    /**
+     * Gets the replay being played.
+     * 
+     * @return replay, or null if the simulation is running
+     */
+    public ReplayPlayer getReplay() {
+        return this.replay;
+    }
+    
+    /**
+     * Moves the replay to a frame.
+     * 
+     * @param frame frame index
+     * @throws IOException if reading the replay fails
+     */
+    public void seekReplay(int frame) throws IOException {
+        synchronized (this.sim.getFlock()) {
+            if (this.replay != null) {
+                this.replay.seek(frame);
+                this.replay.apply(this.sim);
+            }
+        }
+    }
+    
     /**
      * Set anti-aliasing on/off.
      * 
@@ -457,5 +1050,52 @@ public class DrawingArea extends JPanel implements Runnable {
     public boolean isAntiAliasing() {
         return this.antiAliasing;
     }
+    
+    /**
+     * Set the automatic level of detail on/off. When it is off, everything is
+     * always drawn in full detail.
+     * 
+     * @param value automatic level of detail
+     */
+    public void setAutoDetail(boolean value) {
+        this.autoDetail = value;
+    }
+    
+    /**
+     * Is the automatic level of detail enabled.
+     * 
+     * @return true if the automatic level of detail is enabled, false otherwise
+     */
+    public boolean isAutoDetail() {
+        return this.autoDetail;
+    }
+    
+    /**
+     * Gets the level of detail used to draw the last frame.
+     * 
+     * @return level of detail
+     */
+    public DetailLevel getDetailLevel() {
+        return this.detailLevel;
+    }
+    
+    /**
+     * Sets the time the boids may take to draw. The automatic level of detail
+     * chooses the finest level which fits in this time.
+     * 
+     * @param millis frame budget in milliseconds
+     */
+    public void setFrameBudget(long millis) {
+        this.frameBudget = millis * 1000000L;
+    }
+    
+    /**
+     * Gets the time the boids may take to draw.
+     * 
+     * @return frame budget in milliseconds
+     */
+    public long getFrameBudget() {
+        return this.frameBudget / 1000000L;
+    }
 
 }
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import core.Boid;
+import core.Simulation;
+
+/**
+ * Trails which do not remember any positions. Every step the boid positions
+ * are drawn into a transparent image and the old contents of the image are
+ * faded out. The memory use depends only on the size of the area.
+ */
+public class FadingTrails implements Trails {
+    private BufferedImage image;
+    private Graphics2D graphics;
+    private Composite fade;
+    private Color color;
+
+    /**
+     * Creates new trails.
+     *
+     * @param w area width
+     * @param h area height
+     * @param length number of steps after which a position has mostly faded out
+     * @param color color of the trails
+     */
+    public FadingTrails(int w, int h, int length, Color color) {
+        this.image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        this.graphics = this.image.createGraphics();
+        this.color = color;
+
+        // after 'length' steps only 5 percent of the opacity is left
+        float keep = (float) Math.pow(0.05, 1.0 / Math.max(length, 1));
+        this.fade = AlphaComposite.getInstance(AlphaComposite.DST_IN, keep);
+    }
+
+    /**
+     * Gets the number of bytes needed for the image.
+     *
+     * @param w area width
+     * @param h area height
+     * @return number of bytes
+     */
+    public static long bytesNeeded(int w, int h) {
+        return (long) w * h * 4;
+    }
+
+    /**
+     * Fades the image and draws the current boid positions.
+     *
+     * @param sim simulation
+     */
+    public synchronized void stepCompleted(Simulation sim) {
+        Composite old = this.graphics.getComposite();
+        this.graphics.setComposite(this.fade);
+        this.graphics.fillRect(0, 0, this.image.getWidth(), this.image.getHeight());
+        this.graphics.setComposite(old);
+
+        this.graphics.setColor(this.color);
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        for (int i = 0; i < boids.size(); i++) {
+            Boid b = boids.get(i);
+            this.graphics.fillRect((int) b.getPosition().getX(), (int) b.getPosition().getY(), 2, 2);
+        }
+    }
+
+    /**
+     * Draws the trail image.
+     *
+     * @param g graphics
+     */
+    public synchronized void draw(Graphics2D g) {
+        g.drawImage(this.image, 0, 0, null);
+    }
+
+    /**
+     * Makes the image fully transparent.
+     */
+    public synchronized void clear() {
+        Composite old = this.graphics.getComposite();
+        this.graphics.setComposite(AlphaComposite.Clear);
+        this.graphics.fillRect(0, 0, this.image.getWidth(), this.image.getHeight());
+        this.graphics.setComposite(old);
+    }
+
+}
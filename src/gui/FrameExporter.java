@@ -0,0 +1,226 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+import core.BinarySaveFile;
+import core.SaveFile;
+import core.Simulation;
+import core.StreamingXMLSaveFile;
+
+/**
+ * Runs a simulation without a window and writes every frame to a PNG file.
+ * The frames are drawn with the drawing code of {@link DrawingArea} into
+ * offscreen images. The images are encoded and written by a pool of worker
+ * threads, so the simulation can run as fast as the CPU allows.
+ *
+ * The images are taken from a fixed size pool. When every image is waiting
+ * to be written, the simulation waits until a worker returns one. This keeps
+ * the memory use bounded when the disk is slower than the simulation.
+ */
+public class FrameExporter {
+    private Simulation sim;
+    private DrawingArea area;
+    private File directory;
+    private int width;
+    private int height;
+    private long frame;
+    private ExecutorService workers;
+    private BlockingQueue<BufferedImage> freeImages;
+    private volatile IOException failure;
+
+    /**
+     * Creates a new exporter.
+     *
+     * @param sim simulation to export
+     * @param area drawing area whose settings are used to draw the frames
+     * @param directory the frames are written to this directory
+     * @param threads number of worker threads
+     * @param queueLength number of frames which may wait for a worker
+     */
+    public FrameExporter(Simulation sim, DrawingArea area, File directory, int threads, int queueLength) {
+        this.sim = sim;
+        this.area = area;
+        this.directory = directory;
+        this.width = area.getPreferredSize().width;
+        this.height = area.getPreferredSize().height;
+        this.frame = 0;
+        this.workers = Executors.newFixedThreadPool(threads);
+
+        int images = threads + queueLength;
+        this.freeImages = new ArrayBlockingQueue<BufferedImage>(images);
+        for (int i = 0; i < images; i++) {
+            this.freeImages.add(new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB));
+        }
+    }
+
+    /**
+     * Makes the given number of steps and exports a frame after every step.
+     *
+     * @param steps number of steps
+     * @throws IOException if writing a frame failed
+     * @throws InterruptedException if the thread was interrupted while waiting for a free image
+     */
+    public void export(long steps) throws IOException, InterruptedException {
+        for (long i = 0; i < steps; i++) {
+            this.sim.makeStep();
+            this.exportFrame();
+        }
+    }
+
+    /**
+     * Draws the current simulation state and queues it for writing. Waits if
+     * all images are queued.
+     *
+     * @throws IOException if writing an earlier frame failed
+     * @throws InterruptedException if the thread was interrupted while waiting for a free image
+     */
+    public void exportFrame() throws IOException, InterruptedException {
+        this.checkFailure();
+
+        BufferedImage image = this.freeImages.take();
+        Graphics2D g = image.createGraphics();
+        this.area.render(g, this.width, this.height);
+        g.dispose();
+
+        File file = new File(this.directory, String.format("frame%06d.png", this.frame++));
+        this.workers.execute(new FrameWriter(image, file));
+    }
+
+    /**
+     * Waits until all queued frames are written and stops the worker threads.
+     *
+     * @throws IOException if writing a frame failed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void close() throws IOException, InterruptedException {
+        this.workers.shutdown();
+        this.workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        this.checkFailure();
+    }
+
+    /**
+     * Gets the number of frames exported so far.
+     *
+     * @return number of frames
+     */
+    public long getFrameCount() {
+        return this.frame;
+    }
+
+    /**
+     * Throws the first exception a worker has got.
+     *
+     * @throws IOException exception got by a worker
+     */
+    private void checkFailure() throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Encodes one image to a file and returns the image to the pool.
+     */
+    private class FrameWriter implements Runnable {
+        private BufferedImage image;
+        private File file;
+
+        /**
+         * The constructor.
+         *
+         * @param image image to write
+         * @param file destination file
+         */
+        public FrameWriter(BufferedImage image, File file) {
+            this.image = image;
+            this.file = file;
+        }
+
+        public void run() {
+            try {
+                if (!ImageIO.write(this.image, "png", this.file)) {
+                    throw new IOException("No PNG encoder available");
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = new IOException("Could not write " + this.file + ": " + e.getMessage(), e);
+                }
+            } finally {
+                freeImages.add(this.image);
+            }
+        }
+    }
+
+    /**
+     * Loads a simulation and exports the given number of frames. Usage:
+     * FrameExporter savefile steps directory [threads]
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: FrameExporter savefile steps directory [threads]");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+
+        File input = new File(args[0]);
+        long steps = Long.parseLong(args[1]);
+        File directory = new File(args[2]);
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        try {
+            SaveFile saveFile = new StreamingXMLSaveFile();
+            if (input.getName().endsWith("." + new BinarySaveFile().getFilenameExtension())) {
+                saveFile = new BinarySaveFile();
+            }
+            Simulation sim = saveFile.loadSimulation(input);
+            sim.getFlock().setSettings(sim.getSettings()); // make sure everything uses the same settings object
+            directory.mkdirs();
+
+            DrawingArea area = new DrawingArea(sim, sim.getSettings().getAreaWidth(), sim.getSettings().getAreaHeight());
+            FrameExporter exporter = new FrameExporter(sim, area, directory, threads, 2 * threads);
+            long start = System.nanoTime();
+            try {
+                exporter.export(steps);
+            } finally {
+                exporter.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Exported %d frames in %.1f s (%.1f frames/s)%n",
+                    exporter.getFrameCount(), seconds, exporter.getFrameCount() / seconds);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+/**
+ * Decides when the simulation loop should draw a frame. The pacer measures
+ * how long steps and frames take and skips frames so that the simulation can
+ * make the target number of steps per second. The frame rate is also capped
+ * to the target frame rate. All times are in nanoseconds.
+ */
+public class FramePacer {
+    private double stepTime;
+    private double drawTime;
+    private long stepPeriod;
+    private long framePeriod;
+    private long lastDraw;
+    private int stepsSinceDraw;
+    private long skipped;
+
+    private final static double SMOOTHING = 0.1; // weight of the newest sample in the averages
+    private final static long MAX_FRAME_PERIOD = 250 * 1000000L; // draw at least four frames per second
+
+    /**
+     * Creates a new pacer.
+     *
+     * @param stepRate target steps per second
+     * @param frameRate maximum frames per second
+     */
+    public FramePacer(double stepRate, double frameRate) {
+        this.setTargetStepRate(stepRate);
+        this.setTargetFrameRate(frameRate);
+        this.lastDraw = 0;
+        this.stepsSinceDraw = 0;
+        this.skipped = 0;
+    }
+
+    /**
+     * Records the duration of a step.
+     *
+     * @param nanos step duration
+     */
+    public void stepped(long nanos) {
+        this.stepTime = this.stepTime == 0 ? nanos : this.stepTime + SMOOTHING * (nanos - this.stepTime);
+        this.stepsSinceDraw++;
+    }
+
+    /**
+     * Records the duration of a frame.
+     *
+     * @param nanos frame duration
+     * @param now time when the frame was finished
+     */
+    public void drawn(long nanos, long now) {
+        this.drawTime = this.drawTime == 0 ? nanos : this.drawTime + SMOOTHING * (nanos - this.drawTime);
+        this.lastDraw = now;
+        this.stepsSinceDraw = 0;
+    }
+
+    /**
+     * Should a frame be drawn now. If not, the frame is counted as skipped.
+     *
+     * A frame is never drawn sooner than the frame period after the previous
+     * frame. If drawing after every step would make the simulation slower
+     * than the target step rate, a frame is drawn only after enough steps
+     * that the drawing time is spread over them. A frame is always drawn at
+     * least four times a second.
+     *
+     * @param now current time
+     * @param stopped is the simulation stopped
+     * @return true if a frame should be drawn
+     */
+    public boolean shouldDraw(long now, boolean stopped) {
+        long elapsed = now - this.lastDraw;
+        boolean draw;
+        if (elapsed < this.framePeriod) {
+            draw = false;
+        } else if (stopped || elapsed >= MAX_FRAME_PERIOD) {
+            draw = true;
+        } else {
+            draw = this.stepsSinceDraw >= this.getStepsPerFrame();
+        }
+
+        if (!draw && !stopped) {
+            this.skipped++;
+        }
+        return draw;
+    }
+
+    /**
+     * Gets the number of steps to make per frame so that the average time of
+     * a step including its share of the drawing fits in the step period.
+     *
+     * @return steps per frame
+     */
+    public int getStepsPerFrame() {
+        double spare = this.stepPeriod - this.stepTime; // time left for drawing in each step
+        if (spare <= 0) {
+            return Integer.MAX_VALUE; // can't keep up even without drawing
+        }
+        return (int) Math.max(1, Math.ceil(this.drawTime / spare));
+    }
+
+    /**
+     * Gets how long to sleep after a loop which started at the given time.
+     *
+     * @param loopStart time when the loop started
+     * @param now current time
+     * @param stopped is the simulation stopped
+     * @return sleep time, zero if the loop is late
+     */
+    public long getSleepTime(long loopStart, long now, boolean stopped) {
+        long period = stopped ? this.framePeriod : this.stepPeriod;
+        return Math.max(0, period - (now - loopStart));
+    }
+
+    /**
+     * Sets the target number of steps per second.
+     *
+     * @param rate steps per second
+     */
+    public final void setTargetStepRate(double rate) {
+        this.stepPeriod = (long) (1e9 / rate);
+    }
+
+    /**
+     * Gets the target number of steps per second.
+     *
+     * @return steps per second
+     */
+    public double getTargetStepRate() {
+        return 1e9 / this.stepPeriod;
+    }
+
+    /**
+     * Sets the maximum number of frames per second.
+     *
+     * @param rate frames per second
+     */
+    public final void setTargetFrameRate(double rate) {
+        this.framePeriod = (long) (1e9 / rate);
+    }
+
+    /**
+     * Gets the maximum number of frames per second.
+     *
+     * @return frames per second
+     */
+    public double getTargetFrameRate() {
+        return 1e9 / this.framePeriod;
+    }
+
+    /**
+     * Gets the average step duration.
+     *
+     * @return step duration
+     */
+    public long getStepTime() {
+        return (long) this.stepTime;
+    }
+
+    /**
+     * Gets the average frame duration.
+     *
+     * @return frame duration
+     */
+    public long getDrawTime() {
+        return (long) this.drawTime;
+    }
+
+    /**
+     * Gets the number of skipped frames.
+     *
+     * @return skipped frames
+     */
+    public long getSkippedFrames() {
+        return this.skipped;
+    }
+
+}
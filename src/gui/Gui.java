@@ -20,11 +20,14 @@ package gui;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BoxLayout;
 import javax.swing.JCheckBoxMenuItem;
@@ -35,11 +38,22 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JSlider;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import core.BinarySaveFile;
+import core.IndexedSaveFile;
+import core.ReplayPlayer;
+import core.ReplayWriter;
 import core.SaveFile;
+import core.SaveProgress;
 import core.Simulation;
-import core.XMLSaveFile;
+import core.StreamingXMLSaveFile;
 
 /**
  * This class provides a graphical user interface to the boids simulation
@@ -51,7 +65,16 @@ public class Gui extends JFrame {
     private OptionsPanel options;
     private JFileChooser fc;
     private Properties messages;
-    private SaveFile saveFile;
+    private SaveFile[] saveFiles;
+    private FileNameExtensionFilter[] filters;
+    private JFileChooser replayChooser;
+    private ReplayWriter recorder;
+    private JCheckBoxMenuItem recordReplay;
+    private JSlider replaySlider;
+    private JProgressBar saveProgress;
+    
+    private final static int REPLAY_KEYFRAME_INTERVAL = 50;
+    private final static int REPLAY_SLIDER_UPDATE = 100; // milliseconds
     
     /**
      * Creates a new gui window. Loads Gui strings from 'messages' file.
@@ -63,22 +86,34 @@ public class Gui extends JFrame {
         this.setTitle(this.messages.getProperty("STR_TITLE"));
         this.sim = sim;
         this.area = new DrawingArea(this.sim, 800, 800);
+        this.area.setMessages(this.messages);
         this.thread = new Thread(this.area);
         this.sim.getFlock().addRandomBoids(200, 200, 400, 400, 50);
         this.fc = new JFileChooser(".");
-        this.saveFile = new XMLSaveFile();
+        this.saveFiles = new SaveFile[] { new StreamingXMLSaveFile(), new BinarySaveFile(), new IndexedSaveFile() };
         
-        // set the filename extension filter to the file chooser
-        String description = this.saveFile.getFilenameDescription();
-        String extension = this.saveFile.getFilenameExtension();
-        FileNameExtensionFilter filter = new FileNameExtensionFilter(description, extension);
-        this.fc.setFileFilter(filter);
+        // add a filename extension filter for every save file format to the file chooser
+        this.filters = new FileNameExtensionFilter[this.saveFiles.length];
+        for (int i = 0; i < this.saveFiles.length; i++) {
+            String description = this.saveFiles[i].getFilenameDescription();
+            String extension = this.saveFiles[i].getFilenameExtension();
+            this.filters[i] = new FileNameExtensionFilter(description, extension);
+            this.fc.addChoosableFileFilter(this.filters[i]);
+        }
+        this.fc.setFileFilter(this.filters[0]);
+        this.replayChooser = new JFileChooser(".");
+        this.replayChooser.setFileFilter(new FileNameExtensionFilter(this.messages.getProperty("STR_REPLAY_FILES"), "replay"));
         
         JPanel panel = new JPanel();
         this.setContentPane(panel);
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
         
         panel.add(area);
+        panel.add(this.createReplaySlider());
+        this.saveProgress = new JProgressBar(0, 100);
+        this.saveProgress.setStringPainted(true);
+        this.saveProgress.setVisible(false);
+        panel.add(this.saveProgress);
         
         options = new OptionsPanel(this.sim, this.thread, this.area, this.messages);
         panel.add(options);
@@ -115,6 +150,28 @@ public class Gui extends JFrame {
         return properties;
     }
     
+    /**
+     * Gets the save file format for a file. The format is chosen by the
+     * filename extension. If the extension is unknown, the format of the
+     * selected file filter is used.
+     * 
+     * @param file file
+     * @return save file format
+     */
+    private SaveFile getSaveFile(File file) {
+        for (SaveFile s : this.saveFiles) {
+            if (file.getName().toLowerCase().endsWith("." + s.getFilenameExtension())) {
+                return s;
+            }
+        }
+        for (int i = 0; i < this.filters.length; i++) {
+            if (this.fc.getFileFilter() == this.filters[i]) {
+                return this.saveFiles[i];
+            }
+        }
+        return this.saveFiles[0];
+    }
+    
     /**
      * Creates the menubar.
      */
@@ -128,6 +185,7 @@ public class Gui extends JFrame {
         JMenuItem newSimulation = new JMenuItem(this.messages.getProperty("STR_MENU_NEW_SIMULATION"), KeyEvent.VK_N);
         newSimulation.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                closeReplay();
                 sim.reset();
                 options.reset();
                 options.pause();
@@ -147,30 +205,24 @@ public class Gui extends JFrame {
             }
         });
         
-        JMenuItem save = new JMenuItem(this.messages.getProperty("STR_MENU_SAVE"), KeyEvent.VK_S);
+        final JMenuItem save = new JMenuItem(this.messages.getProperty("STR_MENU_SAVE"), KeyEvent.VK_S);
         save.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                area.stop(); // stop the simulation when saving
-                options.pause(); // indicate the options panel that the simulation is paused
                 if (fc.showSaveDialog(Gui.this) != JFileChooser.APPROVE_OPTION) {
                     return;
                 }
                 
                 File file = fc.getSelectedFile();
-                sim.getFlock().deleteObservers(); // delete the observers (optionsPanel) to
-                                                  // avoid saving unnecessary gui
-                                                  // objects to save file
-                
                 try {
-                    saveFile.saveSimulation(sim, file);
-                    setTitle(messages.getProperty("STR_TITLE") + " " + file.getName()); // show filename in title
+                    // The simulation keeps running, so a copy taken between two steps is saved.
+                    // The copy has no observers, so no gui objects end up in the save file.
+                    Simulation snapshot = sim.snapshot();
+                    save.setEnabled(false); // one save at a time
+                    new BackgroundSave(snapshot, getSaveFile(file), file, save).execute();
                 } catch (IOException e1) {
-                    // the save was not successful, show a warning to the user
                     String message = messages.getProperty("STR_SAVE_FAIL") + file.getAbsolutePath();
                     JOptionPane.showMessageDialog(Gui.this, message, message, JOptionPane.ERROR_MESSAGE);
                 }
-                
-                sim.getFlock().addObserver(options); // restore the observer
             }
         });
         
@@ -185,7 +237,7 @@ public class Gui extends JFrame {
                 
                 File file = fc.getSelectedFile();
                 try {
-                    Simulation newSim = saveFile.loadSimulation(file);
+                    Simulation newSim = getSaveFile(file).loadSimulation(file);
                     
                     // check that the save file version is correct
                     if (newSim.getSettings().getVersion() != sim.getSettings().getVersion()) {
@@ -194,14 +246,9 @@ public class Gui extends JFrame {
                         return;
                     }
                     
-                    // set the new simulation for every class
-                    sim = newSim;
-                    area.setSim(sim);
-                    options.setSim(sim);
-                    options.reset();
-                    
-                    sim.getFlock().addObserver(options); // Restore the observer
-                    sim.getFlock().setSettings(sim.getSettings()); // make sure everything uses the same settings object
+                    closeReplay();
+                    stopRecording();
+                    setSim(newSim);
                     setTitle(messages.getProperty("STR_TITLE") + " " + file.getName()); // show filename in title
                 } catch (IOException e1) {
                     // the load was not successful, show a warning to the user
@@ -211,6 +258,52 @@ public class Gui extends JFrame {
             }
         });
         
+        this.recordReplay = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_RECORD_REPLAY"));
+        this.recordReplay.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (!recordReplay.isSelected()) {
+                    stopRecording();
+                    return;
+                }
+                recordReplay.setSelected(false);
+                if (replayChooser.showSaveDialog(Gui.this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                File file = replayChooser.getSelectedFile();
+                if (!file.getName().contains(".")) {
+                    file = new File(file.getPath() + ".replay");
+                }
+                try {
+                    recorder = new ReplayWriter(file, sim.getSettings(), REPLAY_KEYFRAME_INTERVAL);
+                    sim.addStepListener(recorder);
+                    recordReplay.setSelected(true);
+                } catch (IOException e1) {
+                    String message = messages.getProperty("STR_SAVE_FAIL") + file.getAbsolutePath();
+                    JOptionPane.showMessageDialog(Gui.this, message, message, JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        
+        JMenuItem openReplay = new JMenuItem(this.messages.getProperty("STR_MENU_OPEN_REPLAY"), KeyEvent.VK_R);
+        openReplay.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                area.stop();
+                options.pause();
+                if (replayChooser.showOpenDialog(Gui.this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                
+                File file = replayChooser.getSelectedFile();
+                try {
+                    openReplay(file);
+                    setTitle(messages.getProperty("STR_TITLE") + " " + file.getName());
+                } catch (IOException e1) {
+                    String message = messages.getProperty("STR_LOAD_FAIL") + file.getAbsolutePath();
+                    JOptionPane.showMessageDialog(Gui.this, message, message, JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        
         JMenuItem quit = new JMenuItem(this.messages.getProperty("STR_MENU_QUIT"), KeyEvent.VK_Q);
         quit.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
@@ -227,6 +320,15 @@ public class Gui extends JFrame {
             }            
         });
         
+        JCheckBoxMenuItem autoDetail = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_AUTO_DETAIL"));
+        autoDetail.setSelected(this.area.isAutoDetail());
+        autoDetail.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JCheckBoxMenuItem item = (JCheckBoxMenuItem) e.getSource();
+                area.setAutoDetail(item.isSelected());
+            }
+        });
+        
         JCheckBoxMenuItem control = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_CONTROL_VECTORS"));
         control.setSelected(this.area.isShowControlVector());
         control.addActionListener(new ActionListener() {
@@ -254,17 +356,61 @@ public class Gui extends JFrame {
             }           
         });
         
+        JCheckBoxMenuItem heatmap = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_HEATMAP"));
+        heatmap.setSelected(this.area.isShowHeatmap());
+        heatmap.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JCheckBoxMenuItem item = (JCheckBoxMenuItem) e.getSource();
+                area.setShowHeatmap(item.isSelected());
+            }
+        });
+        
+        JCheckBoxMenuItem trails = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_TRAILS"));
+        trails.setSelected(this.area.isShowTrails());
+        trails.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JCheckBoxMenuItem item = (JCheckBoxMenuItem) e.getSource();
+                area.setShowTrails(item.isSelected());
+            }
+        });
+        
+        JCheckBoxMenuItem adaptive = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_ADAPTIVE_FRAME_RATE"));
+        adaptive.setSelected(this.area.isAdaptiveFrameRate());
+        adaptive.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JCheckBoxMenuItem item = (JCheckBoxMenuItem) e.getSource();
+                area.setAdaptiveFrameRate(item.isSelected());
+            }
+        });
+        
+        JCheckBoxMenuItem hud = new JCheckBoxMenuItem(this.messages.getProperty("STR_MENU_HUD"));
+        hud.setSelected(this.area.isShowHud());
+        hud.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JCheckBoxMenuItem item = (JCheckBoxMenuItem) e.getSource();
+                area.setShowHud(item.isSelected());
+            }
+        });
+        
         simulationMenu.add(newSimulation);
         simulationMenu.add(clear);
         simulationMenu.add(save);
         simulationMenu.add(load);
         simulationMenu.addSeparator();
+        simulationMenu.add(this.recordReplay);
+        simulationMenu.add(openReplay);
+        simulationMenu.addSeparator();
         simulationMenu.add(quit);
         
         optionsMenu.add(aliasing);
+        optionsMenu.add(autoDetail);
+        optionsMenu.add(adaptive);
         optionsMenu.add(control);
         optionsMenu.add(velocity);
         optionsMenu.add(boidSight);
+        optionsMenu.add(heatmap);
+        optionsMenu.add(trails);
+        optionsMenu.add(hud);
 
         simulationMenu.getPopupMenu().setLightWeightPopupEnabled(false); // avoid drawing area overlap
         optionsMenu.getPopupMenu().setLightWeightPopupEnabled(false); // avoid drawing area overlap
@@ -274,6 +420,183 @@ public class Gui extends JFrame {
         this.setJMenuBar(menubar);
     }
 
+    /**
+     * Sets the simulation for every class.
+     * 
+     * @param newSim simulation
+     */
+    private void setSim(Simulation newSim) {
+        this.sim = newSim;
+        this.area.setSim(this.sim);
+        this.options.setSim(this.sim);
+        this.options.reset();
+        
+        this.sim.getFlock().addObserver(this.options); // Restore the observer
+        this.sim.getFlock().setSettings(this.sim.getSettings()); // make sure everything uses the same settings object
+    }
+    
+    /**
+     * Creates the slider for moving in a replay. The slider is hidden until
+     * a replay is opened and follows the replay while it plays.
+     * 
+     * @return slider
+     */
+    private JSlider createReplaySlider() {
+        this.replaySlider = new JSlider(0, 0, 0);
+        this.replaySlider.setVisible(false);
+        this.replaySlider.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                ReplayPlayer replay = area.getReplay();
+                if (replay == null || replaySlider.getValue() == replay.getFrame()) {
+                    return;
+                }
+                try {
+                    area.seekReplay(replaySlider.getValue());
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+        
+        new Timer(REPLAY_SLIDER_UPDATE, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                ReplayPlayer replay = area.getReplay();
+                if (replay != null && !replaySlider.getValueIsAdjusting()) {
+                    replaySlider.setValue(replay.getFrame());
+                }
+            }
+        }).start();
+        return this.replaySlider;
+    }
+    
+    /**
+     * Opens a replay. The replay is played in a new simulation which has
+     * only the boids of the replay.
+     * 
+     * @param file replay file
+     * @throws IOException if the replay can't be opened
+     */
+    private void openReplay(File file) throws IOException {
+        ReplayPlayer replay = new ReplayPlayer(file);
+        this.closeReplay();
+        this.stopRecording();
+        
+        Simulation replaySim = new Simulation();
+        replaySim.getSettings().setAreaWidth(replay.getAreaWidth());
+        replaySim.getSettings().setAreaHeight(replay.getAreaHeight());
+        this.setSim(replaySim);
+        this.area.setReplay(replay);
+        if (replay.getFrameCount() > 0) {
+            this.area.seekReplay(0);
+        }
+        
+        this.replaySlider.setMaximum(Math.max(0, replay.getFrameCount() - 1));
+        this.replaySlider.setValue(0);
+        this.replaySlider.setVisible(true);
+        this.pack();
+    }
+    
+    /**
+     * Closes the replay if one is open. The boids of the replay stay in the
+     * simulation.
+     */
+    private void closeReplay() {
+        ReplayPlayer replay = this.area.getReplay();
+        if (replay == null) {
+            return;
+        }
+        this.area.setReplay(null);
+        try {
+            replay.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.replaySlider.setVisible(false);
+        this.pack();
+    }
+    
+    /**
+     * Stops recording a replay if a replay is being recorded.
+     */
+    private void stopRecording() {
+        this.recordReplay.setSelected(false);
+        if (this.recorder == null) {
+            return;
+        }
+        this.sim.removeStepListener(this.recorder);
+        try {
+            this.recorder.close();
+        } catch (IOException e) {
+            String message = this.messages.getProperty("STR_SAVE_FAIL") + e.getMessage();
+            JOptionPane.showMessageDialog(this, message, message, JOptionPane.ERROR_MESSAGE);
+        }
+        this.recorder = null;
+    }
+    
+    /**
+     * Writes a snapshot of the simulation in a background thread and shows
+     * the progress below the drawing area.
+     */
+    private class BackgroundSave extends SwingWorker<Void, Void> implements SaveProgress {
+        private Simulation snapshot;
+        private SaveFile saveFile;
+        private File file;
+        private JMenuItem saveItem;
+        
+        /**
+         * The constructor.
+         * 
+         * @param snapshot copy of the simulation to save
+         * @param saveFile save file format
+         * @param file destination file
+         * @param saveItem menu item which is enabled again when the save is done
+         */
+        public BackgroundSave(Simulation snapshot, SaveFile saveFile, File file, JMenuItem saveItem) {
+            this.snapshot = snapshot;
+            this.saveFile = saveFile;
+            this.file = file;
+            this.saveItem = saveItem;
+            
+            saveProgress.setValue(0);
+            saveProgress.setVisible(true);
+            Gui.this.pack();
+            this.addPropertyChangeListener(new PropertyChangeListener() {
+                public void propertyChange(PropertyChangeEvent e) {
+                    if (e.getPropertyName().equals("progress")) {
+                        saveProgress.setValue((Integer) e.getNewValue());
+                    }
+                }
+            });
+        }
+        
+        @Override
+        protected Void doInBackground() throws IOException {
+            this.saveFile.saveSimulation(this.snapshot, this.file, this);
+            return null;
+        }
+        
+        public void progress(long done, long total) {
+            this.setProgress(total > 0 ? (int) (100 * done / total) : 100);
+        }
+        
+        @Override
+        protected void done() {
+            saveProgress.setVisible(false);
+            Gui.this.pack();
+            this.saveItem.setEnabled(true);
+            try {
+                this.get();
+                setTitle(messages.getProperty("STR_TITLE") + " " + this.file.getName()); // show filename in title
+            } catch (ExecutionException e) {
+                // the save was not successful, show a warning to the user
+                String message = messages.getProperty("STR_SAVE_FAIL") + this.file.getAbsolutePath();
+                JOptionPane.showMessageDialog(Gui.this, message, message, JOptionPane.ERROR_MESSAGE);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
     /**
      * Creates a gui and starts the simulation.
      * 
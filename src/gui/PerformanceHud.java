@@ -0,0 +1,274 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import core.Boid;
+import core.Flock;
+import core.Histogram;
+
+/**
+ * An overlay showing how fast the simulation runs: steps and frames per
+ * second, the share of the time spent stepping and drawing, step and draw
+ * time percentiles, the average number of neighbours, the allocation rate
+ * of the simulation thread and the time spent in garbage collection. If
+ * the virtual machine counts the allocations of each thread, the bytes
+ * allocated per step are shown too. The overlay reads the counter only
+ * before and after each step, so it needs no step profiler.
+ *
+ * The samples are collected into histograms and the text is formatted only
+ * once per second, so drawing the overlay costs a few drawString calls per
+ * frame. All methods must be called from the thread which runs the
+ * simulation.
+ */
+class PerformanceHud {
+    private Histogram stepTimes;
+    private Histogram stepBytes;
+    private Histogram drawTimes;
+    private long windowStart;
+    private long busy;
+    private ThreadMXBean threads;
+    private MemoryMXBean memory;
+    private List<GarbageCollectorMXBean> collectors;
+    private long lastAllocated;
+    private long lastHeapUsed;
+    private long lastGcTime;
+    private long lastGcCount;
+    private long stepStartBytes;
+    private boolean started;
+    private String[] lines;
+    private Color background;
+    private Color foreground;
+
+    private final static long WINDOW = 1000000000L; // nanoseconds between updates of the text
+    private final static int LINE_HEIGHT = 14;
+    private final static int WIDTH = 270;
+    private final static double MB = 1024.0 * 1024.0;
+    private final static double KB = 1024.0;
+
+    /**
+     * Creates a new overlay. The counters are read for the first time on
+     * the first update, and the first numbers are shown a second later.
+     */
+    public PerformanceHud() {
+        this.stepTimes = new Histogram();
+        this.stepBytes = new Histogram();
+        this.drawTimes = new Histogram();
+        this.threads = ManagementFactory.getThreadMXBean();
+        this.memory = ManagementFactory.getMemoryMXBean();
+        this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        this.lines = new String[0];
+        this.background = new Color(255, 255, 255, 200);
+        this.foreground = Color.BLACK;
+        this.started = false;
+    }
+
+    /**
+     * Reads the allocation counter of the simulation thread before a step.
+     */
+    public void stepping() {
+        this.stepStartBytes = this.getAllocatedBytes();
+    }
+
+    /**
+     * Records the time of a step and the bytes the simulation thread has
+     * allocated since {@link #stepping()}.
+     *
+     * @param nanos step time in nanoseconds
+     */
+    public void stepped(long nanos) {
+        this.stepTimes.record(nanos);
+        this.busy += nanos;
+        if (this.stepStartBytes >= 0) {
+            this.stepBytes.record(this.getAllocatedBytes() - this.stepStartBytes);
+        }
+    }
+
+    /**
+     * Records the time of drawing a frame.
+     *
+     * @param nanos drawing time in nanoseconds
+     */
+    public void drawn(long nanos) {
+        this.drawTimes.record(nanos);
+        this.busy += nanos;
+    }
+
+    /**
+     * Formats the text again if a second has passed since the last time.
+     *
+     * @param now current time from System.nanoTime()
+     * @param flock flock whose neighbour counts are averaged
+     */
+    public void update(long now, Flock flock) {
+        if (!this.started) {
+            // the overlay is created in the event thread, read the counters of the simulation thread here
+            this.windowStart = now;
+            this.lastAllocated = this.getAllocatedBytes();
+            this.lastHeapUsed = this.memory.getHeapMemoryUsage().getUsed();
+            this.lastGcTime = this.getGcTime();
+            this.lastGcCount = this.getGcCount();
+            this.stepTimes.reset();
+            this.stepBytes.reset();
+            this.drawTimes.reset();
+            this.busy = 0;
+            this.started = true;
+            return;
+        }
+        long elapsed = now - this.windowStart;
+        if (elapsed < WINDOW) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+
+        double neighbours = 0;
+        synchronized (flock) {
+            ArrayList<Boid> boids = flock.getBoids();
+            for (int i = 0; i < boids.size(); i++) {
+                neighbours += boids.get(i).getNeighbourCount();
+            }
+            neighbours /= Math.max(1, boids.size());
+        }
+
+        MemoryUsage heap = this.memory.getHeapMemoryUsage();
+        long gcTime = this.getGcTime();
+        long gcCount = this.getGcCount();
+        long allocated = this.getAllocatedBytes();
+        String allocation;
+        if (allocated >= 0) {
+            allocation = String.format("alloc %.1f MB/s (sim thread)", (allocated - this.lastAllocated) / MB / seconds);
+        } else {
+            // without per-thread counters, only the heap growth between collections is seen
+            long growth = Math.max(0, heap.getUsed() - this.lastHeapUsed);
+            allocation = String.format("heap growth %.1f MB/s", growth / MB / seconds);
+        }
+
+        ArrayList<String> text = new ArrayList<String>();
+        String[] common = new String[] {
+            String.format("steps/s %.1f  frames/s %.1f  busy %.0f%%", this.stepTimes.getCount() / seconds,
+                    this.drawTimes.getCount() / seconds, 100.0 * this.busy / elapsed),
+            PerformanceHud.formatTimes("step", this.stepTimes),
+            PerformanceHud.formatTimes("draw", this.drawTimes),
+            String.format("neighbours/boid %.1f", neighbours),
+            allocation,
+            String.format("heap %.0f / %.0f MB", heap.getUsed() / MB, heap.getMax() / MB),
+            String.format("GC %d ms/s, %d collections", Math.round((gcTime - this.lastGcTime) / seconds),
+                    gcCount - this.lastGcCount)
+        };
+        for (String line : common) {
+            text.add(line);
+        }
+        if (this.stepBytes.getCount() > 0) {
+            text.add(String.format("alloc/step %.1f KB  p99 %.1f KB", this.stepBytes.getMean() / KB,
+                    this.stepBytes.getPercentile(99) / KB));
+        }
+        this.lines = text.toArray(new String[text.size()]);
+
+        this.stepTimes.reset();
+        this.stepBytes.reset();
+        this.drawTimes.reset();
+        this.busy = 0;
+        this.windowStart = now;
+        this.lastAllocated = allocated;
+        this.lastHeapUsed = heap.getUsed();
+        this.lastGcTime = gcTime;
+        this.lastGcCount = gcCount;
+    }
+
+    /**
+     * Formats the percentiles of a histogram of times.
+     *
+     * @param label label
+     * @param h times in nanoseconds
+     * @return text with the times in milliseconds
+     */
+    private static String formatTimes(String label, Histogram h) {
+        return String.format("%s ms p50 %.2f  p99 %.2f  max %.2f", label, h.getPercentile(50) / 1e6,
+                h.getPercentile(99) / 1e6, h.getMax() / 1e6);
+    }
+
+    /**
+     * Draws the overlay.
+     *
+     * @param g graphics
+     * @param x left edge
+     * @param y top edge
+     */
+    public void draw(Graphics2D g, int x, int y) {
+        String[] text = this.lines;
+        if (text.length == 0) {
+            return;
+        }
+        g.setColor(this.background);
+        g.fillRect(x, y, WIDTH, text.length * LINE_HEIGHT + 6);
+        g.setColor(this.foreground);
+        for (int i = 0; i < text.length; i++) {
+            g.drawString(text[i], x + 4, y + (i + 1) * LINE_HEIGHT);
+        }
+    }
+
+    /**
+     * Gets the number of bytes the current thread has allocated.
+     *
+     * @return bytes, or -1 if the virtual machine doesn't count them
+     */
+    private long getAllocatedBytes() {
+        if (this.threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) this.threads;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                return t.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the total time spent in garbage collection.
+     *
+     * @return milliseconds
+     */
+    private long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean c : this.collectors) {
+            time += Math.max(0, c.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Gets the total number of garbage collections.
+     *
+     * @return number of collections
+     */
+    private long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean c : this.collectors) {
+            count += Math.max(0, c.getCollectionCount());
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import core.Boid;
+import core.Simulation;
+
+/**
+ * Trails which remember the last positions of every boid. The positions are
+ * stored in one float array which has room for capacity * length positions.
+ * Slot i of the array belongs to the i:th boid of the flock and the samples
+ * of a slot are used as a ring buffer. All slots share the same ring head,
+ * because every boid is sampled on every step.
+ *
+ * The trails are drawn with one path per band of sample age, so the number
+ * of draw calls does not depend on the number of boids.
+ */
+public class RingBufferTrails implements Trails {
+    private int length;
+    private int capacity;
+    private int maxCapacity;
+    private float[] positions; // [slot][sample][x, y]
+    private int[] samples; // number of valid samples in each slot
+    private Boid[] owners; // the boid each slot belongs to
+    private int head;
+    private double maxJump;
+    private Path2D.Float[] paths;
+    private Color[] colors;
+
+    private final static int BANDS = 4;
+
+    /**
+     * Creates new trails.
+     *
+     * @param capacity number of boids to allocate room for
+     * @param maxCapacity the buffer never grows beyond this many boids, the rest of the boids get no trails
+     * @param length number of positions to remember for each boid
+     * @param color color of the newest part of the trails
+     * @param maxJump segments longer than this are not drawn, e.g. when a boid wraps around the area
+     */
+    public RingBufferTrails(int capacity, int maxCapacity, int length, Color color, double maxJump) {
+        this.length = Math.max(length, 2);
+        this.maxCapacity = Math.max(maxCapacity, 1);
+        this.maxJump = maxJump;
+        this.head = 0;
+        this.allocate(Math.min(Math.max(capacity, 1), this.maxCapacity));
+
+        this.paths = new Path2D.Float[BANDS];
+        this.colors = new Color[BANDS];
+        for (int i = 0; i < BANDS; i++) {
+            this.paths[i] = new Path2D.Float();
+            int alpha = 255 * (BANDS - i) / (BANDS + 1);
+            this.colors[i] = new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+        }
+    }
+
+    /**
+     * Gets the number of bytes needed to store the positions.
+     *
+     * @param boids number of boids
+     * @param length number of positions per boid
+     * @return number of bytes
+     */
+    public static long bytesNeeded(int boids, int length) {
+        return (long) boids * length * 2 * 4;
+    }
+
+    /**
+     * Allocates room for the given number of boids. The old samples are kept.
+     *
+     * @param newCapacity number of boids
+     */
+    private void allocate(int newCapacity) {
+        float[] newPositions = new float[newCapacity * this.length * 2];
+        int[] newSamples = new int[newCapacity];
+        Boid[] newOwners = new Boid[newCapacity];
+        if (this.positions != null) {
+            System.arraycopy(this.positions, 0, newPositions, 0, this.positions.length);
+            System.arraycopy(this.samples, 0, newSamples, 0, this.samples.length);
+            System.arraycopy(this.owners, 0, newOwners, 0, this.owners.length);
+        }
+        this.positions = newPositions;
+        this.samples = newSamples;
+        this.owners = newOwners;
+        this.capacity = newCapacity;
+    }
+
+    /**
+     * Gets the number of boids there is room for.
+     *
+     * @return capacity
+     */
+    public synchronized int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Gets the number of boids the buffer may grow to.
+     *
+     * @return maximum capacity
+     */
+    public int getMaxCapacity() {
+        return this.maxCapacity;
+    }
+
+    /**
+     * Stores the current boid positions. If a slot now belongs to a different
+     * boid than before, the old samples of the slot are forgotten.
+     *
+     * @param sim simulation
+     */
+    public synchronized void stepCompleted(Simulation sim) {
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        int n = Math.min(boids.size(), this.maxCapacity);
+        if (n > this.capacity) {
+            this.allocate(Math.min(Math.max(n, this.capacity + this.capacity / 2), this.maxCapacity));
+        }
+
+        this.head = (this.head + 1) % this.length;
+        for (int i = 0; i < n; i++) {
+            Boid b = boids.get(i);
+            if (this.owners[i] != b) {
+                this.owners[i] = b;
+                this.samples[i] = 0;
+            }
+            int k = (i * this.length + this.head) * 2;
+            this.positions[k] = (float) b.getPosition().getX();
+            this.positions[k + 1] = (float) b.getPosition().getY();
+            if (this.samples[i] < this.length) {
+                this.samples[i]++;
+            }
+        }
+        for (int i = n; i < this.capacity && this.owners[i] != null; i++) {
+            this.owners[i] = null;
+            this.samples[i] = 0;
+        }
+    }
+
+    /**
+     * Draws the trails. Segment age decides the band, and each band is drawn
+     * with one path. Older bands are more transparent.
+     *
+     * @param g graphics
+     */
+    public synchronized void draw(Graphics2D g) {
+        for (Path2D.Float p : this.paths) {
+            p.reset();
+        }
+
+        double maxJump2 = this.maxJump * this.maxJump;
+        for (int i = 0; i < this.capacity; i++) {
+            int n = this.samples[i];
+            int base = i * this.length;
+            for (int age = 1; age < n; age++) {
+                int k0 = (base + (this.head - age + 1 + this.length) % this.length) * 2;
+                int k1 = (base + (this.head - age + this.length) % this.length) * 2;
+                float x0 = this.positions[k0];
+                float y0 = this.positions[k0 + 1];
+                float x1 = this.positions[k1];
+                float y1 = this.positions[k1 + 1];
+                if ((x1 - x0) * (x1 - x0) + (y1 - y0) * (y1 - y0) > maxJump2) {
+                    continue;
+                }
+                Path2D.Float p = this.paths[(age - 1) * BANDS / (this.length - 1)];
+                p.moveTo(x0, y0);
+                p.lineTo(x1, y1);
+            }
+        }
+
+        for (int i = BANDS - 1; i >= 0; i--) {
+            g.setColor(this.colors[i]);
+            g.draw(this.paths[i]);
+        }
+    }
+
+    /**
+     * Forgets all recorded positions.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < this.capacity; i++) {
+            this.owners[i] = null;
+            this.samples[i] = 0;
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package gui;
+
+import java.awt.Graphics2D;
+import core.StepListener;
+
+/**
+ * An interface for boid motion trails. The trails are updated after every
+ * simulation step and drawn below the boids.
+ */
+public interface Trails extends StepListener {
+
+    /**
+     * Draws the trails.
+     *
+     * @param g graphics
+     */
+    public void draw(Graphics2D g);
+
+    /**
+     * Forgets all recorded positions.
+     */
+    public void clear();
+
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.*;
+import core.BinarySaveFile;
+import core.Boid;
+import core.Obstacle;
+import core.Simulation;
+
+/**
+ * Unit tests for BinarySaveFile class.
+ */
+public class BinarySaveFileTest {
+    private Simulation sim;
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        sim = new Simulation();
+        sim.getSettings().setWrapArea(true);
+        sim.getSettings().setCohesionFactor(0.123);
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 100);
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+        }
+        file = File.createTempFile("boids", ".boids");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        new BinarySaveFile().saveSimulation(sim, file);
+        Simulation loaded = new BinarySaveFile().loadSimulation(file);
+        
+        assertEquals(sim.getStep(), loaded.getStep());
+        assertEquals(0.123, loaded.getSettings().getCohesionFactor(), 0);
+        assertTrue(loaded.getSettings().isWrapArea());
+        assertEquals(1, loaded.getObstacles().size());
+        assertEquals(50, loaded.getObstacles().get(0).getRadius());
+        assertEquals(sim.getFlock().getSize(), loaded.getFlock().getSize());
+        
+        // the loaded simulation must continue exactly like the original one
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+            loaded.makeStep();
+        }
+        for (int i = 0; i < sim.getFlock().getSize(); i++) {
+            Boid a = sim.getFlock().getBoids().get(i);
+            Boid b = loaded.getFlock().getBoids().get(i);
+            assertEquals(a.getPosition().getX(), b.getPosition().getX(), 0);
+            assertEquals(a.getPosition().getY(), b.getPosition().getY(), 0);
+            assertEquals(a.getVelocity().getX(), b.getVelocity().getX(), 0);
+            assertEquals(a.getVelocity().getY(), b.getVelocity().getY(), 0);
+        }
+    }
+    
+    @Test
+    public void testInvalidFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("<core.Simulation>".getBytes());
+        out.close();
+        try {
+            new BinarySaveFile().loadSimulation(file);
+            fail("expected an exception");
+        } catch (IOException e) {
+            assertEquals("Not a binary boids save file", e.getMessage());
+        }
+    }
+    
+    @Test
+    public void testTruncatedFile() throws IOException {
+        new BinarySaveFile().saveSimulation(sim, file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 100);
+        raf.close();
+        try {
+            new BinarySaveFile().loadSimulation(file);
+            fail("expected an exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected end of file"));
+        }
+    }
+    
+    @Test
+    public void testFormatVersion1() throws IOException {
+        // turn a file of a flock with one species into a file of format 1,
+        // which has no species block and no species of the boids
+        new BinarySaveFile().saveSimulation(sim, file);
+        int n = sim.getFlock().getSize();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.readFully(bytes);
+        int boids = bytes.length - n - 7 * 8 * n - 4;
+        int species = boids - 3 * 4;
+        raf.seek(4);
+        raf.writeInt(1);
+        raf.seek(species);
+        raf.write(bytes, boids, 4 + 7 * 8 * n);
+        raf.setLength(species + 4 + 7 * 8 * n);
+        raf.close();
+
+        Simulation loaded = new BinarySaveFile().loadSimulation(file);
+        assertEquals(1, loaded.getFlock().getSpeciesCount());
+        assertEquals(n, loaded.getFlock().getSize());
+        for (int i = 0; i < n; i++) {
+            assertEquals(sim.getFlock().getBoids().get(i).getPosition().getX(),
+                    loaded.getFlock().getBoids().get(i).getPosition().getX(), 0);
+            assertEquals(0, loaded.getFlock().getBoids().get(i).getSpecies());
+        }
+    }
+    
+    @Test
+    public void testInvalidCount() throws IOException {
+        new BinarySaveFile().saveSimulation(sim, file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - (7 * 8 + 1) * sim.getFlock().getSize() - 4); // the boid count
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.close();
+        try {
+            new BinarySaveFile().loadSimulation(file);
+            fail("expected an exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected end of file: " + Integer.MAX_VALUE + " boids"));
+        }
+    }
+    
+}
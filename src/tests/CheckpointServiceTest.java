@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.CheckpointService;
+import core.Simulation;
+
+/**
+ * Unit tests for CheckpointService class.
+ */
+public class CheckpointServiceTest {
+    private File directory;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("checkpoints", "");
+        directory.delete();
+        directory.mkdir();
+    }
+    
+    @After
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void testResume() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 80);
+        CheckpointService service = new CheckpointService(directory, 5, 3, 2);
+        sim.addStepListener(service);
+        for (int i = 0; i < 40; i++) {
+            sim.makeStep();
+        }
+        sim.removeStepListener(service);
+        service.close();
+        assertEquals(8, service.getCheckpointCount());
+        
+        // steps 40, 35 and 30 are kept, and the base of step 30 which 35 and 40 need
+        String[] names = directory.list();
+        assertEquals(4, names.length);
+        
+        Simulation resumed = CheckpointService.resume(directory);
+        assertEquals(40, resumed.getStep());
+        for (int i = 0; i < sim.getFlock().getSize(); i++) {
+            Boid a = sim.getFlock().getBoids().get(i);
+            Boid b = resumed.getFlock().getBoids().get(i);
+            assertEquals(a.getPosition().getX(), b.getPosition().getX(), 0);
+            assertEquals(a.getVelocity().getY(), b.getVelocity().getY(), 0);
+        }
+    }
+    
+    @Test
+    public void testSkipBrokenCheckpoint() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 20);
+        CheckpointService service = new CheckpointService(directory, 10, 5, 4);
+        sim.addStepListener(service);
+        for (int i = 0; i < 30; i++) {
+            sim.makeStep();
+        }
+        service.close();
+        
+        // break the data of the newest checkpoint
+        File newest = new File(directory, String.format("checkpoint-%019d.incr", 30));
+        RandomAccessFile f = new RandomAccessFile(newest, "rw");
+        f.seek(f.length() - 10);
+        f.write(new byte[] { 1, 2, 3, 4, 5 });
+        f.close();
+        
+        ArrayList<String> skipped = new ArrayList<String>();
+        assertEquals(20, CheckpointService.resume(directory, skipped).getStep());
+        assertEquals(1, skipped.size());
+        assertTrue(skipped.get(0).startsWith(newest.getName() + ": "));
+    }
+    
+    @Test
+    public void testSkipInvalidStateLength() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 20);
+        CheckpointService service = new CheckpointService(directory, 10, 5, 4);
+        sim.addStepListener(service);
+        for (int i = 0; i < 20; i++) {
+            sim.makeStep();
+        }
+        service.close();
+        
+        // claim a state far larger than the compressed data can hold
+        File newest = new File(directory, String.format("checkpoint-%019d.incr", 20));
+        RandomAccessFile f = new RandomAccessFile(newest, "rw");
+        f.seek(4 + 4 + 1 + 8 + 8);
+        f.writeInt(Integer.MAX_VALUE);
+        f.close();
+        
+        ArrayList<String> skipped = new ArrayList<String>();
+        assertEquals(10, CheckpointService.resume(directory, skipped).getStep());
+        assertEquals(1, skipped.size());
+        assertTrue(skipped.get(0).contains("too large"));
+    }
+}
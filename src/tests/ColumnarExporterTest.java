@@ -0,0 +1,103 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.ColumnarExporter;
+import core.ColumnarReader;
+import core.Simulation;
+
+/**
+ * Unit tests for ColumnarExporter and ColumnarReader classes.
+ */
+public class ColumnarExporterTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("boids", ".columns");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 50);
+        ColumnarExporter exporter = new ColumnarExporter(file, 120, 2); // two steps per block
+        sim.addStepListener(exporter);
+
+        ArrayList<float[]> expected = new ArrayList<float[]>();
+        ArrayList<Long> steps = new ArrayList<Long>();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ArrayList<Integer> neighbours = new ArrayList<Integer>();
+        for (int i = 0; i < 25; i++) {
+            if (i == 11) {
+                sim.getFlock().addRandomBoids(0, 0, 800, 800, 100); // more than one block
+            }
+            sim.makeStep();
+            ArrayList<Boid> boids = sim.getFlock().getBoids();
+            for (int k = 0; k < boids.size(); k++) {
+                Boid b = boids.get(k);
+                expected.add(new float[] {
+                    (float) b.getPosition().getX(), (float) b.getPosition().getY(),
+                    (float) b.getVelocity().getX(), (float) b.getVelocity().getY(),
+                    (float) b.getForce().getX(), (float) b.getForce().getY() });
+                steps.add(sim.getStep());
+                ids.add(k);
+                neighbours.add(b.getNeighbourCount());
+            }
+        }
+        sim.removeStepListener(exporter);
+        exporter.close();
+        assertEquals(expected.size(), exporter.getRowCount());
+
+        ColumnarReader reader = new ColumnarReader(file);
+        int row = 0;
+        int totalSteps = 0;
+        for (int block = 0; block < reader.getBlockCount(); block++) {
+            long[] s = reader.readSteps(block);
+            int[] id = reader.readInts(block, ColumnarExporter.ID);
+            int[] n = reader.readInts(block, ColumnarExporter.NEIGHBOURS);
+            assertEquals(steps.get(row).longValue(), reader.getFirstStep(block));
+            totalSteps += reader.getStepCount(block);
+            for (int c = ColumnarExporter.X; c <= ColumnarExporter.FORCE_Y; c++) {
+                float[] values = reader.readFloats(block, c);
+                for (int i = 0; i < values.length; i++) {
+                    assertEquals(expected.get(row + i)[c - ColumnarExporter.X], values[i], 0);
+                }
+            }
+            for (int i = 0; i < reader.getRowCount(block); i++, row++) {
+                assertEquals(steps.get(row).longValue(), s[i]);
+                assertEquals(ids.get(row).intValue(), id[i]);
+                assertEquals(neighbours.get(row).intValue(), n[i]);
+            }
+        }
+        assertEquals(expected.size(), row);
+        assertEquals(25, totalSteps);
+        reader.close();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import core.Boid;
+import core.Simulation;
+
+/**
+ * Runs a reference simulation and a candidate simulation side by side and
+ * compares them step by step. The two simulations must be created the same
+ * way from the same seed; only the engine of the candidate, for example its
+ * neighbour index, may differ.
+ *
+ * Before every step the neighbours each boid finds are compared, and after
+ * the step the neighbour counts, forces, positions and velocities. The first
+ * difference larger than the tolerance is returned with the step and the
+ * boid, so an optimization can be checked before it is merged.
+ */
+public class DifferentialHarness {
+    private Simulation reference;
+    private Simulation candidate;
+    private double tolerance;
+
+    /**
+     * The first difference between the simulations.
+     */
+    public static class Divergence {
+        public final long step;
+        public final int boid;
+        public final String quantity;
+        public final double expected;
+        public final double actual;
+        public final String detail;
+
+        /**
+         * Creates a divergence.
+         *
+         * @param step the step in which the difference appeared
+         * @param boid index of the boid, -1 for the whole flock
+         * @param quantity name of the compared quantity
+         * @param expected value in the reference
+         * @param actual value in the candidate
+         * @param detail more information, may be empty
+         */
+        Divergence(long step, int boid, String quantity, double expected, double actual, String detail) {
+            this.step = step;
+            this.boid = boid;
+            this.quantity = quantity;
+            this.expected = expected;
+            this.actual = actual;
+            this.detail = detail;
+        }
+
+        /**
+         * Describes the divergence.
+         *
+         * @return description
+         */
+        public String toString() {
+            return "step " + this.step + ", boid " + this.boid + ": " + this.quantity + " " + this.expected
+                    + " in the reference, " + this.actual + " in the candidate"
+                    + (this.detail.length() > 0 ? " (" + this.detail + ")" : "");
+        }
+    }
+
+    /**
+     * Creates a harness.
+     *
+     * @param reference simulation using the reference engine
+     * @param candidate simulation using the engine to check
+     * @param tolerance largest allowed difference, relative to values larger than one
+     */
+    public DifferentialHarness(Simulation reference, Simulation candidate, double tolerance) {
+        this.reference = reference;
+        this.candidate = candidate;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Steps both simulations until they differ.
+     *
+     * @param steps number of steps
+     * @return the first divergence, or null if the simulations agree
+     */
+    public Divergence run(int steps) {
+        for (int s = 0; s < steps; s++) {
+            long step = this.reference.getStep() + 1;
+            Divergence d = this.compareNeighbours(step);
+            if (d != null) {
+                return d;
+            }
+            this.reference.makeStep();
+            this.candidate.makeStep();
+            d = this.compareBoids(step);
+            if (d != null) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares the neighbours the boids find before a step.
+     *
+     * @param step the step about to be made
+     * @return the first divergence, or null
+     */
+    private Divergence compareNeighbours(long step) {
+        int[][] expected = this.reference.getFlock().findNeighbours();
+        int[][] actual = this.candidate.getFlock().findNeighbours();
+        if (expected.length != actual.length) {
+            return new Divergence(step, -1, "boids", expected.length, actual.length, "");
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(expected[i], actual[i])) {
+                return new Divergence(step, i, "neighbours", expected[i].length, actual[i].length,
+                        "missing " + DifferentialHarness.difference(expected[i], actual[i])
+                        + ", extra " + DifferentialHarness.difference(actual[i], expected[i]));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares the boids after a step.
+     *
+     * @param step the step just made
+     * @return the first divergence, or null
+     */
+    private Divergence compareBoids(long step) {
+        ArrayList<Boid> expected = this.reference.getFlock().getBoids();
+        ArrayList<Boid> actual = this.candidate.getFlock().getBoids();
+        if (expected.size() != actual.size()) {
+            return new Divergence(step, -1, "boids", expected.size(), actual.size(), "");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            Boid a = expected.get(i);
+            Boid b = actual.get(i);
+            double[][] values = {
+                { a.getNeighbourCount(), b.getNeighbourCount() },
+                { a.getForce().getX(), b.getForce().getX() },
+                { a.getForce().getY(), b.getForce().getY() },
+                { a.getPosition().getX(), b.getPosition().getX() },
+                { a.getPosition().getY(), b.getPosition().getY() },
+                { a.getVelocity().getX(), b.getVelocity().getX() },
+                { a.getVelocity().getY(), b.getVelocity().getY() }
+            };
+            String[] names = { "neighbour count", "force x", "force y", "position x", "position y",
+                    "velocity x", "velocity y" };
+            for (int k = 0; k < values.length; k++) {
+                double e = values[k][0];
+                double v = values[k][1];
+                if (!(Math.abs(e - v) <= this.tolerance * Math.max(1, Math.abs(e))) && !(e == v)) {
+                    return new Divergence(step, i, names[k], e, v, "");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the numbers of a sorted array which are not in another one.
+     *
+     * @param a sorted numbers
+     * @param b sorted numbers
+     * @return the numbers of a missing from b
+     */
+    private static String difference(int[] a, int[] b) {
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        for (int x : a) {
+            if (Arrays.binarySearch(b, x) < 0) {
+                missing.add(x);
+            }
+        }
+        return missing.toString();
+    }
+
+}
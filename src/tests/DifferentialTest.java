@@ -0,0 +1,108 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import core.Flock;
+import core.Obstacle;
+import core.Simulation;
+
+/**
+ * Checks that the grid neighbour index steps exactly like the reference
+ * which checks every pair, using DifferentialHarness.
+ */
+public class DifferentialTest {
+
+    /**
+     * Creates a simulation.
+     *
+     * @param seed seed
+     * @param boids number of boids
+     * @param wrap wrap the area
+     * @param viewAngle view angle
+     * @param viewDistance view distance
+     * @param index neighbour index
+     * @return simulation
+     */
+    private static Simulation create(long seed, int boids, boolean wrap, double viewAngle, double viewDistance,
+            Flock.NeighbourIndex index) {
+        Simulation sim = new Simulation(seed);
+        sim.getSettings().setWrapArea(wrap);
+        sim.getSettings().setViewAngle(viewAngle);
+        sim.getSettings().setViewDistance(viewDistance);
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getObstacles().add(new Obstacle(600, 200, 30));
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, boids);
+        sim.getFlock().addRandomBoids(380, 380, 40, 40, boids / 4); // a dense clump
+        sim.getFlock().setNeighbourIndex(index);
+        return sim;
+    }
+
+    @Test
+    public void testGrid() {
+        Object[][] cases = {
+            // boids, wrap, view angle, view distance
+            { 300, false, 120.0, 50.0 },
+            { 300, true, 120.0, 50.0 },
+            { 200, false, 180.0, 80.0 },
+            { 200, true, 60.0, 25.0 },
+            { 100, false, 120.0, 1000.0 },
+            { 1, false, 120.0, 50.0 },
+            { 0, false, 120.0, 50.0 }
+        };
+        for (int c = 0; c < cases.length; c++) {
+            int boids = (Integer) cases[c][0];
+            boolean wrap = (Boolean) cases[c][1];
+            double angle = (Double) cases[c][2];
+            double distance = (Double) cases[c][3];
+            Simulation reference = create(c, boids, wrap, angle, distance, Flock.NeighbourIndex.BRUTE_FORCE);
+            Simulation candidate = create(c, boids, wrap, angle, distance, Flock.NeighbourIndex.GRID);
+            DifferentialHarness.Divergence d = new DifferentialHarness(reference, candidate, 0).run(60);
+            assertNull("case " + c + ": " + d, d);
+            assertTrue(boids < 2 || candidate.getFlock().getNeighbourPairs() < reference.getFlock().getNeighbourPairs()
+                    || distance > 800);
+        }
+    }
+
+    @Test
+    public void testDivergence() {
+        Simulation reference = create(5, 100, false, 120, 50, Flock.NeighbourIndex.BRUTE_FORCE);
+        Simulation candidate = create(5, 100, false, 120, 50, Flock.NeighbourIndex.GRID);
+        candidate.getSettings().setSeparationFactor(reference.getSettings().getSeparationFactor() * 1.001);
+        DifferentialHarness.Divergence d = new DifferentialHarness(reference, candidate, 1e-9).run(20);
+        assertNotNull(d);
+        assertEquals(1, d.step);
+        assertTrue(d.quantity.startsWith("force"));
+        
+        reference = create(5, 100, false, 120, 50, Flock.NeighbourIndex.BRUTE_FORCE);
+        candidate = create(5, 100, false, 120, 50, Flock.NeighbourIndex.GRID);
+        for (int i = 0; i < 3; i++) {
+            reference.makeStep();
+            candidate.makeStep();
+        }
+        candidate.getSettings().setViewDistance(60);
+        d = new DifferentialHarness(reference, candidate, 0).run(20);
+        assertNotNull(d);
+        assertEquals(4, d.step);
+        assertEquals("neighbours", d.quantity);
+        assertTrue(d.actual > d.expected);
+        assertTrue(d.toString().startsWith("step 4, boid " + d.boid + ": neighbours"));
+    }
+
+}
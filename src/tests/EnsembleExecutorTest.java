@@ -0,0 +1,84 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import core.Simulation;
+import core.StateChecksum;
+import tools.EnsembleExecutor;
+
+/**
+ * Unit tests for EnsembleExecutor class.
+ */
+public class EnsembleExecutorTest {
+
+    /**
+     * Creates the simulation of a member.
+     *
+     * @param member member number
+     * @return simulation
+     */
+    private static Simulation create(int member) {
+        Simulation sim = new Simulation(100 + member);
+        sim.getFlock().addRandomBoids(0, 0, 400, 400, 20);
+        return sim;
+    }
+
+    @Test
+    public void testEnsemble() throws InterruptedException {
+        final long[] checksums = new long[30];
+        EnsembleExecutor ensemble = new EnsembleExecutor(30, 13, new EnsembleExecutor.Task() {
+            public Simulation createSimulation(int member) {
+                if (member == 17) {
+                    throw new IllegalStateException("broken member");
+                }
+                return create(member);
+            }
+
+            public void finished(int member, Simulation sim) {
+                assertEquals(13, sim.getStep());
+                checksums[member] = StateChecksum.compute(sim.getFlock());
+            }
+        }, 3, 5);
+        ensemble.setUseVirtualThreads(false);
+        assertFalse(ensemble.isUsingVirtualThreads());
+        assertEquals(30 * 13, ensemble.getTotalSteps());
+        ensemble.start();
+        assertTrue(ensemble.awaitCompletion(60, TimeUnit.SECONDS));
+
+        assertEquals(29, ensemble.getCompletedMembers());
+        assertEquals(1, ensemble.getFailedMembers());
+        assertEquals(29 * 13, ensemble.getCompletedSteps());
+        assertEquals(1.0, ensemble.getProgress(), 0);
+        assertEquals(0, ensemble.getMembersInFlight());
+        assertTrue(ensemble.getFailure().getMessage().startsWith("Member 17 failed"));
+
+        for (int m = 0; m < 30; m++) {
+            if (m != 17) {
+                Simulation sim = create(m);
+                for (int s = 0; s < 13; s++) {
+                    sim.makeStep();
+                }
+                assertEquals(StateChecksum.compute(sim.getFlock()), checksums[m]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.FlockAnalytics;
+import core.Simulation;
+import core.UnionFind;
+import core.Vector2D;
+
+/**
+ * Unit tests for FlockAnalytics and UnionFind classes.
+ */
+public class FlockAnalyticsTest {
+
+    @Test
+    public void testAnalytics() {
+        Simulation sim = new Simulation(21);
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 150);
+        sim.getFlock().addRandomBoids(100, 100, 60, 60, 30);
+        FlockAnalytics analytics = new FlockAnalytics();
+        sim.getFlock().setAnalytics(analytics);
+        for (int step = 1; step <= 15; step++) {
+            // the clusters of a step come from the neighbours before the move
+            int[][] neighbours = sim.getFlock().findNeighbours();
+            UnionFind sets = new UnionFind(neighbours.length);
+            for (int i = 0; i < neighbours.length; i++) {
+                for (int j : neighbours[i]) {
+                    sets.union(i, j);
+                }
+            }
+            sim.makeStep();
+            assertEquals(step, analytics.getSteps());
+            assertEquals(sets.getSetCount(), analytics.getClusterCount());
+        }
+
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        double x = 0;
+        double y = 0;
+        double ux = 0;
+        double uy = 0;
+        for (Boid b : boids) {
+            x += b.getPosition().getX() / boids.size();
+            y += b.getPosition().getY() / boids.size();
+            ux += b.getVelocity().unit().getX() / boids.size();
+            uy += b.getVelocity().unit().getY() / boids.size();
+        }
+        double squares = 0;
+        for (Boid b : boids) {
+            squares += b.getPosition().sub(new Vector2D(x, y)).norm() * b.getPosition().sub(new Vector2D(x, y)).norm();
+        }
+        assertEquals(180, analytics.getBoidCount());
+        assertEquals(x, analytics.getCentreOfMass().getX(), 1e-6);
+        assertEquals(y, analytics.getCentreOfMass().getY(), 1e-6);
+        assertEquals(Math.sqrt(squares / boids.size()), analytics.getGyrationRadius(), 1e-6);
+        assertEquals(Math.sqrt(ux * ux + uy * uy), analytics.getPolarization(), 1e-9);
+
+        sim.getFlock().setAnalytics(null);
+        sim.makeStep();
+        assertEquals(15, analytics.getSteps());
+    }
+
+    @Test
+    public void testUnionFind() {
+        UnionFind sets = new UnionFind(6);
+        assertEquals(6, sets.getSetCount());
+        assertTrue(sets.union(0, 1));
+        assertTrue(sets.union(2, 1));
+        assertFalse(sets.union(0, 2));
+        assertTrue(sets.union(4, 5));
+        assertEquals(3, sets.getSetCount());
+        assertEquals(3, sets.getSize(2));
+        assertEquals(sets.find(0), sets.find(2));
+        assertFalse(sets.find(3) == sets.find(4));
+        sets.reset(4);
+        assertEquals(4, sets.getSetCount());
+        assertEquals(1, sets.getSize(1));
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.IndexedSaveFile;
+import core.IndexedSaveReader;
+import core.Obstacle;
+import core.Simulation;
+
+/**
+ * Unit tests for IndexedSaveFile and IndexedSaveReader classes.
+ */
+public class IndexedSaveFileTest {
+    private Simulation sim;
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        sim = new Simulation();
+        sim.getSettings().setCohesionFactor(0.123);
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 3000);
+        for (int i = 0; i < 2; i++) {
+            sim.makeStep();
+        }
+        file = File.createTempFile("boids", ".iboids");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        new IndexedSaveFile().saveSimulation(sim, file);
+        Simulation loaded = new IndexedSaveFile().loadSimulation(file);
+        
+        assertEquals(sim.getStep(), loaded.getStep());
+        assertEquals(0.123, loaded.getSettings().getCohesionFactor(), 0);
+        assertEquals(1, loaded.getObstacles().size());
+        assertEquals(sim.getFlock().getSize(), loaded.getFlock().getSize());
+        
+        // the loaded simulation must continue exactly like the original one
+        sim.makeStep();
+        loaded.makeStep();
+        for (int i = 0; i < sim.getFlock().getSize(); i++) {
+            Boid a = sim.getFlock().getBoids().get(i);
+            Boid b = loaded.getFlock().getBoids().get(i);
+            assertEquals(a.getPosition().getX(), b.getPosition().getX(), 0);
+            assertEquals(a.getPosition().getY(), b.getPosition().getY(), 0);
+            assertEquals(a.getVelocity().getX(), b.getVelocity().getX(), 0);
+            assertEquals(a.getVelocity().getY(), b.getVelocity().getY(), 0);
+        }
+    }
+    
+    @Test
+    public void testPartialRead() throws IOException {
+        new IndexedSaveFile().saveSimulation(sim, file);
+        IndexedSaveReader reader = new IndexedSaveReader(file);
+        assertEquals(sim.getStep(), reader.getStep());
+        assertEquals(3000, reader.getBoidCount());
+        assertEquals(1, reader.getObstacleCount());
+        assertEquals(0.123, reader.readSettings().getCohesionFactor(), 0);
+        assertEquals(50, reader.readObstacles().get(0).getRadius());
+        assertTrue(reader.getBytesRead() < 1024);
+        
+        ArrayList<Boid> expected = new ArrayList<Boid>();
+        for (Boid b : sim.getFlock().getBoids()) {
+            if (b.getPosition().getX() >= 100 && b.getPosition().getX() <= 300
+                    && b.getPosition().getY() >= 200 && b.getPosition().getY() <= 350) {
+                expected.add(b);
+            }
+        }
+        ArrayList<Boid> boids = reader.readBoids(100, 200, 200, 150);
+        assertEquals(expected.size(), boids.size());
+        for (int i = 0; i < boids.size(); i++) {
+            assertEquals(expected.get(i).getPosition().getX(), boids.get(i).getPosition().getX(), 0);
+            assertEquals(expected.get(i).getVelocity().getY(), boids.get(i).getVelocity().getY(), 0);
+        }
+        assertTrue(reader.getBytesRead() < file.length() / 2);
+        reader.close();
+    }
+    
+    @Test
+    public void testInvalidTileOffset() throws IOException {
+        new IndexedSaveFile().saveSimulation(sim, file);
+        
+        // point every tile past the end of the file
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.seek(3 * 4 + 8 + 2 * 4);
+        int tiles = f.readInt() * f.readInt();
+        f.seek(3 * 4 + 8 + 4 * 4 + 3 * (8 + 4));
+        long directory = f.readLong();
+        for (int t = 0; t < tiles; t++) {
+            f.seek(directory + t * (8 + 4 + 4 * 8));
+            f.writeLong(f.length() - 1);
+        }
+        f.close();
+        
+        IndexedSaveReader reader = new IndexedSaveReader(file);
+        try {
+            reader.readBoids(0, 0, 800, 800);
+            fail("Reading a tile past the end of the file should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("offset"));
+        } finally {
+            reader.close();
+        }
+    }
+    
+}
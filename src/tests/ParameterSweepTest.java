@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Properties;
+import org.junit.*;
+import tools.ParameterSweep;
+
+/**
+ * Unit tests for ParameterSweep class.
+ */
+public class ParameterSweepTest {
+    private Properties spec;
+
+    @Before
+    public void setUp() {
+        spec = new Properties();
+        spec.setProperty("boids", "40");
+        spec.setProperty("warmup", "10");
+        spec.setProperty("steps", "5");
+        spec.setProperty("repeats", "2");
+        spec.setProperty("separationFactor", "1, 3");
+        spec.setProperty("cohesionFactor", "0.005:0.02:4");
+    }
+
+    @Test
+    public void testGrid() throws IOException {
+        ParameterSweep sweep = new ParameterSweep(spec);
+        assertEquals(2 * 4 * 2, sweep.getRunCount());
+        ParameterSweep.Metrics a = sweep.run(5);
+        ParameterSweep.Metrics b = new ParameterSweep(spec).run(5);
+        assertEquals(a.checksum, b.checksum);
+        assertEquals(a.polarization, b.polarization, 0);
+        assertTrue(a.polarization >= 0 && a.polarization <= 1);
+        assertTrue(a.clusters >= 1 && a.clusters <= 40);
+        assertTrue(a.collisions >= 0);
+
+        StringWriter text = new StringWriter();
+        final int[] reported = new int[2];
+        sweep.runAll(new PrintWriter(text), 2, new ParameterSweep.Progress() {
+            public void progress(int done, int total) {
+                reported[0] = done;
+                reported[1] = total;
+            }
+        });
+        assertEquals(16, reported[0]);
+        assertEquals(16, reported[1]);
+        String[] lines = text.toString().split("\n");
+        assertEquals(1 + 16, lines.length);
+        assertEquals("run,seed,cohesionFactor,separationFactor,polarization,clusters,collisions,checksum",
+                lines[0].trim());
+    }
+
+    @Test
+    public void testRandom() {
+        spec.setProperty("mode", "random");
+        spec.setProperty("samples", "7");
+        spec.setProperty("cohesionFactor", "0.005:0.02");
+        assertEquals(14, new ParameterSweep(spec).getRunCount());
+        try {
+            spec.setProperty("cohesion", "1");
+            new ParameterSweep(spec);
+            fail("an unknown setting was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.ReplayPlayer;
+import core.ReplayWriter;
+import core.Simulation;
+
+/**
+ * Unit tests for ReplayWriter and ReplayPlayer classes.
+ */
+public class ReplayTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("boids", ".replay");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getSettings().setWrapArea(true); // wrapping boids are written as patches
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 60);
+        ReplayWriter writer = new ReplayWriter(file, sim.getSettings(), 10);
+        sim.addStepListener(writer);
+
+        ArrayList<double[]> expected = new ArrayList<double[]>();
+        for (int i = 0; i < 100; i++) {
+            if (i == 55) {
+                sim.getFlock().addRandomBoids(0, 0, 800, 800, 5); // forces a keyframe
+            }
+            sim.makeStep();
+            expected.add(positions(sim));
+        }
+        sim.removeStepListener(writer);
+        writer.close();
+
+        ReplayPlayer player = new ReplayPlayer(file);
+        assertEquals(100, player.getFrameCount());
+        assertEquals(10, player.getKeyframeInterval());
+        Simulation replay = new Simulation();
+
+        // play forward, then seek backward and forward
+        int[] frames = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 99, 54, 55, 56, 13, 98, 0, 37 };
+        for (int f : frames) {
+            player.seek(f);
+            player.apply(replay);
+            assertEquals(f + 1, player.getStep(f));
+            double[] p = positions(replay);
+            assertEquals(expected.get(f).length, p.length);
+            for (int i = 0; i < p.length; i++) {
+                assertEquals(expected.get(f)[i], p[i], 0.01);
+            }
+        }
+        assertTrue(player.next());
+        assertEquals(38, player.getFrame());
+        player.close();
+    }
+
+    @Test
+    public void testInvalidPatchCount() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 10);
+        ReplayWriter writer = new ReplayWriter(file, sim.getSettings(), 10);
+        sim.addStepListener(writer);
+        for (int i = 0; i < 2; i++) {
+            sim.makeStep();
+        }
+        sim.removeStepListener(writer);
+        writer.close();
+
+        // the keyframe has a frame header, 16 bytes and a species byte per boid, and the species block
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        long block = 7 * 4 + 13 + 17 * 10;
+        f.seek(block);
+        long delta = block + 4 + f.readInt();
+        f.seek(delta + 13 + 8 * 10);
+        f.writeInt(Integer.MAX_VALUE);
+        f.close();
+
+        try {
+            new ReplayPlayer(file).close();
+            fail("Opening a replay with an invalid patch count should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("patch count"));
+        }
+    }
+
+    /**
+     * Gets the positions of the boids.
+     *
+     * @param sim simulation
+     * @return x and y of every boid
+     */
+    private static double[] positions(Simulation sim) {
+        ArrayList<Boid> boids = sim.getFlock().getBoids();
+        double[] p = new double[2 * boids.size()];
+        for (int i = 0; i < boids.size(); i++) {
+            p[2 * i] = boids.get(i).getPosition().getX();
+            p[2 * i + 1] = boids.get(i).getPosition().getY();
+        }
+        return p;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import org.junit.*;
+import core.BinarySaveFile;
+import core.Flock;
+import core.Obstacle;
+import core.SaveMonitor;
+import core.Simulation;
+import core.SimulationMetrics;
+import tools.MetricsServer;
+
+/**
+ * Unit tests for SimulationMetrics and MetricsServer classes.
+ */
+public class SimulationMetricsTest {
+    private Simulation sim;
+    private SimulationMetrics metrics;
+    
+    @Before
+    public void setUp() {
+        sim = new Simulation();
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getFlock().addRandomBoids(0, 0, 400, 400, 40);
+        sim.getFlock().setNeighbourIndex(Flock.NeighbourIndex.BRUTE_FORCE); // every pair is checked
+        metrics = new SimulationMetrics();
+        sim.addStepListener(metrics);
+        SaveMonitor.addListener(metrics);
+    }
+    
+    @After
+    public void tearDown() {
+        SaveMonitor.removeListener(metrics);
+    }
+    
+    @Test
+    public void testExpose() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+        }
+        File file = File.createTempFile("boids", ".boids");
+        try {
+            new BinarySaveFile().saveSimulation(sim, file);
+            new BinarySaveFile().loadSimulation(file);
+        } finally {
+            file.delete();
+        }
+        
+        String text = metrics.expose();
+        assertEquals(10, metrics.getSteps());
+        assertTrue(text.contains("\nboids_steps_total 10\n"));
+        assertTrue(text.contains("\nboids_flock_size 40\n"));
+        assertTrue(text.contains("\nboids_obstacles 1\n"));
+        assertTrue(text.contains("\nboids_neighbour_pairs_total " + 10 * 40 * 39 + "\n"));
+        assertTrue(text.contains("\nboids_step_duration_seconds_bucket{le=\"+Inf\"} 10\n"));
+        assertTrue(text.contains("\nboids_step_duration_seconds_count 10\n"));
+        assertTrue(text.contains("\nboids_save_duration_seconds_count{operation=\"save\"} 1\n"));
+        assertTrue(text.contains("\nboids_save_duration_seconds_count{operation=\"load\"} 1\n"));
+        assertTrue(text.contains("\nboids_save_failures_total{operation=\"save\"} 0\n"));
+        assertTrue(text.contains("\njvm_memory_bytes_used{area=\"heap\"} "));
+    }
+    
+    @Test
+    public void testServer() throws IOException {
+        sim.makeStep();
+        MetricsServer server = new MetricsServer(metrics, 0);
+        try {
+            URL url = URI.create("http://127.0.0.1:" + server.getPort() + "/metrics").toURL();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                bytes.write(buffer, 0, n);
+            }
+            in.close();
+            assertTrue(bytes.toString("UTF-8").contains("\nboids_steps_total 1\n"));
+        } finally {
+            server.stop();
+        }
+    }
+    
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import org.junit.*;
+import core.Boid;
+import core.Obstacle;
+import core.Simulation;
+
+/**
+ * Unit tests for Simulation class.
+ */
+public class SimulationTest {
+    private Simulation sim;
+    
+    @Before
+    public void setUp() {
+        sim = new Simulation();
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 50);
+        sim.makeStep();
+    }
+    
+    @Test
+    public void testSnapshot() throws IOException {
+        Simulation copy = sim.snapshot();
+        assertEquals(sim.getStep(), copy.getStep());
+        assertNotSame(sim.getSettings(), copy.getSettings());
+        assertEquals(1, copy.getObstacles().size());
+        
+        double x = copy.getFlock().getBoids().get(0).getPosition().getX();
+        sim.makeStep();
+        assertEquals(x, copy.getFlock().getBoids().get(0).getPosition().getX(), 0); // not changed by the original
+        
+        // the copy continues exactly like the original
+        copy.makeStep();
+        for (int i = 0; i < sim.getFlock().getSize(); i++) {
+            Boid a = sim.getFlock().getBoids().get(i);
+            Boid b = copy.getFlock().getBoids().get(i);
+            assertEquals(a.getPosition().getX(), b.getPosition().getX(), 0);
+            assertEquals(a.getVelocity().getY(), b.getVelocity().getY(), 0);
+        }
+    }
+    
+    @Test
+    public void testSeed() {
+        Simulation a = new Simulation(7);
+        Simulation b = new Simulation(7);
+        a.getFlock().addRandomBoids(0, 0, 400, 400, 30);
+        b.getFlock().addRandomBoids(0, 0, 400, 400, 30);
+        for (int i = 0; i < 10; i++) {
+            a.makeStep();
+            b.makeStep();
+        }
+        for (int i = 0; i < a.getFlock().getSize(); i++) {
+            Boid x = a.getFlock().getBoids().get(i);
+            Boid y = b.getFlock().getBoids().get(i);
+            assertEquals(x.getPosition().getX(), y.getPosition().getX(), 0);
+            assertEquals(x.getPosition().getY(), y.getPosition().getY(), 0);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.*;
+import core.BinarySaveFile;
+import core.Boid;
+import core.CheckpointService;
+import core.Flock;
+import core.IndexedSaveFile;
+import core.IndexedSaveReader;
+import core.ReplayPlayer;
+import core.ReplayWriter;
+import core.SaveFile;
+import core.Settings;
+import core.Simulation;
+import core.Species;
+import core.StateChecksum;
+import core.StreamingXMLSaveFile;
+
+/**
+ * Unit tests for flocks with several species.
+ */
+public class SpeciesTest {
+
+    /**
+     * Creates a simulation with three species: the default one, a fast one
+     * which sees further and a slow one which sees less far.
+     *
+     * @param seed seed
+     * @param interactions interactions of the fast species with the default and the slow species
+     * @param index neighbour index
+     * @return simulation
+     */
+    private static Simulation create(long seed, Species.Interaction[] interactions, Flock.NeighbourIndex index) {
+        Simulation sim = new Simulation(seed);
+        sim.getSettings().setWrapArea(seed % 2 == 1);
+        Flock flock = sim.getFlock();
+        Settings fastSettings = new Settings(sim.getSettings());
+        fastSettings.setMaxSpeed(8);
+        fastSettings.setViewDistance(120);
+        fastSettings.setSeparationFactor(0);
+        Settings slowSettings = new Settings(sim.getSettings());
+        slowSettings.setViewDistance(20);
+        Species fast = flock.addSpecies("fast", fastSettings);
+        Species slow = flock.addSpecies("slow", slowSettings);
+        flock.setInteraction(fast, flock.getSpecies(0), interactions[0]);
+        flock.setInteraction(fast, slow, interactions[1]);
+        flock.setInteraction(slow, fast, Species.Interaction.AVOID);
+        flock.addRandomBoids(0, 0, 800, 800, 150);
+        flock.addRandomBoids(0, 0, 800, 800, 50, fast);
+        flock.addRandomBoids(350, 350, 100, 100, 80, slow);
+        flock.setNeighbourIndex(index);
+        return sim;
+    }
+
+    @Test
+    public void testSpecies() {
+        Simulation sim = new Simulation(1);
+        Flock flock = sim.getFlock();
+        assertEquals(1, flock.getSpeciesCount());
+        assertSame(sim.getSettings(), flock.getSpecies(0).getSettings());
+        Settings settings = new Settings(sim.getSettings());
+        settings.setAreaWidth(100);
+        Species other = flock.addSpecies("other", settings);
+        assertEquals(1, other.getId());
+        assertEquals(sim.getSettings().getAreaWidth(), other.getSettings().getAreaWidth());
+        sim.getSettings().setWrapArea(!settings.isWrapArea());
+        sim.makeStep();
+        assertEquals(sim.getSettings().isWrapArea(), other.getSettings().isWrapArea());
+        assertEquals(2, flock.getSpeciesCount());
+        assertSame(flock.getSpecies(0), flock.getSpecies(5));
+        assertEquals(Species.Interaction.FOLLOW, other.getInteraction(0));
+
+        flock.setInteraction(other, flock.getSpecies(0), Species.Interaction.AVOID);
+        assertEquals(Species.Interaction.AVOID, other.getInteraction(0));
+        assertEquals(Species.Interaction.FOLLOW, other.getInteraction(1));
+        assertEquals(Species.Interaction.FOLLOW, flock.getSpecies(0).getInteraction(1));
+        flock.setInteraction(other, flock.getSpecies(0), Species.Interaction.IGNORE);
+        assertEquals(Species.Interaction.IGNORE, other.getInteraction(0));
+
+        flock.addRandomBoids(0, 0, 100, 100, 3, other);
+        for (Boid b : flock.getBoids()) {
+            assertEquals(1, b.getSpecies());
+        }
+        for (int i = 2; i < Species.MAX_SPECIES; i++) {
+            flock.addSpecies("s" + i, sim.getSettings());
+        }
+        try {
+            flock.addSpecies("too many", sim.getSettings());
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIgnore() {
+        Species.Interaction[] ignore = { Species.Interaction.IGNORE, Species.Interaction.IGNORE };
+        for (Flock.NeighbourIndex index : Flock.NeighbourIndex.values()) {
+            Simulation sim = create(2, ignore, index);
+            ArrayList<Boid> boids = sim.getFlock().getBoids();
+            int[][] neighbours = sim.getFlock().findNeighbours();
+            int seen = 0;
+            for (int i = 0; i < boids.size(); i++) {
+                for (int j : neighbours[i]) {
+                    if (boids.get(i).getSpecies() == 1) {
+                        assertEquals(1, boids.get(j).getSpecies());
+                    }
+                    if (boids.get(j).getSpecies() == 1 && boids.get(i).getSpecies() != 1) {
+                        seen++;
+                    }
+                }
+            }
+            assertTrue(seen > 0); // the others still see the fast species
+        }
+    }
+
+    @Test
+    public void testAvoid() {
+        // without separation, an avoided species has no effect at all
+        Species.Interaction[] avoid = { Species.Interaction.AVOID, Species.Interaction.AVOID };
+        Species.Interaction[] ignore = { Species.Interaction.IGNORE, Species.Interaction.IGNORE };
+        Species.Interaction[] follow = { Species.Interaction.FOLLOW, Species.Interaction.FOLLOW };
+        Simulation a = create(4, avoid, Flock.NeighbourIndex.GRID);
+        Simulation b = create(4, ignore, Flock.NeighbourIndex.GRID);
+        Simulation c = create(4, follow, Flock.NeighbourIndex.GRID);
+        for (int i = 0; i < 40; i++) {
+            a.makeStep();
+            b.makeStep();
+            c.makeStep();
+        }
+        assertEquals(StateChecksum.compute(b.getFlock()), StateChecksum.compute(a.getFlock()));
+        assertFalse(StateChecksum.compute(c.getFlock()) == StateChecksum.compute(a.getFlock()));
+    }
+
+    @Test
+    public void testGrid() {
+        Species.Interaction[][] cases = {
+            { Species.Interaction.FOLLOW, Species.Interaction.FOLLOW },
+            { Species.Interaction.IGNORE, Species.Interaction.AVOID },
+            { Species.Interaction.AVOID, Species.Interaction.IGNORE },
+            { Species.Interaction.FOLLOW, Species.Interaction.IGNORE }
+        };
+        for (int c = 0; c < cases.length; c++) {
+            Simulation reference = create(c, cases[c], Flock.NeighbourIndex.BRUTE_FORCE);
+            Simulation candidate = create(c, cases[c], Flock.NeighbourIndex.GRID);
+            DifferentialHarness.Divergence d = new DifferentialHarness(reference, candidate, 0).run(50);
+            assertNull("case " + c + ": " + d, d);
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Species.Interaction[] interactions = { Species.Interaction.AVOID, Species.Interaction.IGNORE };
+        Simulation sim = create(6, interactions, Flock.NeighbourIndex.GRID);
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+        }
+        Simulation copy = sim.snapshot();
+        assertEquals(3, copy.getFlock().getSpeciesCount());
+        assertNotSame(sim.getFlock().getSpecies(1).getSettings(), copy.getFlock().getSpecies(1).getSettings());
+        assertEquals(Species.Interaction.AVOID, copy.getFlock().getSpecies(1).getInteraction(0));
+        for (int i = 0; i < 20; i++) {
+            sim.makeStep();
+            copy.makeStep();
+        }
+        assertEquals(StateChecksum.compute(sim.getFlock()), StateChecksum.compute(copy.getFlock()));
+    }
+
+    @Test
+    public void testSaveFiles() throws IOException {
+        SaveFile[] formats = { new BinarySaveFile(), new IndexedSaveFile(), new StreamingXMLSaveFile() };
+        for (SaveFile format : formats) {
+            Simulation sim = create(8, new Species.Interaction[] { Species.Interaction.AVOID, Species.Interaction.IGNORE },
+                    Flock.NeighbourIndex.GRID);
+            sim.makeStep();
+            File file = File.createTempFile("boids", "." + format.getFilenameExtension());
+            try {
+                format.saveSimulation(sim, file);
+                Simulation loaded = format.loadSimulation(file);
+                assertSameSpecies(format.getFilenameDescription(), sim, loaded);
+                assertSameSteps(format.getFilenameDescription(), sim, loaded);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedArea() throws IOException {
+        Simulation sim = create(10, new Species.Interaction[] { Species.Interaction.FOLLOW, Species.Interaction.AVOID },
+                Flock.NeighbourIndex.GRID);
+        File file = File.createTempFile("boids", ".iboids");
+        try {
+            new IndexedSaveFile().saveSimulation(sim, file);
+            IndexedSaveReader reader = new IndexedSaveReader(file);
+            ArrayList<Boid> boids = reader.readBoids(350, 350, 100, 100);
+            reader.close();
+            int slow = 0;
+            for (Boid b : boids) {
+                slow += b.getSpecies() == 2 ? 1 : 0;
+            }
+            assertEquals(80, slow); // the clump of the slow species
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        File directory = File.createTempFile("checkpoints", "");
+        directory.delete();
+        directory.mkdir();
+        try {
+            Simulation sim = create(12, new Species.Interaction[] { Species.Interaction.IGNORE, Species.Interaction.AVOID },
+                    Flock.NeighbourIndex.GRID);
+            CheckpointService service = new CheckpointService(directory, 5, 3, 2);
+            sim.addStepListener(service);
+            for (int i = 0; i < 10; i++) {
+                sim.makeStep();
+            }
+            service.close();
+            sim.removeStepListener(service);
+            Simulation resumed = CheckpointService.resume(directory);
+            assertEquals(10, resumed.getStep());
+            assertSameSpecies("checkpoint", sim, resumed);
+            assertSameSteps("checkpoint", sim, resumed);
+        } finally {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testReplay() throws IOException {
+        Simulation sim = create(14, new Species.Interaction[] { Species.Interaction.AVOID, Species.Interaction.IGNORE },
+                Flock.NeighbourIndex.GRID);
+        File file = File.createTempFile("boids", ".replay");
+        try {
+            ReplayWriter writer = new ReplayWriter(file, sim.getSettings(), 10);
+            sim.addStepListener(writer);
+            for (int i = 0; i < 15; i++) {
+                sim.makeStep();
+            }
+            sim.removeStepListener(writer);
+            writer.close();
+
+            ReplayPlayer player = new ReplayPlayer(file);
+            player.seek(14);
+            Simulation replay = new Simulation();
+            player.apply(replay);
+            player.close();
+            assertSameSpecies("replay", sim, replay);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checks that a loaded simulation has the same species as the original
+     * and that its boids are of the same species.
+     *
+     * @param format name of the format, used in the messages
+     * @param sim original simulation
+     * @param loaded loaded simulation
+     */
+    private static void assertSameSpecies(String format, Simulation sim, Simulation loaded) {
+        Flock a = sim.getFlock();
+        Flock b = loaded.getFlock();
+        assertEquals(format, a.getSpeciesCount(), b.getSpeciesCount());
+        for (int i = 0; i < a.getSpeciesCount(); i++) {
+            assertEquals(format, a.getSpecies(i).getName(), b.getSpecies(i).getName());
+            assertEquals(format, a.getSpecies(i).getSettings().getViewDistance(),
+                    b.getSpecies(i).getSettings().getViewDistance(), 0);
+            assertEquals(format, a.getSpecies(i).getSettings().getMaxSpeed(), b.getSpecies(i).getSettings().getMaxSpeed(), 0);
+            for (int j = 0; j < a.getSpeciesCount(); j++) {
+                assertEquals(format, a.getSpecies(i).getInteraction(j), b.getSpecies(i).getInteraction(j));
+            }
+        }
+        assertTrue(format, loaded.getSettings() == b.getSpecies(0).getSettings());
+        assertEquals(format, a.getSize(), b.getSize());
+        for (int i = 0; i < a.getSize(); i++) {
+            assertEquals(format, a.getBoids().get(i).getSpecies(), b.getBoids().get(i).getSpecies());
+        }
+    }
+
+    /**
+     * Checks that a loaded simulation steps exactly like the original, which
+     * needs the boids to have the settings of their species.
+     *
+     * @param format name of the format, used in the messages
+     * @param sim original simulation
+     * @param loaded loaded simulation
+     */
+    private static void assertSameSteps(String format, Simulation sim, Simulation loaded) {
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+            loaded.makeStep();
+        }
+        assertEquals(format, StateChecksum.compute(sim.getFlock()), StateChecksum.compute(loaded.getFlock()));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.Flock;
+import core.Simulation;
+import core.Species;
+import core.StateChecksum;
+import core.Vector2D;
+
+/**
+ * Unit tests for StateChecksum class and the checksums of Simulation.
+ */
+public class StateChecksumTest {
+
+    @Test
+    public void testOrder() {
+        Simulation a = new Simulation(3);
+        a.getFlock().addRandomBoids(0, 0, 800, 800, 50);
+        Simulation b = new Simulation(3);
+        ArrayList<Boid> boids = a.getFlock().getBoids();
+        for (int i = boids.size() - 1; i >= 0; i--) {
+            Boid x = boids.get(i);
+            b.getFlock().addBoid(new Boid(new Vector2D(x.getPosition().getX(), x.getPosition().getY()),
+                    new Vector2D(x.getVelocity().getX(), x.getVelocity().getY()), b.getSettings(), b.getRandom()));
+        }
+        assertEquals(StateChecksum.compute(a.getFlock()), StateChecksum.compute(b.getFlock()));
+        
+        b.getFlock().getBoids().get(7).getPosition().setX(boids.get(42).getPosition().getX() + 0.01);
+        assertFalse(StateChecksum.compute(a.getFlock()) == StateChecksum.compute(b.getFlock()));
+        assertEquals("000000000000002a", StateChecksum.format(42));
+    }
+
+    @Test
+    public void testSpecies() {
+        Simulation a = new Simulation(5);
+        a.getFlock().addRandomBoids(0, 0, 800, 800, 20);
+        Simulation b = new Simulation(5);
+        Species other = b.getFlock().addSpecies("other", b.getSettings());
+        b.getFlock().addRandomBoids(0, 0, 800, 800, 20, other); // the same boids in another species
+        assertFalse(StateChecksum.compute(a.getFlock()) == StateChecksum.compute(b.getFlock()));
+    }
+    
+    @Test
+    public void testInterval() {
+        Simulation a = new Simulation(11);
+        Simulation b = new Simulation(11);
+        a.getFlock().addRandomBoids(0, 0, 800, 800, 100);
+        b.getFlock().addRandomBoids(0, 0, 800, 800, 100);
+        a.getFlock().setNeighbourIndex(Flock.NeighbourIndex.BRUTE_FORCE);
+        b.getFlock().setNeighbourIndex(Flock.NeighbourIndex.GRID);
+        a.setChecksumInterval(5);
+        b.setChecksumInterval(5);
+        assertEquals(0, a.getChecksumStep());
+        for (int i = 1; i <= 23; i++) {
+            a.makeStep();
+            b.makeStep();
+            assertEquals(i - i % 5, a.getChecksumStep());
+            assertEquals(a.getChecksum(), b.getChecksum());
+        }
+        assertFalse(StateChecksum.compute(a.getFlock()) == a.getChecksum()); // the last checksum is of step 20
+        
+        a.setChecksumInterval(0);
+        a.makeStep();
+        a.makeStep();
+        assertEquals(20, a.getChecksumStep());
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import core.Histogram;
+import core.Simulation;
+import core.StepProfiler;
+
+/**
+ * Unit tests for StepProfiler and Histogram classes.
+ */
+public class StepProfilerTest {
+
+    @Test
+    public void testProfile() {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 50);
+        StepProfiler profiler = new StepProfiler();
+        sim.getFlock().setProfiler(profiler);
+        for (int i = 0; i < 20; i++) {
+            sim.makeStep();
+        }
+        sim.getFlock().setProfiler(null);
+        sim.makeStep(); // not measured
+        
+        assertEquals(20, profiler.getSteps());
+        assertEquals(20, profiler.getCalls(StepProfiler.Phase.STEP));
+        long rules = 0;
+        for (StepProfiler.Phase phase : StepProfiler.Phase.values()) {
+            if (phase != StepProfiler.Phase.STEP) {
+                assertEquals(20 * 50, profiler.getCalls(phase));
+                rules += profiler.getTotalNanos(phase);
+            }
+        }
+        assertTrue(rules <= profiler.getTotalNanos(StepProfiler.Phase.STEP));
+        assertTrue(profiler.getPercentile(StepProfiler.Phase.STEP, 50) > 0);
+        assertTrue(profiler.getPercentile(StepProfiler.Phase.STEP, 50)
+                <= profiler.getPercentile(StepProfiler.Phase.STEP, 99));
+        assertTrue(profiler.report().startsWith("20 steps"));
+        
+        profiler.reset();
+        assertEquals(0, profiler.getSteps());
+        assertEquals(0, profiler.getTotalNanos(StepProfiler.Phase.STEP));
+    }
+    
+    @Test
+    public void testAllocations() {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(0, 0, 800, 800, 50);
+        StepProfiler profiler = new StepProfiler(true);
+        if (!profiler.isCountingAllocations()) {
+            return; // the virtual machine doesn't count allocations per thread
+        }
+        profiler.setAllocationBudget(1); // every step allocates vectors
+        sim.getFlock().setProfiler(profiler);
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+            assertTrue(profiler.isLastStepOverBudget());
+            assertTrue(profiler.getLastStepBytes() > 0);
+        }
+        long phases = 0;
+        for (StepProfiler.Phase phase : StepProfiler.Phase.values()) {
+            if (phase != StepProfiler.Phase.STEP) {
+                phases += profiler.getTotalBytes(phase);
+            }
+        }
+        assertTrue(phases > 0);
+        assertTrue(phases <= profiler.getTotalBytes(StepProfiler.Phase.STEP));
+        assertEquals(10, profiler.getOverBudgetSteps());
+        assertTrue(profiler.report().contains("10 of 10 steps over the budget"));
+        
+        profiler.setAllocationBudget(Long.MAX_VALUE);
+        sim.makeStep();
+        assertFalse(profiler.isLastStepOverBudget());
+        assertEquals(10, profiler.getOverBudgetSteps());
+        profiler.reset();
+        assertEquals(0, profiler.getOverBudgetSteps());
+        assertEquals(0, profiler.getTotalBytes(StepProfiler.Phase.STEP));
+    }
+    
+    @Test
+    public void testHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(500500.0, h.getMean(), 1e-9);
+        assertEquals(1000000, h.getMax());
+        assertEquals(1000000, h.getPercentile(100));
+        for (double p : new double[] { 1, 10, 50, 90, 99 }) {
+            double exact = p * 10 * 1000;
+            long value = h.getPercentile(p);
+            assertTrue(value >= exact && value <= exact * 1.125);
+        }
+        h.record(3);
+        assertEquals(3, h.getPercentile(0));
+    }
+    
+}
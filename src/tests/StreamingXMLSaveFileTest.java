@@ -0,0 +1,210 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import org.junit.*;
+import core.Boid;
+import core.Obstacle;
+import core.Simulation;
+import core.StreamingXMLSaveFile;
+
+/**
+ * Unit tests for StreamingXMLSaveFile class.
+ */
+public class StreamingXMLSaveFileTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("boids", ".xml");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getSettings().setViewDistance(42.5);
+        sim.getObstacles().add(new Obstacle(300, 400, 50));
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 100);
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+        }
+
+        new StreamingXMLSaveFile().saveSimulation(sim, file);
+        Simulation loaded = new StreamingXMLSaveFile().loadSimulation(file);
+
+        assertEquals(sim.getStep(), loaded.getStep());
+        assertEquals(42.5, loaded.getSettings().getViewDistance(), 0);
+        assertEquals(1, loaded.getObstacles().size());
+        assertEquals(sim.getFlock().getSize(), loaded.getFlock().getSize());
+
+        // the loaded simulation must continue exactly like the original one
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+            loaded.makeStep();
+        }
+        for (int i = 0; i < sim.getFlock().getSize(); i++) {
+            Boid a = sim.getFlock().getBoids().get(i);
+            Boid b = loaded.getFlock().getBoids().get(i);
+            assertEquals(a.getPosition().getX(), b.getPosition().getX(), 0);
+            assertEquals(a.getPosition().getY(), b.getPosition().getY(), 0);
+        }
+    }
+
+    @Test
+    public void testXStreamFile() throws IOException {
+        FileWriter out = new FileWriter(file);
+        out.write("<core.Simulation>\n"
+                + "  <settings>\n"
+                + "    <separationFactor>2.0</separationFactor>\n"
+                + "    <maxSpeed>7.0</maxSpeed>\n"
+                + "    <areaWidth>640</areaWidth>\n"
+                + "    <wrapArea>true</wrapArea>\n"
+                + "    <version>1</version>\n"
+                + "  </settings>\n"
+                + "  <random serialization=\"custom\">\n"
+                + "    <java.util.Random>\n"
+                + "      <default>\n"
+                + "        <haveNextNextGaussian>false</haveNextNextGaussian>\n"
+                + "        <nextNextGaussian>0.0</nextNextGaussian>\n"
+                + "        <seed>25214903917</seed>\n"
+                + "      </default>\n"
+                + "    </java.util.Random>\n"
+                + "  </random>\n"
+                + "  <obstacles>\n"
+                + "    <core.Obstacle>\n"
+                + "      <position><x>10.0</x><y>20.0</y></position>\n"
+                + "      <radius>30</radius>\n"
+                + "    </core.Obstacle>\n"
+                + "  </obstacles>\n"
+                + "  <flock>\n"
+                + "    <changed>false</changed>\n"
+                + "    <obs/>\n"
+                + "    <boids>\n"
+                + "      <core.Boid>\n"
+                + "        <velocity><x>1.0</x><y>0.0</y></velocity>\n"
+                + "        <position><x>100.0</x><y>200.0</y></position>\n"
+                + "        <force><x>0.0</x><y>0.0</y></force>\n"
+                + "        <set reference=\"../../../../settings\"/>\n"
+                + "        <wanderAngle>0.5</wanderAngle>\n"
+                + "        <random reference=\"../../../../random\"/>\n"
+                + "      </core.Boid>\n"
+                + "      <core.Boid>\n"
+                + "        <velocity><x>0.0</x><y>1.0</y></velocity>\n"
+                + "        <position><x>300.0</x><y>400.0</y></position>\n"
+                + "        <force reference=\"../velocity\"/>\n"
+                + "        <set reference=\"/core.Simulation/settings\"/>\n"
+                + "        <wanderAngle>0.0</wanderAngle>\n"
+                + "        <random reference=\"../../../../random\"/>\n"
+                + "      </core.Boid>\n"
+                + "    </boids>\n"
+                + "    <set reference=\"../../settings\"/>\n"
+                + "    <random reference=\"../../random\"/>\n"
+                + "  </flock>\n"
+                + "</core.Simulation>\n");
+        out.close();
+
+        Simulation sim = new StreamingXMLSaveFile().loadSimulation(file);
+        assertEquals(0, sim.getStep());
+        assertEquals(7.0, sim.getSettings().getMaxSpeed(), 0);
+        assertEquals(640, sim.getSettings().getAreaWidth());
+        assertTrue(sim.getSettings().isWrapArea());
+        assertEquals(30, sim.getObstacles().get(0).getRadius());
+        assertEquals(2, sim.getFlock().getSize());
+        Boid b = sim.getFlock().getBoids().get(1);
+        assertEquals(300.0, b.getPosition().getX(), 0);
+        assertEquals(1.0, b.getForce().getY(), 0);
+    }
+
+    @Test
+    public void testSharedVelocity() throws IOException {
+        // XStream writes a vector shared by several boids once and refers to it from the later boids
+        FileWriter out = new FileWriter(file);
+        out.write("<core.Simulation>\n"
+                + "  <settings>\n"
+                + "    <version>1</version>\n"
+                + "  </settings>\n"
+                + "  <random serialization=\"custom\">\n"
+                + "    <java.util.Random>\n"
+                + "      <default>\n"
+                + "        <haveNextNextGaussian>false</haveNextNextGaussian>\n"
+                + "        <nextNextGaussian>0.0</nextNextGaussian>\n"
+                + "        <seed>25214903917</seed>\n"
+                + "      </default>\n"
+                + "    </java.util.Random>\n"
+                + "  </random>\n"
+                + "  <obstacles/>\n"
+                + "  <flock>\n"
+                + "    <boids>\n"
+                + "      <core.Boid>\n"
+                + "        <velocity><x>2.0</x><y>-1.0</y></velocity>\n"
+                + "        <position><x>100.0</x><y>200.0</y></position>\n"
+                + "        <set reference=\"../../../../settings\"/>\n"
+                + "        <random reference=\"../../../../random\"/>\n"
+                + "      </core.Boid>\n"
+                + "      <core.Boid>\n"
+                + "        <velocity reference=\"../../core.Boid/velocity\"/>\n"
+                + "        <position><x>300.0</x><y>400.0</y></position>\n"
+                + "        <set reference=\"../../../../settings\"/>\n"
+                + "        <random reference=\"../../../../random\"/>\n"
+                + "      </core.Boid>\n"
+                + "      <core.Boid>\n"
+                + "        <velocity reference=\"../../core.Boid/velocity\"/>\n"
+                + "        <position><x>500.0</x><y>600.0</y></position>\n"
+                + "        <force reference=\"../../core.Boid[2]/position\"/>\n"
+                + "        <set reference=\"../../../../settings\"/>\n"
+                + "        <random reference=\"../../../../random\"/>\n"
+                + "      </core.Boid>\n"
+                + "    </boids>\n"
+                + "  </flock>\n"
+                + "</core.Simulation>\n");
+        out.close();
+
+        Simulation sim = new StreamingXMLSaveFile().loadSimulation(file);
+        assertEquals(3, sim.getFlock().getSize());
+        for (Boid b : sim.getFlock().getBoids()) {
+            assertEquals(2.0, b.getVelocity().getX(), 0);
+            assertEquals(-1.0, b.getVelocity().getY(), 0);
+        }
+        Boid b = sim.getFlock().getBoids().get(2);
+        assertEquals(500.0, b.getPosition().getX(), 0);
+        assertEquals(300.0, b.getForce().getX(), 0);
+        assertEquals(400.0, b.getForce().getY(), 0);
+    }
+
+    @Test
+    public void testWrongVersion() throws IOException {
+        FileWriter out = new FileWriter(file);
+        out.write("<core.Simulation><settings><version>2</version></settings></core.Simulation>");
+        out.close();
+        try {
+            new StreamingXMLSaveFile().loadSimulation(file);
+            fail("Loading a file with a wrong version should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tests;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import org.junit.*;
+import core.Boid;
+import core.Simulation;
+import core.TrajectoryReader;
+import core.TrajectoryRecorder;
+
+/**
+ * Unit tests for TrajectoryRecorder and TrajectoryReader classes.
+ */
+public class TrajectoryRecorderTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("boids", ".traj");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecordAndRead() throws IOException {
+        Simulation sim = new Simulation();
+        sim.getFlock().addRandomBoids(100, 100, 400, 400, 50);
+        // small chunks, so that several chunks are mapped
+        TrajectoryRecorder recorder = new TrajectoryRecorder(file, 40, 3);
+        sim.addStepListener(recorder);
+
+        ArrayList<float[]> expected = new ArrayList<float[]>();
+        for (int i = 0; i < 10; i++) {
+            sim.makeStep();
+            Boid b = sim.getFlock().getBoids().get(39);
+            expected.add(new float[] { (float) b.getPosition().getX(), (float) b.getPosition().getY(),
+                    (float) b.getVelocity().getX(), (float) b.getVelocity().getY() });
+        }
+        sim.removeStepListener(recorder);
+        recorder.close();
+        assertEquals(32 + 10 * (16 + 40 * 16), file.length()); // header and ten records
+
+        TrajectoryReader reader = new TrajectoryReader(file);
+        assertEquals(10, reader.getRecordCount());
+        assertEquals(40, reader.getMaxBoids());
+        float[] values = new float[4 * 40];
+        for (int i = 9; i >= 0; i--) {
+            assertEquals(i + 1, reader.getStep(i));
+            assertEquals(40, reader.getBoidCount(i));
+            assertEquals(40, reader.read(i, values));
+            for (int k = 0; k < 4; k++) {
+                assertEquals(expected.get(i)[k], values[4 * 39 + k], 0);
+            }
+            assertEquals(expected.get(i)[0], reader.getPosition(i, 39).getX(), 0);
+            assertEquals(expected.get(i)[3], reader.getVelocity(i, 39).getY(), 0);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testOverflowingRecordSize() throws IOException {
+        TrajectoryRecorder recorder = new TrajectoryRecorder(file, 40, 3);
+        recorder.close();
+
+        // 2^28 boids of 16 bytes overflow an int to 0, leaving only the record header
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.seek(8);
+        f.writeInt(1 << 28);
+        f.writeInt(16);
+        f.close();
+
+        try {
+            new TrajectoryReader(file).close();
+            fail("Opening a trajectory file with an overflowing record size should fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("header"));
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tools;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import core.Flock;
+import core.Obstacle;
+import core.Simulation;
+import core.StateChecksum;
+
+/**
+ * Measures how the simulation scales. Every combination of neighbour
+ * index, flock size, thread count, view distance and obstacle density is
+ * run from a fixed
+ * seed through the headless runner: first the warm-up steps, then the
+ * measured steps. Usage:
+ * <pre>
+ * Benchmark [--index i,i,...] [--sizes n,n,...] [--threads n,n,...]
+ *           [--views d,d,...] [--obstacles d,d,...] [--warmup steps] [--steps steps]
+ *           [--seed seed] [--density boids] [--max-seconds s]
+ *           [--label text] [--csv file]
+ * </pre>
+ * The area grows with the flock so that there are always the given number
+ * of boids per million square units; the obstacle density is also given
+ * per million square units. With n threads, n simulations seeded from
+ * seed, seed + 1, ... run at the same time, so the parallel efficiency is
+ * the throughput of n threads divided by n times the throughput of one
+ * thread.
+ *
+ * Every run is written as a row of the CSV file and the summary printed at
+ * the end has the steps per second, nanoseconds per boid-step, parallel
+ * efficiency and bytes allocated per step. A run which is estimated to take
+ * longer than the time limit, from the growth of the step time with the
+ * flock size, is skipped and marked so in the CSV. The label, for example a
+ * commit id, is copied to every row, so runs of different versions can be
+ * compared. The checksum of the state of the first simulation at the end
+ * is written too; it must be the same for every neighbour index, thread
+ * count and version which doesn't change the behaviour.
+ */
+public class Benchmark {
+    private long seed;
+    private int warmup;
+    private int steps;
+    private double density;
+    private double maxSeconds;
+    private String label;
+    
+    public final static String CSV_HEADER = "label,seed,index,boids,threads,view_distance,obstacle_density,"
+            + "warmup,steps,steps_per_second,ns_per_boid_step,parallel_efficiency,bytes_per_step,gc_ms,"
+            + "neighbours_per_boid,checksum,status";
+    private final static int OBSTACLE_RADIUS = 20;
+    private final static int OBSTACLE_ATTEMPTS = 20;
+    private final static double MEGA = 1e6;
+    
+    /**
+     * The result of one combination.
+     */
+    public static class Result {
+        public Flock.NeighbourIndex index;
+        public int boids;
+        public int threads;
+        public double viewDistance;
+        public double obstacleDensity;
+        public double stepsPerSecond; // steps of all simulations together
+        public double nanosPerBoidStep;
+        public double parallelEfficiency; // NaN until compared to one thread
+        public long bytesPerStep; // -1 if the virtual machine doesn't count them
+        public long gcMillis;
+        public double neighbours;
+        public long checksum; // state of the first simulation after the measured steps
+        public boolean skipped;
+        long stepNanos; // mean time of one step of one simulation
+    }
+    
+    /**
+     * Creates a benchmark.
+     * 
+     * @param seed seed of the first simulation
+     * @param warmup steps run before measuring
+     * @param steps measured steps
+     * @param density boids per million square units
+     * @param maxSeconds runs estimated to take longer are skipped
+     */
+    public Benchmark(long seed, int warmup, int steps, double density, double maxSeconds) {
+        if (steps <= 0 || warmup < 0 || density <= 0) {
+            throw new IllegalArgumentException("Invalid benchmark parameters");
+        }
+        this.seed = seed;
+        this.warmup = warmup;
+        this.steps = steps;
+        this.density = density;
+        this.maxSeconds = maxSeconds;
+        this.label = "";
+    }
+    
+    /**
+     * Sets the label written to every CSV row.
+     * 
+     * @param label label, for example a commit id
+     */
+    public void setLabel(String label) {
+        this.label = label;
+    }
+    
+    /**
+     * Creates the simulation of a run. The same arguments always give the
+     * same simulation.
+     * 
+     * @param seed seed
+     * @param boids number of boids
+     * @param viewDistance view distance of the boids
+     * @param obstacleDensity obstacles per million square units
+     * @param index neighbour index
+     * @return simulation
+     */
+    Simulation createSimulation(long seed, int boids, double viewDistance, double obstacleDensity,
+            Flock.NeighbourIndex index) {
+        Simulation sim = new Simulation(seed);
+        sim.getFlock().setNeighbourIndex(index);
+        int side = (int) Math.ceil(Math.sqrt(boids / this.density * MEGA));
+        sim.getSettings().setAreaWidth(side);
+        sim.getSettings().setAreaHeight(side);
+        sim.getSettings().setViewDistance(viewDistance);
+        
+        Random random = new Random(seed);
+        long obstacles = Math.round(obstacleDensity * side * (double) side / MEGA);
+        for (long i = 0; i < obstacles; i++) {
+            for (int attempt = 0; attempt < OBSTACLE_ATTEMPTS; attempt++) {
+                int x = random.nextInt(side);
+                int y = random.nextInt(side);
+                if (sim.obstacleAllowed(x, y, OBSTACLE_RADIUS)) {
+                    sim.getObstacles().add(new Obstacle(x, y, OBSTACLE_RADIUS));
+                    break;
+                }
+            }
+        }
+        sim.getFlock().addRandomBoids(0, 0, side, side, boids);
+        return sim;
+    }
+    
+    /**
+     * Runs one combination.
+     * 
+     * @param index neighbour index
+     * @param boids number of boids in each simulation
+     * @param threads number of simulations run at the same time
+     * @param viewDistance view distance of the boids
+     * @param obstacleDensity obstacles per million square units
+     * @return result
+     * @throws IOException if a run fails
+     */
+    public Result run(final Flock.NeighbourIndex index, final int boids, int threads, final double viewDistance,
+            final double obstacleDensity) throws IOException {
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<long[]>> runs = new ArrayList<Future<long[]>>();
+        long gcBefore = 0;
+        long wall;
+        try {
+            for (int i = 0; i < threads; i++) {
+                final long seed = this.seed + i;
+                runs.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        return Benchmark.this.runSimulation(seed, boids, viewDistance, obstacleDensity, index, barrier);
+                    }
+                }));
+            }
+            barrier.await(); // all simulations are warm
+            gcBefore = Benchmark.getGcMillis();
+            long start = System.nanoTime();
+            barrier.await(); // the measured steps start
+            long[] totals = new long[3];
+            long checksum = 0;
+            for (Future<long[]> f : runs) {
+                long[] r = f.get();
+                if (f == runs.get(0)) {
+                    checksum = r[3];
+                }
+                for (int k = 0; k < totals.length; k++) {
+                    totals[k] = r[k] < 0 || totals[k] < 0 ? -1 : totals[k] + r[k];
+                }
+            }
+            wall = System.nanoTime() - start;
+            
+            Result result = new Result();
+            result.index = index;
+            result.boids = boids;
+            result.threads = threads;
+            result.viewDistance = viewDistance;
+            result.obstacleDensity = obstacleDensity;
+            result.stepsPerSecond = (double) threads * this.steps / (wall / 1e9);
+            result.nanosPerBoidStep = wall / ((double) threads * this.steps * Math.max(1, boids));
+            result.parallelEfficiency = Double.NaN;
+            result.stepNanos = totals[0] / ((long) threads * this.steps);
+            result.bytesPerStep = totals[1] < 0 ? -1 : totals[1] / ((long) threads * this.steps);
+            result.neighbours = (double) totals[2] / threads / Math.max(1, boids);
+            result.gcMillis = Benchmark.getGcMillis() - gcBefore;
+            result.checksum = checksum;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("The benchmark was interrupted");
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new IOException("A benchmark run failed: " + cause, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs one simulation through the headless runner.
+     * 
+     * @param seed seed
+     * @param boids number of boids
+     * @param viewDistance view distance of the boids
+     * @param obstacleDensity obstacles per million square units
+     * @param index neighbour index
+     * @param barrier barrier passed after the warm-up and before the measured steps
+     * @return time of the measured steps in nanoseconds, bytes allocated by
+     *         them or -1, the neighbours found in the last step and the
+     *         checksum of the state at the end
+     * @throws Exception if the run fails
+     */
+    private long[] runSimulation(long seed, int boids, double viewDistance, double obstacleDensity,
+            Flock.NeighbourIndex index, CyclicBarrier barrier) throws Exception {
+        Simulation sim = this.createSimulation(seed, boids, viewDistance, obstacleDensity, index);
+        HeadlessRunner runner = new HeadlessRunner(sim, null);
+        runner.run(this.warmup);
+        barrier.await();
+        barrier.await();
+        long bytes = Benchmark.getAllocatedBytes();
+        long start = System.nanoTime();
+        runner.run(this.warmup + this.steps);
+        long time = System.nanoTime() - start;
+        long allocated = Benchmark.getAllocatedBytes();
+        return new long[] { time, bytes < 0 ? -1 : allocated - bytes, sim.getFlock().getNeighbourSum(),
+            StateChecksum.compute(sim.getFlock()) };
+    }
+    
+    /**
+     * Runs every combination.
+     * 
+     * @param indices neighbour indices
+     * @param sizes flock sizes
+     * @param threads thread counts
+     * @param views view distances
+     * @param obstacles obstacle densities
+     * @param csv every result is written here as soon as it is ready, may be null
+     * @return results
+     * @throws IOException if a run or writing the CSV fails
+     */
+    public ArrayList<Result> sweep(Flock.NeighbourIndex[] indices, int[] sizes, int[] threads, double[] views,
+            double[] obstacles, PrintWriter csv) throws IOException {
+        int[] sorted = sizes.clone();
+        java.util.Arrays.sort(sorted);
+        ArrayList<Result> results = new ArrayList<Result>();
+        for (Flock.NeighbourIndex index : indices) {
+            for (double view : views) {
+                for (double obstacle : obstacles) {
+                    for (int t : threads) {
+                        this.sweepSizes(index, sorted, t, view, obstacle, results, csv);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Runs the flock sizes of one combination from the smallest up. When
+     * the step time of the next size, extrapolated from the two previous
+     * sizes, would make the run longer than the time limit, the size and the
+     * larger ones are skipped.
+     * 
+     * @param index neighbour index
+     * @param sizes flock sizes in ascending order
+     * @param threads thread count
+     * @param view view distance
+     * @param obstacle obstacle density
+     * @param results the results are added here
+     * @param csv every result is written here, may be null
+     * @throws IOException if a run or writing the CSV fails
+     */
+    private void sweepSizes(Flock.NeighbourIndex index, int[] sizes, int threads, double view, double obstacle,
+            ArrayList<Result> results, PrintWriter csv) throws IOException {
+        Result previous = null;
+        Result before = null;
+        boolean skipping = false;
+        for (int n : sizes) {
+            Result r;
+            if (skipping || this.estimateSeconds(n, previous, before) > this.maxSeconds) {
+                skipping = true;
+                r = new Result();
+                r.index = index;
+                r.boids = n;
+                r.threads = threads;
+                r.viewDistance = view;
+                r.obstacleDensity = obstacle;
+                r.parallelEfficiency = Double.NaN;
+                r.bytesPerStep = -1;
+                r.skipped = true;
+            } else {
+                r = this.run(index, n, threads, view, obstacle);
+                before = previous;
+                previous = r;
+            }
+            Result single = Benchmark.find(results, index, n, 1, view, obstacle);
+            if (single != null && !single.skipped && !r.skipped) {
+                r.parallelEfficiency = r.stepsPerSecond / (threads * single.stepsPerSecond);
+            } else if (threads == 1 && !r.skipped) {
+                r.parallelEfficiency = 1;
+            }
+            results.add(r);
+            if (csv != null) {
+                csv.println(this.toCsv(r));
+                csv.flush();
+                if (csv.checkError()) {
+                    throw new IOException("Writing the CSV file failed");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Estimates how long a run of the given size takes. The step time grows
+     * as the power of the flock size seen between the two previous sizes,
+     * but at least linearly and at most quadratically; with only one previous
+     * size it is assumed to grow quadratically.
+     * 
+     * @param boids flock size
+     * @param previous result of the previous size, may be null
+     * @param before result of the size before that, may be null
+     * @return estimated seconds, 0 if there is nothing to estimate from
+     */
+    private double estimateSeconds(int boids, Result previous, Result before) {
+        if (previous == null || previous.boids == 0) {
+            return 0;
+        }
+        double exponent = 2;
+        if (before != null && before.boids > 0 && before.stepNanos > 0 && previous.boids > before.boids) {
+            exponent = Math.log((double) previous.stepNanos / before.stepNanos)
+                    / Math.log((double) previous.boids / before.boids);
+            exponent = Math.max(1, Math.min(2, exponent));
+        }
+        double step = previous.stepNanos * Math.pow((double) boids / previous.boids, exponent);
+        return step * (this.warmup + this.steps) / 1e9;
+    }
+    
+    /**
+     * Finds a result.
+     * 
+     * @param results results
+     * @param index neighbour index
+     * @param boids flock size
+     * @param threads thread count
+     * @param view view distance
+     * @param obstacles obstacle density
+     * @return the result, or null if there is none
+     */
+    private static Result find(ArrayList<Result> results, Flock.NeighbourIndex index, int boids, int threads,
+            double view, double obstacles) {
+        for (Result r : results) {
+            if (r.index == index && r.boids == boids && r.threads == threads && r.viewDistance == view && r.obstacleDensity == obstacles) {
+                return r;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Formats a result as a CSV row.
+     * 
+     * @param r result
+     * @return row without a line break
+     */
+    String toCsv(Result r) {
+        return String.format(Locale.ROOT, "%s,%d,%s,%d,%d,%s,%s,%d,%d,%s,%s,%s,%d,%d,%s,%s,%s",
+                this.label.replace(',', ' '), this.seed, r.index.name().toLowerCase(), r.boids, r.threads, r.viewDistance, r.obstacleDensity,
+                this.warmup, this.steps,
+                r.skipped ? "" : String.format(Locale.ROOT, "%.3f", r.stepsPerSecond),
+                r.skipped ? "" : String.format(Locale.ROOT, "%.2f", r.nanosPerBoidStep),
+                Double.isNaN(r.parallelEfficiency) ? "" : String.format(Locale.ROOT, "%.3f", r.parallelEfficiency),
+                r.bytesPerStep, r.gcMillis,
+                r.skipped ? "" : String.format(Locale.ROOT, "%.2f", r.neighbours),
+                r.skipped ? "" : StateChecksum.format(r.checksum),
+                r.skipped ? "skipped" : "ok");
+    }
+    
+    /**
+     * Formats the results as a table.
+     * 
+     * @param results results
+     * @return summary
+     */
+    public static String summary(ArrayList<Result> results) {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format(Locale.ROOT, "%-12s %10s %7s %6s %9s %12s %12s %10s %12s %10s%n", "index", "boids",
+                "threads", "view", "obstacles", "steps/s", "ns/boid-step", "efficiency", "KB/step", "neighbours"));
+        for (Result r : results) {
+            if (r.skipped) {
+                s.append(String.format(Locale.ROOT, "%-12s %10d %7d %6.0f %9.1f %12s%n",
+                        r.index.name().toLowerCase(), r.boids, r.threads, r.viewDistance, r.obstacleDensity, "skipped"));
+                continue;
+            }
+            s.append(String.format(Locale.ROOT, "%-12s %10d %7d %6.0f %9.1f %12.2f %12.1f %10s %12s %10.1f%n",
+                    r.index.name().toLowerCase(), r.boids, r.threads, r.viewDistance, r.obstacleDensity, r.stepsPerSecond, r.nanosPerBoidStep,
+                    Double.isNaN(r.parallelEfficiency) ? "-" : String.format(Locale.ROOT, "%.2f", r.parallelEfficiency),
+                    r.bytesPerStep < 0 ? "-" : String.format(Locale.ROOT, "%.1f", r.bytesPerStep / 1024.0),
+                    r.neighbours));
+        }
+        return s.toString();
+    }
+    
+    /**
+     * Gets the number of bytes the current thread has allocated.
+     * 
+     * @return bytes, or -1 if the virtual machine doesn't count them
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                return t.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Gets the total time spent in garbage collection.
+     * 
+     * @return milliseconds
+     */
+    private static long getGcMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean c : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, c.getCollectionTime());
+        }
+        return time;
+    }
+    
+    /**
+     * Parses a comma separated list of integers.
+     * 
+     * @param value list
+     * @return numbers
+     */
+    static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        }
+        return numbers;
+    }
+    
+    /**
+     * Parses a comma separated list of decimal numbers.
+     * 
+     * @param value list
+     * @return numbers
+     */
+    static double[] parseDoubles(String value) {
+        String[] parts = value.split(",");
+        double[] numbers = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Double.parseDouble(parts[i].trim());
+        }
+        return numbers;
+    }
+    
+    /**
+     * Runs the benchmark from the command line.
+     * 
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        try {
+            HashMap<String, String> o = HeadlessRunner.parseOptions(args);
+            Benchmark benchmark = new Benchmark(HeadlessRunner.getLong(o, "seed", 42),
+                    (int) HeadlessRunner.getLong(o, "warmup", 20), (int) HeadlessRunner.getLong(o, "steps", 50),
+                    o.containsKey("density") ? Double.parseDouble(o.get("density")) : 312.5,
+                    o.containsKey("max-seconds") ? Double.parseDouble(o.get("max-seconds")) : 120);
+            if (o.containsKey("label")) {
+                benchmark.setLabel(o.get("label"));
+            }
+            String[] names = (o.containsKey("index") ? o.get("index") : "grid").split(",");
+            Flock.NeighbourIndex[] indices = new Flock.NeighbourIndex[names.length];
+            for (int i = 0; i < names.length; i++) {
+                indices[i] = Flock.NeighbourIndex.valueOf(names[i].trim().toUpperCase());
+            }
+            int[] sizes = Benchmark.parseInts(o.containsKey("sizes") ? o.get("sizes") : "1000,10000,100000,1000000");
+            int[] threads = Benchmark.parseInts(o.containsKey("threads") ? o.get("threads")
+                    : "1," + Runtime.getRuntime().availableProcessors());
+            double[] views = Benchmark.parseDoubles(o.containsKey("views") ? o.get("views") : "50");
+            double[] obstacles = Benchmark.parseDoubles(o.containsKey("obstacles") ? o.get("obstacles") : "0");
+            
+            PrintWriter csv = null;
+            if (o.containsKey("csv")) {
+                csv = new PrintWriter(new FileWriter(o.get("csv")));
+                csv.println(CSV_HEADER);
+            }
+            System.out.printf("Java %s, %d processors, seed %d%n", System.getProperty("java.version"),
+                    Runtime.getRuntime().availableProcessors(), HeadlessRunner.getLong(o, "seed", 42));
+            try {
+                ArrayList<Result> results = benchmark.sweep(indices, sizes, threads, views, obstacles, csv);
+                System.out.print(Benchmark.summary(results));
+            } finally {
+                if (csv != null) {
+                    csv.close();
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Benchmark [--index grid,brute_force] [--sizes n,n,...] [--threads n,n,...] [--views d,d,...]"
+                    + " [--obstacles d,d,...] [--warmup steps] [--steps steps] [--seed seed] [--density boids]"
+                    + " [--max-seconds s] [--label text] [--csv file]");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,562 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tools;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import core.Simulation;
+import core.StateChecksum;
+
+/**
+ * Runs an ensemble of many small independent simulations, for example for
+ * Monte Carlo studies. Each member is created by a {@link Task}, stepped a
+ * given number of times and handed back to the task when it is done.
+ *
+ * If the virtual machine has virtual threads, every member runs in its own
+ * virtual thread and yields between steps, so a few carrier threads share
+ * all members. Otherwise the members are run in slices of a few steps on a
+ * pool of platform threads, and a member goes to the back of the queue
+ * after each slice. Either way at most the given number of members hold a
+ * simulation at a time.
+ *
+ * The tasks should not block inside synchronized blocks, because that pins
+ * a virtual thread to its carrier. {@link ResultWriter} uses a
+ * ReentrantLock for the shared output, and a {@link core.CheckpointService}
+ * added as a step listener writes in its own thread.
+ */
+public class EnsembleExecutor {
+    private int members;
+    private long steps;
+    private Task task;
+    private int carriers;
+    private int maxInFlight;
+    private boolean virtualThreads;
+    private ExecutorService executor;
+    private CountDownLatch done;
+    private AtomicInteger completed;
+    private AtomicInteger failed;
+    private AtomicInteger inFlight;
+    private AtomicLong completedSteps;
+    private volatile Exception failure;
+    private volatile boolean cancelled;
+
+    private final static int SLICE_STEPS = 4; // steps before a member yields in the platform thread mode
+    private final static long POLL_MILLIS = 10;
+
+    /**
+     * Creates and finishes the members of an ensemble.
+     */
+    public interface Task {
+        /**
+         * Creates the simulation of a member.
+         *
+         * @param member member number
+         * @return simulation
+         * @throws Exception if the member can't be created
+         */
+        Simulation createSimulation(int member) throws Exception;
+
+        /**
+         * Called when a member has made all its steps.
+         *
+         * @param member member number
+         * @param sim simulation of the member
+         * @throws Exception if handling the result fails
+         */
+        void finished(int member, Simulation sim) throws Exception;
+    }
+
+    /**
+     * A member in the platform thread mode.
+     */
+    private static class Member {
+        int index;
+        Simulation sim;
+        long steps;
+    }
+
+    /**
+     * Writes lines from many members. The lock is a ReentrantLock, so a
+     * virtual thread waiting for it or writing doesn't pin its carrier.
+     */
+    public static class ResultWriter {
+        private PrintWriter out;
+        private ReentrantLock lock;
+
+        /**
+         * Creates a writer.
+         *
+         * @param out output
+         */
+        public ResultWriter(Writer out) {
+            this.out = new PrintWriter(out);
+            this.lock = new ReentrantLock();
+        }
+
+        /**
+         * Writes a line.
+         *
+         * @param line line without a line break
+         * @throws IOException if writing fails
+         */
+        public void println(String line) throws IOException {
+            this.lock.lock();
+            try {
+                this.out.println(line);
+                if (this.out.checkError()) {
+                    throw new IOException("Writing the results failed");
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Flushes and closes the output.
+         *
+         * @throws IOException if writing fails
+         */
+        public void close() throws IOException {
+            this.lock.lock();
+            try {
+                this.out.close();
+                if (this.out.checkError()) {
+                    throw new IOException("Writing the results failed");
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Creates an executor.
+     *
+     * @param members number of members
+     * @param steps steps of every member
+     * @param task creates and finishes the members
+     * @param carriers platform threads used in the platform thread mode
+     * @param maxInFlight largest number of members which have a simulation at a time
+     */
+    public EnsembleExecutor(int members, long steps, Task task, int carriers, int maxInFlight) {
+        if (members < 0 || steps < 0 || carriers < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Invalid ensemble parameters");
+        }
+        this.members = members;
+        this.steps = steps;
+        this.task = task;
+        this.carriers = carriers;
+        this.maxInFlight = maxInFlight;
+        this.virtualThreads = EnsembleExecutor.isVirtualThreadsAvailable();
+        this.completed = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        this.inFlight = new AtomicInteger();
+        this.completedSteps = new AtomicLong();
+    }
+
+    /**
+     * Tells whether the virtual machine has virtual threads.
+     *
+     * @return true if virtual threads can be used
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Chooses between virtual threads and slices on platform threads. Must
+     * be called before starting. Virtual threads are used by default if
+     * they are available.
+     *
+     * @param value true to use virtual threads if they are available
+     */
+    public void setUseVirtualThreads(boolean value) {
+        this.virtualThreads = value && EnsembleExecutor.isVirtualThreadsAvailable();
+    }
+
+    /**
+     * Tells whether the members run in virtual threads.
+     *
+     * @return true for virtual threads, false for slices on platform threads
+     */
+    public boolean isUsingVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Starts running the members.
+     */
+    public synchronized void start() {
+        if (this.done != null) {
+            throw new IllegalStateException("The ensemble has already been started");
+        }
+        this.done = new CountDownLatch(this.members);
+        if (this.virtualThreads) {
+            this.startVirtual();
+        } else {
+            this.startSlices();
+        }
+    }
+
+    /**
+     * Starts a virtual thread for every member.
+     */
+    private void startVirtual() {
+        try {
+            this.executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            throw new IllegalStateException("Virtual threads can't be created", e);
+        }
+        final Semaphore slots = new Semaphore(this.maxInFlight);
+        for (int i = 0; i < this.members; i++) {
+            final int member = i;
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        slots.acquire();
+                    } catch (InterruptedException e) {
+                        EnsembleExecutor.this.finish(member, e);
+                        return;
+                    }
+                    try {
+                        EnsembleExecutor.this.runMember(member);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Runs all steps of a member in the current virtual thread.
+     *
+     * @param member member number
+     */
+    private void runMember(int member) {
+        this.inFlight.incrementAndGet();
+        Exception failure = null;
+        try {
+            Simulation sim = this.task.createSimulation(member);
+            for (long s = 0; s < this.steps; s++) {
+                if (this.cancelled) {
+                    throw new InterruptedException("Cancelled");
+                }
+                sim.makeStep();
+                this.completedSteps.incrementAndGet();
+                Thread.yield(); // lets the other members of this carrier run
+            }
+            this.task.finished(member, sim);
+        } catch (Exception e) {
+            failure = e;
+        }
+        this.inFlight.decrementAndGet();
+        this.finish(member, failure);
+    }
+
+    /**
+     * Starts the platform threads which run the members in slices.
+     */
+    private void startSlices() {
+        final LinkedBlockingQueue<Member> queue = new LinkedBlockingQueue<Member>();
+        final AtomicInteger next = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.carriers);
+        for (int c = 0; c < this.carriers; c++) {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    EnsembleExecutor.this.runSlices(queue, next);
+                }
+            });
+        }
+        this.executor.shutdown();
+    }
+
+    /**
+     * Runs slices until every member is done. New members are started while
+     * there is room for them, so the queue has as many members as allowed.
+     *
+     * @param queue members waiting for their next slice
+     * @param next number of the next member to start
+     */
+    private void runSlices(LinkedBlockingQueue<Member> queue, AtomicInteger next) {
+        while (this.done.getCount() > 0 && !this.cancelled) {
+            Member m = null;
+            if (this.inFlight.incrementAndGet() <= this.maxInFlight) {
+                int index = next.getAndIncrement();
+                if (index < this.members) {
+                    m = new Member();
+                    m.index = index;
+                    try {
+                        m.sim = this.task.createSimulation(index);
+                    } catch (Exception e) {
+                        this.inFlight.decrementAndGet();
+                        this.finish(index, e);
+                        continue;
+                    }
+                } else {
+                    this.inFlight.decrementAndGet();
+                }
+            } else {
+                this.inFlight.decrementAndGet();
+            }
+            if (m == null) {
+                try {
+                    m = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (m == null) {
+                    continue;
+                }
+            }
+
+            try {
+                for (int s = 0; s < SLICE_STEPS && m.steps < this.steps; s++) {
+                    m.sim.makeStep();
+                    m.steps++;
+                    this.completedSteps.incrementAndGet();
+                }
+                if (m.steps < this.steps) {
+                    queue.add(m);
+                    continue;
+                }
+                this.task.finished(m.index, m.sim);
+                m.sim = null;
+                this.inFlight.decrementAndGet();
+                this.finish(m.index, null);
+            } catch (Exception e) {
+                this.inFlight.decrementAndGet();
+                this.finish(m.index, e);
+            }
+        }
+    }
+
+    /**
+     * Records a finished member. The member must not be counted in flight
+     * any more, so that the progress is complete when the last member
+     * opens the latch.
+     *
+     * @param member member number
+     * @param e the exception the member failed with, null if it completed
+     */
+    private void finish(int member, Exception e) {
+        if (e != null) {
+            this.fail(member, e);
+        } else {
+            this.completed.incrementAndGet();
+            this.done.countDown();
+        }
+    }
+
+    /**
+     * Records a failed member which is not in flight. The first failure is
+     * kept.
+     *
+     * @param member member number
+     * @param e the exception
+     */
+    private void fail(int member, Exception e) {
+        if (this.failure == null) {
+            this.failure = new Exception("Member " + member + " failed: " + e, e);
+        }
+        this.failed.incrementAndGet();
+        this.done.countDown();
+    }
+
+    /**
+     * Waits until every member is done or has failed.
+     *
+     * @param timeout longest time to wait
+     * @param unit unit of the timeout
+     * @return true if every member is done, false if the time ran out
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = this.done;
+        }
+        if (latch == null) {
+            throw new IllegalStateException("The ensemble has not been started");
+        }
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Stops the ensemble. The members which are running stop after their
+     * current step. The ensemble never completes after this.
+     */
+    public synchronized void cancel() {
+        this.cancelled = true;
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the number of members which have made all their steps.
+     *
+     * @return number of members
+     */
+    public int getCompletedMembers() {
+        return this.completed.get();
+    }
+
+    /**
+     * Gets the number of members which have failed.
+     *
+     * @return number of members
+     */
+    public int getFailedMembers() {
+        return this.failed.get();
+    }
+
+    /**
+     * Gets the number of members which have a simulation right now.
+     *
+     * @return number of members
+     */
+    public int getMembersInFlight() {
+        return Math.max(0, Math.min(this.maxInFlight, this.inFlight.get()));
+    }
+
+    /**
+     * Gets the number of steps made by all members.
+     *
+     * @return number of steps
+     */
+    public long getCompletedSteps() {
+        return this.completedSteps.get();
+    }
+
+    /**
+     * Gets the number of steps all members make together.
+     *
+     * @return number of steps
+     */
+    public long getTotalSteps() {
+        return this.members * this.steps;
+    }
+
+    /**
+     * Gets the share of the steps made so far. Failed members count as
+     * done.
+     *
+     * @return progress between 0 and 1
+     */
+    public double getProgress() {
+        if (this.members == 0) {
+            return 1;
+        }
+        double finished = (double) (this.completed.get() + this.failed.get()) / this.members;
+        return this.steps == 0 ? finished : Math.max(finished, (double) this.getCompletedSteps() / this.getTotalSteps());
+    }
+
+    /**
+     * Gets the first failure.
+     *
+     * @return exception describing the first failed member, or null
+     */
+    public Exception getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Runs an ensemble of random flocks from the command line and writes the
+     * checksum of every member at the end. Usage:
+     * <pre>
+     * EnsembleExecutor --members n --steps n [--boids n] [--seed seed]
+     *                  [--in-flight n] [--threads n] [--out file]
+     * </pre>
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        try {
+            HashMap<String, String> o = HeadlessRunner.parseOptions(args);
+            if (!o.containsKey("members") || !o.containsKey("steps")) {
+                throw new IllegalArgumentException("--members and --steps are required");
+            }
+            final int boids = (int) HeadlessRunner.getLong(o, "boids", 100);
+            final long seed = HeadlessRunner.getLong(o, "seed", 1);
+            int members = (int) HeadlessRunner.getLong(o, "members", 0);
+            final ResultWriter out = new ResultWriter(o.containsKey("out") ? new FileWriter(o.get("out"))
+                    : new PrintWriter(System.out));
+            out.println("member,checksum");
+            EnsembleExecutor ensemble = new EnsembleExecutor(members, HeadlessRunner.getLong(o, "steps", 0),
+                    new Task() {
+                        public Simulation createSimulation(int member) {
+                            Simulation sim = new Simulation(seed + member);
+                            sim.getFlock().addRandomBoids(0, 0, sim.getSettings().getAreaWidth(),
+                                    sim.getSettings().getAreaHeight(), boids);
+                            return sim;
+                        }
+
+                        public void finished(int member, Simulation sim) throws IOException {
+                            out.println(member + "," + StateChecksum.format(StateChecksum.compute(sim.getFlock())));
+                        }
+                    }, (int) HeadlessRunner.getLong(o, "threads", Runtime.getRuntime().availableProcessors()),
+                    (int) HeadlessRunner.getLong(o, "in-flight", members));
+            long start = System.nanoTime();
+            ensemble.start();
+            System.err.println(ensemble.isUsingVirtualThreads() ? "Using virtual threads" : "Using platform threads");
+            while (!ensemble.awaitCompletion(1, TimeUnit.SECONDS)) {
+                System.err.printf("%.1f%%, %d done, %d in flight, %.0f steps/s%n", 100 * ensemble.getProgress(),
+                        ensemble.getCompletedMembers(), ensemble.getMembersInFlight(),
+                        ensemble.getCompletedSteps() / ((System.nanoTime() - start) / 1e9));
+            }
+            out.close();
+            System.err.printf("%d members done, %d failed in %.1f s%n", ensemble.getCompletedMembers(),
+                    ensemble.getFailedMembers(), (System.nanoTime() - start) / 1e9);
+            if (ensemble.getFailure() != null) {
+                System.err.println(ensemble.getFailure().getMessage());
+                System.exit(1);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: EnsembleExecutor --members n --steps n [--boids n] [--seed seed]"
+                    + " [--in-flight n] [--threads n] [--out file]");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import core.BinarySaveFile;
+import core.CheckpointService;
+import core.ColumnarExporter;
+import core.SaveFile;
+import core.SaveMonitor;
+import core.Simulation;
+import core.SimulationMetrics;
+import core.StateChecksum;
+import core.StepProfiler;
+import core.StreamingXMLSaveFile;
+
+/**
+ * Runs a simulation without a window. The run writes checkpoints and
+ * continues from the newest valid checkpoint when it is started again with
+ * the same checkpoint directory. Usage:
+ * <pre>
+ * HeadlessRunner --steps n [--checkpoints directory] [--interval steps]
+ *                [--retention count] [--incrementals count]
+ *                [--load savefile] [--boids n] [--seed seed] [--columns file]
+ *                [--profile steps] [--allocation-budget bytes]
+ *                [--checksum steps] [--metrics port] [--metrics-host address]
+ * </pre>
+ * A new simulation is started with the given save file or with random
+ * boids if there is no checkpoint to resume from. The random boids and the
+ * run are the same every time when a seed is given. With --columns the state
+ * of every boid after every step is exported to a columnar file. With
+ * --profile the time of each phase of a step is measured and reported every
+ * given number of steps and at the end. With --allocation-budget the bytes
+ * the simulation thread allocates in each phase are counted too, and every
+ * step which allocates more than the budget is reported. With --checksum
+ * a checksum of the boids is printed every given number of steps, so two
+ * runs can be compared step by step. With --metrics the simulation
+ * telemetry is served over HTTP at /metrics, on the loopback address unless
+ * --metrics-host is given.
+ */
+public class HeadlessRunner {
+    private Simulation sim;
+    private CheckpointService checkpoints;
+    private ColumnarExporter exporter;
+    private long profileInterval;
+    
+    private final static int REPORT_INTERVAL = 1000; // steps
+    private final static int EXPORT_BATCH_ROWS = 256 * 1024;
+    
+    /**
+     * Creates a runner.
+     * 
+     * @param sim simulation to run
+     * @param checkpoints checkpoint service, may be null
+     */
+    public HeadlessRunner(Simulation sim, CheckpointService checkpoints) {
+        this.sim = sim;
+        this.checkpoints = checkpoints;
+        if (checkpoints != null) {
+            sim.addStepListener(checkpoints);
+        }
+    }
+    
+    /**
+     * Exports every step of the run. The exporter is closed when the run
+     * ends.
+     * 
+     * @param exporter columnar exporter
+     */
+    public void setExporter(ColumnarExporter exporter) {
+        this.exporter = exporter;
+        this.sim.addStepListener(exporter);
+    }
+    
+    /**
+     * Measures the phases of every step and prints a report periodically.
+     * 
+     * @param interval steps between reports
+     */
+    public void setProfiling(long interval) {
+        this.profileInterval = interval;
+        this.sim.getFlock().setProfiler(new StepProfiler());
+    }
+    
+    /**
+     * Measures the phases and the allocations of every step, prints a
+     * report periodically and reports every step which allocates more than
+     * the budget.
+     * 
+     * @param interval steps between reports
+     * @param budget bytes a step may allocate
+     */
+    public void setProfiling(long interval, long budget) {
+        this.profileInterval = interval;
+        StepProfiler profiler = new StepProfiler(true);
+        if (!profiler.isCountingAllocations()) {
+            System.err.println("Allocations can't be counted in this virtual machine");
+        }
+        profiler.setAllocationBudget(budget);
+        this.sim.getFlock().setProfiler(profiler);
+    }
+    
+    /**
+     * Runs the simulation until it has made the given number of steps in
+     * total, counting the steps made before a resume.
+     * 
+     * @param steps total number of steps
+     * @throws IOException if writing a checkpoint or the export failed
+     */
+    public void run(long steps) throws IOException {
+        long start = System.nanoTime();
+        long first = this.sim.getStep();
+        while (this.sim.getStep() < steps) {
+            this.sim.makeStep();
+            if (this.sim.getStep() % REPORT_INTERVAL == 0) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("step %d, %.1f steps/s%n", this.sim.getStep(), (this.sim.getStep() - first) / seconds);
+            }
+            if (this.sim.getChecksumInterval() > 0 && this.sim.getChecksumStep() == this.sim.getStep()) {
+                System.out.printf("step %d checksum %s%n", this.sim.getStep(),
+                        StateChecksum.format(this.sim.getChecksum()));
+            }
+            StepProfiler profiler = this.sim.getFlock().getProfiler();
+            if (profiler != null && profiler.isLastStepOverBudget()) {
+                System.out.printf("step %d allocated %d bytes, budget %d%n", this.sim.getStep(),
+                        profiler.getLastStepBytes(), profiler.getAllocationBudget());
+            }
+            if (profiler != null && this.sim.getStep() % this.profileInterval == 0) {
+                System.out.print(profiler.report());
+            }
+        }
+        StepProfiler profiler = this.sim.getFlock().getProfiler();
+        if (profiler != null) {
+            System.out.print(profiler.report());
+        }
+        if (this.checkpoints != null) {
+            this.sim.removeStepListener(this.checkpoints);
+            this.checkpoints.close();
+        }
+        if (this.exporter != null) {
+            this.sim.removeStepListener(this.exporter);
+            this.exporter.close();
+        }
+    }
+    
+    /**
+     * Parses options of the form --name value.
+     * 
+     * @param args command line arguments
+     * @return values by name
+     */
+    static HashMap<String, String> parseOptions(String[] args) {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Invalid option " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+    
+    /**
+     * Gets an option as a number.
+     * 
+     * @param options options
+     * @param name option name
+     * @param defaultValue value used if the option is not given
+     * @return value
+     */
+    static long getLong(HashMap<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+    
+    /**
+     * Runs a simulation from the command line.
+     * 
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        HashMap<String, String> options;
+        try {
+            options = HeadlessRunner.parseOptions(args);
+            if (!options.containsKey("steps")) {
+                throw new IllegalArgumentException("--steps is required");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: HeadlessRunner --steps n [--checkpoints directory] [--interval steps]"
+                    + " [--retention count] [--incrementals count] [--load savefile] [--boids n] [--seed seed]"
+                    + " [--columns file] [--profile steps] [--allocation-budget bytes] [--checksum steps] [--metrics port] [--metrics-host address]");
+            System.exit(1);
+            return;
+        }
+        
+        MetricsServer server = null;
+        SimulationMetrics metrics = null;
+        try {
+            if (options.containsKey("metrics")) {
+                metrics = new SimulationMetrics();
+                int port = (int) HeadlessRunner.getLong(options, "metrics", 0);
+                if (options.containsKey("metrics-host")) {
+                    server = new MetricsServer(metrics, new InetSocketAddress(options.get("metrics-host"), port));
+                } else {
+                    server = new MetricsServer(metrics, port);
+                }
+                SaveMonitor.addListener(metrics); // before loading, so the load is measured too
+                System.out.println("Serving metrics at port " + server.getPort());
+            }
+            
+            Simulation sim = null;
+            CheckpointService service = null;
+            if (options.containsKey("checkpoints")) {
+                File directory = new File(options.get("checkpoints"));
+                ArrayList<String> skipped = new ArrayList<String>();
+                sim = CheckpointService.resume(directory, skipped);
+                for (String s : skipped) {
+                    System.err.println("Skipping checkpoint " + s);
+                }
+                if (sim != null) {
+                    System.out.println("Resuming from step " + sim.getStep());
+                }
+                service = new CheckpointService(directory, HeadlessRunner.getLong(options, "interval", 1000),
+                        (int) HeadlessRunner.getLong(options, "retention", 5),
+                        (int) HeadlessRunner.getLong(options, "incrementals", 9));
+            }
+            if (sim == null && options.containsKey("load")) {
+                File file = new File(options.get("load"));
+                SaveFile saveFile = new StreamingXMLSaveFile();
+                if (file.getName().endsWith("." + new BinarySaveFile().getFilenameExtension())) {
+                    saveFile = new BinarySaveFile();
+                }
+                sim = saveFile.loadSimulation(file);
+                sim.getFlock().setSettings(sim.getSettings());
+            }
+            if (sim == null) {
+                sim = options.containsKey("seed") ? new Simulation(HeadlessRunner.getLong(options, "seed", 0))
+                        : new Simulation();
+                int w = sim.getSettings().getAreaWidth();
+                int h = sim.getSettings().getAreaHeight();
+                sim.getFlock().addRandomBoids(0, 0, w, h, (int) HeadlessRunner.getLong(options, "boids", 200));
+            }
+            
+            HeadlessRunner runner = new HeadlessRunner(sim, service);
+            if (options.containsKey("columns")) {
+                runner.setExporter(new ColumnarExporter(new File(options.get("columns")), EXPORT_BATCH_ROWS,
+                        Runtime.getRuntime().availableProcessors()));
+            }
+            long profileInterval = Math.max(1, HeadlessRunner.getLong(options, "profile", REPORT_INTERVAL));
+            if (options.containsKey("allocation-budget")) {
+                runner.setProfiling(profileInterval, HeadlessRunner.getLong(options, "allocation-budget", 0));
+            } else if (options.containsKey("profile")) {
+                runner.setProfiling(profileInterval);
+            }
+            if (options.containsKey("checksum")) {
+                sim.setChecksumInterval((int) HeadlessRunner.getLong(options, "checksum", 0));
+            }
+            if (metrics != null) {
+                sim.addStepListener(metrics);
+            }
+            runner.run(HeadlessRunner.getLong(options, "steps", 0));
+            System.out.println("Finished at step " + sim.getStep());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getMessage());
+            System.exit(1);
+        }
+        if (server != null) {
+            SaveMonitor.removeListener(metrics);
+            server.stop();
+        }
+    }
+    
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import core.SimulationMetrics;
+
+/**
+ * Serves simulation metrics over HTTP for a monitoring system to scrape.
+ * GET /metrics returns the metrics in the Prometheus text exposition
+ * format. The server binds to the loopback address unless another address
+ * is given.
+ */
+public class MetricsServer {
+    private HttpServer server;
+    
+    private final static String PATH = "/metrics";
+    private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    /**
+     * Starts a server on the loopback address.
+     * 
+     * @param metrics metrics to serve
+     * @param port port, 0 picks a free port
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsServer(SimulationMetrics metrics, int port) throws IOException {
+        this(metrics, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+    
+    /**
+     * Starts a server.
+     * 
+     * @param metrics metrics to serve
+     * @param address address and port to bind to
+     * @throws IOException if the address can't be bound
+     */
+    public MetricsServer(final SimulationMetrics metrics, InetSocketAddress address) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext(PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    byte[] body = metrics.expose().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start(); // requests are handled in the thread of the server
+    }
+    
+    /**
+     * Gets the port the server listens to.
+     * 
+     * @return port
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+    
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        this.server.stop(0);
+    }
+    
+}
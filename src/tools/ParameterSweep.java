@@ -0,0 +1,473 @@
+/*
+ *  Copyright (C) 2008 Miika-Petteri Matikainen
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package tools;
+
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+
+import core.Boid;
+import core.FlockAnalytics;
+import core.Settings;
+import core.Simulation;
+import core.StateChecksum;
+
+/**
+ * Runs many small simulations with different settings and writes summary
+ * metrics of every run to a CSV file. The runs are independent, so they
+ * are run on a work-stealing pool with a thread for every processor, and
+ * every row is written as soon as its run is done. Usage:
+ * <pre>
+ * ParameterSweep --spec file --out file [--threads n]
+ * </pre>
+ * The spec is a properties file:
+ * <pre>
+ * mode = grid              # or random
+ * samples = 1000           # points drawn in random mode
+ * repeats = 3              # runs of every point, with different seeds
+ * seed = 1
+ * boids = 100
+ * warmup = 200             # steps before the metrics are sampled
+ * steps = 100              # steps whose metrics are averaged
+ * separationFactor = 1, 2, 3
+ * cohesionFactor = 0.005:0.02:4
+ * </pre>
+ * Any other key is a setting: separationFactor, alignmentFactor,
+ * cohesionFactor, wanderFactor, maxSpeed, maxForce, mass, viewAngle (half
+ * of the field of view, in degrees), viewDistance, avoidanceDistance,
+ * collisionThreshold, borderAvoidanceFactor, collisionAvoidanceFactor,
+ * areaWidth or areaHeight. Its value is a comma separated list or a range.
+ * In grid mode every combination of the values is run and a range
+ * from:to:n means n evenly spaced values. In random mode every point takes
+ * each setting at random: a list value with equal chances, and a uniform
+ * value from a range from:to.
+ *
+ * The metrics of a run are averaged over the sampled steps: the
+ * polarization (the length of the mean direction of the boids, 1 when all
+ * fly the same way) and the number of clusters (groups of boids connected
+ * by seeing each other), both from {@link FlockAnalytics}, and the number
+ * of boid pairs closer than the collision threshold.
+ */
+public class ParameterSweep {
+    private String[] names;
+    private ArrayList<double[]> points;
+    private long seed;
+    private int repeats;
+    private int boids;
+    private int warmup;
+    private int steps;
+
+    private final static String[] SETTINGS = { "separationFactor", "alignmentFactor", "cohesionFactor",
+        "wanderFactor", "maxSpeed", "maxForce", "mass", "viewAngle", "viewDistance", "avoidanceDistance",
+        "collisionThreshold", "borderAvoidanceFactor", "collisionAvoidanceFactor", "areaWidth", "areaHeight" };
+    private final static String[] OPTIONS = { "mode", "samples", "repeats", "seed", "boids", "warmup", "steps" };
+    private final static int PROGRESS_INTERVAL = 1000; // runs
+
+    /**
+     * The metrics of one run.
+     */
+    public static class Metrics {
+        public double polarization;
+        public double clusters;
+        public double collisions;
+        public long checksum;
+    }
+
+    /**
+     * Creates a sweep from a spec.
+     *
+     * @param spec spec, as described in the class comment
+     */
+    public ParameterSweep(Properties spec) {
+        TreeMap<String, String> settings = new TreeMap<String, String>();
+        for (String key : spec.stringPropertyNames()) {
+            if (Arrays.asList(SETTINGS).contains(key)) {
+                settings.put(key, spec.getProperty(key).trim());
+            } else if (!Arrays.asList(OPTIONS).contains(key)) {
+                throw new IllegalArgumentException("Unknown setting " + key);
+            }
+        }
+        this.names = settings.keySet().toArray(new String[settings.size()]);
+        this.seed = Long.parseLong(spec.getProperty("seed", "1").trim());
+        this.repeats = Integer.parseInt(spec.getProperty("repeats", "1").trim());
+        this.boids = Integer.parseInt(spec.getProperty("boids", "100").trim());
+        this.warmup = Integer.parseInt(spec.getProperty("warmup", "200").trim());
+        this.steps = Integer.parseInt(spec.getProperty("steps", "100").trim());
+        if (this.repeats < 1 || this.boids < 0 || this.warmup < 0 || this.steps < 1) {
+            throw new IllegalArgumentException("Invalid repeats, boids, warmup or steps");
+        }
+
+        String mode = spec.getProperty("mode", "grid").trim();
+        this.points = new ArrayList<double[]>();
+        if (mode.equals("grid")) {
+            double[][] values = new double[this.names.length][];
+            for (int i = 0; i < this.names.length; i++) {
+                values[i] = ParameterSweep.parseGridValues(settings.get(this.names[i]));
+            }
+            this.addGrid(values, 0, new double[this.names.length]);
+        } else if (mode.equals("random")) {
+            int samples = Integer.parseInt(spec.getProperty("samples", "100").trim());
+            Random random = new Random(this.seed);
+            for (int s = 0; s < samples; s++) {
+                double[] point = new double[this.names.length];
+                for (int i = 0; i < this.names.length; i++) {
+                    point[i] = ParameterSweep.drawValue(settings.get(this.names[i]), random);
+                }
+                this.points.add(point);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+    }
+
+    /**
+     * Adds every combination of the values of the remaining settings.
+     *
+     * @param values values of every setting
+     * @param i first remaining setting
+     * @param point values chosen for the earlier settings
+     */
+    private void addGrid(double[][] values, int i, double[] point) {
+        if (i == values.length) {
+            this.points.add(point.clone());
+            return;
+        }
+        for (double v : values[i]) {
+            point[i] = v;
+            this.addGrid(values, i + 1, point);
+        }
+    }
+
+    /**
+     * Parses the values of a setting in grid mode.
+     *
+     * @param value list or range from:to:n
+     * @return values
+     */
+    static double[] parseGridValues(String value) {
+        if (value.contains(":")) {
+            String[] parts = value.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("A grid range must be from:to:n, not " + value);
+            }
+            double from = Double.parseDouble(parts[0].trim());
+            double to = Double.parseDouble(parts[1].trim());
+            int n = Integer.parseInt(parts[2].trim());
+            if (n < 1) {
+                throw new IllegalArgumentException("A grid range needs at least one value: " + value);
+            }
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = n == 1 ? from : from + (to - from) * i / (n - 1);
+            }
+            return values;
+        }
+        return Benchmark.parseDoubles(value);
+    }
+
+    /**
+     * Draws a value of a setting in random mode.
+     *
+     * @param value list or range from:to
+     * @param random random number generator
+     * @return value
+     */
+    static double drawValue(String value, Random random) {
+        if (value.contains(":")) {
+            String[] parts = value.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("A random range must be from:to, not " + value);
+            }
+            double from = Double.parseDouble(parts[0].trim());
+            double to = Double.parseDouble(parts[1].trim());
+            return from + (to - from) * random.nextDouble();
+        }
+        double[] values = Benchmark.parseDoubles(value);
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * Sets a setting by name.
+     *
+     * @param settings settings
+     * @param name name of the setting
+     * @param value value
+     */
+    static void apply(Settings settings, String name, double value) {
+        if (name.equals("separationFactor")) {
+            settings.setSeparationFactor(value);
+        } else if (name.equals("alignmentFactor")) {
+            settings.setAlignmentFactor(value);
+        } else if (name.equals("cohesionFactor")) {
+            settings.setCohesionFactor(value);
+        } else if (name.equals("wanderFactor")) {
+            settings.setWanderFactor(value);
+        } else if (name.equals("maxSpeed")) {
+            settings.setMaxSpeed(value);
+        } else if (name.equals("maxForce")) {
+            settings.setMaxForce(value);
+        } else if (name.equals("mass")) {
+            settings.setMass(value);
+        } else if (name.equals("viewAngle")) {
+            settings.setViewAngle(value);
+        } else if (name.equals("viewDistance")) {
+            settings.setViewDistance(value);
+        } else if (name.equals("avoidanceDistance")) {
+            settings.setAvoidanceDistance(value);
+        } else if (name.equals("collisionThreshold")) {
+            settings.setCollisionThreshold(value);
+        } else if (name.equals("borderAvoidanceFactor")) {
+            settings.setBorderAvoidanceFactor(value);
+        } else if (name.equals("collisionAvoidanceFactor")) {
+            settings.setCollisionAvoidanceFactor(value);
+        } else if (name.equals("areaWidth")) {
+            settings.setAreaWidth((int) Math.round(value));
+        } else if (name.equals("areaHeight")) {
+            settings.setAreaHeight((int) Math.round(value));
+        } else {
+            throw new IllegalArgumentException("Unknown setting " + name);
+        }
+    }
+
+    /**
+     * Gets the number of runs.
+     *
+     * @return number of points times the repeats
+     */
+    public int getRunCount() {
+        return this.points.size() * this.repeats;
+    }
+
+    /**
+     * Makes one run.
+     *
+     * @param run run number
+     * @return metrics
+     */
+    public Metrics run(int run) {
+        double[] point = this.points.get(run / this.repeats);
+        Simulation sim = new Simulation(this.seed + run);
+        for (int i = 0; i < this.names.length; i++) {
+            ParameterSweep.apply(sim.getSettings(), this.names[i], point[i]);
+        }
+        sim.getFlock().addRandomBoids(0, 0, sim.getSettings().getAreaWidth(), sim.getSettings().getAreaHeight(),
+                this.boids);
+        for (int s = 0; s < this.warmup; s++) {
+            sim.makeStep();
+        }
+        Metrics m = new Metrics();
+        FlockAnalytics analytics = new FlockAnalytics();
+        sim.getFlock().setAnalytics(analytics);
+        for (int s = 0; s < this.steps; s++) {
+            sim.makeStep();
+            m.polarization += analytics.getPolarization();
+            m.clusters += analytics.getClusterCount();
+            m.collisions += ParameterSweep.collisions(sim.getFlock().getBoids(),
+                    sim.getSettings().getCollisionThreshold());
+        }
+        m.polarization /= this.steps;
+        m.clusters /= this.steps;
+        m.collisions /= this.steps;
+        m.checksum = StateChecksum.compute(sim.getFlock());
+        return m;
+    }
+
+    /**
+     * Counts the boid pairs closer than a distance. The boids are sorted by
+     * x and only the boids within the distance in x are compared.
+     *
+     * @param boids boids
+     * @param distance distance
+     * @return number of pairs
+     */
+    static int collisions(ArrayList<Boid> boids, double distance) {
+        int n = boids.size();
+        double[][] p = new double[n][];
+        for (int i = 0; i < n; i++) {
+            p[i] = new double[] { boids.get(i).getPosition().getX(), boids.get(i).getPosition().getY() };
+        }
+        Arrays.sort(p, new java.util.Comparator<double[]>() {
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        int pairs = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n && p[j][0] - p[i][0] < distance; j++) {
+                double dx = p[j][0] - p[i][0];
+                double dy = p[j][1] - p[i][1];
+                if (dx * dx + dy * dy < distance * distance) {
+                    pairs++;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Receives the progress of a sweep. The sweep calls this from the thread
+     * which writes the results.
+     */
+    public interface Progress {
+
+        /**
+         * Tells how many runs have been written.
+         *
+         * @param done runs written so far
+         * @param total runs in the sweep
+         */
+        public void progress(int done, int total);
+
+    }
+
+    /**
+     * Makes all runs and writes a CSV row for each as it completes.
+     *
+     * @param out CSV output
+     * @param threads number of worker threads
+     * @throws IOException if a run or writing fails
+     */
+    public void runAll(PrintWriter out, int threads) throws IOException {
+        this.runAll(out, threads, null);
+    }
+
+    /**
+     * Makes all runs, writes a CSV row for each as it completes and reports
+     * the progress every few runs.
+     *
+     * @param out CSV output
+     * @param threads number of worker threads
+     * @param progress receives the progress after the output is flushed, may be null
+     * @throws IOException if a run or writing fails
+     */
+    public void runAll(PrintWriter out, int threads, Progress progress) throws IOException {
+        StringBuilder header = new StringBuilder("run,seed");
+        for (String name : this.names) {
+            header.append(',').append(name);
+        }
+        header.append(",polarization,clusters,collisions,checksum");
+        out.println(header);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ExecutorCompletionService<String> done = new ExecutorCompletionService<String>(pool);
+        try {
+            int runs = this.getRunCount();
+            for (int r = 0; r < runs; r++) {
+                final int run = r;
+                done.submit(new Callable<String>() {
+                    public String call() {
+                        return ParameterSweep.this.toCsv(run, ParameterSweep.this.run(run));
+                    }
+                });
+            }
+            for (int r = 1; r <= runs; r++) {
+                out.println(done.take().get());
+                if (r % PROGRESS_INTERVAL == 0 || r == runs) {
+                    out.flush();
+                    if (progress != null) {
+                        progress.progress(r, runs);
+                    }
+                }
+                if (out.checkError()) {
+                    throw new IOException("Writing the results failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("The sweep was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("A run failed: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Formats a run as a CSV row.
+     *
+     * @param run run number
+     * @param m metrics
+     * @return row without a line break
+     */
+    String toCsv(int run, Metrics m) {
+        StringBuilder s = new StringBuilder();
+        s.append(run).append(',').append(this.seed + run);
+        for (double v : this.points.get(run / this.repeats)) {
+            s.append(',').append(v);
+        }
+        s.append(String.format(Locale.ROOT, ",%.4f,%.2f,%.2f,%s", m.polarization, m.clusters, m.collisions,
+                StateChecksum.format(m.checksum)));
+        return s.toString();
+    }
+
+    /**
+     * Runs a sweep from the command line.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        try {
+            HashMap<String, String> options = HeadlessRunner.parseOptions(args);
+            if (!options.containsKey("spec") || !options.containsKey("out")) {
+                throw new IllegalArgumentException("--spec and --out are required");
+            }
+            Properties spec = new Properties();
+            InputStream in = new FileInputStream(options.get("spec"));
+            try {
+                spec.load(in);
+            } finally {
+                in.close();
+            }
+            ParameterSweep sweep = new ParameterSweep(spec);
+            int threads = (int) HeadlessRunner.getLong(options, "threads", Runtime.getRuntime().availableProcessors());
+            PrintWriter out = new PrintWriter(new FileWriter(options.get("out")));
+            final long start = System.nanoTime();
+            try {
+                sweep.runAll(out, threads, new Progress() {
+                    public void progress(int done, int total) {
+                        System.err.printf("%d of %d runs, %.1f runs/s%n", done, total,
+                                done / ((System.nanoTime() - start) / 1e9));
+                    }
+                });
+            } finally {
+                out.close();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ParameterSweep --spec file --out file [--threads n]");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}